@@ -0,0 +1,100 @@
+package com.telecominfraproject.wlan.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.telecominfraproject.wlan.core.model.equipment.MacAddress;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+/**
+ * Model used as a payload by the benchmarks. It resembles a typical equipment metric: a few scalar properties, a mac address,
+ * and a list of values and a map of labels which grow with the payload size.
+ *
+ * @author dtop
+ *
+ */
+public class BenchmarkModel extends BaseJsonModel {
+
+    private static final long serialVersionUID = -3315417012698123954L;
+
+    private int customerId;
+    private long equipmentId;
+    private long createdTimestamp;
+    private MacAddress clientMac;
+    private List<Long> values = new ArrayList<>();
+    private Map<String, String> labels = new LinkedHashMap<>();
+
+    public BenchmarkModel() {
+    }
+
+    /**
+     * @param payloadSize - number of entries in the values list and in the labels map
+     * @param seed - makes models with the same payload size different from each other
+     * @return new model
+     */
+    public static BenchmarkModel create(int payloadSize, long seed) {
+        BenchmarkModel ret = new BenchmarkModel();
+        ret.customerId = 2;
+        ret.equipmentId = 1000L + seed;
+        ret.createdTimestamp = 1500000000000L + seed * 1000;
+        ret.clientMac = MacAddress.valueOf(0x0a1b2c000000L + seed);
+
+        for(int i = 0; i < payloadSize; i++) {
+            ret.values.add(seed * 31 + i);
+            ret.labels.put("label_" + i, "value_" + (seed + i));
+        }
+
+        return ret;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public void setCustomerId(int customerId) {
+        this.customerId = customerId;
+    }
+
+    public long getEquipmentId() {
+        return equipmentId;
+    }
+
+    public void setEquipmentId(long equipmentId) {
+        this.equipmentId = equipmentId;
+    }
+
+    public long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+
+    public MacAddress getClientMac() {
+        return clientMac;
+    }
+
+    public void setClientMac(MacAddress clientMac) {
+        this.clientMac = clientMac;
+    }
+
+    public List<Long> getValues() {
+        return values;
+    }
+
+    public void setValues(List<Long> values) {
+        this.values = values;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    public void setLabels(Map<String, String> labels) {
+        this.labels = labels;
+    }
+
+}
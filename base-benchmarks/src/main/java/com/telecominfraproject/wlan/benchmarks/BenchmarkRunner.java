@@ -0,0 +1,95 @@
+package com.telecominfraproject.wlan.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs benchmarks of this module and publishes their results as JSON.<br>
+ * Usage:
+ * <pre>
+ * java -jar base-benchmarks/target/benchmarks.jar [-smoke] [-rf resultFile] [benchmark regexp ...]
+ * </pre>
+ * Without a regexp all the benchmarks of this module are run.<br>
+ * Smoke mode (-smoke argument or -Dtip.wlan.benchmarks.smoke=true) is meant for CI:
+ * one fork, one short warmup and one short measurement iteration, and only the smallest payload size of every benchmark.
+ * It catches broken benchmarks and large regressions in a couple of minutes, full runs are needed for anything finer than that.<br>
+ * Results are written into jmh-result.json, unless -rf argument or -Dtip.wlan.benchmarks.resultFile property say otherwise.
+ * Runner exits with non-zero code when no benchmark has produced a result.
+ *
+ * @author dtop
+ *
+ */
+public class BenchmarkRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BenchmarkRunner.class);
+
+    /**
+     * Name of the parameter that all the benchmarks use for the size of their payloads
+     */
+    public static final String PAYLOAD_SIZE_PARAM = "payloadSize";
+
+    /**
+     * Payload size used by all the benchmarks in smoke mode, it is present in the @Param values of every benchmark
+     */
+    public static final String SMOKE_PAYLOAD_SIZE = "10";
+
+    public static void main(String[] args) throws RunnerException {
+        boolean smoke = Boolean.getBoolean("tip.wlan.benchmarks.smoke");
+        String resultFile = System.getProperty("tip.wlan.benchmarks.resultFile", "jmh-result.json");
+        List<String> includes = new ArrayList<>();
+
+        for(int i = 0; i < args.length; i++) {
+            if("-smoke".equals(args[i])) {
+                smoke = true;
+            } else if("-rf".equals(args[i]) && i + 1 < args.length) {
+                resultFile = args[++i];
+            } else {
+                includes.add(args[i]);
+            }
+        }
+
+        if(includes.isEmpty()) {
+            includes.add(BenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+
+        ChainedOptionsBuilder optionsBuilder = new OptionsBuilder()
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile);
+
+        for(String include: includes) {
+            optionsBuilder.include(include);
+        }
+
+        if(smoke) {
+            optionsBuilder.forks(1)
+                .warmupIterations(1)
+                .warmupTime(TimeValue.milliseconds(200))
+                .measurementIterations(1)
+                .measurementTime(TimeValue.milliseconds(500))
+                .param(PAYLOAD_SIZE_PARAM, SMOKE_PAYLOAD_SIZE);
+        }
+
+        LOG.info("Running benchmarks {} smoke mode {}, results go into {}", includes, smoke, resultFile);
+
+        Collection<RunResult> results = new Runner(optionsBuilder.build()).run();
+
+        if(results.isEmpty()) {
+            LOG.error("No benchmark results were produced for {}", includes);
+            System.exit(1);
+        }
+
+        LOG.info("Completed {} benchmarks, results are in {}", results.size(), resultFile);
+    }
+
+}
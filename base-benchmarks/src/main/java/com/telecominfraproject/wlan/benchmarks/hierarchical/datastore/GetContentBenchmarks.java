@@ -0,0 +1,110 @@
+package com.telecominfraproject.wlan.benchmarks.hierarchical.datastore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.benchmarks.BenchmarkModel;
+import com.telecominfraproject.wlan.core.model.filter.EntryFilter;
+import com.telecominfraproject.wlan.hierarchical.datastore.DataFileBlocks;
+import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore;
+
+/**
+ * HierarchicalDatastore.getContent() of a zipped data file, reading all of its lines and reading only the lines selected by an index.
+ * payloadSize is the number of records in the data file.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GetContentBenchmarks {
+
+    /**
+     * Data file is written in independently compressed blocks of this many records, same as the HDS writer does
+     */
+    private static final int recordsPerDataFileBlock = Math.max(1, Integer.getInteger("tip.wlan.hdsRecordsPerDataFileBlock", 500));
+
+    /**
+     * Every n-th record is selected by the line number filter
+     */
+    private static final int selectEveryNthLine = 10;
+
+    private static final String partFileName = "bm_2_1001_2020_01_01_00_00_1577836800000";
+
+    @Param({"10", "1000", "10000"})
+    private int payloadSize;
+
+    private byte[] dataFileBytes;
+    private Set<Integer> lineNumbers;
+
+    private final EntryFilter<BenchmarkModel> matchAllFilter = new EntryFilter<BenchmarkModel>() {
+        @Override
+        public BenchmarkModel getFilteredEntry(BenchmarkModel entry) {
+            return entry;
+        }
+    };
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try(ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            zipOutputStream.putNextEntry(new ZipEntry(partFileName));
+
+            for(int lineNumber = 0; lineNumber < payloadSize; lineNumber++) {
+                if(lineNumber > 0 && lineNumber % recordsPerDataFileBlock == 0){
+                    zipOutputStream.closeEntry();
+                    zipOutputStream.putNextEntry(new ZipEntry(DataFileBlocks.getBlockEntryName(partFileName, lineNumber)));
+                }
+
+                zipOutputStream.write(BenchmarkModel.create(10, lineNumber).toString().getBytes(StandardCharsets.UTF_8));
+                zipOutputStream.write(13);
+                zipOutputStream.write(10);
+            }
+
+            zipOutputStream.closeEntry();
+        }
+
+        dataFileBytes = outputStream.toByteArray();
+
+        lineNumbers = new HashSet<>();
+        for(int lineNumber = 0; lineNumber < payloadSize; lineNumber += selectEveryNthLine) {
+            lineNumbers.add(lineNumber);
+        }
+    }
+
+    @Benchmark
+    public List<BenchmarkModel> getAllLines() {
+        return HierarchicalDatastore.getContent(new ByteArrayInputStream(dataFileBytes), matchAllFilter, null, BenchmarkModel.class);
+    }
+
+    @Benchmark
+    public List<BenchmarkModel> getSelectedLines() {
+        return HierarchicalDatastore.getContent(new ByteArrayInputStream(dataFileBytes), matchAllFilter, lineNumbers, BenchmarkModel.class);
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.telecominfraproject.wlan.benchmarks.hierarchical.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.benchmarks.BenchmarkModel;
+import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.registry.RecordIndexRegistry;
+import com.telecominfraproject.wlan.hierarchical.datastore.writer.ModelSerializer;
+import com.telecominfraproject.wlan.hierarchical.datastore.writer.StreamHolder;
+
+/**
+ * StreamHolder.writeModelToStream() - appending a model to the zipped data file that is being collected in memory,
+ * with the model converted into a String, and with the model serialized by a reused ModelSerializer as the HDS writer does.
+ * payloadSize is the number of entries in the list and in the map of the model.<br>
+ * A new stream is started for every iteration, streams are never uploaded.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StreamHolderBenchmarks {
+
+    @Param({"10", "100", "1000"})
+    private int payloadSize;
+
+    private File dsRootDir;
+    private HierarchicalDatastore hierarchicalDatastore;
+    private BenchmarkModel model;
+    private ModelSerializer modelSerializer;
+    private StreamHolder streamHolder;
+
+    @Setup(Level.Trial)
+    public void setupDatastore() throws IOException {
+        dsRootDir = Files.createTempDirectory("hdsBenchmark").toFile();
+        hierarchicalDatastore = new HierarchicalDatastore(dsRootDir.getAbsolutePath(), "benchmarkDs", "bm", 1, 20L,
+                null, null, null, new RecordIndexRegistry());
+        model = BenchmarkModel.create(payloadSize, 1);
+        modelSerializer = new ModelSerializer();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupStream() {
+        streamHolder = new StreamHolder(System.currentTimeMillis(), model.getCustomerId(), model.getEquipmentId(), hierarchicalDatastore);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownDatastore() {
+        hierarchicalDatastore.getQueryScheduler().shutdown();
+        removeDirectory(dsRootDir);
+    }
+
+    @Benchmark
+    public void writeModelToStream() throws IOException {
+        streamHolder.writeModelToStream(model);
+    }
+
+    @Benchmark
+    public void writeSerializedModelToStream() throws IOException {
+        modelSerializer.serialize(model);
+        streamHolder.writeModelToStream(model, modelSerializer.getBuffer(), modelSerializer.getLength());
+    }
+
+    private static void removeDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f: files) {
+                if(f.isDirectory()) {
+                    removeDirectory(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+}
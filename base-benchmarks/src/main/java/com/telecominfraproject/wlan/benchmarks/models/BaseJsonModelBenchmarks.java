@@ -0,0 +1,69 @@
+package com.telecominfraproject.wlan.benchmarks.models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.benchmarks.BenchmarkModel;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+/**
+ * JSON serialization of the models: to/from String and to/from zipped bytes.
+ * payloadSize is the number of entries in the list and in the map of the model.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BaseJsonModelBenchmarks {
+
+    @Param({"10", "100", "1000"})
+    private int payloadSize;
+
+    private BenchmarkModel model;
+    private String modelStr;
+    private byte[] modelZippedBytes;
+
+    @Setup
+    public void setup() {
+        model = BenchmarkModel.create(payloadSize, 1);
+        modelStr = model.toString();
+        modelZippedBytes = model.toZippedBytes();
+    }
+
+    @Benchmark
+    public String toJsonString() {
+        return model.toString();
+    }
+
+    @Benchmark
+    public BaseJsonModel fromJsonString() {
+        return BaseJsonModel.fromString(modelStr, BaseJsonModel.class);
+    }
+
+    @Benchmark
+    public byte[] toZippedBytes() {
+        return model.toZippedBytes();
+    }
+
+    @Benchmark
+    public BaseJsonModel fromZippedBytes() {
+        return BaseJsonModel.fromZippedBytes(modelZippedBytes, BaseJsonModel.class);
+    }
+
+}
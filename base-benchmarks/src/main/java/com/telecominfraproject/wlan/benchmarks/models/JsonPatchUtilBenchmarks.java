@@ -0,0 +1,66 @@
+package com.telecominfraproject.wlan.benchmarks.models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.benchmarks.BenchmarkModel;
+import com.telecominfraproject.wlan.core.model.utils.JsonPatchException;
+import com.telecominfraproject.wlan.core.model.utils.JsonPatchUtil;
+
+/**
+ * JsonPatchUtil: generating a patch between two versions of a model, and applying it.
+ * payloadSize is the number of entries in the list and in the map of the model, about a tenth of them differ between the versions.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JsonPatchUtilBenchmarks {
+
+    @Param({"10", "100", "1000"})
+    private int payloadSize;
+
+    private BenchmarkModel fromModel;
+    private BenchmarkModel toModel;
+    private String patch;
+
+    @Setup
+    public void setup() throws JsonPatchException {
+        fromModel = BenchmarkModel.create(payloadSize, 1);
+        toModel = BenchmarkModel.create(payloadSize, 1);
+
+        for(int i = 0; i < payloadSize; i += 10) {
+            toModel.getValues().set(i, -1L);
+            toModel.getLabels().put("label_" + i, "changed");
+        }
+
+        patch = JsonPatchUtil.generatePatch(fromModel, toModel);
+    }
+
+    @Benchmark
+    public String generatePatch() throws JsonPatchException {
+        return JsonPatchUtil.generatePatch(fromModel, toModel);
+    }
+
+    @Benchmark
+    public BenchmarkModel applyPatch() throws JsonPatchException {
+        return JsonPatchUtil.apply(fromModel, patch, BenchmarkModel.class);
+    }
+
+}
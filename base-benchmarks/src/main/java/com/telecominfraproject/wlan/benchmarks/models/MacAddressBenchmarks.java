@@ -0,0 +1,90 @@
+package com.telecominfraproject.wlan.benchmarks.models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.telecominfraproject.wlan.core.model.equipment.MacAddress;
+
+/**
+ * MacAddress parsing from strings and longs, and formatting into strings.
+ * payloadSize is the number of distinct addresses processed by one benchmark operation.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MacAddressBenchmarks {
+
+    @Param({"10", "1000"})
+    private int payloadSize;
+
+    private String[] macStrings;
+    private long[] macLongs;
+    private MacAddress[] macAddresses;
+
+    @Setup
+    public void setup() {
+        macStrings = new String[payloadSize];
+        macLongs = new long[payloadSize];
+        macAddresses = new MacAddress[payloadSize];
+
+        for(int i = 0; i < payloadSize; i++) {
+            macLongs[i] = 0x0a1b2c000000L + i * 7919L;
+            macAddresses[i] = MacAddress.valueOf(macLongs[i]);
+            macStrings[i] = macAddresses[i].getAddressAsString();
+        }
+    }
+
+    @Benchmark
+    public void parseFromString(Blackhole blackhole) {
+        for(String macStr: macStrings) {
+            blackhole.consume(MacAddress.valueOf(macStr));
+        }
+    }
+
+    @Benchmark
+    public void parseFromLong(Blackhole blackhole) {
+        for(long macLong: macLongs) {
+            blackhole.consume(MacAddress.valueOf(macLong));
+        }
+    }
+
+    @Benchmark
+    public void convertStringToLong(Blackhole blackhole) {
+        for(String macStr: macStrings) {
+            blackhole.consume(MacAddress.convertMacStringToLongValue(macStr));
+        }
+    }
+
+    @Benchmark
+    public void formatAsString(Blackhole blackhole) {
+        for(MacAddress mac: macAddresses) {
+            blackhole.consume(mac.getAddressAsString());
+        }
+    }
+
+    @Benchmark
+    public void formatAsLowerCaseString(Blackhole blackhole) {
+        for(MacAddress mac: macAddresses) {
+            blackhole.consume(mac.getAsLowerCaseString());
+        }
+    }
+
+}
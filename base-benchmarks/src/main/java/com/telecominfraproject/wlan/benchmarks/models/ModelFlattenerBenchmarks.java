@@ -0,0 +1,71 @@
+package com.telecominfraproject.wlan.benchmarks.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.benchmarks.BenchmarkModel;
+import com.telecominfraproject.wlan.core.model.json.flattener.ModelFlattener;
+
+/**
+ * ModelFlattener.flattenJson() of a whole model, and of a model with include/exclude patterns and mac addresses split into bytes.
+ * payloadSize is the number of entries in the list and in the map of the model.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ModelFlattenerBenchmarks {
+
+    @Param({"10", "100", "1000"})
+    private int payloadSize;
+
+    private String jsonStr;
+    private List<Pattern> pathPatternsToInclude;
+    private List<Pattern> pathPatternsToExclude;
+
+    @Setup
+    public void setup() {
+        jsonStr = BenchmarkModel.create(payloadSize, 1).toString();
+
+        pathPatternsToInclude = new ArrayList<>();
+        pathPatternsToInclude.add(Pattern.compile("^model_type$"));
+        pathPatternsToInclude.add(Pattern.compile("^equipmentId$"));
+        pathPatternsToInclude.add(Pattern.compile("^clientMac.+$"));
+        pathPatternsToInclude.add(Pattern.compile("^labels\\..+$"));
+
+        pathPatternsToExclude = new ArrayList<>();
+        pathPatternsToExclude.add(Pattern.compile("^labels\\.label_1.*$"));
+    }
+
+    @Benchmark
+    public Map<String, Object> flattenAll() {
+        return ModelFlattener.flattenJson(jsonStr, Collections.<Pattern>emptyList(), Collections.<Pattern>emptyList(), false);
+    }
+
+    @Benchmark
+    public Map<String, Object> flattenWithPatterns() {
+        return ModelFlattener.flattenJson(jsonStr, pathPatternsToInclude, pathPatternsToExclude, true);
+    }
+
+}
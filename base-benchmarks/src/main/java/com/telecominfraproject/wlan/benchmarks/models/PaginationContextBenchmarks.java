@@ -0,0 +1,66 @@
+package com.telecominfraproject.wlan.benchmarks.models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.benchmarks.BenchmarkModel;
+import com.telecominfraproject.wlan.core.model.pagination.PaginationContext;
+
+/**
+ * PaginationContext.getCursor() and setCursor() of a context with a child context and a third party paging state.
+ * payloadSize is the number of entries in the list and in the map of the startAfterItem model.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PaginationContextBenchmarks {
+
+    @Param({"10", "100"})
+    private int payloadSize;
+
+    private PaginationContext<BenchmarkModel> context;
+    private String cursor;
+
+    @Setup
+    public void setup() {
+        context = new PaginationContext<>(100);
+        context.setStartAfterItem(BenchmarkModel.create(payloadSize, 1));
+        context.setThirdPartyPagingState(new byte[] {0, 1, 42, 7, 13});
+
+        PaginationContext<BenchmarkModel> childContext = new PaginationContext<>(100);
+        childContext.setStartAfterItem(BenchmarkModel.create(payloadSize, 2));
+        context.getChildren().getChildren().put("child", childContext);
+
+        cursor = context.getCursor();
+    }
+
+    @Benchmark
+    public String getCursor() {
+        return context.getCursor();
+    }
+
+    @Benchmark
+    public PaginationContext<BenchmarkModel> setCursor() {
+        PaginationContext<BenchmarkModel> ret = new PaginationContext<>(100);
+        ret.setCursor(cursor);
+        return ret;
+    }
+
+}
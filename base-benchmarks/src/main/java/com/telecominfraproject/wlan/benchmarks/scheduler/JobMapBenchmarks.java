@@ -0,0 +1,99 @@
+package com.telecominfraproject.wlan.benchmarks.scheduler;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
+import com.telecominfraproject.wlan.core.scheduler.models.JobSchedule;
+import com.telecominfraproject.wlan.core.scheduler.models.ScheduledJob;
+
+/**
+ * JobMap: adding a job and removing it by job id or by schedule, and looking up the first timer.
+ * payloadSize is the number of jobs that are already in the map.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JobMapBenchmarks {
+
+    @Param({"10", "1000", "100000"})
+    private int payloadSize;
+
+    private static final long baseTime = 1500000000000L;
+
+    private JobMap<Long> jobMap;
+    private JobSchedule<Long> middleSchedule;
+
+    private final ScheduledJob<Long> noOpJob = new ScheduledJob<Long>() {
+        @Override
+        public void runJob(Long id, long startTime, ImmutableTimeWindow timeWindows) {
+            // nothing to do
+        }
+
+        @Override
+        public void cancel(Long id, long startTime, ImmutableTimeWindow immutableTimeWindow) {
+            // nothing to do
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        jobMap = new JobMap<>();
+        for(long i = 0; i < payloadSize; i++) {
+            jobMap.addJob(newSchedule(i), noOpJob);
+        }
+
+        //job that is added and removed falls in the middle of the existing schedules
+        middleSchedule = newSchedule(-1L, baseTime + payloadSize / 2 * 1000L + 500);
+    }
+
+    @Benchmark
+    public JobDetails<Long> addAndRemoveById() {
+        jobMap.addJob(middleSchedule, noOpJob);
+        return jobMap.removeJob(middleSchedule.getJobId());
+    }
+
+    @Benchmark
+    public JobDetails<Long> addAndRemoveBySchedule() {
+        jobMap.addJob(middleSchedule, noOpJob);
+        return jobMap.removeJob(middleSchedule);
+    }
+
+    @Benchmark
+    public JobSchedule<Long> getFirstTimer() {
+        return jobMap.getFirstTimer();
+    }
+
+    private static JobSchedule<Long> newSchedule(long jobId) {
+        return newSchedule(jobId, baseTime + jobId * 1000L);
+    }
+
+    private static JobSchedule<Long> newSchedule(long jobId, long beginTime) {
+        return new JobSchedule<>(jobId, new ImmutableTimeWindow(beginTime, beginTime + 60000L));
+    }
+
+}
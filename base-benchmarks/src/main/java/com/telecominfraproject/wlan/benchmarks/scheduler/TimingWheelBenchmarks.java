@@ -0,0 +1,116 @@
+package com.telecominfraproject.wlan.benchmarks.scheduler;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
+import com.telecominfraproject.wlan.core.scheduler.models.JobSchedule;
+import com.telecominfraproject.wlan.core.scheduler.models.ScheduledJob;
+import com.telecominfraproject.wlan.core.scheduler.models.TimingWheel;
+
+/**
+ * TimingWheel: adding a job and removing it by job id, re-scheduling it, and firing a tick worth of due jobs.
+ * payloadSize is the number of jobs that are already in the wheel, compare with {@link JobMapBenchmarks}.
+ *
+ * @author dtop
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TimingWheelBenchmarks {
+
+    @Param({"10", "1000", "100000"})
+    private int payloadSize;
+
+    private static final long baseTime = 1500000000000L;
+
+    private TimingWheel<Long> jobWheel;
+    private JobSchedule<Long> middleSchedule;
+    private ImmutableTimeWindow laterTimeWindows;
+    private long currentTime;
+
+    private final ScheduledJob<Long> noOpJob = new ScheduledJob<Long>() {
+        @Override
+        public void runJob(Long id, long startTime, ImmutableTimeWindow timeWindows) {
+            // nothing to do
+        }
+
+        @Override
+        public void cancel(Long id, long startTime, ImmutableTimeWindow immutableTimeWindow) {
+            // nothing to do
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        jobWheel = new TimingWheel<>(100, 1024);
+        jobWheel.advance(baseTime - 1000);
+        for(long i = 0; i < payloadSize; i++) {
+            jobWheel.addJob(newSchedule(i), noOpJob);
+        }
+
+        //job that is added and removed falls in the middle of the existing schedules
+        middleSchedule = newSchedule(-1L, baseTime + payloadSize / 2 * 1000L + 500);
+        laterTimeWindows = new ImmutableTimeWindow(middleSchedule.getTimeWindows().getBeginTime() + 1000,
+                middleSchedule.getTimeWindows().getEndTime() + 1000);
+        currentTime = baseTime - 1000;
+    }
+
+    @Benchmark
+    public JobDetails<Long> addAndRemoveById() {
+        jobWheel.addJob(middleSchedule, noOpJob);
+        return jobWheel.removeJob(middleSchedule.getJobId());
+    }
+
+    @Benchmark
+    public JobDetails<Long> addRescheduleAndRemove() {
+        jobWheel.addJob(middleSchedule, noOpJob);
+        jobWheel.rescheduleJob(middleSchedule.getJobId(), laterTimeWindows);
+        return jobWheel.removeJob(middleSchedule.getJobId());
+    }
+
+    /**
+     * Advance the wheel by one tick, jobs that fire are put back one full day later so the wheel keeps its size
+     */
+    @Benchmark
+    public int advanceOneTick() {
+        currentTime += jobWheel.getTickMs();
+        List<JobDetails<Long>> dueJobs = jobWheel.advance(currentTime);
+        for(JobDetails<Long> jobDetails : dueJobs) {
+            ImmutableTimeWindow timeWindows = jobDetails.getSchedule().getTimeWindows();
+            jobWheel.addJob(newSchedule(jobDetails.getSchedule().getJobId(), timeWindows.getBeginTime() + TimeUnit.DAYS.toMillis(1)), noOpJob);
+        }
+        return dueJobs.size();
+    }
+
+    private static JobSchedule<Long> newSchedule(long jobId) {
+        return newSchedule(jobId, baseTime + jobId * 1000L);
+    }
+
+    private static JobSchedule<Long> newSchedule(long jobId, long beginTime) {
+        return new JobSchedule<>(jobId, new ImmutableTimeWindow(beginTime, beginTime + 60000L));
+    }
+
+}
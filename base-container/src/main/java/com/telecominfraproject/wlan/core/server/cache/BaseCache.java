@@ -3,21 +3,128 @@
  */
 package com.telecominfraproject.wlan.core.server.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.cache.Cache;
 import org.springframework.cache.Cache.ValueWrapper;
 
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Timer;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+
 /**
+ * Cache of values that are loaded by a GetValueOperation.<br>
+ * Concurrent loads of the same key are coalesced: only one caller runs the GetValueOperation, the others wait for its result.
+ * This keeps a popular key that has just expired from stampeding the datastore or the remote service behind it.<br>
+ * When refreshAheadMs is positive, a value that was loaded more than refreshAheadMs ago is re-loaded in the background on access,
+ * while the callers keep getting the current value. Set it below the expiry of the cache, so that popular keys are refreshed before they expire.<br>
+ * Metrics are published per cache name: cache-[name]-hit-count, -miss-count, -coalesced-count, -refreshAhead-count, -loadError-count, -load-timer.
+ *
  * @author yongli
  *
  */
 public abstract class BaseCache<K, D, O extends GetValueOperation<K, D>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BaseCache.class);
+
+    private static final int refreshAheadThreads = Integer.getInteger("tip.wlan.cacheRefreshAheadThreads", 2);
+    private static final int refreshAheadQueueSize = Integer.getInteger("tip.wlan.cacheRefreshAheadQueueSize", 1000);
+
+    /**
+     * Load timestamps are kept for at most this many keys per cache, when there are more one of the tracked keys is forgotten for each new one
+     * (keys without a load timestamp start over, and are refreshed refreshAheadMs after their next access)
+     */
+    private static final int refreshAheadMaxTrackedKeys = Integer.getInteger("tip.wlan.cacheRefreshAheadMaxTrackedKeys", 100000);
+
+    private static final ThreadPoolExecutor defaultRefreshExecutor = new ThreadPoolExecutor(refreshAheadThreads, refreshAheadThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(refreshAheadQueueSize), new ThreadFactory() {
+                private int cnt;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread thr = new Thread(r, "cache-refresh-ahead-" + (cnt++));
+                    thr.setDaemon(true);
+                    return thr;
+                }
+            });
+
+    static {
+        defaultRefreshExecutor.allowCoreThreadTimeOut(true);
+    }
+
     private final Cache dataCache;
 
     private final Class<? extends D> dataClazz;
 
+    private final long refreshAheadMs;
+
+    private final Executor refreshExecutor;
+
+    /**
+     * Loads that are currently running, by key. Callers that need a key which is being loaded wait for this load instead of starting their own.
+     * Only the load that is registered here when it completes puts its value into the cache.
+     */
+    private final ConcurrentHashMap<K, CompletableFuture<D>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * When the values were put into the cache, only tracked when refresh-ahead is enabled
+     */
+    private final ConcurrentHashMap<K, Long> loadTimestamps = new ConcurrentHashMap<>();
+
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final Counter coalescedCounter;
+    private final Counter refreshAheadCounter;
+    private final Counter loadErrorCounter;
+    private final Timer loadTimer;
+
     public BaseCache(final Cache dataCache, Class<? extends D> dataClazz) {
+        this(dataCache, dataClazz, 0);
+    }
+
+    /**
+     * @param dataCache
+     * @param dataClazz
+     * @param refreshAheadMs - values older than this are re-loaded in the background when accessed, 0 disables refresh-ahead
+     */
+    public BaseCache(final Cache dataCache, Class<? extends D> dataClazz, long refreshAheadMs) {
+        this(dataCache, dataClazz, refreshAheadMs, defaultRefreshExecutor);
+    }
+
+    /**
+     * @param dataCache
+     * @param dataClazz
+     * @param refreshAheadMs - values older than this are re-loaded in the background when accessed, 0 disables refresh-ahead
+     * @param refreshExecutor - runs refresh-ahead loads. When it rejects a refresh, the value is refreshed on one of the next accesses
+     */
+    public BaseCache(final Cache dataCache, Class<? extends D> dataClazz, long refreshAheadMs, Executor refreshExecutor) {
         this.dataCache = dataCache;
         this.dataClazz = dataClazz;
+        this.refreshAheadMs = refreshAheadMs;
+        this.refreshExecutor = refreshExecutor;
+
+        String servoMetricPrefix = "cache-" + dataCache.getName() + "-";
+        this.hitCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "hit-count");
+        this.missCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "miss-count");
+        this.coalescedCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "coalesced-count");
+        this.refreshAheadCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "refreshAhead-count");
+        this.loadErrorCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "loadError-count");
+        this.loadTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "load-timer");
     }
 
     /**
@@ -25,6 +132,7 @@ public abstract class BaseCache<K, D, O extends GetValueOperation<K, D>> {
      */
     public void clearCache() {
         this.dataCache.clear();
+        this.loadTimestamps.clear();
     }
 
     /**
@@ -35,11 +143,14 @@ public abstract class BaseCache<K, D, O extends GetValueOperation<K, D>> {
     public void evictCacheData(K key) {
         if (null != key) {
             this.dataCache.evict(key);
+            this.loadTimestamps.remove(key);
         }
     }
 
     /**
      * Get the value either from cache of using the getOperation.
+     * If the value is being loaded by another caller, wait for that load instead of starting a new one.
+     * Forced updates always run their own load: a running load may have read the value before it was changed.
      * 
      * @param key
      * @param getOperation
@@ -55,17 +166,122 @@ public abstract class BaseCache<K, D, O extends GetValueOperation<K, D>> {
             if (null != cacheValue) {
                 Object value = cacheValue.get();
                 if (null == value) {
+                    hitCounter.increment();
+                    refreshAheadIfNeeded(key, null, getOperation);
                     return new CacheResult<>(null, true);
                 }
                 if (dataClazz.isInstance(value)) {
-                    return new CacheResult<>(dataClazz.cast(value), true);
+                    hitCounter.increment();
+                    D data = dataClazz.cast(value);
+                    refreshAheadIfNeeded(key, data, getOperation);
+                    return new CacheResult<>(data, true);
+                }
+                evictCacheData(key);
+            }
+        }
+
+        missCounter.increment();
+
+        CompletableFuture<D> load = new CompletableFuture<>();
+        if (forceUpdate) {
+            // supersede the running load, if any - its value will not be cached
+            inFlightLoads.put(key, load);
+        } else {
+            CompletableFuture<D> inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+            if (null != inFlightLoad) {
+                coalescedCounter.increment();
+                return new CacheResult<>(waitForLoad(inFlightLoad), false);
+            }
+        }
+
+        try {
+            D result = loadAndCache(key, getOperation, load);
+            load.complete(result);
+            return new CacheResult<>(result, false);
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, load);
+        }
+    }
+
+    /**
+     * Get values of several keys. Values that are not in the cache are loaded with a single call to getOperation.getRecords(),
+     * except for the ones that are being loaded by other callers - for those we wait for their loads.
+     *
+     * @param keys
+     * @param getOperation
+     * @return results in the order of the keys, null keys are skipped. Keys without a record are mapped to a result with null data.
+     */
+    public Map<K, CacheResult<D>> getAll(Collection<K> keys, O getOperation) {
+        Map<K, CacheResult<D>> ret = new LinkedHashMap<>();
+        Map<K, CompletableFuture<D>> ownLoads = new LinkedHashMap<>();
+        Map<K, CompletableFuture<D>> otherLoads = new LinkedHashMap<>();
+
+        for (K key : keys) {
+            if (null == key || ret.containsKey(key)) {
+                continue;
+            }
+            // reserve the position of the key, results of the loads are filled in later
+            ret.put(key, null);
+
+            ValueWrapper cacheValue = this.dataCache.get(key);
+            if (null != cacheValue) {
+                Object value = cacheValue.get();
+                if (null == value) {
+                    hitCounter.increment();
+                    refreshAheadIfNeeded(key, null, getOperation);
+                    ret.put(key, new CacheResult<D>(null, true));
+                    continue;
+                }
+                if (dataClazz.isInstance(value)) {
+                    hitCounter.increment();
+                    D data = dataClazz.cast(value);
+                    refreshAheadIfNeeded(key, data, getOperation);
+                    ret.put(key, new CacheResult<>(data, true));
+                    continue;
                 }
                 evictCacheData(key);
             }
+
+            missCounter.increment();
+
+            CompletableFuture<D> load = new CompletableFuture<>();
+            CompletableFuture<D> inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+            if (null == inFlightLoad) {
+                ownLoads.put(key, load);
+            } else {
+                coalescedCounter.increment();
+                otherLoads.put(key, inFlightLoad);
+            }
+        }
+
+        if (!ownLoads.isEmpty()) {
+            try {
+                Map<K, D> loaded = loadAllAndCache(ownLoads, getOperation);
+                for (Map.Entry<K, CompletableFuture<D>> loadEntry : ownLoads.entrySet()) {
+                    D data = loaded.get(loadEntry.getKey());
+                    loadEntry.getValue().complete(data);
+                    ret.put(loadEntry.getKey(), new CacheResult<>(data, false));
+                }
+            } catch (RuntimeException | Error e) {
+                for (CompletableFuture<D> load : ownLoads.values()) {
+                    load.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                for (Map.Entry<K, CompletableFuture<D>> loadEntry : ownLoads.entrySet()) {
+                    inFlightLoads.remove(loadEntry.getKey(), loadEntry.getValue());
+                }
+            }
         }
-        D result = getOperation.getRecord(key);
-        updateCacheData(key, result);
-        return new CacheResult<>(result, false);
+
+        for (Map.Entry<K, CompletableFuture<D>> loadEntry : otherLoads.entrySet()) {
+            ret.put(loadEntry.getKey(), new CacheResult<>(waitForLoad(loadEntry.getValue()), false));
+        }
+
+        return ret;
     }
 
     /**
@@ -79,6 +295,133 @@ public abstract class BaseCache<K, D, O extends GetValueOperation<K, D>> {
     public void updateCacheData(K key, D data) {
         if (null != key) {
             this.dataCache.put(key, data);
+            if (refreshAheadMs > 0) {
+                trackLoadTimestamp(key);
+            }
+        }
+    }
+
+    private D loadAndCache(K key, O getOperation, CompletableFuture<D> load) {
+        long startTime = System.nanoTime();
+        D result;
+        try {
+            result = getOperation.getRecord(key);
+        } catch (RuntimeException e) {
+            loadErrorCounter.increment();
+            throw e;
+        } finally {
+            loadTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+
+        cacheIfCurrentLoad(key, load, result);
+        return result;
+    }
+
+    private Map<K, D> loadAllAndCache(Map<K, CompletableFuture<D>> loads, O getOperation) {
+        long startTime = System.nanoTime();
+        Map<K, D> result;
+        try {
+            result = getOperation.getRecords(new ArrayList<>(loads.keySet()));
+        } catch (RuntimeException e) {
+            loadErrorCounter.increment();
+            throw e;
+        } finally {
+            loadTimer.record(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+
+        for (Map.Entry<K, CompletableFuture<D>> loadEntry : loads.entrySet()) {
+            cacheIfCurrentLoad(loadEntry.getKey(), loadEntry.getValue(), result.get(loadEntry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Put the loaded value into the cache, unless the load was superseded by a forced update.
+     * Done under the lock of the in-flight entry, so that a superseded load cannot overwrite the value of the forced one.
+     */
+    private void cacheIfCurrentLoad(K key, final CompletableFuture<D> load, final D data) {
+        inFlightLoads.computeIfPresent(key, (k, currentLoad) -> {
+            if (currentLoad == load) {
+                updateCacheData(k, data);
+            }
+            return currentLoad;
+        });
+    }
+
+    /**
+     * Start a background load of the key if its cached value is older than refreshAheadMs, and no other load of that key is running.
+     *
+     * @param key
+     * @param cachedData - current value, handed to the callers that wait for the refresh if it cannot be started
+     * @param getOperation
+     */
+    private void refreshAheadIfNeeded(final K key, D cachedData, final O getOperation) {
+        if (refreshAheadMs <= 0) {
+            return;
+        }
+
+        Long loadTimestamp = loadTimestamps.get(key);
+        if (null == loadTimestamp) {
+            // value was loaded before we started tracking it, refresh it later
+            trackLoadTimestamp(key);
+            return;
+        }
+
+        if (System.currentTimeMillis() - loadTimestamp < refreshAheadMs) {
+            return;
+        }
+
+        final CompletableFuture<D> refresh = new CompletableFuture<>();
+        if (null != inFlightLoads.putIfAbsent(key, refresh)) {
+            // already being loaded
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh.complete(loadAndCache(key, getOperation, refresh));
+                    } catch (RuntimeException | Error e) {
+                        LOG.warn("Failed to refresh value of {} in cache {}", key, dataCache.getName(), e);
+                        refresh.completeExceptionally(e);
+                    } finally {
+                        inFlightLoads.remove(key, refresh);
+                    }
+                }
+            });
+            refreshAheadCounter.increment();
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Refresh of {} in cache {} is rejected, will retry on next access", key, dataCache.getName());
+            inFlightLoads.remove(key, refresh);
+            refresh.complete(cachedData);
+        }
+    }
+
+    private void trackLoadTimestamp(K key) {
+        if (loadTimestamps.size() >= refreshAheadMaxTrackedKeys && !loadTimestamps.containsKey(key)) {
+            // make room for the new key by forgetting one of the others
+            Iterator<K> iter = loadTimestamps.keySet().iterator();
+            if (iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        loadTimestamps.put(key, System.currentTimeMillis());
+    }
+
+    private static <T> T waitForLoad(CompletableFuture<T> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
         }
     }
 }
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.caffeine.CaffeineCacheManager;
@@ -15,6 +16,7 @@ import org.springframework.context.annotation.Configuration;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
 import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 
 @Configuration
 public class CacheConfiguration {
@@ -24,6 +26,12 @@ public class CacheConfiguration {
     @Autowired
 	ApplicationContext applicationContext;
 
+    @Value("${tip.wlan.cache.byteWeighted.maxBytes:268435456}")
+    private long byteWeightedCacheMaxBytes;
+
+    @Value("${tip.wlan.cache.offHeap.maxBytes:536870912}")
+    private long offHeapCacheMaxBytes;
+
     @Bean
 	@Primary
 	@Qualifier("cacheManager")
@@ -85,6 +93,46 @@ public class CacheConfiguration {
 				.recordStats();
 	}
 
+	/**
+	 * Caches of this manager are bounded by the estimated size of their serialized values, in bytes - see {@link SerializedSizeWeigher}.
+	 * Use it for caches whose values vary a lot in size, like large model graphs.
+	 * Limit applies to every cache separately. It is enabled by the profile use-byte-weighted-cache.
+	 */
+	@Bean
+	@Profile("use-byte-weighted-cache")
+	@Qualifier("cacheManagerByteWeighted")
+	public CacheManager cacheManagerByteWeighted() {
+		CaffeineCacheManager cacheManager = new CaffeineCacheManager();
+		Caffeine<Object, Object> cb = caffeineCacheBuilderByteWeighted();
+		cacheManager.setCaffeine(cb);
+		LOG.info("Configured byte-weighted cache manager {}", cb);
+
+		return cacheManager;
+	}
+
+	Caffeine<Object, Object> caffeineCacheBuilderByteWeighted() {
+		return Caffeine.newBuilder()
+				.initialCapacity(100)
+				.maximumWeight(byteWeightedCacheMaxBytes)
+				.weigher(new SerializedSizeWeigher())
+				.expireAfterAccess(10, TimeUnit.MINUTES)
+				.recordStats();
+	}
+
+	/**
+	 * Caches of this manager keep models as zipped bytes in direct memory, and deserialize them on every hit - see {@link OffHeapCache}.
+	 * Limit applies to every cache separately. It is enabled by the profile use-off-heap-cache.
+	 */
+	@Bean
+	@Profile("use-off-heap-cache")
+	@Qualifier("cacheManagerOffHeap")
+	public CacheManager cacheManagerOffHeap() {
+		OffHeapCacheManager cacheManager = new OffHeapCacheManager(offHeapCacheMaxBytes, TimeUnit.MINUTES.toMillis(10));
+		LOG.info("Configured off-heap cache manager {}", cacheManager);
+
+		return cacheManager;
+	}
+
 	public Cache getCache(String cacheName, String cacheManagerQualifier) {
     	CacheManager cm = applicationContext.getBeansOfType(CacheManager.class).get(cacheManagerQualifier);
 		return cm.getCache(cacheName);
@@ -3,10 +3,29 @@
  */
 package com.telecominfraproject.wlan.core.server.cache;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * @author yongli
  *
  */
 public interface GetValueOperation<K, V> {
     V getRecord(K key);
+
+    /**
+     * Load several records in one call. Used by {@link BaseCache#getAll(Collection, GetValueOperation)} for the keys that are not in the cache.<br>
+     * Default implementation calls getRecord() for every key, operations that can talk to their datastore in bulk should override it.
+     *
+     * @param keys
+     * @return map of key to record, keys without a record can be absent from the map or mapped to null
+     */
+    default Map<K, V> getRecords(Collection<K> keys) {
+        Map<K, V> ret = new HashMap<>();
+        for (K key : keys) {
+            ret.put(key, getRecord(key));
+        }
+        return ret;
+    }
 }
@@ -0,0 +1,229 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.RemovalListener;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.netflix.servo.monitor.Counter;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+/**
+ * Cache that keeps models outside of the heap: every BaseJsonModel value is stored as its zipped JSON (see {@link BaseJsonModel#toZippedBytes()})
+ * in a direct ByteBuffer, and is deserialized on every hit - callers always get their own copy of the model.<br>
+ * Values that are not models are kept on heap as they are.
+ * Cache is bounded by the total size of the stored bytes, so the heap used by a large catalog of models stays small and predictable,
+ * at the cost of deserialization on every read. Direct memory of evicted values is released when their buffers are garbage collected,
+ * size -XX:MaxDirectMemorySize to fit the max size of all off-heap caches with some headroom.<br>
+ * Metrics: offHeapCache-[name]-bytes is the size of the values that are currently in the cache - direct memory of the evicted values
+ * is still in use until the next GC, so the real usage is higher. offHeapCache-directMemory-bytes is the direct memory used by the whole JVM,
+ * including the buffers that are not garbage collected yet.
+ *
+ * @author dtop
+ *
+ */
+public class OffHeapCache extends AbstractValueAdaptingCache {
+
+    /**
+     * Zipped JSON of a model, in direct memory
+     */
+    private static class OffHeapValue {
+        private final ByteBuffer zippedBytes;
+
+        OffHeapValue(byte[] bytes) {
+            this.zippedBytes = ByteBuffer.allocateDirect(bytes.length);
+            this.zippedBytes.put(bytes);
+            this.zippedBytes.flip();
+        }
+
+        int size() {
+            return zippedBytes.capacity();
+        }
+
+        BaseJsonModel toModel() {
+            byte[] bytes = new byte[zippedBytes.capacity()];
+            zippedBytes.duplicate().get(bytes);
+            return BaseJsonModel.fromZippedBytes(bytes, BaseJsonModel.class);
+        }
+    }
+
+    private final String name;
+    private final Cache<Object, Object> cache;
+    private final AtomicLong offHeapBytes = new AtomicLong();
+
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    /**
+     * @param name
+     * @param maxBytes - max total size of the stored values, in bytes
+     * @param expireAfterAccessMs
+     */
+    public OffHeapCache(String name, long maxBytes, long expireAfterAccessMs) {
+        super(true);
+        this.name = name;
+
+        final SerializedSizeWeigher heapValueWeigher = new SerializedSizeWeigher();
+
+        this.cache = Caffeine.newBuilder()
+                .initialCapacity(100)
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Object, Object>() {
+                    @Override
+                    public int weigh(Object key, Object value) {
+                        if (value instanceof OffHeapValue) {
+                            return SerializedSizeWeigher.entryOverheadBytes + ((OffHeapValue) value).size();
+                        }
+                        return heapValueWeigher.weigh(key, value);
+                    }
+                })
+                .expireAfterAccess(expireAfterAccessMs, TimeUnit.MILLISECONDS)
+                .removalListener(new RemovalListener<Object, Object>() {
+                    @Override
+                    public void onRemoval(Object key, Object value, RemovalCause cause) {
+                        if (value instanceof OffHeapValue) {
+                            offHeapBytes.addAndGet(-((OffHeapValue) value).size());
+                        }
+                    }
+                })
+                .recordStats()
+                .build();
+
+        String servoMetricPrefix = "offHeapCache-" + name + "-";
+        this.hitCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "hit-count");
+        this.missCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "miss-count");
+
+        CloudMetricsUtils.registerGauge(servoMetricPrefix + "bytes",
+                new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return offHeapBytes.get();
+                    }
+                });
+
+        // shared by all the off-heap caches - registered once
+        CloudMetricsUtils.registerGauge("offHeapCache-directMemory-bytes",
+                new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return getDirectMemoryUsed();
+                    }
+                });
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return cache;
+    }
+
+    @Override
+    protected Object lookup(Object key) {
+        Object storeValue = cache.getIfPresent(key);
+        if (storeValue == null) {
+            missCounter.increment();
+            return null;
+        }
+
+        hitCounter.increment();
+        return fromOffHeap(storeValue);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T get(Object key, final Callable<T> valueLoader) {
+        Object storeValue = cache.get(key, new Function<Object, Object>() {
+            @Override
+            public Object apply(Object k) {
+                missCounter.increment();
+                try {
+                    return toOffHeap(toStoreValue(valueLoader.call()));
+                } catch (Exception e) {
+                    throw new ValueRetrievalException(k, valueLoader, e);
+                }
+            }
+        });
+
+        return (T) fromStoreValue(fromOffHeap(storeValue));
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        cache.put(key, toOffHeap(toStoreValue(value)));
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        Object storeValue = toOffHeap(toStoreValue(value));
+        Object existingValue = cache.asMap().putIfAbsent(key, storeValue);
+        if (existingValue == null) {
+            return null;
+        }
+
+        // our value was not stored
+        if (storeValue instanceof OffHeapValue) {
+            offHeapBytes.addAndGet(-((OffHeapValue) storeValue).size());
+        }
+        return toValueWrapper(fromOffHeap(existingValue));
+    }
+
+    @Override
+    public void evict(Object key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return size of the values that are currently in the cache, in bytes
+     */
+    long getOffHeapBytes() {
+        return offHeapBytes.get();
+    }
+
+    /**
+     * @return direct memory used by the JVM, in bytes, including the buffers that are not garbage collected yet
+     */
+    static long getDirectMemoryUsed() {
+        for (BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(bufferPool.getName())) {
+                return bufferPool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    private Object toOffHeap(Object storeValue) {
+        if (storeValue instanceof BaseJsonModel) {
+            OffHeapValue offHeapValue = new OffHeapValue(((BaseJsonModel) storeValue).toZippedBytes());
+            offHeapBytes.addAndGet(offHeapValue.size());
+            return offHeapValue;
+        }
+        return storeValue;
+    }
+
+    private static Object fromOffHeap(Object storeValue) {
+        if (storeValue instanceof OffHeapValue) {
+            return ((OffHeapValue) storeValue).toModel();
+        }
+        return storeValue;
+    }
+}
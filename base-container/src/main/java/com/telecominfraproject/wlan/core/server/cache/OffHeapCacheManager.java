@@ -0,0 +1,60 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+
+/**
+ * CacheManager that creates {@link OffHeapCache}s on demand, all of them with the same limits.
+ *
+ * @author dtop
+ *
+ */
+public class OffHeapCacheManager implements CacheManager {
+
+    private final long maxBytesPerCache;
+    private final long expireAfterAccessMs;
+
+    private final ConcurrentMap<String, OffHeapCache> caches = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytesPerCache - max total size of the values stored in each cache, in bytes
+     * @param expireAfterAccessMs
+     */
+    public OffHeapCacheManager(long maxBytesPerCache, long expireAfterAccessMs) {
+        this.maxBytesPerCache = maxBytesPerCache;
+        this.expireAfterAccessMs = expireAfterAccessMs;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        OffHeapCache cache = caches.get(name);
+
+        if (cache == null) {
+            synchronized (caches) {
+                cache = caches.get(name);
+                if (cache == null) {
+                    cache = new OffHeapCache(name, maxBytesPerCache, expireAfterAccessMs);
+                    caches.put(name, cache);
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Collections.unmodifiableSet(caches.keySet());
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapCacheManager [maxBytesPerCache=" + maxBytesPerCache + ", expireAfterAccessMs=" + expireAfterAccessMs + "]";
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.server.exceptions.SerializationException;
+
+/**
+ * Weighs cache entries by the estimated size of their serialized form, in bytes.
+ * Caches that use it are bounded by maximumWeight in bytes instead of by the number of entries,
+ * so that a cache of large models cannot take over the heap, and a cache of small values is not starved.<br>
+ * Models are weighed by the length of their JSON. Serializing every model that is put into the cache is too expensive,
+ * so only the first model of each class and then every N-th one (tip.wlan.cache.weigherModelSampleInterval, 16 by default) is serialized -
+ * into a stream that only counts the bytes. The other models of the class are weighed by the moving average of the sampled sizes.
+ * Strings, byte arrays and collections of those are weighed by their length, everything else is counted as a small fixed size.
+ *
+ * @author dtop
+ *
+ */
+public class SerializedSizeWeigher implements Weigher<Object, Object> {
+
+    /**
+     * Approximate cost of the cache entry itself, regardless of its key and value
+     */
+    public static final int entryOverheadBytes = 64;
+
+    private static final int smallObjectBytes = 16;
+
+    private static final int modelSampleInterval = Math.max(1, Integer.getInteger("tip.wlan.cache.weigherModelSampleInterval", 16));
+
+    private static final ConcurrentHashMap<Class<?>, ModelSizeEstimator> modelSizeEstimators = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps the moving average of the sampled JSON sizes of one model class
+     */
+    private static class ModelSizeEstimator {
+        private final AtomicLong modelCount = new AtomicLong();
+        private volatile long averageSize;
+
+        long estimateSize(BaseJsonModel model) {
+            long cnt = modelCount.getAndIncrement();
+            long avg = averageSize;
+            if (cnt % modelSampleInterval != 0 && avg > 0) {
+                return avg;
+            }
+
+            long size = measureJsonSize(model);
+            // races between the samples only make the average a bit less precise
+            averageSize = (avg == 0) ? size : (7 * avg + size) / 8;
+            return size;
+        }
+    }
+
+    /**
+     * Counts the bytes written into it, and drops them
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    @Override
+    public int weigh(Object key, Object value) {
+        long size = entryOverheadBytes + estimateSize(key) + estimateSize(value);
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * @param obj
+     * @return estimated size of the serialized object, in bytes
+     */
+    public static long estimateSize(Object obj) {
+        if (obj == null) {
+            return 0;
+        }
+
+        if (obj instanceof BaseJsonModel) {
+            return modelSizeEstimators.computeIfAbsent(obj.getClass(), c -> new ModelSizeEstimator()).estimateSize((BaseJsonModel) obj);
+        }
+
+        if (obj instanceof byte[]) {
+            return ((byte[]) obj).length;
+        }
+
+        if (obj instanceof CharSequence) {
+            return 2L * ((CharSequence) obj).length();
+        }
+
+        if (obj instanceof Collection) {
+            long size = smallObjectBytes;
+            for (Object item : (Collection<?>) obj) {
+                size += estimateSize(item);
+            }
+            return size;
+        }
+
+        if (obj instanceof Map) {
+            long size = smallObjectBytes;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+                size += estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        }
+
+        // numbers, enums, and other small values
+        return smallObjectBytes;
+    }
+
+    /**
+     * @param model
+     * @return length of JSON of the model, in bytes
+     */
+    static long measureJsonSize(BaseJsonModel model) {
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            BaseJsonModel.getMapper().writeValue(out, model);
+        } catch (IOException e) {
+            throw new SerializationException(e);
+        }
+        return out.count;
+    }
+}
@@ -0,0 +1,238 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+public class BaseCacheTests {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        TestCache cache = new TestCache("testCoalesce", 0);
+        BlockingOperation op = new BlockingOperation("v1");
+
+        Future<CacheResult<String>> first = executor.submit(() -> cache.getData("k1", op, false));
+        assertTrue(op.loadStarted.await(5, TimeUnit.SECONDS));
+        Future<CacheResult<String>> second = executor.submit(() -> cache.getData("k1", op, false));
+
+        //give the second caller time to find the running load
+        Thread.sleep(200);
+        op.release.countDown();
+
+        assertEquals("v1", first.get(5, TimeUnit.SECONDS).getData());
+        assertEquals("v1", second.get(5, TimeUnit.SECONDS).getData());
+        assertEquals(1, op.loadCount.get());
+
+        CacheResult<String> cached = cache.getData("k1", op, false);
+        assertTrue(cached.isCached());
+        assertEquals("v1", cached.getData());
+        assertEquals(1, op.loadCount.get());
+    }
+
+    @Test
+    public void testForceUpdateDoesNotJoinRunningLoad() throws Exception {
+        TestCache cache = new TestCache("testForceUpdate", 0);
+        BlockingOperation staleOp = new BlockingOperation("stale");
+
+        Future<CacheResult<String>> staleLoad = executor.submit(() -> cache.getData("k1", staleOp, false));
+        assertTrue(staleOp.loadStarted.await(5, TimeUnit.SECONDS));
+
+        CountingOperation freshOp = new CountingOperation("fresh", false);
+        CacheResult<String> forced = cache.getData("k1", freshOp, true);
+        assertFalse(forced.isCached());
+        assertEquals("fresh-k1", forced.getData());
+        assertEquals(1, freshOp.loadCount.get());
+
+        //the superseded load completes for its own callers, but must not overwrite the forced value
+        staleOp.release.countDown();
+        assertEquals("stale", staleLoad.get(5, TimeUnit.SECONDS).getData());
+
+        CacheResult<String> cached = cache.getData("k1", freshOp, false);
+        assertTrue(cached.isCached());
+        assertEquals("fresh-k1", cached.getData());
+    }
+
+    @Test
+    public void testGetAllKeepsKeyOrder() throws Exception {
+        TestCache cache = new TestCache("testGetAllOrder", 0);
+        cache.updateCacheData("c", "cached-c");
+
+        //"b" is being loaded by another caller while getAll runs
+        BlockingOperation otherOp = new BlockingOperation("loaded-b");
+        Future<CacheResult<String>> otherLoad = executor.submit(() -> cache.getData("b", otherOp, false));
+        assertTrue(otherOp.loadStarted.await(5, TimeUnit.SECONDS));
+
+        CountingOperation op = new CountingOperation("loaded", false);
+        Future<Map<String, CacheResult<String>>> getAll = executor.submit(() -> cache.getAll(Arrays.asList("d", "b", null, "c", "a", "d"), op));
+        Thread.sleep(200);
+        otherOp.release.countDown();
+
+        Map<String, CacheResult<String>> results = getAll.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("d", "b", "c", "a"), new ArrayList<>(results.keySet()));
+        assertEquals("loaded-d", results.get("d").getData());
+        assertEquals("loaded-b", results.get("b").getData());
+        assertEquals("cached-c", results.get("c").getData());
+        assertTrue(results.get("c").isCached());
+        assertEquals("loaded-a", results.get("a").getData());
+        assertEquals(Arrays.asList(Arrays.asList("d", "a")), op.bulkLoads);
+
+        assertEquals("loaded-b", otherLoad.get(5, TimeUnit.SECONDS).getData());
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        TestCache cache = new TestCache("testRefreshAhead", 100);
+        CountingOperation op = new CountingOperation("v", true);
+
+        assertEquals("v-k1-1", cache.getData("k1", op, false).getData());
+
+        //value is fresh - no refresh
+        CacheResult<String> cached = cache.getData("k1", op, false);
+        assertTrue(cached.isCached());
+        assertEquals("v-k1-1", cached.getData());
+        assertEquals(1, op.loadCount.get());
+
+        Thread.sleep(150);
+
+        //value is old - the caller gets the current value, the refresh runs on the (synchronous) refresh executor
+        cached = cache.getData("k1", op, false);
+        assertTrue(cached.isCached());
+        assertEquals("v-k1-1", cached.getData());
+        assertEquals(2, op.loadCount.get());
+
+        cached = cache.getData("k1", op, false);
+        assertTrue(cached.isCached());
+        assertEquals("v-k1-2", cached.getData());
+        assertEquals(2, op.loadCount.get());
+    }
+
+    @Test
+    public void testRefreshAheadIsNotStartedWhileKeyIsLoading() throws Exception {
+        TestCache cache = new TestCache("testRefreshAheadInFlight", 100);
+        cache.updateCacheData("k1", "old");
+        Thread.sleep(150);
+
+        BlockingOperation forcedOp = new BlockingOperation("forced");
+        Future<CacheResult<String>> forcedLoad = executor.submit(() -> cache.getData("k1", forcedOp, true));
+        assertTrue(forcedOp.loadStarted.await(5, TimeUnit.SECONDS));
+
+        CountingOperation op = new CountingOperation("refreshed", false);
+        CacheResult<String> cached = cache.getData("k1", op, false);
+        assertTrue(cached.isCached());
+        assertEquals("old", cached.getData());
+        assertEquals(0, op.loadCount.get());
+
+        forcedOp.release.countDown();
+        assertEquals("forced", forcedLoad.get(5, TimeUnit.SECONDS).getData());
+        assertEquals("forced", cache.getData("k1", op, false).getData());
+    }
+
+    @Test
+    public void testNullValuesAreCached() {
+        TestCache cache = new TestCache("testNullValues", 0);
+        CountingOperation op = new CountingOperation(null, false);
+
+        assertNull(cache.getData("k1", op, false).getData());
+        CacheResult<String> cached = cache.getData("k1", op, false);
+        assertTrue(cached.isCached());
+        assertNull(cached.getData());
+        assertEquals(1, op.loadCount.get());
+    }
+
+    private static class TestCache extends BaseCache<String, String, GetValueOperation<String, String>> {
+        TestCache(String name, long refreshAheadMs) {
+            super(new ConcurrentMapCache(name), String.class, refreshAheadMs, Runnable::run);
+        }
+    }
+
+    /**
+     * Returns prefix-key, or prefix-key-N for the N-th load when numbered. Returns null when prefix is null
+     */
+    private static class CountingOperation implements GetValueOperation<String, String> {
+        private final String prefix;
+        private final boolean numbered;
+        final AtomicInteger loadCount = new AtomicInteger();
+        final List<List<String>> bulkLoads = new ArrayList<>();
+
+        CountingOperation(String prefix, boolean numbered) {
+            this.prefix = prefix;
+            this.numbered = numbered;
+        }
+
+        @Override
+        public String getRecord(String key) {
+            int cnt = loadCount.incrementAndGet();
+            if (null == prefix) {
+                return null;
+            }
+            return numbered ? prefix + "-" + key + "-" + cnt : prefix + "-" + key;
+        }
+
+        @Override
+        public Map<String, String> getRecords(Collection<String> keys) {
+            bulkLoads.add(new ArrayList<>(keys));
+            Map<String, String> ret = new HashMap<>();
+            for (String key : keys) {
+                ret.put(key, getRecord(key));
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Returns the same value for every key, each load waits until released
+     */
+    private static class BlockingOperation implements GetValueOperation<String, String> {
+        private final String value;
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        BlockingOperation(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String getRecord(String key) {
+            loadCount.incrementAndGet();
+            loadStarted.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return value;
+        }
+    }
+}
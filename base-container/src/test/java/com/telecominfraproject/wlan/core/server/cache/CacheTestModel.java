@@ -0,0 +1,60 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import java.util.Objects;
+
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+public class CacheTestModel extends BaseJsonModel {
+
+    private static final long serialVersionUID = 4530120866417512093L;
+
+    private String name;
+    private String payload;
+
+    public CacheTestModel() {
+        // for serialization
+    }
+
+    public CacheTestModel(String name, String payload) {
+        this.name = name;
+        this.payload = payload;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    @Override
+    public CacheTestModel clone() {
+        return (CacheTestModel) super.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, payload);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CacheTestModel)) {
+            return false;
+        }
+        CacheTestModel other = (CacheTestModel) obj;
+        return Objects.equals(name, other.name) && Objects.equals(payload, other.payload);
+    }
+}
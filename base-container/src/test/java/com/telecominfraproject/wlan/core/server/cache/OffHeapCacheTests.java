@@ -0,0 +1,102 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+public class OffHeapCacheTests {
+
+    @Test
+    public void testModelsAreCopiedOnEveryHit() {
+        OffHeapCache cache = new OffHeapCache("testCopies", 1024 * 1024, TimeUnit.MINUTES.toMillis(10));
+        CacheTestModel model = new CacheTestModel("m1", "payload");
+        cache.put("k1", model);
+
+        CacheTestModel hit1 = (CacheTestModel) cache.get("k1").get();
+        CacheTestModel hit2 = (CacheTestModel) cache.get("k1").get();
+        assertEquals(model, hit1);
+        assertEquals(model, hit2);
+        assertNotSame(model, hit1);
+        assertNotSame(hit1, hit2);
+
+        // values that are not models are kept as they are
+        String value = "not a model";
+        cache.put("k2", value);
+        assertSame(value, cache.get("k2").get());
+
+        cache.put("k3", null);
+        assertNull(cache.get("k3").get());
+        assertNull(cache.get("k4"));
+    }
+
+    @Test
+    public void testValueLoader() {
+        OffHeapCache cache = new OffHeapCache("testValueLoader", 1024 * 1024, TimeUnit.MINUTES.toMillis(10));
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            CacheTestModel loaded = cache.get("k1", () -> {
+                loadCount.incrementAndGet();
+                return new CacheTestModel("m1", "loaded");
+            });
+            assertEquals(new CacheTestModel("m1", "loaded"), loaded);
+        }
+
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    public void testStoredBytesAreTracked() throws InterruptedException {
+        OffHeapCache cache = new OffHeapCache("testStoredBytes", 1024 * 1024, TimeUnit.MINUTES.toMillis(10));
+        CacheTestModel model = new CacheTestModel("m1", "payload");
+        long zippedSize = model.toZippedBytes().length;
+
+        cache.put("k1", model);
+        cache.put("k2", model);
+        assertEquals(2 * zippedSize, cache.getOffHeapBytes());
+        assertTrue(OffHeapCache.getDirectMemoryUsed() >= 2 * zippedSize);
+
+        // losing putIfAbsent does not keep its bytes
+        assertEquals(model, cache.putIfAbsent("k1", new CacheTestModel("m2", "other")).get());
+        assertEquals(2 * zippedSize, cache.getOffHeapBytes());
+
+        cache.evict("k1");
+        waitForOffHeapBytes(cache, zippedSize);
+
+        cache.clear();
+        waitForOffHeapBytes(cache, 0);
+    }
+
+    @Test
+    public void testCacheIsBoundedByStoredBytes() {
+        long maxBytes = 64 * 1024;
+        OffHeapCache cache = new OffHeapCache("testBounded", maxBytes, TimeUnit.MINUTES.toMillis(10));
+        for (int i = 0; i < 1000; i++) {
+            cache.put("k" + i, new CacheTestModel("m" + i, "payload of model " + i));
+        }
+
+        @SuppressWarnings("unchecked")
+        Cache<Object, Object> nativeCache = (Cache<Object, Object>) cache.getNativeCache();
+        nativeCache.cleanUp();
+        assertTrue(nativeCache.estimatedSize() < 1000);
+        assertTrue(nativeCache.policy().eviction().get().weightedSize().getAsLong() <= maxBytes);
+    }
+
+    private static void waitForOffHeapBytes(OffHeapCache cache, long expectedBytes) throws InterruptedException {
+        // removal listener runs asynchronously
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getOffHeapBytes() != expectedBytes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expectedBytes, cache.getOffHeapBytes());
+    }
+}
@@ -0,0 +1,46 @@
+package com.telecominfraproject.wlan.core.server.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SerializedSizeWeigherTests {
+
+    @Test
+    public void testSimpleValues() {
+        assertEquals(0, SerializedSizeWeigher.estimateSize(null));
+        assertEquals(10, SerializedSizeWeigher.estimateSize(new byte[10]));
+        assertEquals(8, SerializedSizeWeigher.estimateSize("abcd"));
+        assertEquals(16, SerializedSizeWeigher.estimateSize(42L));
+        assertEquals(16 + 2 + 4, SerializedSizeWeigher.estimateSize(Arrays.asList("a", "bb")));
+        assertEquals(16 + 2 + 10, SerializedSizeWeigher.estimateSize(Collections.singletonMap("k", new byte[10])));
+
+        SerializedSizeWeigher weigher = new SerializedSizeWeigher();
+        assertEquals(SerializedSizeWeigher.entryOverheadBytes + 4 + 10, weigher.weigh("k1", new byte[10]));
+    }
+
+    @Test
+    public void testModelsAreWeighedBySampledJsonSize() {
+        CacheTestModel smallModel = new CacheTestModel("m", "0123456789");
+        CacheTestModel largeModel = new CacheTestModel("m", new String(new char[1000]).replace('\0', 'x'));
+        long smallSize = SerializedSizeWeigher.measureJsonSize(smallModel);
+        long largeSize = SerializedSizeWeigher.measureJsonSize(largeModel);
+        assertEquals(smallModel.toString().length(), smallSize);
+        assertEquals(largeModel.toString().length(), largeSize);
+
+        // first model of the class is measured
+        assertEquals(smallSize, SerializedSizeWeigher.estimateSize(smallModel));
+
+        // the next ones are not serialized, they get the average of the sampled sizes
+        for (int i = 1; i < 16; i++) {
+            assertEquals(smallSize, SerializedSizeWeigher.estimateSize(largeModel));
+        }
+
+        // every 16-th model is measured again, and moves the average
+        assertEquals(largeSize, SerializedSizeWeigher.estimateSize(largeModel));
+        assertEquals((7 * smallSize + largeSize) / 8, SerializedSizeWeigher.estimateSize(smallModel));
+    }
+}
@@ -0,0 +1,342 @@
+package com.telecominfraproject.wlan.hazelcast.client.cache;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Message;
+import com.hazelcast.core.MessageListener;
+import com.netflix.servo.monitor.Counter;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+
+/**
+ * Two-level cache: local Caffeine cache (L1) in front of a hazelcast map (L2) that is shared by all the nodes.<br>
+ * Reads go to L1, then to L2 - values found in L2 are copied into L1.
+ * Writes and evictions go to both levels, and are broadcast over a hazelcast topic so that the other nodes drop the entry from their L1.
+ * Values loaded on a cache miss are written to both levels without a broadcast.<br>
+ * L1 entries expire a fixed time after they were written, which limits how stale a node can get when it misses an invalidation message.
+ * When hazelcast is not reachable the cache keeps working with L1 only.<br>
+ * Values and keys must be Serializable, they are stored in hazelcast.
+ *
+ * @author dtop
+ *
+ */
+public class TieredCache extends AbstractValueAdaptingCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredCache.class);
+
+    /**
+     * How often we check that the invalidation listener is registered with the current hazelcast client -
+     * ReConnectingHazelcastClient replaces its client periodically, and listeners of the old client stop receiving messages
+     */
+    private static final long topicSubscriptionCheckIntervalMs = 10000;
+
+    private final String name;
+    private final String mapName;
+    private final String topicName;
+    private final HazelcastInstance hazelcastInstance;
+    private final Cache<Object, Object> l1Cache;
+    private final int l2TtlSeconds;
+
+    /**
+     * Identifies messages sent by this cache instance
+     */
+    private final String sourceId = UUID.randomUUID().toString();
+
+    private ITopic<TieredCacheInvalidation> subscribedTopic;
+    private String listenerRegistrationId;
+    private volatile long lastSubscriptionCheckMs;
+
+    private final Counter l1HitCounter;
+    private final Counter l2HitCounter;
+    private final Counter missCounter;
+    private final Counter l2ErrorCounter;
+    private final Counter invalidationReceivedCounter;
+
+    private final MessageListener<TieredCacheInvalidation> invalidationListener = new MessageListener<TieredCacheInvalidation>() {
+        @Override
+        public void onMessage(Message<TieredCacheInvalidation> message) {
+            TieredCacheInvalidation invalidation = message.getMessageObject();
+            if (sourceId.equals(invalidation.getSourceId())) {
+                // our own change, L1 is already up to date
+                return;
+            }
+
+            invalidationReceivedCounter.increment();
+
+            if (invalidation.getKey() == null) {
+                l1Cache.invalidateAll();
+            } else {
+                l1Cache.invalidate(invalidation.getKey());
+            }
+        }
+    };
+
+    /**
+     * @param name - name of the cache
+     * @param hazelcastInstance
+     * @param hazelcastNamePrefix - prefix of the names of the hazelcast map and topic used by this cache
+     * @param settings
+     * @param l1Weigher - calculates weight of the L1 entries
+     */
+    public TieredCache(String name, HazelcastInstance hazelcastInstance, String hazelcastNamePrefix, TieredCacheSettings settings,
+            Weigher<Object, Object> l1Weigher) {
+        super(true);
+        this.name = name;
+        this.hazelcastInstance = hazelcastInstance;
+        this.mapName = hazelcastNamePrefix + name;
+        this.topicName = hazelcastNamePrefix + name + "-invalidation";
+        this.l2TtlSeconds = settings.getL2TtlSeconds();
+
+        this.l1Cache = Caffeine.newBuilder()
+                .initialCapacity(100)
+                .maximumWeight(settings.getL1MaxWeight())
+                .weigher(l1Weigher)
+                .expireAfterWrite(settings.getL1TtlSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+
+        String servoMetricPrefix = "tieredCache-" + name + "-";
+        this.l1HitCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "l1Hit-count");
+        this.l2HitCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "l2Hit-count");
+        this.missCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "miss-count");
+        this.l2ErrorCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "l2Error-count");
+        this.invalidationReceivedCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "invalidationReceived-count");
+
+        CloudMetricsUtils.registerGauge(servoMetricPrefix + "l1-size",
+                new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return l1Cache.estimatedSize();
+                    }
+                });
+
+        subscribeToInvalidations();
+
+        LOG.info("Configured tiered cache {} with {}", name, settings);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return local (L1) Caffeine cache
+     */
+    @Override
+    public Object getNativeCache() {
+        return l1Cache;
+    }
+
+    @Override
+    protected Object lookup(Object key) {
+        subscribeToInvalidations();
+
+        Object storeValue = l1Cache.getIfPresent(key);
+        if (storeValue != null) {
+            l1HitCounter.increment();
+            return storeValue;
+        }
+
+        storeValue = getFromL2(key);
+        if (storeValue != null) {
+            l2HitCounter.increment();
+            l1Cache.put(key, storeValue);
+            return storeValue;
+        }
+
+        missCounter.increment();
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T get(Object key, final Callable<T> valueLoader) {
+        subscribeToInvalidations();
+
+        Object storeValue = l1Cache.getIfPresent(key);
+        if (storeValue != null) {
+            l1HitCounter.increment();
+            return (T) fromStoreValue(storeValue);
+        }
+
+        // L1 loads every key only once at a time on this node
+        storeValue = l1Cache.get(key, new Function<Object, Object>() {
+            @Override
+            public Object apply(Object k) {
+                Object l2Value = getFromL2(k);
+                if (l2Value != null) {
+                    l2HitCounter.increment();
+                    return l2Value;
+                }
+
+                missCounter.increment();
+
+                Object loadedValue;
+                try {
+                    loadedValue = toStoreValue(valueLoader.call());
+                } catch (Exception e) {
+                    throw new ValueRetrievalException(k, valueLoader, e);
+                }
+
+                // nothing was cached for the key on any node, so there is nothing to invalidate
+                putIntoL2(k, loadedValue);
+                return loadedValue;
+            }
+        });
+
+        return (T) fromStoreValue(storeValue);
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        Object storeValue = toStoreValue(value);
+        l1Cache.put(key, storeValue);
+        putIntoL2(key, storeValue);
+        publishInvalidation(key);
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        Object existingValue = lookup(key);
+        if (existingValue != null) {
+            return toValueWrapper(existingValue);
+        }
+
+        Object storeValue = toStoreValue(value);
+        Object previousValue = null;
+        try {
+            if (l2TtlSeconds > 0) {
+                previousValue = getL2Map().putIfAbsent(key, storeValue, l2TtlSeconds, TimeUnit.SECONDS);
+            } else {
+                previousValue = getL2Map().putIfAbsent(key, storeValue);
+            }
+        } catch (RuntimeException e) {
+            onL2Error("putIfAbsent", e);
+        }
+
+        if (previousValue != null) {
+            // another node got there first
+            l1Cache.put(key, previousValue);
+            return toValueWrapper(previousValue);
+        }
+
+        l1Cache.put(key, storeValue);
+        publishInvalidation(key);
+        return null;
+    }
+
+    @Override
+    public void evict(Object key) {
+        l1Cache.invalidate(key);
+        try {
+            getL2Map().delete(key);
+        } catch (RuntimeException e) {
+            onL2Error("delete", e);
+        }
+        publishInvalidation(key);
+    }
+
+    @Override
+    public void clear() {
+        l1Cache.invalidateAll();
+        try {
+            getL2Map().clear();
+        } catch (RuntimeException e) {
+            onL2Error("clear", e);
+        }
+        publishInvalidation(null);
+    }
+
+    private IMap<Object, Object> getL2Map() {
+        return hazelcastInstance.getMap(mapName);
+    }
+
+    private Object getFromL2(Object key) {
+        try {
+            return getL2Map().get(key);
+        } catch (RuntimeException e) {
+            onL2Error("get", e);
+            return null;
+        }
+    }
+
+    private void putIntoL2(Object key, Object storeValue) {
+        try {
+            if (l2TtlSeconds > 0) {
+                getL2Map().set(key, storeValue, l2TtlSeconds, TimeUnit.SECONDS);
+            } else {
+                getL2Map().set(key, storeValue);
+            }
+        } catch (RuntimeException e) {
+            onL2Error("set", e);
+        }
+    }
+
+    private void publishInvalidation(Object key) {
+        try {
+            hazelcastInstance.<TieredCacheInvalidation>getTopic(topicName).publish(new TieredCacheInvalidation(sourceId, key));
+        } catch (RuntimeException e) {
+            onL2Error("publish", e);
+        }
+    }
+
+    private void onL2Error(String operation, RuntimeException e) {
+        l2ErrorCounter.increment();
+        LOG.warn("Tiered cache {}: hazelcast {} failed: {}", name, operation, e.getMessage());
+    }
+
+    /**
+     * Make sure that the invalidation listener is registered with the current hazelcast client.
+     * When the client has changed, we register with the new one and drop everything from L1 - messages could have been missed in between.
+     */
+    private void subscribeToInvalidations() {
+        long now = System.currentTimeMillis();
+        if (now - lastSubscriptionCheckMs < topicSubscriptionCheckIntervalMs) {
+            return;
+        }
+
+        synchronized (this) {
+            if (now - lastSubscriptionCheckMs < topicSubscriptionCheckIntervalMs) {
+                return;
+            }
+            lastSubscriptionCheckMs = now;
+
+            try {
+                ITopic<TieredCacheInvalidation> topic = hazelcastInstance.getTopic(topicName);
+                if (topic == subscribedTopic) {
+                    return;
+                }
+
+                String registrationId = topic.addMessageListener(invalidationListener);
+
+                if (subscribedTopic != null) {
+                    try {
+                        subscribedTopic.removeMessageListener(listenerRegistrationId);
+                    } catch (RuntimeException e) {
+                        // old client may be shut down already
+                        LOG.debug("Tiered cache {}: cannot remove old invalidation listener: {}", name, e.getMessage());
+                    }
+                    l1Cache.invalidateAll();
+                }
+
+                subscribedTopic = topic;
+                listenerRegistrationId = registrationId;
+            } catch (RuntimeException e) {
+                onL2Error("subscribe", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.telecominfraproject.wlan.hazelcast.client.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * Configures the tiered cache manager - local Caffeine near-cache backed by hazelcast.
+ * It is enabled by the profile use-tiered-cache, and needs a HazelcastInstance (i.e. profile use-hazelcast-client).<br>
+ * Caches are obtained the same way as from the local cache managers: CacheConfiguration.getCache(cacheName, "cacheManagerTiered").
+ *
+ * @author dtop
+ *
+ */
+@Configuration
+@Profile("use-tiered-cache")
+public class TieredCacheConfiguration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredCacheConfiguration.class);
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${tip.wlan.cache.hazelcast.namePrefix:tc-}")
+    private String hazelcastNamePrefix;
+
+    @Bean
+    @Qualifier("cacheManagerTiered")
+    public CacheManager cacheManagerTiered(HazelcastInstance hazelcastInstance) {
+        TieredCacheManager cacheManager = new TieredCacheManager(hazelcastInstance, environment, hazelcastNamePrefix);
+        LOG.info("Configured tiered cache manager with hazelcast name prefix {}", hazelcastNamePrefix);
+
+        return cacheManager;
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.telecominfraproject.wlan.hazelcast.client.cache;
+
+import java.io.Serializable;
+
+/**
+ * Message that is broadcast over a hazelcast topic when an entry of a tiered cache is changed or evicted,
+ * so that the other nodes drop it from their local (L1) caches.
+ * <b>Very important</b>: this class must implement Serializable interface because it is submitted to Hazelcast Cluster
+ *
+ * @author dtop
+ *
+ */
+public class TieredCacheInvalidation implements Serializable {
+
+    private static final long serialVersionUID = -2281384651780539422L;
+
+    private String sourceId;
+    private Object key;
+
+    public TieredCacheInvalidation() {
+        // for serialization
+    }
+
+    /**
+     * @param sourceId - id of the cache instance that made the change, it ignores its own messages
+     * @param key - key of the changed entry, null when the whole cache is cleared
+     */
+    public TieredCacheInvalidation(String sourceId, Object key) {
+        this.sourceId = sourceId;
+        this.key = key;
+    }
+
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    public Object getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "TieredCacheInvalidation [sourceId=" + sourceId + ", key=" + key + "]";
+    }
+}
@@ -0,0 +1,80 @@
+package com.telecominfraproject.wlan.hazelcast.client.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.core.env.PropertyResolver;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.hazelcast.core.HazelcastInstance;
+import com.telecominfraproject.wlan.core.server.cache.SerializedSizeWeigher;
+
+/**
+ * CacheManager that creates {@link TieredCache}s on demand - local Caffeine cache backed by a hazelcast map, kept coherent across nodes.<br>
+ * Size and expiry of every cache are configured by its name, see {@link TieredCacheSettings}.
+ *
+ * @author dtop
+ *
+ */
+public class TieredCacheManager implements CacheManager {
+
+    private final HazelcastInstance hazelcastInstance;
+    private final PropertyResolver propertyResolver;
+    private final String hazelcastNamePrefix;
+    private final Weigher<Object, Object> l1Weigher;
+
+    private final ConcurrentMap<String, TieredCache> caches = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the cache manager where L1 entries are weighed by the estimated size of their serialized form, see {@link SerializedSizeWeigher}
+     *
+     * @param hazelcastInstance
+     * @param propertyResolver - resolves settings of the caches
+     * @param hazelcastNamePrefix - prefix of the names of hazelcast maps and topics used by the caches
+     */
+    public TieredCacheManager(HazelcastInstance hazelcastInstance, PropertyResolver propertyResolver, String hazelcastNamePrefix) {
+        this(hazelcastInstance, propertyResolver, hazelcastNamePrefix, new SerializedSizeWeigher());
+    }
+
+    /**
+     * @param hazelcastInstance
+     * @param propertyResolver - resolves settings of the caches
+     * @param hazelcastNamePrefix - prefix of the names of hazelcast maps and topics used by the caches
+     * @param l1Weigher - calculates weight of the L1 entries, l1MaxWeight setting of the caches is in the same units
+     */
+    public TieredCacheManager(HazelcastInstance hazelcastInstance, PropertyResolver propertyResolver, String hazelcastNamePrefix,
+            Weigher<Object, Object> l1Weigher) {
+        this.hazelcastInstance = hazelcastInstance;
+        this.propertyResolver = propertyResolver;
+        this.hazelcastNamePrefix = hazelcastNamePrefix;
+        this.l1Weigher = l1Weigher;
+    }
+
+    @Override
+    public Cache getCache(String name) {
+        TieredCache cache = caches.get(name);
+
+        if (cache == null) {
+            synchronized (caches) {
+                cache = caches.get(name);
+                if (cache == null) {
+                    cache = new TieredCache(name, hazelcastInstance, hazelcastNamePrefix, TieredCacheSettings.resolve(propertyResolver, name),
+                            l1Weigher);
+                    caches.put(name, cache);
+                }
+            }
+        }
+
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Collections.unmodifiableSet(caches.keySet());
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.telecominfraproject.wlan.hazelcast.client.cache;
+
+import org.springframework.core.env.PropertyResolver;
+
+/**
+ * Size and expiry settings of a single tiered cache.<br>
+ * Settings are resolved per cache name, falling back to the defaults for all tiered caches:
+ * <pre>
+ * tip.wlan.cache.[cacheName].l1MaxWeight   - or tip.wlan.cache.default.l1MaxWeight, 67108864 (64 MB) by default
+ * tip.wlan.cache.[cacheName].l1TtlSeconds  - or tip.wlan.cache.default.l1TtlSeconds, 60 by default
+ * tip.wlan.cache.[cacheName].l2TtlSeconds  - or tip.wlan.cache.default.l2TtlSeconds, 600 by default
+ * </pre>
+ * Weight of L1 entries is calculated by the weigher of the TieredCacheManager, by default it is the estimated serialized size of the entry - then l1MaxWeight is in bytes.
+ *
+ * @author dtop
+ *
+ */
+public class TieredCacheSettings {
+
+    private static final String propertyPrefix = "tip.wlan.cache.";
+    private static final String defaultCacheName = "default";
+
+    private final long l1MaxWeight;
+    private final int l1TtlSeconds;
+    private final int l2TtlSeconds;
+
+    public TieredCacheSettings(long l1MaxWeight, int l1TtlSeconds, int l2TtlSeconds) {
+        this.l1MaxWeight = l1MaxWeight;
+        this.l1TtlSeconds = l1TtlSeconds;
+        this.l2TtlSeconds = l2TtlSeconds;
+    }
+
+    /**
+     * @param propertyResolver - Spring Environment, or new StandardEnvironment() outside of Spring framework
+     * @param cacheName
+     * @return settings for the cache
+     */
+    public static TieredCacheSettings resolve(PropertyResolver propertyResolver, String cacheName) {
+        long l1MaxWeight = propertyResolver.getProperty(propertyPrefix + cacheName + ".l1MaxWeight", Long.class,
+                propertyResolver.getProperty(propertyPrefix + defaultCacheName + ".l1MaxWeight", Long.class, 67108864L));
+        int l1TtlSeconds = propertyResolver.getProperty(propertyPrefix + cacheName + ".l1TtlSeconds", Integer.class,
+                propertyResolver.getProperty(propertyPrefix + defaultCacheName + ".l1TtlSeconds", Integer.class, 60));
+        int l2TtlSeconds = propertyResolver.getProperty(propertyPrefix + cacheName + ".l2TtlSeconds", Integer.class,
+                propertyResolver.getProperty(propertyPrefix + defaultCacheName + ".l2TtlSeconds", Integer.class, 600));
+
+        return new TieredCacheSettings(l1MaxWeight, l1TtlSeconds, l2TtlSeconds);
+    }
+
+    /**
+     * @return max total weight of the entries in the local (L1) cache
+     */
+    public long getL1MaxWeight() {
+        return l1MaxWeight;
+    }
+
+    /**
+     * @return how long an entry stays in the local (L1) cache after it was written there.
+     * This also limits how long a node can see a stale value if it misses an invalidation message.
+     */
+    public int getL1TtlSeconds() {
+        return l1TtlSeconds;
+    }
+
+    /**
+     * @return how long an entry stays in the distributed (L2) cache after it was written there, 0 - until evicted
+     */
+    public int getL2TtlSeconds() {
+        return l2TtlSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "TieredCacheSettings [l1MaxWeight=" + l1MaxWeight + ", l1TtlSeconds=" + l1TtlSeconds + ", l2TtlSeconds=" + l2TtlSeconds + "]";
+    }
+}
@@ -0,0 +1,165 @@
+package com.telecominfraproject.wlan.hazelcast.client.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.cache.Cache;
+import org.springframework.core.env.StandardEnvironment;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Message;
+import com.hazelcast.core.MessageListener;
+import com.telecominfraproject.wlan.core.server.cache.SerializedSizeWeigher;
+import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest;
+import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest.HazelcastUnitTestManager;
+
+/**
+ * Two cache managers on the same hazelcast instance play the part of two nodes of the cluster.
+ */
+public class TieredCacheTests {
+
+    private static final String namePrefix = "tct-";
+
+    private static HazelcastUnitTestManager testManager = new HazelcastUnitTestManager();
+    private static HazelcastInstance hazelcastInstance;
+
+    @BeforeClass
+    public static void setUp() {
+        HazelcastUnitTestManager.initializeSystemProperty(TieredCacheTests.class);
+        hazelcastInstance = new HazelcastForUnitTest().hazelcastInstanceTest();
+        testManager.registerInstance(hazelcastInstance);
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        testManager.shutdownAllInstances();
+    }
+
+    @Test
+    public void testPutAndEvictInvalidateOtherNodes() throws InterruptedException {
+        Cache node1 = createCacheManager().getCache("testPutAndEvict");
+        Cache node2 = createCacheManager().getCache("testPutAndEvict");
+
+        node1.put("k1", "v1");
+        // found in L2, copied into L1 of node2
+        assertEquals("v1", node2.get("k1").get());
+
+        node1.put("k1", "v2");
+        waitForValue(node2, "k1", "v2");
+
+        node1.evict("k1");
+        waitForValue(node2, "k1", null);
+    }
+
+    @Test
+    public void testClearInvalidatesOtherNodes() throws InterruptedException {
+        Cache node1 = createCacheManager().getCache("testClear");
+        Cache node2 = createCacheManager().getCache("testClear");
+
+        node1.put("k1", "v1");
+        node1.put("k2", "v2");
+        assertEquals("v1", node2.get("k1").get());
+        assertEquals("v2", node2.get("k2").get());
+
+        node1.clear();
+        waitForValue(node2, "k1", null);
+        waitForValue(node2, "k2", null);
+    }
+
+    @Test
+    public void testLoadOnMissDoesNotPublishInvalidation() throws Exception {
+        Cache node1 = createCacheManager().getCache("testLoadOnMiss");
+        Cache node2 = createCacheManager().getCache("testLoadOnMiss");
+
+        final AtomicInteger invalidationCount = new AtomicInteger();
+        hazelcastInstance.<TieredCacheInvalidation>getTopic(namePrefix + "testLoadOnMiss-invalidation")
+                .addMessageListener(new MessageListener<TieredCacheInvalidation>() {
+                    @Override
+                    public void onMessage(Message<TieredCacheInvalidation> message) {
+                        invalidationCount.incrementAndGet();
+                    }
+                });
+
+        CountingLoader loader = new CountingLoader("loaded");
+        assertEquals("loaded", node1.get("k1", loader));
+        assertEquals("loaded", node1.get("k1", loader));
+        assertEquals(1, loader.loadCount.get());
+
+        // the other node finds the loaded value in L2
+        CountingLoader otherLoader = new CountingLoader("other");
+        assertEquals("loaded", node2.get("k1", otherLoader));
+        assertEquals(0, otherLoader.loadCount.get());
+
+        node1.evict("k1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (invalidationCount.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        // topic delivers messages in order - the evict is the only one
+        assertEquals(1, invalidationCount.get());
+    }
+
+    @Test
+    public void testL1EntriesAreWeighedBySerializedSize() {
+        TieredCache cache = (TieredCache) createCacheManager().getCache("testWeight");
+        String value = new String(new char[1000]);
+        cache.put("k1", value);
+
+        @SuppressWarnings("unchecked")
+        com.github.benmanes.caffeine.cache.Cache<Object, Object> l1Cache = (com.github.benmanes.caffeine.cache.Cache<Object, Object>) cache
+                .getNativeCache();
+        long weightedSize = l1Cache.policy().eviction().get().weightedSize().getAsLong();
+        assertTrue(weightedSize >= SerializedSizeWeigher.entryOverheadBytes + 2 * value.length());
+    }
+
+    private static TieredCacheManager createCacheManager() {
+        return new TieredCacheManager(hazelcastInstance, new StandardEnvironment(), namePrefix);
+    }
+
+    private static void waitForValue(Cache cache, Object key, Object expectedValue) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        Object value = getValue(cache, key);
+        while (!equal(expectedValue, value) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            value = getValue(cache, key);
+        }
+
+        if (expectedValue == null) {
+            assertNull(value);
+        } else {
+            assertEquals(expectedValue, value);
+        }
+    }
+
+    private static Object getValue(Cache cache, Object key) {
+        Cache.ValueWrapper valueWrapper = cache.get(key);
+        return valueWrapper == null ? null : valueWrapper.get();
+    }
+
+    private static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    private static class CountingLoader implements Callable<String> {
+        private final String value;
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        CountingLoader(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String call() {
+            loadCount.incrementAndGet();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import com.telecominfraproject.wlan.hierarchical.datastore.backend.DatastoreBackend;
+
+/**
+ * Data files in HDS are zip archives with one record (json line) per line.<br>
+ * Records are split into blocks of N lines (according to HierarchicalDatastore settings), and every block is stored as a separate zip entry,
+ * so it is compressed independently of the other blocks.
+ * The central directory of the zip archive serves as the block offset table:
+ * when only some of the lines are needed (as determined by the record index), only the blocks that contain those lines are inflated.
+ * <br>
+ * Name of the first zip entry is the name of the data file without ".zip" extension,
+ * names of the subsequent entries are structured as [dataFileName]@[number of the first line in the block].
+ * Data files written before blocks were introduced have one zip entry with all the lines, and are handled the same way.
+ *
+ * @author dtop
+ *
+ */
+public class DataFileBlocks {
+
+    public static final char BLOCK_ENTRY_NAME_SEPARATOR = '@';
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_ZIP_COMMENT_SIZE = 0xFFFF;
+
+    /**
+     * Callback for the lines read from the data file
+     */
+    public static interface LineProcessor {
+        /**
+         * @param lineNum - position of the line in the data file, first line number is 0
+         * @param line
+         */
+        void processLine(int lineNum, String line);
+    }
+
+    /**
+     * @param partFileName - name of the data file without ".zip" extension
+     * @param firstLineNumber - number of the first line in the block
+     * @return name of the zip entry for the block
+     */
+    public static String getBlockEntryName(String partFileName, int firstLineNumber) {
+        if(firstLineNumber == 0) {
+            return partFileName;
+        }
+
+        return partFileName + BLOCK_ENTRY_NAME_SEPARATOR + firstLineNumber;
+    }
+
+    /**
+     * @param zipEntryName
+     * @return number of the first line of the block stored in the zip entry with the supplied name
+     */
+    public static int getFirstLineNumber(String zipEntryName) {
+        int pos = zipEntryName.lastIndexOf(BLOCK_ENTRY_NAME_SEPARATOR);
+        if(pos < 0) {
+            return 0;
+        }
+
+        try {
+            return Integer.parseInt(zipEntryName.substring(pos + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read lines from the data file, inflating only the blocks that contain requested lines.
+     * @param dataFile
+     * @param lineNumbers - line numbers to read, if null then all the lines are read
+     * @param lineProcessor - receives lines in the order of their positions in the data file
+     * @throws IOException
+     */
+    public static void processLines(File dataFile, Set<Integer> lineNumbers, LineProcessor lineProcessor) throws IOException {
+
+        int[] sortedLineNumbers = toSortedArray(lineNumbers);
+
+        try(ZipFile zipFile = new ZipFile(dataFile)) {
+            List<ZipEntry> blocks = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while(entries.hasMoreElements()) {
+                blocks.add(entries.nextElement());
+            }
+            blocks.sort(Comparator.comparingInt(e -> getFirstLineNumber(e.getName())));
+
+            for(int i = 0; i < blocks.size(); i++) {
+                ZipEntry block = blocks.get(i);
+                int firstLineNum = getFirstLineNumber(block.getName());
+                int nextBlockFirstLineNum = (i + 1 < blocks.size()) ? getFirstLineNumber(blocks.get(i + 1).getName()) : Integer.MAX_VALUE;
+
+                int lastLineNumOfInterest = Integer.MAX_VALUE;
+                if(sortedLineNumbers != null) {
+                    lastLineNumOfInterest = getLastLineNumberInRange(sortedLineNumbers, firstLineNum, nextBlockFirstLineNum);
+                    if(lastLineNumOfInterest < 0) {
+                        //none of the requested lines are in this block, no need to inflate it
+                        continue;
+                    }
+                }
+
+                processBlockLines(zipFile.getInputStream(block), firstLineNum, lastLineNumOfInterest, sortedLineNumbers, lineProcessor);
+            }
+        }
+    }
+
+    /**
+     * Read lines from the data file stored in the backend, fetching and inflating only the blocks that contain requested lines.<br>
+     * The tail of the object with the central directory of the zip archive is read first, and then every needed block is read with its own ranged read,
+     * so the backend does not have to keep data files in the local file system.
+     * @param backend
+     * @param objectName - name of the data file in the backend
+     * @param lineNumbers - line numbers to read, if null then all the lines are read
+     * @param lineProcessor - receives lines in the order of their positions in the data file
+     * @throws FileNotFoundException if the data file does not exist
+     * @throws IOException
+     */
+    public static void processLines(DatastoreBackend backend, String objectName, Set<Integer> lineNumbers, LineProcessor lineProcessor) throws IOException {
+
+        int[] sortedLineNumbers = toSortedArray(lineNumbers);
+
+        List<RemoteBlock> blocks = readCentralDirectory(backend, objectName);
+        blocks.sort(Comparator.comparingInt(b -> b.firstLineNum));
+
+        for(int i = 0; i < blocks.size(); i++) {
+            RemoteBlock block = blocks.get(i);
+            int nextBlockFirstLineNum = (i + 1 < blocks.size()) ? blocks.get(i + 1).firstLineNum : Integer.MAX_VALUE;
+
+            int lastLineNumOfInterest = Integer.MAX_VALUE;
+            if(sortedLineNumbers != null) {
+                lastLineNumOfInterest = getLastLineNumberInRange(sortedLineNumbers, block.firstLineNum, nextBlockFirstLineNum);
+                if(lastLineNumOfInterest < 0) {
+                    //none of the requested lines are in this block, no need to fetch it
+                    continue;
+                }
+            }
+
+            try(InputStream is = backend.readRange(objectName, block.localHeaderOffset, block.endOffset - block.localHeaderOffset)) {
+                ByteBuffer localHeader = ByteBuffer.wrap(readFully(is, LOCAL_HEADER_SIZE, objectName)).order(ByteOrder.LITTLE_ENDIAN);
+                if(localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                    throw new ZipException("Invalid local header of block " + block.firstLineNum + " in " + objectName);
+                }
+                readFully(is, (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF), objectName);
+
+                if(block.compressionMethod == ZipEntry.STORED) {
+                    processBlockLines(new BoundedBlockInputStream(is, block.compressedSize), block.firstLineNum, lastLineNumOfInterest, sortedLineNumbers, lineProcessor);
+                } else if(block.compressionMethod == ZipEntry.DEFLATED) {
+                    //inflater stops at the end of the deflated data, whatever follows it in the range is ignored
+                    Inflater inflater = new Inflater(true);
+                    try {
+                        processBlockLines(new InflaterInputStream(is, inflater), block.firstLineNum, lastLineNumOfInterest, sortedLineNumbers, lineProcessor);
+                    } finally {
+                        inflater.end();
+                    }
+                } else {
+                    throw new ZipException("Unsupported compression method " + block.compressionMethod + " of block " + block.firstLineNum + " in " + objectName);
+                }
+            }
+        }
+    }
+
+    private static int[] toSortedArray(Set<Integer> lineNumbers) {
+        if(lineNumbers == null) {
+            return null;
+        }
+
+        int[] ret = new int[lineNumbers.size()];
+        int i = 0;
+        for(Integer lineNum: lineNumbers) {
+            ret[i++] = lineNum;
+        }
+        Arrays.sort(ret);
+
+        return ret;
+    }
+
+    /**
+     * Pass the lines of interest from the uncompressed content of the block to the lineProcessor. Block content stream is closed when this method returns.
+     */
+    private static void processBlockLines(InputStream blockContent, int firstLineNum, int lastLineNumOfInterest, int[] sortedLineNumbers, LineProcessor lineProcessor) throws IOException {
+        try(BufferedReader br = new BufferedReader(new InputStreamReader(blockContent, StandardCharsets.UTF_8))) {
+            int lineNum = firstLineNum - 1;
+            for(String line; (line = br.readLine()) != null; ) {
+                lineNum++;
+
+                if(sortedLineNumbers == null || Arrays.binarySearch(sortedLineNumbers, lineNum) >= 0) {
+                    lineProcessor.processLine(lineNum, line);
+                }
+
+                if(lineNum >= lastLineNumOfInterest) {
+                    // No need to read anymore lines from this block, we've read all the ones we need.
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Position of a block (zip entry) within the data file, as recorded in the central directory of the zip archive
+     */
+    private static class RemoteBlock {
+        int firstLineNum;
+        int compressionMethod;
+        long compressedSize;
+        long localHeaderOffset;
+        /**
+         * position right after the end of the block data - where the next block, or the central directory, starts
+         */
+        long endOffset;
+    }
+
+    /**
+     * Read the central directory of the zip archive stored in the backend.<br>
+     * Data files are never larger than 4GB, and they do not use zip64 extensions.
+     */
+    private static List<RemoteBlock> readCentralDirectory(DatastoreBackend backend, String objectName) throws IOException {
+        long objectSize = backend.size(objectName);
+
+        //end of central directory record is at the very end of the archive, followed only by an optional comment
+        int tailSize = (int) Math.min(objectSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_ZIP_COMMENT_SIZE);
+        ByteBuffer tail;
+        try(InputStream is = backend.readRange(objectName, objectSize - tailSize, tailSize)) {
+            tail = ByteBuffer.wrap(readFully(is, tailSize, objectName)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int eocdPos = -1;
+        for(int pos = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= 0; pos--) {
+            if(tail.getInt(pos) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocdPos = pos;
+                break;
+            }
+        }
+        if(eocdPos < 0) {
+            throw new ZipException("End of central directory is not found in " + objectName);
+        }
+
+        int numEntries = tail.getShort(eocdPos + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocdPos + 12) & 0xFFFFFFFFL;
+        long cdOffset = tail.getInt(eocdPos + 16) & 0xFFFFFFFFL;
+        if(numEntries == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported: " + objectName);
+        }
+
+        ByteBuffer cd;
+        long cdStartInTail = cdOffset - (objectSize - tailSize);
+        if(cdStartInTail >= 0) {
+            //central directory is already in the tail, no need to read it again
+            cd = ByteBuffer.wrap(tail.array(), (int) cdStartInTail, (int) cdSize).slice().order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            try(InputStream is = backend.readRange(objectName, cdOffset, cdSize)) {
+                cd = ByteBuffer.wrap(readFully(is, (int) cdSize, objectName)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        List<RemoteBlock> ret = new ArrayList<>(numEntries);
+        int pos = 0;
+        for(int i = 0; i < numEntries; i++) {
+            if(cd.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory entry " + i + " in " + objectName);
+            }
+
+            RemoteBlock block = new RemoteBlock();
+            block.compressionMethod = cd.getShort(pos + 10) & 0xFFFF;
+            block.compressedSize = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+            int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+            block.localHeaderOffset = cd.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            byte[] name = new byte[nameLength];
+            cd.position(pos + CENTRAL_HEADER_SIZE);
+            cd.get(name);
+            block.firstLineNum = getFirstLineNumber(new String(name, StandardCharsets.UTF_8));
+
+            ret.add(block);
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        //every block ends where the next one in the archive starts, the last one ends where the central directory starts
+        List<RemoteBlock> blocksByOffset = new ArrayList<>(ret);
+        blocksByOffset.sort(Comparator.comparingLong(b -> b.localHeaderOffset));
+        for(int i = 0; i < blocksByOffset.size(); i++) {
+            blocksByOffset.get(i).endOffset = (i + 1 < blocksByOffset.size()) ? blocksByOffset.get(i + 1).localHeaderOffset : cdOffset;
+        }
+
+        return ret;
+    }
+
+    private static byte[] readFully(InputStream is, int numBytes, String objectName) throws IOException {
+        byte[] ret = new byte[numBytes];
+        int offset = 0;
+        while(offset < numBytes) {
+            int n = is.read(ret, offset, numBytes - offset);
+            if(n < 0) {
+                throw new EOFException("Unexpected end of " + objectName);
+            }
+            offset += n;
+        }
+
+        return ret;
+    }
+
+    /**
+     * Content of the stored (not compressed) block, which is followed by other data in the range read from the backend
+     */
+    private static class BoundedBlockInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedBlockInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+
+            int ret = super.read();
+            if(ret >= 0) {
+                remaining--;
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+
+            int ret = super.read(b, off, (int) Math.min(len, remaining));
+            if(ret > 0) {
+                remaining -= ret;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @param sortedLineNumbers
+     * @param fromLineNum - inclusive
+     * @param toLineNum - exclusive
+     * @return the largest of the sortedLineNumbers that falls within [fromLineNum, toLineNum), or -1 if none of them do
+     */
+    private static int getLastLineNumberInRange(int[] sortedLineNumbers, int fromLineNum, int toLineNum) {
+        int pos = Arrays.binarySearch(sortedLineNumbers, toLineNum);
+        //index of the first element >= toLineNum
+        int insertionPoint = pos >= 0 ? pos : -(pos + 1);
+        if(insertionPoint == 0) {
+            return -1;
+        }
+
+        int candidate = sortedLineNumbers[insertionPoint - 1];
+        return candidate >= fromLineNum ? candidate : -1;
+    }
+}
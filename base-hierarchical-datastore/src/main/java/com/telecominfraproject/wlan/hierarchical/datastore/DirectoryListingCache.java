@@ -0,0 +1,160 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local, size-bounded cache of the hourly directory listings of HDS, keyed by directory name (dsPrefix/customerId/equipmentId/yyyy/MM/dd/HH/).<br>
+ * It sits in front of the directory listings map in hazelcast and of the file system listing, so that repeated queries over the same time range
+ * do not pay for one hazelcast round-trip (and possibly a distributed lock) per hour.
+ * <ul>
+ * <li>Listings of closed hours - those that no longer receive new data files - do not expire, they are only evicted when the cache is full.
+ * <li>Listings of open hours expire after openHourTtlMs, value of 0 disables caching of open hours.
+ * <li>Empty listings (hours without data) are cached too, and expire after emptyListingTtlMs -
+ *      this covers late data files that arrive into an hour that was considered closed.
+ * </ul>
+ * Entries are invalidated when a new data file is appended to the directory listing by this process.
+ * Every invalidation bumps the generation of its directory, a listing taken before that is not cached - invalidations of the other directories do not affect it.
+ * <br>
+ * This class is thread-safe.
+ *
+ * @author dtop
+ *
+ */
+public class DirectoryListingCache {
+
+    private static class CachedListing {
+        final Set<String> fileNames;
+        final long expiresAtMs;
+
+        CachedListing(Set<String> fileNames, long expiresAtMs) {
+            this.fileNames = fileNames;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final long openHourTtlMs;
+    private final long emptyListingTtlMs;
+    private final Map<String, CachedListing> cache;
+
+    /**
+     * Generation of the recently invalidated directories, bounded the same way as the cache.
+     * Directories that are not in this map have generation of evictedGeneration.
+     */
+    private final Map<String, Long> generations;
+    private long invalidationCount;
+    private long evictedGeneration;
+
+    public DirectoryListingCache(final int maxSize, long openHourTtlMs, long emptyListingTtlMs) {
+        this.openHourTtlMs = openHourTtlMs;
+        this.emptyListingTtlMs = emptyListingTtlMs;
+
+        //access-ordered map, the least recently used listing is evicted first
+        this.cache = new LinkedHashMap<String, CachedListing>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        this.generations = new LinkedHashMap<String, Long>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if(size() > maxSize) {
+                    //forgotten directories share the generation of the most recently forgotten one, 
+                    //so listings taken before their last invalidation are still rejected
+                    evictedGeneration = Math.max(evictedGeneration, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param dirKey - name of the hourly directory
+     * @param nowMs
+     * @return unmodifiable set of full file names in the directory, or null if the listing is not cached or it has expired.
+     *      Empty set means that the directory is known to have no files.
+     */
+    public synchronized Set<String> get(String dirKey, long nowMs) {
+        CachedListing listing = cache.get(dirKey);
+        if(listing == null) {
+            return null;
+        }
+
+        if(listing.expiresAtMs <= nowMs) {
+            cache.remove(dirKey);
+            return null;
+        }
+
+        return listing.fileNames;
+    }
+
+    /**
+     * Callers should obtain this value before listing a directory and pass it to put(), 
+     * so that a listing that was taken before an invalidation of that directory does not make it into the cache.
+     * @param dirKey - name of the hourly directory
+     * @return generation of the directory, it changes every time the directory is invalidated
+     */
+    public synchronized long getGeneration(String dirKey) {
+        Long generation = generations.get(dirKey);
+        return generation == null ? evictedGeneration : generation;
+    }
+
+    /**
+     * @param dirKey - name of the hourly directory
+     * @param fileNames - full file names in the directory, can be null or empty
+     * @param closedHour - true if no new files are expected to appear in the directory
+     * @param nowMs
+     * @param generationBeforeListing - value of getGeneration(dirKey) taken before the directory was listed
+     */
+    public void put(String dirKey, Set<String> fileNames, boolean closedHour, long nowMs, long generationBeforeListing) {
+        Set<String> cachedFileNames = (fileNames == null || fileNames.isEmpty()) ?
+                Collections.<String>emptySet() : Collections.unmodifiableSet(new HashSet<>(fileNames));
+
+        long ttlMs;
+        if(cachedFileNames.isEmpty()) {
+            ttlMs = closedHour ? emptyListingTtlMs : Math.min(openHourTtlMs, emptyListingTtlMs);
+        } else {
+            ttlMs = closedHour ? Long.MAX_VALUE : openHourTtlMs;
+        }
+
+        if(ttlMs <= 0) {
+            //caching is disabled for this kind of listing
+            return;
+        }
+
+        long expiresAtMs = (ttlMs == Long.MAX_VALUE) ? Long.MAX_VALUE : nowMs + ttlMs;
+
+        synchronized(this) {
+            if(getGeneration(dirKey) != generationBeforeListing) {
+                //the directory was invalidated while this listing was taken, it may be out of date already
+                return;
+            }
+
+            cache.put(dirKey, new CachedListing(cachedFileNames, expiresAtMs));
+        }
+    }
+
+    /**
+     * Remove cached listing of the directory, next request for it will go to hazelcast or to the file system.
+     * @param dirKey - name of the hourly directory
+     */
+    public synchronized void invalidate(String dirKey) {
+        cache.remove(dirKey);
+        invalidationCount++;
+        generations.put(dirKey, invalidationCount);
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,246 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.telecominfraproject.wlan.core.model.filter.EntryFilter;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.DirectoryIndex;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndex;
+import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
+
+/**
+ * Iterator over the entries of one customer equipment between fromTime and toTime.<br>
+ * Unlike HierarchicalDatastore.getEntries(), the result set is never materialized in memory:
+ * hours are listed one by one as the caller consumes entries, and at most N data files (according to HierarchicalDatastore settings)
+ * are being read ahead at any given time.<br>
+ * Data files are read as a part of the HdsQueryScheduler query that is bound to the thread that creates the iterator,
+ * or as a part of its own INTERACTIVE query if there is none.<br>
+ * Entries are returned in the order of the data files (which is the order of their timestamps),
+ * and within each data file - in the order they were written.<br>
+ *
+ * Callers that stop consuming before reaching the end should call close(), so that data files that are being read ahead are abandoned.
+ * Even if close() is not called, no new data files are read once the caller stops calling next().<br>
+ *
+ * This class is not thread-safe, it is meant to be consumed by a single thread.
+ *
+ * @author dtop
+ *
+ * @param <T> - Class of the entry records stored in the data files
+ */
+public class EntryIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EntryIterator.class);
+
+    private static class PendingFile {
+        final String fileName;
+        final RecordIndex recordIndex;
+
+        PendingFile(String fileName, RecordIndex recordIndex) {
+            this.fileName = fileName;
+            this.recordIndex = recordIndex;
+        }
+    }
+
+    private final HierarchicalDatastore hierarchicalDatastore;
+    private final int customerId;
+    private final long equipmentId;
+    private final long toTime;
+    private final EntryFilter<T> entryFilter;
+    private final String indexName;
+    private final Set<String> indexedValues;
+    private final Class<T> dataClass;
+    private final int readAheadFiles;
+    private final HdsQueryScheduler.Query query;
+    private final boolean ownQuery;
+
+    private final Iterator<String> hourlyIndexFileNamesIterator;
+    private final long hourIncrementMs;
+    private long fromTimeHr;
+    private long toTimeHr;
+
+    private final ArrayDeque<PendingFile> pendingFiles = new ArrayDeque<>();
+    private final ArrayDeque<Future<List<T>>> filesInFlight = new ArrayDeque<>();
+    private Iterator<T> currentFileEntries = Collections.emptyIterator();
+    private boolean closed;
+
+    EntryIterator(HierarchicalDatastore hierarchicalDatastore, int customerId, long equipmentId, long fromTime, long toTime,
+            EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass, int readAheadFiles) {
+
+        this.hierarchicalDatastore = hierarchicalDatastore;
+        this.customerId = customerId;
+        this.equipmentId = equipmentId;
+        this.entryFilter = entryFilter;
+        this.indexName = indexName;
+        this.indexedValues = indexedValues;
+        this.dataClass = dataClass;
+        this.readAheadFiles = Math.max(1, readAheadFiles);
+
+        HdsQueryScheduler queryScheduler = hierarchicalDatastore.getQueryScheduler();
+        HdsQueryScheduler.Query currentQuery = queryScheduler.getCurrentQuery();
+        this.ownQuery = currentQuery == null;
+        this.query = ownQuery ? queryScheduler.newQuery(customerId, HdsQueryScheduler.Priority.INTERACTIVE) : currentQuery;
+
+        int numberOfMinutesPerFile = hierarchicalDatastore.getNumberOfMinutesPerFile();
+
+        //if toTime is in the future - set it back to now
+        long currentTime = System.currentTimeMillis();
+        if(toTime>currentTime){
+            toTime = currentTime;
+        }
+
+        if((toTime - fromTime)/(60000L*numberOfMinutesPerFile) > 45000){
+            //limit the number of data files to 45000 ( ~ 32 days with 1 minute intervals)
+            fromTime = toTime - 45000L*60000*numberOfMinutesPerFile;
+            LOG.warn("Query asks for too much data. Limiting requested time range {} - {} to {} ms", fromTime, toTime, toTime - fromTime);
+        }
+
+        this.toTime = toTime;
+
+        HourlyIndexFileNames hourlyIndexFileNames = new HourlyIndexFileNames(customerId, equipmentId, fromTime, toTime, indexName,
+                hierarchicalDatastore.getDsPrefix(), hierarchicalDatastore.getFileNamePrefix(), numberOfMinutesPerFile);
+        this.hourlyIndexFileNamesIterator = hourlyIndexFileNames.iterator();
+        this.hourIncrementMs = TimeUnit.HOURS.toMillis(hourlyIndexFileNames.getHourIncrement());
+
+        //maintain hourly interval for each hourly index file name, same way as HierarchicalDatastore.processDataFiles() does
+        this.fromTimeHr = fromTime;
+        this.toTimeHr = Math.min(toTime, fromTime + hourIncrementMs - fromTime%hourIncrementMs - 1);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(closed){
+            return false;
+        }
+
+        while(!currentFileEntries.hasNext()){
+            readAhead();
+
+            Future<List<T>> nextFile = filesInFlight.poll();
+            if(nextFile == null){
+                //all data files have been read
+                close();
+                return false;
+            }
+
+            currentFileEntries = waitForFile(nextFile).iterator();
+
+            //keep the read-ahead window full while the caller is consuming entries of the current file
+            readAhead();
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+
+        return currentFileEntries.next();
+    }
+
+    /**
+     * Stop reading data files. Data files that are being read ahead are abandoned.
+     */
+    @Override
+    public void close() {
+        if(closed){
+            return;
+        }
+
+        closed = true;
+
+        for(Future<List<T>> future: filesInFlight){
+            future.cancel(true);
+        }
+
+        if(!filesInFlight.isEmpty()){
+            LOG.debug("EntryIterator for customer {} equipment {} closed with {} data files in flight", customerId, equipmentId, filesInFlight.size());
+        }
+
+        filesInFlight.clear();
+        pendingFiles.clear();
+        currentFileEntries = Collections.emptyIterator();
+
+        if(ownQuery){
+            query.close();
+        }
+    }
+
+    private List<T> waitForFile(Future<List<T>> future) {
+        try {
+            return query.waitFor(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new GenericErrorException("Failed to collect result", e);
+        } catch (ExecutionException e) {
+            LOG.error("EntryIterator could not retrieve data", e);
+            close();
+            throw new GenericErrorException("Failed to collect result", e);
+        } catch (GenericErrorException e) {
+            //query was cancelled
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Submit data files for reading, until there are readAheadFiles of them in flight or until there are no more data files in the requested time range.
+     */
+    private void readAhead() {
+        while(filesInFlight.size() < readAheadFiles){
+            if(pendingFiles.isEmpty() && !listNextHour()){
+                return;
+            }
+
+            PendingFile pendingFile = pendingFiles.poll();
+            if(pendingFile != null){
+                filesInFlight.add(query.submit(hierarchicalDatastore.newGetContentTask(pendingFile.fileName, entryFilter, indexName, indexedValues,
+                        pendingFile.recordIndex, dataClass)));
+            }
+        }
+    }
+
+    /**
+     * Add data files of the next hour interval to the list of pending files.
+     * @return false if there are no more hours in the requested time range
+     */
+    private boolean listNextHour() {
+        if(!hourlyIndexFileNamesIterator.hasNext()){
+            return false;
+        }
+
+        String hrIdxFileName = hourlyIndexFileNamesIterator.next();
+
+        DirectoryIndex hrIdx = hierarchicalDatastore.getHourlyIndexForQuery(indexName, indexedValues, fromTimeHr, hrIdxFileName);
+        List<String> dataFileNames = hierarchicalDatastore.getDataFileNamesForHour(customerId, equipmentId, fromTimeHr, toTimeHr,
+                indexName, indexedValues, hrIdxFileName, hrIdx);
+
+        //names of the data files end with yyyy_MM_dd_HH_mm_createdTs.zip - sorting them by name puts them in timestamp order
+        Collections.sort(dataFileNames);
+
+        for(String dataFileName: dataFileNames){
+            pendingFiles.add(new PendingFile(dataFileName, hrIdx==null?null:hrIdx.getDataFileNameToRecordIndexMap().get(dataFileName)));
+        }
+
+        LOG.trace("EntryIterator: listed {} data files for interval from {} to {}", dataFileNames.size(), fromTimeHr, toTimeHr);
+
+        //adjust hour boundaries for the next iteration
+        fromTimeHr = toTimeHr + 1;
+        toTimeHr = Math.min(toTime, fromTimeHr + hourIncrementMs - 1);
+
+        return true;
+    }
+}
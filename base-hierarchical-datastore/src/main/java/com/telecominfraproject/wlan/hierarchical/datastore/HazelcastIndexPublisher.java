@@ -0,0 +1,424 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Timer;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.hazelcast.common.AppendStringsToSetEntryProcessor;
+import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
+
+/**
+ * Publishes record indexes and directory listing appends of the newly written data files to hazelcast in batches, from a single background thread.<br>
+ * Writers hand over their updates and carry on with the next data file, instead of waiting for several hazelcast round trips per data file.
+ * <ul>
+ * <li>Updates are collected until there are batchSize of them, or until lingerMs have passed since the first one.
+ * <li>Record indexes of a batch are stored with one putAll() per index map.
+ * <li>File names of a batch are appended with one executeOnKeys() call, one entry per hourly directory.
+ *      Directory listings that are not in hazelcast yet are populated from the backend first, and appended to again - same as it is done for a single file.
+ * <li>Queue of the pending updates is bounded. When it is full, writers block until the publisher catches up.
+ * <li>Updates are published in the order they were submitted, so the record indexes of a data file are in hazelcast by the time its name appears in the directory listing.
+ * </ul>
+ * Failed batches are retried a few times, after that the updates are dropped and the error is logged:
+ * queries fall back to the binary record indexes stored with the data files, and directory listings that could not be updated are removed from hazelcast, so they will be re-read from the backend.
+ *
+ * @author dtop
+ *
+ */
+public class HazelcastIndexPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HazelcastIndexPublisher.class);
+
+    private static final int maxAttempts = 3;
+    private static final long sleepBetweenAttemptsMs = 200;
+
+    private abstract static class PublishItem {
+        final Runnable onPublished;
+
+        PublishItem(Runnable onPublished) {
+            this.onPublished = onPublished;
+        }
+    }
+
+    private static class RecordIndexItem extends PublishItem {
+        final String mapName;
+        final String idxKey;
+        final byte[] idxBytes;
+
+        RecordIndexItem(String mapName, String idxKey, byte[] idxBytes) {
+            super(null);
+            this.mapName = mapName;
+            this.idxKey = idxKey;
+            this.idxBytes = idxBytes;
+        }
+    }
+
+    private static class DirectoryListingItem extends PublishItem {
+        final int customerId;
+        final long equipmentId;
+        final long hourStartMs;
+        final String dirKey;
+        final String shortFileName;
+
+        DirectoryListingItem(int customerId, long equipmentId, long hourStartMs, String dirKey, String shortFileName, Runnable onPublished) {
+            super(onPublished);
+            this.customerId = customerId;
+            this.equipmentId = equipmentId;
+            this.hourStartMs = hourStartMs;
+            this.dirKey = dirKey;
+            this.shortFileName = shortFileName;
+        }
+    }
+
+    private static class DirectoryAppend {
+        final int customerId;
+        final long equipmentId;
+        final long hourStartMs;
+        final Set<String> shortFileNames = new HashSet<>();
+
+        DirectoryAppend(int customerId, long equipmentId, long hourStartMs) {
+            this.customerId = customerId;
+            this.equipmentId = equipmentId;
+            this.hourStartMs = hourStartMs;
+        }
+    }
+
+    private final HierarchicalDatastore hierarchicalDatastore;
+    private final HazelcastInstance hazelcastClient;
+    private final String dirListMapName;
+    private final int batchSize;
+    private final long lingerMs;
+    private final BlockingQueue<PublishItem> queue;
+    private final Thread publisherThread;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final Object publishedMonitor = new Object();
+    private long publishedCount;
+    private volatile boolean shutdownRequested;
+
+    private final Counter batchCounter;
+    private final Counter itemCounter;
+    private final Counter errorCounter;
+    private final Counter blockedCounter;
+    private final Timer publishTimer;
+
+    /**
+     * @param name - used in the thread name
+     * @param servoMetricPrefix
+     * @param hierarchicalDatastore - datastore whose updates are published, it is used to populate missing directory listings
+     * @param hazelcastClient
+     * @param dirListMapName - name of the hazelcast map with the hourly directory listings
+     * @param queueSize - maximum number of pending updates
+     * @param batchSize - maximum number of updates published at once
+     * @param lingerMs - how long to wait for more updates to fill a batch
+     */
+    public HazelcastIndexPublisher(String name, String servoMetricPrefix, HierarchicalDatastore hierarchicalDatastore, HazelcastInstance hazelcastClient,
+            String dirListMapName, int queueSize, int batchSize, long lingerMs) {
+        this.hierarchicalDatastore = hierarchicalDatastore;
+        this.hazelcastClient = hazelcastClient;
+        this.dirListMapName = dirListMapName;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMs = lingerMs;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+
+        this.batchCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "indexPublishBatch-count");
+        this.itemCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "indexPublishItem-count");
+        this.errorCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "indexPublishError-count");
+        this.blockedCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "indexPublishBlocked-count");
+        this.publishTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "indexPublish-timer");
+
+        CloudMetricsUtils.registerGauge(servoMetricPrefix + "indexPublishQueueSize",
+                new Callable<Long>(){
+            @Override
+            public Long call() throws Exception {
+                return (long) queue.size();
+            }
+        });
+
+        this.publisherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publishLoop();
+            }
+        }, "hdsIndexPublisher_" + name);
+        this.publisherThread.setDaemon(true);
+        this.publisherThread.start();
+    }
+
+    /**
+     * Store zipped record index of a data file in the hazelcast map.
+     * @param mapName
+     * @param idxKey
+     * @param idxBytes
+     */
+    public void publishRecordIndex(String mapName, String idxKey, byte[] idxBytes) {
+        submit(new RecordIndexItem(mapName, idxKey, idxBytes));
+    }
+
+    /**
+     * Append name of a data file to the listing of its hourly directory in hazelcast.
+     * @param customerId
+     * @param equipmentId
+     * @param hourStartMs - beginning of the hour of the directory
+     * @param fullFileName
+     * @param onPublished - called from the publisher thread after the file name is appended, or after the append has failed. Can be null.
+     */
+    public void appendFileNameToDirectoryListing(int customerId, long equipmentId, long hourStartMs, String fullFileName, Runnable onPublished) {
+        String dirKey = fullFileName.substring(0, fullFileName.lastIndexOf('/')+1);
+        String shortFileName = fullFileName.substring(fullFileName.lastIndexOf('/')+1);
+        submit(new DirectoryListingItem(customerId, equipmentId, hourStartMs, dirKey, shortFileName, onPublished));
+    }
+
+    private void submit(PublishItem item) {
+        if(shutdownRequested) {
+            throw new GenericErrorException("Index publisher is shut down");
+        }
+
+        submittedCount.incrementAndGet();
+        if(!queue.offer(item)) {
+            //back-pressure: writer waits until there is room in the queue
+            blockedCounter.increment();
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                submittedCount.decrementAndGet();
+                Thread.currentThread().interrupt();
+                throw new GenericErrorException("Interrupted while waiting for index publisher queue", e);
+            }
+        }
+    }
+
+    /**
+     * Wait until all the updates submitted before this call are published.
+     * @param timeoutMs
+     * @return true if all the updates were published within the timeout
+     */
+    public boolean flush(long timeoutMs) {
+        long target = submittedCount.get();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        synchronized (publishedMonitor) {
+            while(publishedCount < target) {
+                long waitMs = deadline - System.currentTimeMillis();
+                if(waitMs <= 0) {
+                    return false;
+                }
+
+                try {
+                    publishedMonitor.wait(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Publish all the pending updates and stop the publisher thread. No new updates are accepted after this call.
+     */
+    public void shutdown() {
+        shutdownRequested = true;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void publishLoop() {
+        List<PublishItem> batch = new ArrayList<>(batchSize);
+
+        while(!shutdownRequested || !queue.isEmpty()) {
+            try {
+                PublishItem first = queue.poll(1, TimeUnit.SECONDS);
+                if(first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+
+                //wait a little for more updates, so that they can be published together
+                long lingerDeadline = System.currentTimeMillis() + lingerMs;
+                while(batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long waitMs = lingerDeadline - System.currentTimeMillis();
+                    if(batch.size() >= batchSize || waitMs <= 0 || shutdownRequested) {
+                        break;
+                    }
+
+                    PublishItem next = queue.poll(waitMs, TimeUnit.MILLISECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //publish whatever is left in the queue, and stop
+                LOG.warn("Index publisher thread was interrupted, {} pending updates", queue.size());
+                shutdownRequested = true;
+            }
+
+            if(!batch.isEmpty()) {
+                publishBatch(batch);
+
+                synchronized (publishedMonitor) {
+                    publishedCount += batch.size();
+                    publishedMonitor.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+
+        LOG.info("Index publisher thread exited {}", Thread.currentThread().getName());
+    }
+
+    private void publishBatch(List<PublishItem> batch) {
+        long startTime = System.currentTimeMillis();
+
+        Map<String, Map<String, byte[]>> recordIndexesPerMap = new HashMap<>();
+        Map<String, DirectoryAppend> directoryAppends = new HashMap<>();
+
+        for(PublishItem item: batch) {
+            if(item instanceof RecordIndexItem) {
+                RecordIndexItem idxItem = (RecordIndexItem) item;
+                Map<String, byte[]> entries = recordIndexesPerMap.get(idxItem.mapName);
+                if(entries == null) {
+                    entries = new HashMap<>();
+                    recordIndexesPerMap.put(idxItem.mapName, entries);
+                }
+                entries.put(idxItem.idxKey, idxItem.idxBytes);
+            } else {
+                DirectoryListingItem dirItem = (DirectoryListingItem) item;
+                DirectoryAppend dirAppend = directoryAppends.get(dirItem.dirKey);
+                if(dirAppend == null) {
+                    dirAppend = new DirectoryAppend(dirItem.customerId, dirItem.equipmentId, dirItem.hourStartMs);
+                    directoryAppends.put(dirItem.dirKey, dirAppend);
+                }
+                dirAppend.shortFileNames.add(dirItem.shortFileName);
+            }
+        }
+
+        //record indexes go first, so they are available by the time the data files show up in the directory listings
+        for(Map.Entry<String, Map<String, byte[]>> mapEntry: recordIndexesPerMap.entrySet()) {
+            IMap<String, byte[]> recordIdxMap = hazelcastClient.getMap(mapEntry.getKey());
+            for(int attempt = 1; ; attempt++) {
+                try {
+                    recordIdxMap.putAll(mapEntry.getValue());
+                    break;
+                } catch (RuntimeException e) {
+                    if(!retryAfterFailure(attempt, "store record indexes in " + mapEntry.getKey(), e)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        if(!directoryAppends.isEmpty()) {
+            for(int attempt = 1; ; attempt++) {
+                try {
+                    appendToDirectoryListings(directoryAppends);
+                    break;
+                } catch (RuntimeException e) {
+                    if(!retryAfterFailure(attempt, "append file names to directory listings", e)) {
+                        removeDirectoryListings(directoryAppends.keySet());
+                        break;
+                    }
+                }
+            }
+        }
+
+        for(PublishItem item: batch) {
+            if(item.onPublished != null) {
+                try {
+                    item.onPublished.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to process published index update", e);
+                }
+            }
+        }
+
+        batchCounter.increment();
+        itemCounter.increment(batch.size());
+        publishTimer.record(System.currentTimeMillis() - startTime, TimeUnit.MILLISECONDS);
+    }
+
+    private void appendToDirectoryListings(Map<String, DirectoryAppend> directoryAppends) {
+        IMap<String, Set<String>> dirListMap = hazelcastClient.getMap(dirListMapName);
+
+        Map<String, Set<String>> fileNamesPerDirectory = new HashMap<>();
+        for(Map.Entry<String, DirectoryAppend> dirEntry: directoryAppends.entrySet()) {
+            fileNamesPerDirectory.put(dirEntry.getKey(), dirEntry.getValue().shortFileNames);
+        }
+
+        Map<String, Object> appended = dirListMap.executeOnKeys(fileNamesPerDirectory.keySet(), new AppendStringsToSetEntryProcessor(fileNamesPerDirectory));
+
+        //listings that are not in hazelcast yet have to be populated from the backend first, otherwise they would contain only the new files
+        Map<String, Set<String>> populatedDirectories = new HashMap<>();
+        for(Map.Entry<String, DirectoryAppend> dirEntry: directoryAppends.entrySet()) {
+            if(!Boolean.TRUE.equals(appended.get(dirEntry.getKey()))) {
+                DirectoryAppend dirAppend = dirEntry.getValue();
+                hierarchicalDatastore.invalidateDirectoryListing(dirEntry.getKey());
+                hierarchicalDatastore.getFileNames(dirAppend.customerId, dirAppend.equipmentId, dirAppend.hourStartMs, dirAppend.hourStartMs + 1);
+                populatedDirectories.put(dirEntry.getKey(), dirAppend.shortFileNames);
+            }
+        }
+
+        if(!populatedDirectories.isEmpty()) {
+            //a listing read by someone else before the files were written may have been stored in the meantime, make sure it has the new files
+            dirListMap.executeOnKeys(populatedDirectories.keySet(), new AppendStringsToSetEntryProcessor(populatedDirectories));
+        }
+
+        //local listings of these directories are out of date now
+        for(String dirKey: directoryAppends.keySet()) {
+            hierarchicalDatastore.invalidateDirectoryListing(dirKey);
+        }
+    }
+
+    private void removeDirectoryListings(Set<String> dirKeys) {
+        try {
+            IMap<String, Set<String>> dirListMap = hazelcastClient.getMap(dirListMapName);
+            for(String dirKey: dirKeys) {
+                dirListMap.delete(dirKey);
+                hierarchicalDatastore.invalidateDirectoryListing(dirKey);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Failed to remove outdated directory listings {}", dirKeys, e);
+        }
+    }
+
+    /**
+     * @return true if the operation should be attempted again
+     */
+    private boolean retryAfterFailure(int attempt, String operation, RuntimeException e) {
+        errorCounter.increment();
+        if(attempt >= maxAttempts) {
+            LOG.error("Failed to {} after {} attempts, giving up", operation, attempt, e);
+            return false;
+        }
+
+        LOG.warn("Failed to {}, will retry", operation, e);
+        try {
+            Thread.sleep(sleepBetweenAttemptsMs * attempt);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+}
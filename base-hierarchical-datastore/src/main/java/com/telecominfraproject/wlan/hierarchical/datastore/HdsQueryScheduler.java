@@ -0,0 +1,662 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
+
+/**
+ * Runs the tasks of HDS queries (listing of hourly directories, reading of data files, etc.) on a bounded pool of worker threads.
+ * <ul>
+ * <li>Every query has a concurrency budget - the maximum number of its tasks that run at the same time.
+ *      When many queries have work queued, the budget is reduced further to their fair share of the worker threads.
+ * <li>Queries are queued fairly between customers: workers go round-robin through the customers that have work queued,
+ *      and round-robin through the queries of each customer.
+ * <li>INTERACTIVE queries are served before BATCH ones, but every batchShareInterval-th task is given to a BATCH query so that they are not starved.
+ * <li>Queries can be cancelled from any thread - queued tasks are dropped and running tasks are interrupted.
+ * <li>Total number of queued tasks is bounded, queries that go over the limit are rejected right away instead of waiting for space in the queue.
+ * </ul>
+ * A query is bound to the thread that started it, and to the worker threads while they run its tasks -
+ * so that nested HDS calls made from the tasks (i.e. processDataFiles -> getContent) become part of the same query.
+ * A thread that waits for the result of a task of its query runs queued tasks of that query in the meantime,
+ * this way nested fan-outs cannot dead-lock when all the workers are busy waiting.
+ * <br>
+ * Callers that want to control priority or to cancel their queries wrap HDS calls like this:
+ * <pre>
+ *  try(HdsQueryScheduler.Query query = hds.getQueryScheduler().startQuery(customerId, Priority.BATCH)){
+ *      hds.getEntries(customerId, equipmentId, fromTime, toTime, ...);
+ *  }
+ * </pre>
+ * and call query.cancel() from another thread when the results are no longer needed.
+ * HDS calls made without a query create a short-lived INTERACTIVE one.
+ * <br>
+ * Metrics record the time tasks spend in the queue separately from the time they spend executing.
+ *
+ * @author dtop
+ *
+ */
+public class HdsQueryScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HdsQueryScheduler.class);
+
+    /**
+     * How often a thread that waits for the result of a task checks for new queued tasks of its query that it can help with
+     */
+    private static final long helpPollIntervalMs = 10;
+
+    public enum Priority {
+        INTERACTIVE,
+        BATCH
+    }
+
+    private final String name;
+    private final String servoMetricPrefix;
+    private final int maxWorkers;
+    private final int coreWorkers;
+    private final long workerKeepAliveMs;
+    private final int maxQueuedTasks;
+    private final int batchShareInterval;
+    private final int[] maxConcurrencyByPriority = new int[Priority.values().length];
+
+    private final ThreadLocal<Query> currentQuery = new ThreadLocal<>();
+    private final AtomicInteger thrCounter = new AtomicInteger();
+
+    //all the fields below are guarded by lock
+    private final Object lock = new Object();
+    private final Lane[] lanes = new Lane[Priority.values().length];
+    private int queuedTasks;
+    private int runnableQueries;
+    private int activeQueries;
+    private int workers;
+    private int idleWorkers;
+    private long dispatchCount;
+    private boolean shutdown;
+
+    /**
+     * @param name - used in thread names and log messages
+     * @param servoMetricPrefix - prefix for the metrics of this scheduler
+     * @param maxWorkers - maximum number of worker threads
+     * @param coreWorkers - number of worker threads that are kept even when they are idle
+     * @param workerKeepAliveMs - how long the worker threads above coreWorkers are kept idle before they exit
+     * @param maxQueuedTasks - maximum number of tasks waiting in the queue, for all queries together
+     * @param interactiveMaxConcurrency - concurrency budget of INTERACTIVE queries
+     * @param batchMaxConcurrency - concurrency budget of BATCH queries
+     * @param batchShareInterval - one out of every batchShareInterval tasks is taken from BATCH queries when INTERACTIVE queries have work queued.
+     *      Value of 0 serves BATCH queries only when there is nothing else to do.
+     */
+    public HdsQueryScheduler(String name, String servoMetricPrefix, int maxWorkers, int coreWorkers, long workerKeepAliveMs, int maxQueuedTasks,
+            int interactiveMaxConcurrency, int batchMaxConcurrency, int batchShareInterval) {
+        this.name = name;
+        this.servoMetricPrefix = servoMetricPrefix;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.coreWorkers = Math.max(0, Math.min(coreWorkers, this.maxWorkers));
+        this.workerKeepAliveMs = workerKeepAliveMs;
+        this.maxQueuedTasks = maxQueuedTasks;
+        this.batchShareInterval = batchShareInterval;
+        this.maxConcurrencyByPriority[Priority.INTERACTIVE.ordinal()] = Math.max(1, interactiveMaxConcurrency);
+        this.maxConcurrencyByPriority[Priority.BATCH.ordinal()] = Math.max(1, batchMaxConcurrency);
+
+        for(int i = 0; i < lanes.length; i++){
+            lanes[i] = new Lane();
+        }
+
+        synchronized (lock) {
+            for(int i = 0; i < this.coreWorkers; i++){
+                startWorker();
+            }
+        }
+
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"query-tasksInTheQueue",
+                new Callable<Long>(){
+            @Override
+            public Long call() throws Exception {
+                return (long) getQueuedTasks();
+            }
+        });
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"query-activeQueries",
+                new Callable<Long>(){
+            @Override
+            public Long call() throws Exception {
+                return (long) getActiveQueries();
+            }
+        });
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"query-workers",
+                new Callable<Long>(){
+            @Override
+            public Long call() throws Exception {
+                synchronized (lock) {
+                    return (long) workers;
+                }
+            }
+        });
+    }
+
+    /**
+     * Start a new query and bind it to the current thread. The query must be closed by the same thread.
+     * @param customerId - queries are queued fairly between customers
+     * @param priority
+     * @return new query
+     */
+    public Query startQuery(int customerId, Priority priority) {
+        return startQuery(customerId, priority, maxConcurrencyByPriority[priority.ordinal()]);
+    }
+
+    /**
+     * Start a new query and bind it to the current thread. The query must be closed by the same thread.
+     * @param customerId - queries are queued fairly between customers
+     * @param priority
+     * @param maxConcurrency - maximum number of tasks of this query that are allowed to run at the same time
+     * @return new query
+     */
+    public Query startQuery(int customerId, Priority priority, int maxConcurrency) {
+        Query query = newQuery(customerId, priority, maxConcurrency);
+        query.bindToCurrentThread();
+        return query;
+    }
+
+    /**
+     * Create a new query that is not bound to any thread - used by the callers that submit tasks from different threads over time (i.e. iterators).
+     * @param customerId
+     * @param priority
+     * @return new query
+     */
+    public Query newQuery(int customerId, Priority priority) {
+        return newQuery(customerId, priority, maxConcurrencyByPriority[priority.ordinal()]);
+    }
+
+    private Query newQuery(int customerId, Priority priority, int maxConcurrency) {
+        synchronized (lock) {
+            if(shutdown){
+                throw new GenericErrorException("HDS query scheduler "+name+" is shut down");
+            }
+            activeQueries++;
+        }
+
+        CloudMetricsUtils.getCounter(servoMetricPrefix + "query-" + priority.name().toLowerCase() + "-count").increment();
+
+        return new Query(customerId, priority, Math.max(1, maxConcurrency));
+    }
+
+    /**
+     * @return query bound to the current thread, or null if there is none
+     */
+    public Query getCurrentQuery() {
+        return currentQuery.get();
+    }
+
+    /**
+     * Join the query bound to the current thread, or start a new INTERACTIVE query if there is none.
+     * @param customerId
+     * @return scope that closes the query only if it was started by this call
+     */
+    public QueryScope joinOrStartQuery(int customerId) {
+        Query query = currentQuery.get();
+        if(query != null){
+            return new QueryScope(query, false);
+        }
+
+        return new QueryScope(startQuery(customerId, Priority.INTERACTIVE), true);
+    }
+
+    public int getQueuedTasks() {
+        synchronized (lock) {
+            return queuedTasks;
+        }
+    }
+
+    public int getActiveQueries() {
+        synchronized (lock) {
+            return activeQueries;
+        }
+    }
+
+    /**
+     * Stop all worker threads once they finish their current tasks. Tasks that are still in the queue will not be executed.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wrapper around a query, used by the methods that work either as a part of the caller's query or in their own query.
+     */
+    public static final class QueryScope implements AutoCloseable {
+        private final Query query;
+        private final boolean ownQuery;
+
+        QueryScope(Query query, boolean ownQuery) {
+            this.query = query;
+            this.ownQuery = ownQuery;
+        }
+
+        public Query getQuery() {
+            return query;
+        }
+
+        @Override
+        public void close() {
+            if(ownQuery){
+                query.close();
+            }
+        }
+    }
+
+    /**
+     * Unit of work of the scheduler.
+     */
+    public final class Query implements AutoCloseable {
+        private final int customerId;
+        private final Priority priority;
+        private final int maxConcurrency;
+
+        //guarded by the lock of the scheduler
+        private final ArrayDeque<QueryTask<?>> pendingTasks = new ArrayDeque<>();
+        private final Set<QueryTask<?>> runningTasks = new HashSet<>();
+        private boolean closed;
+
+        private volatile boolean cancelled;
+
+        private Thread boundThread;
+        private Query previouslyBoundQuery;
+
+        private Query(int customerId, Priority priority, int maxConcurrency) {
+            this.customerId = customerId;
+            this.priority = priority;
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        public int getCustomerId() {
+            return customerId;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Queue a task of this query.
+         * @param task
+         * @return future of the task
+         * @throws GenericErrorException if the query is cancelled or closed, or if the queue of the scheduler is full
+         */
+        public <V> Future<V> submit(Callable<V> task) {
+            QueryTask<V> queryTask = new QueryTask<>(this, task);
+
+            synchronized (lock) {
+                if(cancelled || closed){
+                    throw new GenericErrorException("Query of customer "+customerId+" is cancelled");
+                }
+
+                if(shutdown){
+                    throw new GenericErrorException("HDS query scheduler "+name+" is shut down");
+                }
+
+                if(queuedTasks >= maxQueuedTasks){
+                    CloudMetricsUtils.getCounter(servoMetricPrefix + "query-rejected-count").increment();
+                    LOG.warn("HDS query scheduler {} is saturated: {} tasks in the queue, rejecting task of customer {}", name, queuedTasks, customerId);
+                    throw new GenericErrorException("HDS query scheduler "+name+" is saturated, too many tasks in the queue");
+                }
+
+                if(pendingTasks.isEmpty()){
+                    lanes[priority.ordinal()].addQuery(this);
+                    runnableQueries++;
+                }
+
+                pendingTasks.add(queryTask);
+                queuedTasks++;
+
+                if(idleWorkers > 0){
+                    lock.notify();
+                } else if(workers < maxWorkers){
+                    startWorker();
+                }
+            }
+
+            return queryTask;
+        }
+
+        /**
+         * Wait for the result of a task of this query.
+         * While waiting, the current thread runs queued tasks of this query, starting with the one it waits for.
+         * @param future - future returned by submit()
+         * @return result of the task
+         * @throws InterruptedException
+         * @throws ExecutionException - if the task failed
+         * @throws GenericErrorException - if the query or the task was cancelled
+         */
+        public <V> V waitFor(Future<V> future) throws InterruptedException, ExecutionException {
+            try{
+                while(!future.isDone()){
+                    QueryTask<?> task = takeTaskToHelpWith(future);
+                    if(task != null){
+                        runTask(task, false);
+                        continue;
+                    }
+
+                    try {
+                        return future.get(helpPollIntervalMs, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        //keep helping
+                    }
+                }
+
+                return future.get();
+            } catch (CancellationException e) {
+                throw new GenericErrorException("Query of customer "+customerId+" is cancelled", e);
+            }
+        }
+
+        private QueryTask<?> takeTaskToHelpWith(Future<?> future) {
+            synchronized (lock) {
+                if(pendingTasks.isEmpty()){
+                    return null;
+                }
+
+                QueryTask<?> task = pendingTasks.remove(future) ? (QueryTask<?>) future : pendingTasks.poll();
+                taskTaken(this, task);
+                return task;
+            }
+        }
+
+        /**
+         * Cancel this query: queued tasks are dropped, running tasks are interrupted, new tasks are rejected.
+         * Can be called from any thread.
+         */
+        public void cancel() {
+            if(cancelled){
+                return;
+            }
+
+            cancelled = true;
+            int numCancelled = cancelOutstandingTasks();
+
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "query-cancelled-count").increment();
+            LOG.debug("Cancelled query of customer {} with {} outstanding tasks", customerId, numCancelled);
+        }
+
+        /**
+         * Finish this query, tasks that are still outstanding are cancelled.
+         * If the query is bound to the current thread, the query that was bound to it before is restored.
+         */
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if(closed){
+                    return;
+                }
+                closed = true;
+                activeQueries--;
+            }
+
+            cancelOutstandingTasks();
+
+            if(boundThread == Thread.currentThread()){
+                setCurrentQuery(previouslyBoundQuery);
+                boundThread = null;
+            }
+        }
+
+        private int cancelOutstandingTasks() {
+            List<QueryTask<?>> tasks;
+            synchronized (lock) {
+                tasks = new ArrayList<>(pendingTasks.size() + runningTasks.size());
+                tasks.addAll(pendingTasks);
+                tasks.addAll(runningTasks);
+            }
+
+            for(QueryTask<?> task: tasks){
+                task.cancel(true);
+            }
+
+            return tasks.size();
+        }
+
+        private void bindToCurrentThread() {
+            boundThread = Thread.currentThread();
+            previouslyBoundQuery = currentQuery.get();
+            currentQuery.set(this);
+        }
+
+        @Override
+        public String toString() {
+            return "Query(customerId=" + customerId + ", priority=" + priority + ", maxConcurrency=" + maxConcurrency + ")";
+        }
+    }
+
+    private final class QueryTask<V> extends FutureTask<V> {
+        private final Query query;
+        private final long queuedTimeNs = System.nanoTime();
+
+        QueryTask(Query query, Callable<V> callable) {
+            super(callable);
+            this.query = query;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean ret = super.cancel(mayInterruptIfRunning);
+            if(ret){
+                //do not keep cancelled tasks in the queue
+                synchronized (lock) {
+                    if(query.pendingTasks.remove(this)){
+                        taskTaken(query, this);
+                        query.runningTasks.remove(this);
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Set of queries of the same priority that have queued tasks, grouped by customer.
+     */
+    private static final class Lane {
+        private final Map<Integer, ArrayDeque<Query>> queriesByCustomer = new HashMap<>();
+        private final ArrayDeque<Integer> customerRing = new ArrayDeque<>();
+
+        void addQuery(Query query) {
+            ArrayDeque<Query> queries = queriesByCustomer.get(query.customerId);
+            if(queries == null){
+                queries = new ArrayDeque<>();
+                queriesByCustomer.put(query.customerId, queries);
+                customerRing.add(query.customerId);
+            }
+            queries.add(query);
+        }
+
+        void removeQuery(Query query) {
+            ArrayDeque<Query> queries = queriesByCustomer.get(query.customerId);
+            if(queries != null && queries.remove(query) && queries.isEmpty()){
+                queriesByCustomer.remove(query.customerId);
+                customerRing.remove(query.customerId);
+            }
+        }
+
+        /**
+         * Round-robin through the customers, and through the queries of each customer.
+         * @param fairShare - maximum number of running tasks per query, in addition to the budget of the query
+         * @return next query that has queued tasks and is within its budget, or null if there is none
+         */
+        Query nextQuery(int fairShare) {
+            int numCustomers = customerRing.size();
+            for(int i = 0; i < numCustomers; i++){
+                Integer customerId = customerRing.poll();
+                customerRing.add(customerId);
+
+                ArrayDeque<Query> queries = queriesByCustomer.get(customerId);
+                int numQueries = queries.size();
+                for(int j = 0; j < numQueries; j++){
+                    Query query = queries.poll();
+                    queries.add(query);
+                    if(query.runningTasks.size() < Math.min(query.maxConcurrency, fairShare)){
+                        return query;
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Must be called under lock
+     */
+    private void taskTaken(Query query, QueryTask<?> task) {
+        queuedTasks--;
+        query.runningTasks.add(task);
+        if(query.pendingTasks.isEmpty()){
+            lanes[query.priority.ordinal()].removeQuery(query);
+            runnableQueries--;
+        }
+    }
+
+    /**
+     * Must be called under lock
+     * @return next task to run, or null if no task can be run right now
+     */
+    private QueryTask<?> nextTask() {
+        if(queuedTasks == 0){
+            return null;
+        }
+
+        int fairShare = Math.max(1, maxWorkers / Math.max(1, runnableQueries));
+
+        Lane interactive = lanes[Priority.INTERACTIVE.ordinal()];
+        Lane batch = lanes[Priority.BATCH.ordinal()];
+        boolean batchTurn = batchShareInterval > 0 && dispatchCount % batchShareInterval == batchShareInterval - 1;
+
+        Query query = batchTurn ? batch.nextQuery(fairShare) : null;
+        if(query == null){
+            query = interactive.nextQuery(fairShare);
+        }
+        if(query == null && !batchTurn){
+            query = batch.nextQuery(fairShare);
+        }
+
+        if(query == null){
+            return null;
+        }
+
+        dispatchCount++;
+        QueryTask<?> task = query.pendingTasks.poll();
+        taskTaken(query, task);
+        return task;
+    }
+
+    /**
+     * Must be called under lock
+     */
+    private void startWorker() {
+        workers++;
+        Thread thr = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, name + "-hdsQueryWorker-" + System.currentTimeMillis() + "-" + thrCounter.incrementAndGet());
+        thr.setDaemon(true);
+        thr.start();
+    }
+
+    private void runWorker() {
+        while(true){
+            QueryTask<?> task;
+            synchronized (lock) {
+                task = nextTask();
+                while(task == null){
+                    if(shutdown){
+                        workers--;
+                        return;
+                    }
+
+                    long waitStartMs = System.currentTimeMillis();
+                    idleWorkers++;
+                    try {
+                        lock.wait(workerKeepAliveMs);
+                    } catch (InterruptedException e) {
+                        //interrupts of the workers come from cancelled tasks, ignore them
+                    } finally {
+                        idleWorkers--;
+                    }
+
+                    task = nextTask();
+                    if(task == null && !shutdown && workers > coreWorkers && System.currentTimeMillis() - waitStartMs >= workerKeepAliveMs){
+                        workers--;
+                        return;
+                    }
+                }
+            }
+
+            runTask(task, true);
+        }
+    }
+
+    private void runTask(QueryTask<?> task, boolean inWorker) {
+        Query query = task.query;
+        Query previousQuery = currentQuery.get();
+        currentQuery.set(query);
+
+        long startTimeNs = System.nanoTime();
+        CloudMetricsUtils.getTimer(servoMetricPrefix + "query-" + query.priority.name().toLowerCase() + "-queueWait-timer")
+            .record(startTimeNs - task.queuedTimeNs, TimeUnit.NANOSECONDS);
+
+        try{
+            task.run();
+        } finally {
+            CloudMetricsUtils.getTimer(servoMetricPrefix + "query-execution-timer").record(System.nanoTime() - startTimeNs, TimeUnit.NANOSECONDS);
+
+            setCurrentQuery(previousQuery);
+
+            synchronized (lock) {
+                query.runningTasks.remove(task);
+                //the query may be within its budget again
+                if(idleWorkers > 0 && queuedTasks > 0){
+                    lock.notify();
+                }
+            }
+
+            if(inWorker || task.isCancelled()){
+                //clear interrupt that may have come from cancellation of the task
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private void setCurrentQuery(Query query) {
+        if(query == null){
+            currentQuery.remove();
+        } else {
+            currentQuery.set(query);
+        }
+    }
+
+}
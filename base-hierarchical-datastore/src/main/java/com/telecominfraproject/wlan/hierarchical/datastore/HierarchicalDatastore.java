@@ -2,18 +2,19 @@ package com.telecominfraproject.wlan.hierarchical.datastore;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
@@ -24,16 +25,17 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -52,11 +54,19 @@ import com.telecominfraproject.wlan.core.model.filter.EntryFilter;
 import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
 import com.telecominfraproject.wlan.hazelcast.common.AppendStringToSetEntryProcessor;
 import com.telecominfraproject.wlan.hazelcast.common.HazelcastObjectsConfiguration;
+import com.telecominfraproject.wlan.hierarchical.datastore.backend.DatastoreBackend;
+import com.telecominfraproject.wlan.hierarchical.datastore.backend.LocalFileDatastoreBackend;
+import com.telecominfraproject.wlan.hierarchical.datastore.backend.S3DatastoreBackend;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.BinaryRecordIndex;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.BinaryRecordIndexCache;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.DirectoryIndex;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.HourlySummary;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndex;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexCounts;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexPositions;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexValueExtractor;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordSummaryExtractor;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.SummaryStats;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.aggregator.HourlyIndexAggregatorHazelcastScalable;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.registry.RecordIndexRegistry;
 import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
@@ -71,10 +81,53 @@ public class HierarchicalDatastore{
 
     private static final int hdsRequestExecutorThreads = Integer.getInteger("tip.wlan.hdsExecutorThreads", 300);
     private static final int hdsRequestExecutorCoreThreadsFactor = Integer.getInteger("tip.wlan.hdsExecutorCoreThreadsFactor", 10);
-    private static final int hdsRequestExecutorQueueSize = Integer.getInteger("tip.wlan.hdsExecutorQueueSize", 5000);
+    /**
+     * Maximum number of tasks waiting in the queue of the HDS query scheduler, for all queries together. See {@link HdsQueryScheduler}
+     */
+    private static final int hdsRequestExecutorQueueSize = Integer.getInteger("tip.wlan.hdsExecutorQueueSize", 20000);
+    /**
+     * Concurrency budgets of the queries, and the share of the worker threads that goes to batch queries when interactive ones have work queued.
+     */
+    private static final int hdsQueryMaxConcurrency = Integer.getInteger("tip.wlan.hdsQueryMaxConcurrency", 32);
+    private static final int hdsBatchQueryMaxConcurrency = Integer.getInteger("tip.wlan.hdsBatchQueryMaxConcurrency", 8);
+    private static final int hdsQueryBatchShareInterval = Integer.getInteger("tip.wlan.hdsQueryBatchShareInterval", 5);
+    /**
+     * Number of records in each independently compressed block of a data file. See {@link DataFileBlocks}
+     */
+    private static final int hdsRecordsPerDataFileBlock = Math.max(1, Integer.getInteger("tip.wlan.hdsRecordsPerDataFileBlock", 500));
+    /**
+     * Maximum number of data files that are read ahead of the consumer by the EntryIterator
+     */
+    private static final int hdsEntryIteratorReadAheadFiles = Integer.getInteger("tip.wlan.hdsEntryIteratorReadAheadFiles", 8);
+    /**
+     * Settings for the local cache of hourly directory listings. See {@link DirectoryListingCache}<br>
+     * Listings of open hours are not cached locally by default: data files in those hours are appended by writers in other processes, 
+     * and only the directory listings map in hazelcast sees all of them.
+     */
+    private static final int hdsDirListingCacheSize = Integer.getInteger("tip.wlan.hdsDirListingCacheSize", 50000);
+    private static final int hdsDirListingCacheOpenHourTtlMs = Integer.getInteger("tip.wlan.hdsDirListingCacheOpenHourTtlMs", 0);
+    private static final int hdsDirListingCacheEmptyListingTtlMs = Integer.getInteger("tip.wlan.hdsDirListingCacheEmptyListingTtlMs", 60000);
+    /**
+     * Settings for the local cache of the content of recent data files. See {@link HotDataFileCache}<br>
+     * Value of 0 for the size disables the cache.
+     */
+    private static final int hdsHotDataCacheMaxBytes = Integer.getInteger("tip.wlan.hdsHotDataCacheMaxBytes", 64 * 1024 * 1024);
+    private static final int hdsHotDataCacheMaxAgeMinutes = Integer.getInteger("tip.wlan.hdsHotDataCacheMaxAgeMinutes", 120);
+    /**
+     * Settings for the cache of the opened binary record indexes, shared by all the datastores in the process. See {@link BinaryRecordIndexCache}<br>
+     * Value of 0 for the number of entries disables the cache.
+     */
+    private static final int hdsBinaryIndexCacheMaxEntries = Integer.getInteger("tip.wlan.hdsBinaryIndexCacheMaxEntries", 4096);
+    private static final long hdsBinaryIndexCacheMaxBytes = Long.getLong("tip.wlan.hdsBinaryIndexCacheMaxBytes", 128L * 1024 * 1024);
+    private static final BinaryRecordIndexCache binaryRecordIndexCache = new BinaryRecordIndexCache(hdsBinaryIndexCacheMaxEntries, hdsBinaryIndexCacheMaxBytes);
+    /**
+     * Settings for the background publication of record indexes and directory listings of the new data files. See {@link HazelcastIndexPublisher}<br>
+     * Value of 0 for the batch size makes writers publish them synchronously, one data file at a time.
+     */
+    private static final int hdsIndexPublishBatchSize = Integer.getInteger("tip.wlan.hdsIndexPublishBatchSize", 500);
+    private static final int hdsIndexPublishQueueSize = Integer.getInteger("tip.wlan.hdsIndexPublishQueueSize", 20000);
+    private static final int hdsIndexPublishLingerMs = Integer.getInteger("tip.wlan.hdsIndexPublishLingerMs", 20);
 
-    private final int maxRetries = 100;
-    private final long sleepBetweenRetriesMs = 100;
     private final long idleTimeoutBeforeFlushingMs;
 
     private final int numberOfMinutesPerFile;
@@ -85,77 +138,84 @@ public class HierarchicalDatastore{
 
     private HazelcastInstance hazelcastClient;
     private final String dsRootDirName;
+    private final DatastoreBackend backend;
     private final String dsPrefix;
     private final String fileNamePrefix;
     private final String servoMetricPrefix;
     private final String hazelcastMapPrefix;
     private final String hdsCreationTimestampFileMapPrefix;
-    private final AtomicInteger thrCounter = new AtomicInteger();
 
     private final HazelcastObjectsConfiguration hazelcastObjectsConfiguration;
 
     private final RecordIndexRegistry recordIndexRegistry;
     private final Map<String, RecordIndexValueExtractor> recordIndexes;
 
-    private final ThreadPoolExecutor hdsGetFileNamesExecutor = new ThreadPoolExecutor(
-            Math.round((float)hdsRequestExecutorThreads/hdsRequestExecutorCoreThreadsFactor), 
-            hdsRequestExecutorThreads,
-            10000L, TimeUnit.MILLISECONDS,
-            new ArrayBlockingQueue<>(hdsRequestExecutorQueueSize),
-            new ThreadFactory(){
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread thr = new Thread(r, dsRootDirName + "-" + dsPrefix +"-" + fileNamePrefix + "-hdsGetFileNamesExecutor-"+System.currentTimeMillis());
-                    thr.setDaemon(true);
-                    return thr;
-                }
-            });
+    private final DirectoryListingCache directoryListingCache = new DirectoryListingCache(hdsDirListingCacheSize, 
+            hdsDirListingCacheOpenHourTtlMs, hdsDirListingCacheEmptyListingTtlMs);
 
-    private final ThreadPoolExecutor hdsProcessFilesExecutor = new ThreadPoolExecutor(
-            Math.round((float)hdsRequestExecutorThreads/hdsRequestExecutorCoreThreadsFactor), 
-            hdsRequestExecutorThreads,
-            10000L, TimeUnit.MILLISECONDS,
-            new ArrayBlockingQueue<>(hdsRequestExecutorQueueSize),
-            new ThreadFactory(){
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread thr = new Thread(r, dsRootDirName + "-" + dsPrefix +"-" + fileNamePrefix + "-hdsProcessFilesExecutor-"+System.currentTimeMillis()+"-"+thrCounter.incrementAndGet());
-                    thr.setDaemon(true);
-                    return thr;
-                }
-            });
+    private final HotDataFileCache hotDataFileCache = new HotDataFileCache(hdsHotDataCacheMaxBytes, 
+            TimeUnit.MINUTES.toMillis(hdsHotDataCacheMaxAgeMinutes));
 
-    private final ThreadPoolExecutor hdsGetEntriesExecutor = new ThreadPoolExecutor(
-            Math.round((float)hdsRequestExecutorThreads/hdsRequestExecutorCoreThreadsFactor), 
-            hdsRequestExecutorThreads,
-            10000L, TimeUnit.MILLISECONDS,
-            new ArrayBlockingQueue<>(hdsRequestExecutorQueueSize),
-            new ThreadFactory(){
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread thr = new Thread(r, dsRootDirName + "-" + dsPrefix +"-" + fileNamePrefix + "-hdsGetEntriesExecutor-"+System.currentTimeMillis());
-                    thr.setDaemon(true);
-                    return thr;
-                }
-            });
+    private final HdsQueryScheduler queryScheduler;
 
-    private final ThreadPoolExecutor hdsGetContentExecutor = new ThreadPoolExecutor(
-            Math.round((float)hdsRequestExecutorThreads/hdsRequestExecutorCoreThreadsFactor), 
-            hdsRequestExecutorThreads,
-            10000L, TimeUnit.MILLISECONDS,
-            new ArrayBlockingQueue<>(hdsRequestExecutorQueueSize),
-            new ThreadFactory(){
-                @Override
-                public Thread newThread(Runnable r) {
-                    Thread thr = new Thread(r, dsRootDirName + "-" + dsPrefix +"-" + fileNamePrefix + "-hdsGetContentExecutor-"+System.currentTimeMillis()+"-"+thrCounter.incrementAndGet());
-                    thr.setDaemon(true);
-                    return thr;
-                }
-            });
+    /**
+     * null when hazelcast client is not configured, or when background publication is disabled
+     */
+    private final HazelcastIndexPublisher indexPublisher;
 
+    /**
+     * Datastore with the backend selected by the system property tip.wlan.hdsBackend, see {@link #createBackend(String)}
+     */
     public HierarchicalDatastore(String dsRootDirName, String dsPrefix, String fileNamePrefix, int numberOfMinutesPerFile, long idleTimeoutBeforeFlushingMs,
             HazelcastInstance hazelcastClient, String hazelcastMapPrefix, HazelcastObjectsConfiguration hazelcastObjectsConfiguration, RecordIndexRegistry recordIndexRegistry){
+        this(dsRootDirName, createBackend(dsRootDirName), dsPrefix, fileNamePrefix, numberOfMinutesPerFile, idleTimeoutBeforeFlushingMs,
+                hazelcastClient, hazelcastMapPrefix, hazelcastObjectsConfiguration, recordIndexRegistry);
+    }
+
+    /**
+     * Backend is selected by the system property tip.wlan.hdsBackend:
+     * <ul>
+     * <li>local (default) - files under the local directory dsRootDirName
+     * <li>s3 - objects in the S3 compatible object store, configured by the properties 
+     *  tip.wlan.hdsS3Endpoint (required), tip.wlan.hdsS3Region (default us-east-1), tip.wlan.hdsS3Bucket (default dsRootDirName),
+     *  tip.wlan.hdsS3AccessKey, tip.wlan.hdsS3SecretKey and tip.wlan.hdsS3PartSizeBytes
+     * </ul>
+     * @param dsRootDirName
+     * @return backend for the datastore
+     */
+    public static DatastoreBackend createBackend(String dsRootDirName) {
+        String backendType = System.getProperty("tip.wlan.hdsBackend", "local");
+
+        switch(backendType) {
+        case "local":
+            return new LocalFileDatastoreBackend(dsRootDirName);
+        case "s3":
+            String endpoint = System.getProperty("tip.wlan.hdsS3Endpoint");
+            if(endpoint == null || endpoint.isEmpty()) {
+                throw new IllegalArgumentException("tip.wlan.hdsS3Endpoint is required for the s3 backend of HDS " + dsRootDirName);
+            }
+
+            S3DatastoreBackend ret = new S3DatastoreBackend(endpoint, 
+                    System.getProperty("tip.wlan.hdsS3Region", "us-east-1"),
+                    System.getProperty("tip.wlan.hdsS3Bucket", dsRootDirName),
+                    System.getProperty("tip.wlan.hdsS3AccessKey"),
+                    System.getProperty("tip.wlan.hdsS3SecretKey"),
+                    Integer.getInteger("tip.wlan.hdsS3PartSizeBytes", S3DatastoreBackend.DEFAULT_PART_SIZE_BYTES));
+            LOG.info("Using backend {} for HDS {}", ret, dsRootDirName);
+            return ret;
+        default:
+            throw new IllegalArgumentException("Unsupported value of tip.wlan.hdsBackend: " + backendType);
+        }
+    }
+
+    /**
+     * @param dsRootDirName - name of the datastore root, used as a local directory by the hourly index aggregator and in metric and thread names
+     * @param backend - storage for data files, index files and models of this datastore
+     */
+    public HierarchicalDatastore(String dsRootDirName, DatastoreBackend backend, String dsPrefix, String fileNamePrefix, int numberOfMinutesPerFile, long idleTimeoutBeforeFlushingMs,
+            HazelcastInstance hazelcastClient, String hazelcastMapPrefix, HazelcastObjectsConfiguration hazelcastObjectsConfiguration, RecordIndexRegistry recordIndexRegistry){
         this.dsRootDirName = dsRootDirName;
+        this.backend = backend;
         this.dsPrefix = dsPrefix;
         this.fileNamePrefix = fileNamePrefix;
         this.numberOfMinutesPerFile = numberOfMinutesPerFile;
@@ -168,43 +228,56 @@ public class HierarchicalDatastore{
         this.recordIndexRegistry = recordIndexRegistry;
         this.recordIndexes = recordIndexRegistry.getIndexMap(fileNamePrefix);
 
-        this.hdsGetFileNamesExecutor.prestartAllCoreThreads();
-        this.hdsGetContentExecutor.prestartAllCoreThreads();
-        this.hdsGetEntriesExecutor.prestartAllCoreThreads();
-        this.hdsProcessFilesExecutor.prestartAllCoreThreads();
+        this.queryScheduler = new HdsQueryScheduler(dsRootDirName + "-" + dsPrefix +"-" + fileNamePrefix, servoMetricPrefix,
+                hdsRequestExecutorThreads, Math.round((float)hdsRequestExecutorThreads/hdsRequestExecutorCoreThreadsFactor), 10000L,
+                hdsRequestExecutorQueueSize, hdsQueryMaxConcurrency, hdsBatchQueryMaxConcurrency, hdsQueryBatchShareInterval);
+
+        if(hazelcastClient != null && hazelcastObjectsConfiguration != null && hdsIndexPublishBatchSize > 0) {
+            this.indexPublisher = new HazelcastIndexPublisher(dsRootDirName + "-" + dsPrefix +"-" + fileNamePrefix, servoMetricPrefix, this, hazelcastClient,
+                    hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName(), hdsIndexPublishQueueSize, hdsIndexPublishBatchSize, hdsIndexPublishLingerMs);
+        } else {
+            this.indexPublisher = null;
+        }
         
-        File rootDir = new File(dsRootDirName + File.separator + dsPrefix);
-        if(!rootDir.exists()) {
+        File rootDir = backend.getLocalFile(dsPrefix);
+        if(rootDir != null && !rootDir.exists()) {
         	LOG.info("Creating datastore root dir {}", rootDir.getAbsoluteFile());
         	rootDir.mkdirs();
         }
 
-        CloudMetricsUtils.registerGauge(servoMetricPrefix+"getFileNames-tasksInTheQueue", 
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"dirListingCache-size", 
                 new Callable<Long>(){
             @Override
             public Long call() throws Exception {
-                return (long) hdsGetFileNamesExecutor.getQueue().size();
+                return (long) directoryListingCache.size();
             }
         });
-        CloudMetricsUtils.registerGauge(servoMetricPrefix+"getContent-tasksInTheQueue", 
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"hotDataCache-size", 
                 new Callable<Long>(){
             @Override
             public Long call() throws Exception {
-                return (long) hdsGetContentExecutor.getQueue().size();
+                return (long) hotDataFileCache.size();
             }
         });
-        CloudMetricsUtils.registerGauge(servoMetricPrefix+"getEntries-tasksInTheQueue", 
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"hotDataCache-bytes", 
                 new Callable<Long>(){
             @Override
             public Long call() throws Exception {
-                return (long) hdsGetEntriesExecutor.getQueue().size();
+                return hotDataFileCache.getTotalBytes();
             }
         });
-        CloudMetricsUtils.registerGauge(servoMetricPrefix+"processFiles-tasksInTheQueue", 
+        CloudMetricsUtils.registerGauge("hds-binaryIndexCache-size", 
                 new Callable<Long>(){
             @Override
             public Long call() throws Exception {
-                return (long) hdsProcessFilesExecutor.getQueue().size();
+                return (long) binaryRecordIndexCache.size();
+            }
+        });
+        CloudMetricsUtils.registerGauge("hds-binaryIndexCache-bytes", 
+                new Callable<Long>(){
+            @Override
+            public Long call() throws Exception {
+                return binaryRecordIndexCache.getTotalBytes();
             }
         });
 
@@ -235,6 +308,18 @@ public class HierarchicalDatastore{
         return numberOfMinutesPerFile;
     }
 
+    public int getRecordsPerDataFileBlock() {
+        return hdsRecordsPerDataFileBlock;
+    }
+
+    /**
+     * @return scheduler that runs the tasks of the queries of this datastore. 
+     *  Callers can use it to start queries with BATCH priority, or queries that can be cancelled from another thread.
+     */
+    public HdsQueryScheduler getQueryScheduler() {
+        return queryScheduler;
+    }
+
     
     public List<String> getFileNames(int customerId, long equipmentId, long fromTime, long toTime){
         return getFileNames_ListRequestPerHour(customerId, equipmentId, fromTime, toTime);
@@ -278,180 +363,91 @@ public class HierarchicalDatastore{
         Calendar toCalendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
         toCalendar.setTime(new Date(toTime));
 
-        List<Future<List<String>>> futures = new ArrayList<>(100);
+        List<Callable<List<String>>> tasks = new ArrayList<>(100);
 
         //generate list of files based on supplied criteria
         while(fromCalendar.before(toCalendar) || fromCalendar.equals(toCalendar)){
 
-            //Get a list of files to retrieve data from
-            int numRetries = 0;
             //get the list of files for each interval
-            while(true){
-                try{
-                    LOG.trace("submitting getFileCreatedTimestampsForInterval task - attempt {}", numRetries);
-
-                    final int year = fromCalendar.get(Calendar.YEAR);
-                    final int month = fromCalendar.get(Calendar.MONTH) + 1;
-                    final int day = fromCalendar.get(Calendar.DAY_OF_MONTH);
-                    final int hour = fromCalendar.get(Calendar.HOUR_OF_DAY); 
-                    final long fromCalendarMillis = fromCalendar.getTimeInMillis();
+            final int year = fromCalendar.get(Calendar.YEAR);
+            final int month = fromCalendar.get(Calendar.MONTH) + 1;
+            final int day = fromCalendar.get(Calendar.DAY_OF_MONTH);
+            final int hour = fromCalendar.get(Calendar.HOUR_OF_DAY); 
+            final long fromCalendarMillis = fromCalendar.getTimeInMillis();
 
-                    futures.add(hdsGetFileNamesExecutor.submit(new Callable<List<String>>(){
-                        @Override
-                        public List<String> call() throws Exception {
-                            
-                            IMap<String, Set<String>> dirListMap = null;
-                            String dirKey = null;
-                            Set<String> allFileNames = new HashSet<>();
-                            
-                            if(hazelcastClient!=null){
-                                //try to find directory listing for this hour in hazelcast map dir-list<dirName,Set<fileName>>
-                                dirListMap = hazelcastClient.getMap(hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
-
-                                //calculate directory name for the current hour based on passed in parameters
-                                StringBuilder sb = new StringBuilder(1024);
-                                Formatter formatter = new Formatter(sb, null);
-                                formatter.format("%s/%d/%d/%4d/%02d/%02d/%02d/",
-                                        dsPrefix, customerId, equipmentId, year, month, day, hour);                                
-                                formatter.close();
-
-                                dirKey = sb.toString();
-                                
-                                Set<String> fNames = dirListMap.get(dirKey);
-                                if(fNames!=null){
-                                    //we need full file names in the result, so prepend directory name to each file name
-                                    for(String fName: fNames){
-                                        allFileNames.add(dirKey+fName);
-                                    }
+            tasks.add(new Callable<List<String>>(){
+                @Override
+                public List<String> call() throws Exception {
+                    
+                    IMap<String, Set<String>> dirListMap = null;
+                    String dirKey = getHourlyDirectoryName(customerId, equipmentId, year, month, day, hour);
+                    long listingTimeMs = System.currentTimeMillis();
+                    long listingGeneration = directoryListingCache.getGeneration(dirKey);
+
+                    //first look into the local cache of directory listings, it also remembers hours that have no data
+                    Set<String> allFileNames = directoryListingCache.get(dirKey, listingTimeMs);
+
+                    if(allFileNames!=null){
+                        CloudMetricsUtils.getCounter(servoMetricPrefix + "dirListingCacheHit-count").increment();
+                    } else {
+                        CloudMetricsUtils.getCounter(servoMetricPrefix + "dirListingCacheMiss-count").increment();
+                        allFileNames = new HashSet<>();
+
+                        if(hazelcastClient!=null){
+                            //try to find directory listing for this hour in hazelcast map dir-list<dirName,Set<fileName>>
+                            dirListMap = hazelcastClient.getMap(hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
+
+                            Set<String> fNames = dirListMap.get(dirKey);
+                            if(fNames!=null){
+                                //we need full file names in the result, so prepend directory name to each file name
+                                for(String fName: fNames){
+                                    allFileNames.add(dirKey+fName);
                                 }
-                                
                             }
-                            
-                            if(allFileNames.isEmpty()){
-                                
-                                boolean lockAcquired = false;
-                                try{
-                                    //lock entry in dir-list map in Hazelcast, so only one list request is processed per directory at a time
-                                    if((hazelcastClient!=null && dirListMap.tryLock(dirKey, 
-                                            hdsDirMapTimeToWaitForLockMs, TimeUnit.MILLISECONDS, 
-                                            hdsDirMapLeaseTimeForLockMs, TimeUnit.MILLISECONDS))
-                                            || (hazelcastClient==null)
-                                            ){
-                                        lockAcquired = hazelcastClient!=null;
-
-                                        //after acquiring lock - make sure that entry in map exists, and only if it does not exist call getFileNamesForOneHour
-                                        if(hazelcastClient!=null){
-                                            Set<String> fNames = dirListMap.get(dirKey);
-                                            if(fNames!=null){
-                                                //we need full file names in the result, so prepend directory name to each file name
-                                                for(String fName: fNames){
-                                                    allFileNames.add(dirKey+fName);
-                                                }
-                                            }
-                                        }
-
-                                        
-                                        if(allFileNames.isEmpty()){
-                                            //hazelcast listing not found, get full listing of the files for that hour
-                                            allFileNames = getFileNamesForOneHour(customerId, equipmentId, fromCalendarMillis,"");
-        
-                                            if(hazelcastClient!=null){
-                                                //store directory listing for this hour in hazelcast for future requests
-                                                Set<String> fNames = new HashSet<>();
-                                                if(allFileNames!=null){
-                                                    for(String fName: allFileNames){
-                                                        //we store only the file name in the set, directory is stored as a key in the map
-                                                        fNames.add(fName.substring(fName.lastIndexOf('/')+1));
-                                                    }
-                                                    
-                                                    dirListMap.put(dirKey, fNames);
-                                                }
-                                            }
-                                        }
-                                    } else {
-                                        LOG.warn("Could not acquire lock for {}:{} ", hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName(), dirKey);
-                                        throw new GenericErrorException("Could not aqcuire lock for " + hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName() + ":"+ dirKey);
-                                    }
-                                }catch(InterruptedException e){
-                                    LOG.warn("Interrupted while waiting to lock {} map", hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
-                                    Thread.currentThread().interrupt();
-                                }finally {
-                                    if(lockAcquired){                                        
-                                        try{
-                                            dirListMap.unlock(dirKey);
-                                        }catch(IllegalMonitorStateException e){
-                                            LOG.warn("Distributed Lock management for {}:{} ", hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName(), dirKey, e);
-                                        }
-                                        
-                                    }
-                                }
 
-                            }
-                            
-                            //for this particular request include only those files that match filePrefix and fall within requested from-to range
-                            List<String> fNames;
-                            
-                            if (allFileNames == null) {
-                                fNames = Collections.emptyList();
-                            } else {
-                                fNames = new ArrayList<>(allFileNames.size());
-                                for (String fName : allFileNames) {
-                                    if (fName.substring(fName.lastIndexOf('/') + 1).startsWith(fileNamePrefix)) {
-                                        long fileTime = DirectoryIndex.extractTimeFromTheDataFileName(fName);
-                                        if (fileTime >= adjustedFromTime && fileTime <= adjustedToTime) {
-                                            fNames.add(fName);
-                                        }
-                                    }
-                                }
-                            }
+                        }
 
-                            LOG.trace("Found {} files in directory {}", fNames.size(), dirKey);
-                            
-                            return fNames;
+                        if(allFileNames.isEmpty()){
+                            allFileNames = getFileNamesForOneHourUnderLock(customerId, equipmentId, fromCalendarMillis, dirKey, dirListMap);
                         }
 
-                    }));
-                    break;
-                }catch(RejectedExecutionException e){
-                    LOG.trace("getFileNames_ListRequestPerHour for customer {} equipment {} from {} to {} - rejected execution, will retry", customerId, equipmentId, fromTime, toTime);
-
-                    //could not submit task, will retry
-                    try {
-                        Thread.sleep(sleepBetweenRetriesMs);
-                    } catch (InterruptedException e1) {
-                        //do nothing
-                        Thread.currentThread().interrupt();
+                        if(!Thread.currentThread().isInterrupted()){
+                            directoryListingCache.put(dirKey, allFileNames, isClosedHour(fromCalendarMillis, listingTimeMs), 
+                                    listingTimeMs, listingGeneration);
+                        }
                     }
-
-                    numRetries++;
-
-                    if(numRetries> maxRetries){
-                        LOG.error("getFileNames_ListRequestPerHour for customer {} equipment {} from {} to {} could not complete after {} retries", 
-                                customerId, equipmentId, fromTime, toTime, maxRetries);
-                        throw new GenericErrorException("Could not get list of files after "+maxRetries+" retries");
+                    
+                    //for this particular request include only those files that match filePrefix and fall within requested from-to range
+                    List<String> fNames;
+                    
+                    if (allFileNames == null) {
+                        fNames = Collections.emptyList();
+                    } else {
+                        fNames = new ArrayList<>(allFileNames.size());
+                        for (String fName : allFileNames) {
+                            if (fName.substring(fName.lastIndexOf('/') + 1).startsWith(fileNamePrefix)) {
+                                long fileTime = DirectoryIndex.extractTimeFromTheDataFileName(fName);
+                                if (fileTime >= adjustedFromTime && fileTime <= adjustedToTime) {
+                                    fNames.add(fName);
+                                }
+                            }
+                        }
                     }
+
+                    LOG.trace("Found {} files in directory {}", fNames.size(), dirKey);
+                    
+                    return fNames;
                 }
-            }
+
+            });
 
             //advance time to get file names for the next hour
             fromCalendar.add(Calendar.HOUR_OF_DAY, 1);
         }
 
-        LOG.trace("waiting for {} futures", futures.size());
-
         //combine file names from all the intervals
-        for(Future<List<String>> future: futures){
-            try {
-                ret.addAll(future.get());
-                LOG.trace("collected future result");
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new GenericErrorException(e);
-            } catch (ExecutionException e) {
-                LOG.error("getFileNames_ListRequestPerHour for customer {} equipment {} from {} to {} could not retrieve data", 
-                        customerId, equipmentId, fromTime, toTime, e);
-                throw new GenericErrorException("Failed to get Result", e);
-            }
+        for(List<String> fNames: invokeAll(customerId, tasks, "getFileNames_ListRequestPerHour")){
+            ret.addAll(fNames);
         }
 
 
@@ -462,12 +458,116 @@ public class HierarchicalDatastore{
 
 
 
+    /**
+     * @return name of the hourly directory, structured as dsPrefix/customerId/equipmentId/yyyy/MM/dd/HH/
+     */
+    private String getHourlyDirectoryName(int customerId, long equipmentId, int year, int month, int day, int hour) {
+        StringBuilder sb = new StringBuilder(1024);
+        Formatter formatter = new Formatter(sb, null);
+        formatter.format("%s/%d/%d/%4d/%02d/%02d/%02d/",
+                dsPrefix, customerId, equipmentId, year, month, day, hour);                                
+        formatter.close();
+
+        return sb.toString();
+    }
+
+    /**
+     * @param hourStartMs - beginning of the hour
+     * @param nowMs
+     * @return true if no new data files are expected to appear in the directory of this hour 
+     */
+    private boolean isClosedHour(long hourStartMs, long nowMs) {
+        //data file for the last interval of the hour keeps receiving data for numberOfMinutesPerFile, and it is flushed after being idle for a while.
+        //same as with hourly indexes, allow 10 extra minutes for the writers to finish
+        return hourStartMs + TimeUnit.HOURS.toMillis(1) + TimeUnit.MINUTES.toMillis(numberOfMinutesPerFile) 
+                + idleTimeoutBeforeFlushingMs + TimeUnit.MINUTES.toMillis(10) < nowMs;
+    }
+
+    /**
+     * List files of the hourly directory in the file system, and store the listing in hazelcast map dir-list.
+     * Only one list request is processed per directory at a time across the cluster.
+     * @param customerId
+     * @param equipmentId
+     * @param hourStartMs
+     * @param dirKey - name of the hourly directory
+     * @param dirListMap - hazelcast map dir-list, can be null if hazelcast client is not configured
+     * @return full names of the files in the hourly directory
+     */
+    private Set<String> getFileNamesForOneHourUnderLock(int customerId, long equipmentId, long hourStartMs, String dirKey, IMap<String, Set<String>> dirListMap) {
+        Set<String> allFileNames = new HashSet<>();
+
+        boolean lockAcquired = false;
+        try{
+            //lock entry in dir-list map in Hazelcast, so only one list request is processed per directory at a time
+            if((hazelcastClient!=null && dirListMap.tryLock(dirKey, 
+                    hdsDirMapTimeToWaitForLockMs, TimeUnit.MILLISECONDS, 
+                    hdsDirMapLeaseTimeForLockMs, TimeUnit.MILLISECONDS))
+                    || (hazelcastClient==null)
+                    ){
+                lockAcquired = hazelcastClient!=null;
+
+                //after acquiring lock - make sure that entry in map exists, and only if it does not exist call getFileNamesForOneHour
+                if(hazelcastClient!=null){
+                    Set<String> fNames = dirListMap.get(dirKey);
+                    if(fNames!=null){
+                        //we need full file names in the result, so prepend directory name to each file name
+                        for(String fName: fNames){
+                            allFileNames.add(dirKey+fName);
+                        }
+                    }
+                }
+
+                
+                if(allFileNames.isEmpty()){
+                    //hazelcast listing not found, get full listing of the files for that hour
+                    allFileNames = getFileNamesForOneHour(customerId, equipmentId, hourStartMs,"");
+
+                    if(hazelcastClient!=null){
+                        //store directory listing for this hour in hazelcast for future requests
+                        Set<String> fNames = new HashSet<>();
+                        if(allFileNames!=null){
+                            for(String fName: allFileNames){
+                                //we store only the file name in the set, directory is stored as a key in the map
+                                fNames.add(fName.substring(fName.lastIndexOf('/')+1));
+                            }
+                            
+                            dirListMap.put(dirKey, fNames);
+                        }
+                    }
+                }
+            } else {
+                LOG.warn("Could not acquire lock for {}:{} ", hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName(), dirKey);
+                throw new GenericErrorException("Could not aqcuire lock for " + hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName() + ":"+ dirKey);
+            }
+        }catch(InterruptedException e){
+            LOG.warn("Interrupted while waiting to lock {} map", hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
+            Thread.currentThread().interrupt();
+        }finally {
+            if(lockAcquired){                                        
+                try{
+                    dirListMap.unlock(dirKey);
+                }catch(IllegalMonitorStateException e){
+                    LOG.warn("Distributed Lock management for {}:{} ", hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName(), dirKey, e);
+                }
+                
+            }
+        }
+
+        return allFileNames;
+    }
+
     public void appendFileNameToDirectoryListing(int customerId, long equipmentId, int year, int month, int day, int hour, String fullFileName){
 
         LOG.trace("begin appendFileNameToDirectoryListing for customer {} equipment {} {}/{}/{} {}:{} {}",
                 customerId, equipmentId, year, month, day, hour,
                 fullFileName);
 
+        String dirKey = fullFileName.substring(0, fullFileName.lastIndexOf('/')+1);
+        String shortFileName = fullFileName.substring(fullFileName.lastIndexOf('/')+1);
+
+        //local listing of this directory is out of date now
+        directoryListingCache.invalidate(dirKey);
+
         if(hazelcastClient==null){
             LOG.warn("Hazelcast client is not configured for datastore {}-{}-{}, working in limited capacity.", this.dsRootDirName, this.dsPrefix, this.fileNamePrefix);
             return;
@@ -475,9 +575,6 @@ public class HierarchicalDatastore{
 
         IMap<String, Set<String>> dirListMap = hazelcastClient.getMap(hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
 
-        String dirKey = fullFileName.substring(0, fullFileName.lastIndexOf('/')+1);
-        String shortFileName = fullFileName.substring(fullFileName.lastIndexOf('/')+1);
-
         Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
         calendar.set(Calendar.YEAR, year);
         calendar.set(Calendar.MONTH, month - 1);
@@ -502,9 +599,57 @@ public class HierarchicalDatastore{
             throw new GenericErrorException("Failed to submit append request", e);
         } catch (ExecutionException e) {
             throw new GenericErrorException("Failed to submit append request", e);
+        } finally {
+            //listing that was cached while populating initial value in the map may not have the new file
+            directoryListingCache.invalidate(dirKey);
         }
     }
 
+    /**
+     * Append name of the new data file to the listing of its hourly directory in hazelcast in the background, together with the other new data files.
+     * Falls back to {@link #appendFileNameToDirectoryListing(int, long, int, int, int, int, String)} when background publication is not enabled.
+     * @param customerId
+     * @param equipmentId
+     * @param year
+     * @param month
+     * @param day
+     * @param hour
+     * @param fullFileName
+     * @param onPublished - called after the file name is appended, possibly from another thread. Can be null.
+     */
+    public void appendFileNameToDirectoryListingInBackground(int customerId, long equipmentId, int year, int month, int day, int hour, String fullFileName,
+            Runnable onPublished){
+        if(indexPublisher == null){
+            appendFileNameToDirectoryListing(customerId, equipmentId, year, month, day, hour, fullFileName);
+            if(onPublished != null){
+                onPublished.run();
+            }
+            return;
+        }
+
+        //local listing of this directory is out of date now
+        directoryListingCache.invalidate(fullFileName.substring(0, fullFileName.lastIndexOf('/')+1));
+
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, 0, 0);
+
+        indexPublisher.appendFileNameToDirectoryListing(customerId, equipmentId, calendar.getTimeInMillis(), fullFileName, onPublished);
+    }
+
+    /**
+     * Wait until the record indexes and the directory listing appends submitted for background publication so far are stored in hazelcast.
+     * @param timeoutMs
+     * @return true if everything was published within the timeout
+     */
+    public boolean flushIndexPublisher(long timeoutMs){
+        return indexPublisher == null || indexPublisher.flush(timeoutMs);
+    }
+
+    void invalidateDirectoryListing(String dirKey){
+        directoryListingCache.invalidate(dirKey);
+    }
+
     /**
      * @param customerId
      * @param equipmentId
@@ -607,10 +752,9 @@ public class HierarchicalDatastore{
             return new ArrayList<>();
         }
 
-        try(FileInputStream fis = new FileInputStream(dsRootDirName+ File.separator + fileName)){
-            LOG.trace("found object");
-            return getContent(fis, entryFilter, matchingLines, dataClass);
-        } catch (FileNotFoundException e){
+        try{
+            return readDataFile(fileName, entryFilter, matchingLines, dataClass);
+        } catch (FileNotFoundException | NoSuchFileException e){
             LOG.trace("object {} does not exist", fileName);
             return new ArrayList<>(1);
         } catch (IOException e) {
@@ -638,7 +782,7 @@ public class HierarchicalDatastore{
     }
 
     /**
-     * @param recordIndex - record index to get matching positions from, can be null, in which case an attempt will be made to get record index from hazelcast 
+     * @param recordIndex - record index to get matching positions from, can be null, in which case an attempt will be made to get binary record index stored with the data file, and then record index from hazelcast 
      * @param fileName - full file name of the data file
      * @param indexName - index to use, can be null - will result in full scan of the data files
      * @param indexedValues - if index is used then indexedValues specifies what values should be matched by the index. Can be null or empty, in which case will result in full scan of the data files
@@ -662,6 +806,15 @@ public class HierarchicalDatastore{
         long startTime = System.currentTimeMillis();
 
         try{
+            if(recordIndex==null){
+                //binary record index is stored on disk with the data file, it is cheaper to read than the one in hazelcast and it does not expire
+                BinaryRecordIndex binaryRecordIndex = findBinaryRecordIndex(indexName, fileName);
+                if(binaryRecordIndex!=null){
+                    LOG.trace("found binary record index file for {}", fileName);
+                    return getMatchingPositionsFromBinaryIndex(binaryRecordIndex, fileName, indexName, indexedValues);
+                }
+            }
+
             RecordIndex countsAndPositions = recordIndex!=null?recordIndex:findRecordIndex(indexName, fileName);
 
             if(countsAndPositions!=null){
@@ -720,6 +873,26 @@ public class HierarchicalDatastore{
 
     }
 
+    private Set<Integer> getMatchingPositionsFromBinaryIndex(BinaryRecordIndex binaryRecordIndex, String fileName, String indexName, Set<String> indexedValues) {
+        Set<Integer> matchingLines = null;
+
+        for(String idxVal: indexedValues){
+            if(binaryRecordIndex.getCountForValue(idxVal)>0){
+                if(matchingLines == null){
+                    matchingLines = new HashSet<>();
+                }
+                binaryRecordIndex.collectPositionsForValue(idxVal, matchingLines);
+            }
+        }
+
+        if(matchingLines==null){
+            LOG.trace("No matching values found in binary index {} for {}", indexName, fileName);
+            return Collections.emptySet();
+        }
+
+        return matchingLines;
+    }
+
     /**
      * @param fileName - key of the object (full fileName)
      * @return content of the object as a subclass of BaseJsonModel or null if the specified key does not exist
@@ -736,9 +909,9 @@ public class HierarchicalDatastore{
         cnt.increment();
         long startTime = System.currentTimeMillis();
 
-        try(FileInputStream fis = new FileInputStream(dsRootDirName+ File.separator + fileName)){
+        try(InputStream is = backend.read(fileName)){
             LOG.trace("found object");
-            return BaseJsonModel.fromString(StreamUtils.copyToString(fis, StandardCharsets.UTF_8), BaseJsonModel.class);
+            return BaseJsonModel.fromString(StreamUtils.copyToString(is, StandardCharsets.UTF_8), BaseJsonModel.class);
         } catch (FileNotFoundException e){
             LOG.trace("object {} does not exist", fileName);
             return null;
@@ -780,10 +953,9 @@ public class HierarchicalDatastore{
             return 0;
         }
 
-        try(FileInputStream fis = new FileInputStream(dsRootDirName+ File.separator + fileName)){
-            LOG.trace("found object");
-            return countEntries(fis, entryFilter, matchingLines, dataClass);
-        } catch (FileNotFoundException e){
+        try{
+            return countDataFileEntries(fileName, entryFilter, matchingLines, dataClass);
+        } catch (FileNotFoundException | NoSuchFileException e){
             LOG.trace("object {} does not exist", fileName);
             return 0;
         } catch (IOException e) {
@@ -823,8 +995,9 @@ public class HierarchicalDatastore{
 
                 //
                 // use provided line numbers here - extracted from the index - to only look at the records of interest 
+                // line numbers continue across the blocks (zip entries) of the data file
                 //
-                int lineNum = -1;
+                int lineNum = DataFileBlocks.getFirstLineNumber(zipEntryName) - 1;
 
                 for(String line; (line = br.readLine()) != null; ) {
                     lineNum++; //first line number is 0
@@ -872,7 +1045,8 @@ public class HierarchicalDatastore{
 
         try(ZipInputStream zis = new SelfDrainingZipInputStream(inputStream)){
 
-            while ((ze=zis.getNextEntry())!=null){
+            boolean readAllLinesOfInterest = false;
+            while (!readAllLinesOfInterest && (ze=zis.getNextEntry())!=null){
                 zipEntryName = ze.getName();
                 LOG.trace("Processing zip entry {}", zipEntryName);
                 InputStreamReader isr = new InputStreamReader(zis, StandardCharsets.UTF_8);
@@ -880,8 +1054,9 @@ public class HierarchicalDatastore{
 
                 //
                 // use provided line numbers here - extracted from the index - to only look at the records of interest 
+                // line numbers continue across the blocks (zip entries) of the data file
                 //
-                int lineNum = -1;
+                int lineNum = DataFileBlocks.getFirstLineNumber(zipEntryName) - 1;
                 for(String line; (line = br.readLine()) != null; ) {
 
                     lineNum++; //first line number is 0
@@ -901,6 +1076,7 @@ public class HierarchicalDatastore{
                     
                     if(maxLineNum != null && maxLineNum <= lineNum) {
                         // No need to read anymore line, we've read all the ones we need.
+                        readAllLinesOfInterest = true;
                         break;
                     }
                 }
@@ -915,6 +1091,245 @@ public class HierarchicalDatastore{
         return ret;
     }
 
+    /**
+     * @param fileName - full name of the data file
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param lineNumbers - line numbers of interest, or null for all lines
+     * @param dataClass - data class
+     * @return List of objects that match entryFilter. 
+     * Only the blocks of the data file that contain requested line numbers are decompressed - 
+     * when the backend does not keep data files locally these blocks are fetched with ranged reads. All lines are streamed from the backend.
+     * @throws FileNotFoundException if the data file does not exist
+     * @throws IOException
+     */
+    private <T> List<T> readDataFile(String fileName, EntryFilter<T> entryFilter, Set<Integer> lineNumbers, Class<T> dataClass) throws IOException {
+        ByteBuffer hotDataFile = getHotDataFile(fileName);
+        if(hotDataFile != null){
+            return getContent(toInputStream(hotDataFile), entryFilter, lineNumbers, dataClass);
+        }
+
+        File dataFile = backend.getLocalFile(fileName);
+        if(dataFile != null){
+            if(!dataFile.isFile()){
+                throw new FileNotFoundException(fileName);
+            }
+
+            return getContent(dataFile, entryFilter, lineNumbers, dataClass);
+        }
+
+        if(lineNumbers != null){
+            return getContent(backend, fileName, entryFilter, lineNumbers, dataClass);
+        }
+
+        try(InputStream is = backend.read(fileName)){
+            return getContent(is, entryFilter, lineNumbers, dataClass);
+        }
+    }
+
+    /**
+     * @param fileName - full name of the data file
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param lineNumbers - line numbers of interest, or null for all lines
+     * @param dataClass - data class
+     * @return Count of objects that match entryFilter. 
+     * @throws FileNotFoundException if the data file does not exist
+     * @throws IOException
+     * @see #readDataFile(String, EntryFilter, Set, Class)
+     */
+    private <T> int countDataFileEntries(String fileName, EntryFilter<T> entryFilter, Set<Integer> lineNumbers, Class<T> dataClass) throws IOException {
+        ByteBuffer hotDataFile = getHotDataFile(fileName);
+        if(hotDataFile != null){
+            return countEntries(toInputStream(hotDataFile), entryFilter, lineNumbers, dataClass);
+        }
+
+        File dataFile = backend.getLocalFile(fileName);
+        if(dataFile != null){
+            if(!dataFile.isFile()){
+                throw new FileNotFoundException(fileName);
+            }
+
+            return countEntries(dataFile, entryFilter, lineNumbers, dataClass);
+        }
+
+        if(lineNumbers != null){
+            return countEntries(backend, fileName, entryFilter, lineNumbers, dataClass);
+        }
+
+        try(InputStream is = backend.read(fileName)){
+            return countEntries(is, entryFilter, lineNumbers, dataClass);
+        }
+    }
+
+    /**
+     * Read-through access to the cache of recent data files. Data files that are not recent enough are not cached.
+     * @param fileName - full name of the data file
+     * @return zipped content of the data file, or null if the data file is not recent enough to be cached
+     * @throws FileNotFoundException if the data file does not exist
+     * @throws IOException
+     */
+    private ByteBuffer getHotDataFile(String fileName) throws IOException {
+        long nowMs = System.currentTimeMillis();
+        if(!hotDataFileCache.isHot(fileName, nowMs)){
+            return null;
+        }
+
+        ByteBuffer ret = hotDataFileCache.get(fileName, nowMs);
+        if(ret != null){
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "hotDataCacheHit-count").increment();
+            return ret;
+        }
+
+        CloudMetricsUtils.getCounter(servoMetricPrefix + "hotDataCacheMiss-count").increment();
+
+        File dataFile = backend.getLocalFile(fileName);
+        if(dataFile != null && !dataFile.isFile()){
+            throw new FileNotFoundException(fileName);
+        }
+
+        try(InputStream is = backend.read(fileName)){
+            ret = ByteBuffer.wrap(StreamUtils.copyToByteArray(is));
+        }
+
+        cacheHotDataFile(fileName, ret, nowMs);
+        return ret;
+    }
+
+    private static InputStream toInputStream(ByteBuffer zippedBytes) {
+        return new ByteArrayInputStream(zippedBytes.array(), zippedBytes.arrayOffset() + zippedBytes.position(), zippedBytes.remaining());
+    }
+
+    private void cacheHotDataFile(String fileName, ByteBuffer zippedBytes, long nowMs) {
+        int numEvicted = hotDataFileCache.put(fileName, zippedBytes, nowMs);
+        if(numEvicted > 0){
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "hotDataCacheEviction-count").increment(numEvicted);
+        }
+    }
+
+    /**
+     * Called by the writer after a data file is stored, so that the reads of the recent data do not have to go to the backend.
+     * @param fullFileName - full name of the data file
+     * @param zippedBytes - array-backed buffer with the content of the data file between its position and limit, must not be modified after this call
+     */
+    public void cacheRecentlyWrittenDataFile(String fullFileName, ByteBuffer zippedBytes) {
+        cacheHotDataFile(fullFileName, zippedBytes, System.currentTimeMillis());
+    }
+
+    /**
+     * @param dataFile - zipped (JSON) data file
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param lineNumbers - line numbers in the json file from which to deserialize data before passing it to the entryFilter, all other lines are ignored. If lineNumbers is null, then all the lines are deserialized
+     * @param dataClass - data class
+     * @return List of objects that match entryFilter. 
+     * Only the blocks of the data file that contain requested line numbers are decompressed.
+     * One object per line.
+     * @throws IOException
+     */
+    public static <T> List<T> getContent(File dataFile, EntryFilter<T> entryFilter, Set<Integer> lineNumbers, Class<T> dataClass) throws IOException {
+
+        final List<T> ret = new ArrayList<>();
+
+        DataFileBlocks.processLines(dataFile, lineNumbers, new DataFileBlocks.LineProcessor() {
+            @Override
+            public void processLine(int lineNum, String line) {
+                T entity = entryFilter.getFilteredEntry(line, dataClass);
+                if(entity!=null){
+                    ret.add(entity); 
+                }
+            }
+        });
+
+        LOG.trace("Read {} entries", ret.size());
+
+        return ret;
+    }
+
+    /**
+     * @param dataFile - zipped (JSON) data file
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param lineNumbers - line numbers in the json file from which to deserialize data before passing it to the entryFilter, all other lines are ignored. If lineNumbers is null, then all the lines are deserialized
+     * @param dataClass - data class
+     * @return Count of objects that match entryFilter. 
+     * Only the blocks of the data file that contain requested line numbers are decompressed.
+     * One object per line.
+     * @throws IOException
+     */
+    public static <T> int countEntries(File dataFile, EntryFilter<T> entryFilter, Set<Integer> lineNumbers, Class<T> dataClass) throws IOException {
+
+        final AtomicInteger ret = new AtomicInteger();
+
+        DataFileBlocks.processLines(dataFile, lineNumbers, new DataFileBlocks.LineProcessor() {
+            @Override
+            public void processLine(int lineNum, String line) {
+                if(entryFilter.getFilteredEntry(line, dataClass)!=null){
+                    ret.incrementAndGet(); 
+                }
+            }
+        });
+
+        LOG.trace("counted {} entries", ret.get());
+
+        return ret.get();
+    }
+
+    /**
+     * @param backend - backend that stores the data file
+     * @param fileName - full name of the zipped (JSON) data file
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param lineNumbers - line numbers in the json file from which to deserialize data before passing it to the entryFilter, all other lines are ignored. If lineNumbers is null, then all the lines are deserialized
+     * @param dataClass - data class
+     * @return List of objects that match entryFilter. 
+     * Only the blocks of the data file that contain requested line numbers are read from the backend and decompressed.
+     * One object per line.
+     * @throws IOException
+     */
+    public static <T> List<T> getContent(DatastoreBackend backend, String fileName, EntryFilter<T> entryFilter, Set<Integer> lineNumbers, Class<T> dataClass) throws IOException {
+
+        final List<T> ret = new ArrayList<>();
+
+        DataFileBlocks.processLines(backend, fileName, lineNumbers, new DataFileBlocks.LineProcessor() {
+            @Override
+            public void processLine(int lineNum, String line) {
+                T entity = entryFilter.getFilteredEntry(line, dataClass);
+                if(entity!=null){
+                    ret.add(entity); 
+                }
+            }
+        });
+
+        LOG.trace("Read {} entries", ret.size());
+
+        return ret;
+    }
+
+    /**
+     * @param backend - backend that stores the data file
+     * @param fileName - full name of the zipped (JSON) data file
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param lineNumbers - line numbers in the json file from which to deserialize data before passing it to the entryFilter, all other lines are ignored. If lineNumbers is null, then all the lines are deserialized
+     * @param dataClass - data class
+     * @return Count of objects that match entryFilter. 
+     * Only the blocks of the data file that contain requested line numbers are read from the backend and decompressed.
+     * One object per line.
+     * @throws IOException
+     */
+    public static <T> int countEntries(DatastoreBackend backend, String fileName, EntryFilter<T> entryFilter, Set<Integer> lineNumbers, Class<T> dataClass) throws IOException {
+
+        final AtomicInteger ret = new AtomicInteger();
+
+        DataFileBlocks.processLines(backend, fileName, lineNumbers, new DataFileBlocks.LineProcessor() {
+            @Override
+            public void processLine(int lineNum, String line) {
+                if(entryFilter.getFilteredEntry(line, dataClass)!=null){
+                    ret.incrementAndGet(); 
+                }
+            }
+        });
+
+        LOG.trace("counted {} entries", ret.get());
+
+        return ret.get();
+    }
+
     public <T> List<T> getEntries(int customerId, long equipmentId, long fromTime, long toTime,
             final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass) {
         final List<T> ret = new ArrayList<>(4000);
@@ -938,6 +1353,44 @@ public class HierarchicalDatastore{
         return ret;
     }
 
+    /**
+     * Iterate through the entries for customer equipment between fromTime and toTime without collecting all of them in memory.
+     * Entries are returned in timestamp order of the data files they are stored in.
+     * Data files are read in the background, with a bounded read-ahead, only as fast as the caller consumes the entries.
+     * Caller should close the iterator if it stops consuming the entries before reaching the end.
+     * @param customerId
+     * @param equipmentId
+     * @param fromTime
+     * @param toTime
+     * @param entryFilter - piece of logic that converts a line of text into an object and applies filter to it.
+     * @param indexName - index to use, can be null - will result in full scan of the data files
+     * @param indexedValues - if index is used then indexedValues specifies what values should be matched by the index. Can be null or empty, in which case will result in full scan of the data files
+     * @param dataClass
+     * @return iterator over the entries that match entryFilter
+     */
+    public <T> EntryIterator<T> getEntriesIterator(int customerId, long equipmentId, long fromTime, long toTime,
+            final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass) {
+
+        CloudMetricsUtils.getCounter(servoMetricPrefix + "getEntriesIterator-count").increment();
+
+        return new EntryIterator<>(this, customerId, equipmentId, fromTime, toTime, entryFilter, indexName, indexedValues, dataClass, 
+                hdsEntryIteratorReadAheadFiles);
+    }
+
+    /**
+     * Same as getEntriesIterator(), but in the form of a sequential ordered Stream. 
+     * Closing the stream closes the underlying iterator, short-circuiting operations (i.e. limit(), findFirst()) stop reading of the data files.
+     * @see #getEntriesIterator(int, long, long, long, EntryFilter, String, Set, Class)
+     */
+    public <T> Stream<T> getEntriesStream(int customerId, long equipmentId, long fromTime, long toTime,
+            final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass) {
+
+        EntryIterator<T> iterator = getEntriesIterator(customerId, equipmentId, fromTime, toTime, entryFilter, indexName, indexedValues, dataClass);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
     /**
      * Apply a DataFileOperation to the list of data files for customer equipment between fromTime and toTime.
      * It is up to the operation to interpret entry filter, indexName and indexedValues parameters.
@@ -997,80 +1450,26 @@ public class HierarchicalDatastore{
                     - 1 //ensure that the next hour increment will be processed on the next iteration and there's no overlap between two time intervals
                     );
 
-            List<Future<Void>> futures = new ArrayList<>(100);
+            List<Callable<Void>> tasks = new ArrayList<>(100);
 
             for(String hrIdxFileName: hourlyIndexFileNames){
-                int numRetries = 0;
                 final long curFromTimeHr = fromTimeHr;
                 final long curToTimeHr = toTimeHr;
                 //for each hour collect index information                  
-                while(true){
-                    try{
-                        LOG.trace("submitting processDataFiles task - attempt {}", numRetries);
-                        
-                        futures.add(hdsProcessFilesExecutor.submit(new Callable<Void>(){
-                            @Override
-                            public Void call() throws Exception {
-                                DirectoryIndex hrIdx;
-
-                                if(indexName!=null && indexedValues!=null && ! indexedValues.isEmpty() 
-                                        && curFromTimeHr < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(70)) {
-                                    hrIdx = HierarchicalDatastore.getZippedModelFromFile(dsRootDirName, hrIdxFileName, DirectoryIndex.class);
-                                } 
-                                else {
-                                    //if fromTime is less than 70 minutes earlier than now, then skip hourly 
-                                    //  index, as it has not been built yet - rely on record indexes in hazelcast instead
-                                    hrIdx = null;
-                                }
-
-                                List<String> dataFileNames; 
-
-                                LOG.trace("processDataFiles: processing interval from {} to {}", curFromTimeHr, curToTimeHr);
-
-                                if(hrIdx!=null){
-                                    //hourly index exists, use it to get the right data files (for this particular hour) and to get to the right lines in the data files
-                                    LOG.trace("found hourly index {}", hrIdxFileName);
-                                    dataFileNames = new ArrayList<>(hrIdx.getDataFileNames(curFromTimeHr, curToTimeHr, numberOfMinutesPerFile));
-                                } else {
-                                    //hourly index for this particular hour does not exist, request to build it - but only if fromTimeHr is older than 70 minutes from now
-                                    if(indexName!=null && indexedValues!=null && ! indexedValues.isEmpty()
-                                            && curFromTimeHr < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(70))
-                                    {
-                                        scheduleRebuildOfHourlyIndex(indexName, curFromTimeHr, hrIdxFileName);
-                                    }
-
-                                    //meanwhile use full scan on the data files for this particular hour without hourly index
-                                    LOG.trace("did not find hourly index {}, will use full scan for that hour", hrIdxFileName);
-                                    dataFileNames = getFileNames(customerId, equipmentId, curFromTimeHr, curToTimeHr);
-                                }
+                tasks.add(new Callable<Void>(){
+                    @Override
+                    public Void call() throws Exception {
+                        LOG.trace("processDataFiles: processing interval from {} to {}", curFromTimeHr, curToTimeHr);
 
-                                operation.processFiles(entryFilter, indexName, indexedValues, dataFileNames, hrIdx);   
-                               return null;
-                            }
-
-                        }));
-                        break;
-                    }catch(RejectedExecutionException e){
-                        LOG.trace("processDataFiles for {} - rejected execution, will retry", hrIdxFileName);
-
-                        //could not submit task, will retry
-                        try {
-                            Thread.sleep(sleepBetweenRetriesMs);
-                        } catch (InterruptedException e1) {
-                            //do nothing
-                            Thread.currentThread().interrupt();
-                        }
+                        DirectoryIndex hrIdx = getHourlyIndexForQuery(indexName, indexedValues, curFromTimeHr, hrIdxFileName);
+                        List<String> dataFileNames = getDataFileNamesForHour(customerId, equipmentId, curFromTimeHr, curToTimeHr, 
+                                indexName, indexedValues, hrIdxFileName, hrIdx);
 
-                        numRetries++;
-
-                        if(numRetries> maxRetries){
-                            LOG.error("processDataFiles could not retrieve hourly index from {} after {} retries", hrIdxFileName, maxRetries);
-                            throw new GenericErrorException("Could not retrieve hourly index from "+hrIdxFileName+" after "+maxRetries+" retries");
-                        }
+                        operation.processFiles(entryFilter, indexName, indexedValues, dataFileNames, hrIdx);   
+                        return null;
                     }
-                }
-
 
+                });
 
                 //adjust hour boundaries for the next iteration
                 fromTimeHr = toTimeHr + 1; 
@@ -1082,19 +1481,8 @@ public class HierarchicalDatastore{
 
             }
 
-            //combine entries from all the files
-            for(Future<Void> future: futures){
-                try {
-                    future.get();
-                    LOG.trace("processDataFiles - collected future result");
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new GenericErrorException("Failed to collect result", e);
-                } catch (ExecutionException e) {
-                    LOG.error("processDataFiles could not retrieve data", e);
-                    throw new GenericErrorException("Failed to collect result", e);
-                }
-            }
+            //wait for all the hours to be processed
+            invokeAll(customerId, tasks, "processDataFiles");
 
             endTimeMs = System.currentTimeMillis();
             LOG.debug("processDataFiles for customer {} equipment {} from {} to {} completed in {} ms.", customerId, equipmentId, fromTime, toTime, (endTimeMs - startTimeMs));
@@ -1108,6 +1496,58 @@ public class HierarchicalDatastore{
     }
 
 
+    /**
+     * @param indexName
+     * @param indexedValues
+     * @param fromTimeHr - beginning of the hour interval
+     * @param hrIdxFileName - full name of the hourly index file for the hour interval
+     * @return hourly index for the hour interval, or null if index is not used by the query, if the hour is too recent, or if hourly index has not been built yet
+     */
+    DirectoryIndex getHourlyIndexForQuery(String indexName, Set<String> indexedValues, long fromTimeHr, String hrIdxFileName) {
+        if(indexName!=null && indexedValues!=null && ! indexedValues.isEmpty() 
+                && fromTimeHr < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(70)) {
+            return getZippedModel(hrIdxFileName, DirectoryIndex.class);
+        } 
+
+        //if fromTime is less than 70 minutes earlier than now, then skip hourly 
+        //  index, as it has not been built yet - rely on record indexes in hazelcast instead
+        return null;
+    }
+
+    /**
+     * @param customerId
+     * @param equipmentId
+     * @param fromTimeHr - beginning of the hour interval
+     * @param toTimeHr - end of the hour interval
+     * @param indexName
+     * @param indexedValues
+     * @param hrIdxFileName - full name of the hourly index file for the hour interval
+     * @param hrIdx - hourly index for the hour interval, can be null
+     * @return names of the data files for the hour interval. 
+     *  If hourly index is not available, data files are listed directly and a request to build hourly index is placed (when appropriate).
+     */
+    List<String> getDataFileNamesForHour(int customerId, long equipmentId, long fromTimeHr, long toTimeHr, 
+            String indexName, Set<String> indexedValues, String hrIdxFileName, DirectoryIndex hrIdx) {
+
+        if(hrIdx!=null){
+            //hourly index exists, use it to get the right data files (for this particular hour) and to get to the right lines in the data files
+            LOG.trace("found hourly index {}", hrIdxFileName);
+            return new ArrayList<>(hrIdx.getDataFileNames(fromTimeHr, toTimeHr, numberOfMinutesPerFile));
+        } 
+
+        //hourly index for this particular hour does not exist, request to build it - but only if fromTimeHr is older than 70 minutes from now
+        if(indexName!=null && indexedValues!=null && ! indexedValues.isEmpty()
+                && fromTimeHr < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(70))
+        {
+            scheduleRebuildOfHourlyIndex(indexName, fromTimeHr, hrIdxFileName);
+        }
+
+        //meanwhile use full scan on the data files for this particular hour without hourly index
+        LOG.trace("did not find hourly index {}, will use full scan for that hour", hrIdxFileName);
+        return getFileNames(customerId, equipmentId, fromTimeHr, toTimeHr);
+    }
+
+
     /**
      * Schedule a request to build an hourly index for specific customer, equipment and hour.
      * Only one caller (first among many threads and processes) will place request on the queue.
@@ -1166,8 +1606,11 @@ public class HierarchicalDatastore{
      * The name of the queue comes from hazelcastObjectsConfiguration.getRebuildIdxHourlyDirectoryNamesQueue().
      * 
      * This method is part of HDS class so it can be used in HDS unit tests.
+     * 
+     * @return false if the hour is being built by another node at the moment - the request is not completed, 
+     *      its entry in bipHrDirs map is kept and the caller should place the request on the queue again
      */
-    public static void rebuildHourlyIndex(String hourlyDirectoryName, 
+    public static boolean rebuildHourlyIndex(String hourlyDirectoryName, 
             String dsRootDirName, String dsPrefix, RecordIndexRegistry recordIndexRegistry, 
             HazelcastInstance hazelcastClient, 
             HazelcastObjectsConfiguration hazelcastObjectsConfiguration
@@ -1190,7 +1633,11 @@ public class HierarchicalDatastore{
             int day = Integer.parseInt(parts[5]);
             int hour = Integer.parseInt(parts[6]);
 
-            hrIndexBuilder.buildHourlyIndexForSingleHour(customerId, equipmentId, year, month, day, hour);
+            if(!hrIndexBuilder.buildHourlyIndexForSingleHour(customerId, equipmentId, year, month, day, hour)) {
+                //the build that is in progress may have missed the data files this request was made for
+                LOG.debug("Hourly index for {} is being built by another node, request is not completed", hourlyDirectoryName);
+                return false;
+            }
 
             //remove entry from the hazelcast map
             IMap<String, Long> recordIdxMap = hazelcastClient.getMap(hazelcastObjectsConfiguration.getBuildInProgressHourlyDirectoryNamesMapPrefix());
@@ -1199,232 +1646,413 @@ public class HierarchicalDatastore{
         }catch(Exception e){
             LOG.error("Could not build hourly index for {} : {}",  hourlyDirectoryName, e);
         }
+
+        return true;
     }
 
     private <T> List<T> getContent(
             final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, List<String> dataFileNames, DirectoryIndex hourlyIdx, Class<T> dataClass) {
 
         List<T> ret = new ArrayList<>(200);
-        List<Future<List<T>>> futures = new ArrayList<>(100);
+        List<Callable<List<T>>> tasks = new ArrayList<>(100);
 
         //Go through supplied list of files to retrieve data from
         for(final String fileName: dataFileNames){
-            int numRetries = 0;
             //for each file, get entries stored in it                    
-            while(true){
-                try{
-                    LOG.trace("submitting getContent task - attempt {}", numRetries);
+            tasks.add(newGetContentTask(fileName, entryFilter, indexName, indexedValues, 
+                    hourlyIdx==null?null:hourlyIdx.getDataFileNameToRecordIndexMap().get(fileName), dataClass));
+        }
 
-                    futures.add(hdsGetContentExecutor.submit(new Callable<List<T>>(){
-                        @Override
-                        public List<T> call() throws Exception {
-                            return getContent(fileName, entryFilter, indexName, indexedValues, 
-                                    hourlyIdx==null?null:hourlyIdx.getDataFileNameToRecordIndexMap().get(fileName), dataClass);
-                        }
+        //combine entries from all the files
+        for(List<T> content: invokeAll(extractCustomerId(dataFileNames), tasks, "getContent")){
+            ret.addAll(content);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @param fileName - full name of the data file
+     * @param entryFilter
+     * @param indexName
+     * @param indexedValues
+     * @param recordIndex - record index for the data file, can be null
+     * @param dataClass
+     * @return task that retrieves entries from a single data file
+     */
+    <T> Callable<List<T>> newGetContentTask(final String fileName, final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, 
+            RecordIndex recordIndex, Class<T> dataClass) {
+        return new Callable<List<T>>(){
+            @Override
+            public List<T> call() throws Exception {
+                return getContent(fileName, entryFilter, indexName, indexedValues, recordIndex, dataClass);
+            }
+        };
+    }
+
+    public <T> List<T> getEntries(int customerId, long fromTime, long toTime, final EntryFilter<T> entryFilter,
+            String indexName, Set<String> indexedValues, Class<T> dataClass) {
+        LOG.trace("begin getEntries for customer {} from {} to {}", customerId, fromTime, toTime);
+        List<T> ret = new ArrayList<>(4000);
+
+        Set<Long> equipmentIds = getEquipmentIds(customerId);
+        LOG.trace("found {} equipment ids for customer {}", equipmentIds.size(), customerId);
+
+        List<Callable<List<T>>> tasks = new ArrayList<>(equipmentIds.size());
+        for(final long eqId: equipmentIds){
+            LOG.trace("Collecting entries for equipment {}", eqId);
+            tasks.add(new Callable<List<T>>(){
+                @Override
+                public List<T> call() throws Exception {
+                    return getEntries(customerId, eqId, fromTime, toTime, entryFilter, indexName, indexedValues, dataClass);
+                } 
+            });
+        }
+
+        //combine entries from all the equipment
+        for(List<T> entries: invokeAll(customerId, tasks, "getEntries")){
+            ret.addAll(entries);
+        }
+
+
+        LOG.trace("getEntries for customer {} from {} to {} - found {} entries", customerId, fromTime, toTime, ret.size());
+
+        return ret;
+    }
+
+
+    public <T> int countEntries(int customerId, long equipmentId, long fromTime, long toTime, final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass){
+
+        final AtomicInteger ret = new AtomicInteger();
+
+        DataFileOperation<T> operation = new DataFileOperation<T>() {
+            @Override
+            public void processFiles(EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues,
+                    List<String> dataFileNames, DirectoryIndex hourlyIdx) {
+                ret.addAndGet(countEntries(entryFilter, indexName, indexedValues, dataFileNames, hourlyIdx, dataClass));
+            }
+        };
+
+        processDataFiles(customerId, equipmentId, fromTime, toTime, entryFilter, indexName, indexedValues, operation);
+
+        LOG.debug("countEntries for customer {} equipment {} from {} to {} Found {} results.", customerId, equipmentId, fromTime, toTime, ret.get());
+        return ret.get();
+    }
+
+    public <T> int countEntries(final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, List<String> dataFileNames, DirectoryIndex hourlyIdx, Class<T> dataClass){
+        int ret = 0;
+
+        List<Callable<Integer>> tasks = new ArrayList<>(100);
+        //Go through a list of data files
+        for(final String fileName: dataFileNames){
+            //for each file, count entries stored in it
+            tasks.add(new Callable<Integer>(){
+                @Override
+                public Integer call() throws Exception {
+                    return countEntries(fileName, entryFilter, indexName, indexedValues, 
+                            hourlyIdx==null?null:hourlyIdx.getDataFileNameToRecordIndexMap().get(fileName), dataClass);
+                }
+
+            });
+        }
+
+        //combine counts from all the files
+        for(Integer count: invokeAll(extractCustomerId(dataFileNames), tasks, "countEntries")){
+            ret+=count;
+        }
+
+        return ret;
+    }
+
+    public <T> int countEntries(int customerId, long fromTime, long toTime, final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass){
+        int ret = 0;
+        LOG.trace("begin countEntries for customer {} from {} to {}", customerId, fromTime, toTime);
+
+        Set<Long> equipmentIds = getEquipmentIds(customerId);
+        LOG.trace("found {} equipment ids for customer {}", equipmentIds.size(), customerId);
+
+        for(long eqId: equipmentIds){
+            LOG.trace("Collecting entries for equipment {}", eqId);
+            ret+=countEntries(customerId, eqId, fromTime, toTime, entryFilter, indexName, indexedValues, dataClass);
+        }
+
+        LOG.trace("getEntries for customer {} from {} to {} - found {} entries", customerId, fromTime, toTime, ret);
+
+        return ret;
+    }
+
+    /**
+     * Count records of the equipment in the time range, without decoding the data files whenever hourly summaries are available.
+     * @see #aggregate(int, long, long, long, String, Set)
+     */
+    public long countEntries(int customerId, long equipmentId, long fromTime, long toTime, String indexName, Set<String> indexedValues){
+        return aggregate(customerId, equipmentId, fromTime, toTime, indexName, indexedValues).getCount();
+    }
+
+    /**
+     * Compute count, timestamp range and statistics of the numeric fields of the records of the equipment in the time range. 
+     * Numeric fields are defined by the RecordSummaryExtractor registered for the fileNamePrefix of this datastore.
+     * <br>
+     * Hours that have an hourly summary are served from it - only data files that are not in the summary yet are read.
+     * Remaining hours are computed by reading the data files, and a request to build the summary is placed for them (when appropriate).
+     * <br>
+     * Like countEntries with an EntryFilter, it includes all records of the data files that overlap with the time range. 
+     * For multi-value indexes a record that has several of the requested indexedValues is counted once for every one of them.
+     * 
+     * @param customerId
+     * @param equipmentId
+     * @param fromTime
+     * @param toTime
+     * @param indexName - index used to select the records by indexedValues, may be null
+     * @param indexedValues - values of interest, if null or empty - all records are included
+     * @return statistics of the matching records
+     */
+    public SummaryStats aggregate(int customerId, long equipmentId, long fromTime, long toTime, String indexName, Set<String> indexedValues){
+
+        LOG.trace("begin aggregate for customer {} equipment {} from {} to {}", customerId, equipmentId, fromTime, toTime);
+
+        String counterMetricId = servoMetricPrefix + "aggregate-count";
+        String timerMetricId = servoMetricPrefix + "aggregate-timer";
+
+        Counter cnt = CloudMetricsUtils.getCounter(counterMetricId);
+        cnt.increment();
+
+        long startTimeMs = System.currentTimeMillis();
+
+        final RecordSummaryExtractor summaryExtractor = recordIndexRegistry.getSummaryExtractor(fileNamePrefix);
+        final String[] fieldNames = summaryExtractor==null ? new String[0] : summaryExtractor.getNumericFieldNames();
+        SummaryStats ret = new SummaryStats(fieldNames);
+
+        if(indexName == null){
+            //indexed values mean nothing without the index, totals are the same in the summaries of all indexes
+            indexedValues = null;
+            indexName = recordIndexes.isEmpty() ? null : new TreeSet<>(recordIndexes.keySet()).first();
+        }
+        final String summaryIndexName = indexName;
+        final Set<String> summaryIndexedValues = indexedValues;
+
+        //if toTime is in the future - set it back to now
+        if(toTime>startTimeMs){
+            toTime = startTimeMs;
+        }                        
+
+        if((toTime - fromTime)/(60000L*this.numberOfMinutesPerFile) > 45000){
+            //limit time range the same way as processDataFiles does
+            fromTime = toTime - 45000L*60000*this.numberOfMinutesPerFile;
+            LOG.warn("Query asks for too much data. Limiting requested time range {} - {} to {} ms", fromTime, toTime, toTime - fromTime);
+        }
+
+        try{
+            HourlyIndexFileNames hourlyIndexFileNames = new HourlyIndexFileNames(customerId, equipmentId, fromTime, toTime, summaryIndexName, dsPrefix, fileNamePrefix, numberOfMinutesPerFile);
+
+            long fromTimeHr = fromTime; 
+            long toTimeHr = Math.min(toTime, 
+                    fromTime 
+                    + TimeUnit.HOURS.toMillis(hourlyIndexFileNames.getHourIncrement())
+                    - fromTime%TimeUnit.HOURS.toMillis(hourlyIndexFileNames.getHourIncrement())
+                    - 1
+                    );
 
-                    }));
-                    break;
-                }catch(RejectedExecutionException e){
-                    LOG.trace("getContent for {} - rejected execution, will retry", fileName);
-
-                    //could not submit task, will retry
-                    try {
-                        Thread.sleep(sleepBetweenRetriesMs);
-                    } catch (InterruptedException e1) {
-                        //do nothing
-                        Thread.currentThread().interrupt();
-                    }
+            List<Callable<SummaryStats>> tasks = new ArrayList<>(100);
 
-                    numRetries++;
+            for(String hrIdxFileName: hourlyIndexFileNames){
+                final long curFromTimeHr = fromTimeHr;
+                final long curToTimeHr = toTimeHr;
 
-                    if(numRetries> maxRetries){
-                        LOG.error("getContent could not retrieve data from {} after {} retries", fileName, maxRetries);
-                        throw new GenericErrorException("Could not retrieve data from "+fileName+" after "+maxRetries+" retries");
+                tasks.add(new Callable<SummaryStats>(){
+                    @Override
+                    public SummaryStats call() throws Exception {
+                        return aggregateHour(customerId, equipmentId, curFromTimeHr, curToTimeHr, summaryIndexName, summaryIndexedValues, 
+                                hrIdxFileName, summaryExtractor, fieldNames);
                     }
-                }
-            }
-        }
+                });
 
-        LOG.trace("waiting for {} futures", futures.size());
+                //adjust hour boundaries for the next iteration
+                fromTimeHr = toTimeHr + 1; 
+                toTimeHr = Math.min(toTime, 
+                        fromTimeHr 
+                        + TimeUnit.HOURS.toMillis(hourlyIndexFileNames.getHourIncrement())
+                        - 1
+                        );
+            }
 
-        //combine entries from all the files
-        for(Future<List<T>> future: futures){
-            try {
-                ret.addAll(future.get());
-                LOG.trace("getContent - collected future result");
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new GenericErrorException("Failed to collect result", e);
-            } catch (ExecutionException e) {
-                LOG.error("getContent could not retrieve data", e);
-                throw new GenericErrorException("Failed to collect result", e);
+            //combine statistics of all the hours
+            for(SummaryStats hourStats: invokeAll(customerId, tasks, "aggregate")){
+                ret.merge(hourStats);
             }
+
+        } finally {
+            Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
+            tmr.record((System.currentTimeMillis() - startTimeMs), TimeUnit.MILLISECONDS);
         }
 
+        LOG.debug("aggregate for customer {} equipment {} from {} to {} : {}", customerId, equipmentId, fromTime, toTime, ret);
         return ret;
     }
 
-    public <T> List<T> getEntries(int customerId, long fromTime, long toTime, final EntryFilter<T> entryFilter,
-            String indexName, Set<String> indexedValues, Class<T> dataClass) {
-        LOG.trace("begin getEntries for customer {} from {} to {}", customerId, fromTime, toTime);
-        List<T> ret = new ArrayList<>(4000);
-
-        Set<Long> equipmentIds = getEquipmentIds(customerId);
-        LOG.trace("found {} equipment ids for customer {}", equipmentIds.size(), customerId);
-
-        List<Future<List<T>>> futures = new ArrayList<>(equipmentIds.size());
-        for(final long eqId: equipmentIds){
-            int numRetries = 0;
-            LOG.trace("Collecting entries for equipment {}", eqId);
-            while(true){
-                try{
-                    futures.add(hdsGetEntriesExecutor.submit(new Callable<List<T>>(){
-                        @Override
-                        public List<T> call() throws Exception {
-                            return getEntries(customerId, eqId, fromTime, toTime, entryFilter, indexName, indexedValues, dataClass);
-                        } 
-                        }));
-                    break;
-                }
-                catch(RejectedExecutionException e){
-                    LOG.trace("getEntries for {} - rejected execution, will retry", eqId);
-
-                    //could not submit task, will retry
-                    try {
-                        Thread.sleep(sleepBetweenRetriesMs);
-                    } catch (InterruptedException e1) {
-                        //do nothing
-                        Thread.currentThread().interrupt();
-                    }
+    /**
+     * Compute statistics for a single hour interval, from the hourly summary when it is available, and from the data files otherwise.
+     */
+    private SummaryStats aggregateHour(int customerId, long equipmentId, long fromTimeHr, long toTimeHr, String indexName, Set<String> indexedValues, 
+            String hrIdxFileName, RecordSummaryExtractor summaryExtractor, String[] fieldNames) {
+
+        SummaryStats ret = new SummaryStats(fieldNames);
+        List<String> dataFileNames = getFileNames(customerId, equipmentId, fromTimeHr, toTimeHr);
+
+        HourlySummary summary = null;
+        //summaries are built only for the hours that are older than 70 minutes 
+        if(summaryExtractor!=null && indexName!=null && fromTimeHr < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(70)){
+            summary = getHourlySummary(HourlySummary.getSummaryFileName(hrIdxFileName), fieldNames);
+            if(summary==null){
+                scheduleRebuildOfHourlyIndex(indexName, fromTimeHr, hrIdxFileName);
+            }
+        }
 
-                    numRetries++;
+        List<String> dataFilesToRead = dataFileNames;
+        if(summary!=null){
+            summary.aggregate(dataFileNames, indexedValues, ret);
 
-                    if(numRetries> maxRetries){
-                        LOG.error("getEntries could not getEntries for {} after {} retries", eqId, maxRetries);
-                        throw new GenericErrorException("Could get entries for "+eqId+" after "+maxRetries+" retries");
-                    }
+            //data files that arrived after the summary was built are read directly
+            dataFilesToRead = new ArrayList<>();
+            for(String dataFileName: dataFileNames){
+                if(summary.getDataFileSummary(dataFileName)==null){
+                    dataFilesToRead.add(dataFileName);
                 }
             }
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "aggregate-hourlySummaryUsed-count").increment();
         }
-        LOG.trace("waiting for {} futures", futures.size());
 
-        //combine entries from all the files
-        for(Future<List<T>> future: futures){
-            try {
-                ret.addAll(future.get());
-                LOG.trace("getEntries {} - collected future result",customerId);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new GenericErrorException("Failed to collect result", e);
-            } catch (ExecutionException e) {
-                LOG.error("getEntries could not retrieve data", e);
-                throw new GenericErrorException("Failed to collect result", e);
-            }
+        for(String dataFileName: dataFilesToRead){
+            aggregateDataFile(dataFileName, indexName, indexedValues, summaryExtractor, fieldNames, ret);
         }
 
-
-        LOG.trace("getEntries for customer {} from {} to {} - found {} entries", customerId, fromTime, toTime, ret.size());
-
         return ret;
     }
 
+    /**
+     * Read a data file and add statistics of its matching records into the target.
+     */
+    private void aggregateDataFile(String dataFileName, String indexName, final Set<String> indexedValues, 
+            final RecordSummaryExtractor summaryExtractor, final String[] fieldNames, final SummaryStats target) {
 
-    public <T> int countEntries(int customerId, long equipmentId, long fromTime, long toTime, final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass){
-
-        final AtomicInteger ret = new AtomicInteger();
+        final RecordIndexValueExtractor valueExtractor = (indexName!=null && indexedValues!=null && !indexedValues.isEmpty()) ? recordIndexes.get(indexName) : null;
+        final double[] fieldValues = new double[fieldNames.length];
 
-        DataFileOperation<T> operation = new DataFileOperation<T>() {
+        EntryFilter<BaseJsonModel> entryFilter = new EntryFilter<BaseJsonModel>() {
             @Override
-            public void processFiles(EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues,
-                    List<String> dataFileNames, DirectoryIndex hourlyIdx) {
-                ret.addAndGet(countEntries(entryFilter, indexName, indexedValues, dataFileNames, hourlyIdx, dataClass));
-            }
-        };
-
-        processDataFiles(customerId, equipmentId, fromTime, toTime, entryFilter, indexName, indexedValues, operation);
-
-        LOG.debug("countEntries for customer {} equipment {} from {} to {} Found {} results.", customerId, equipmentId, fromTime, toTime, ret.get());
-        return ret.get();
-    }
+            public BaseJsonModel getFilteredEntry(BaseJsonModel entry) {
+                int numMatches = 1;
+                if(valueExtractor!=null){
+                    numMatches = 0;
+                    for(String value: valueExtractor.extractValues(entry)){
+                        if(indexedValues.contains(value)){
+                            numMatches++;
+                        }
+                    }
+                }
 
-    public <T> int countEntries(final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, List<String> dataFileNames, DirectoryIndex hourlyIdx, Class<T> dataClass){
-        int ret = 0;
+                long ts = summaryExtractor==null ? -1 : summaryExtractor.extractTimestamp(entry);
+                for(int i = 0; i < fieldNames.length; i++){
+                    fieldValues[i] = summaryExtractor.extractNumericValue(entry, fieldNames[i]);
+                }
 
-        List<Future<Integer>> futures = new ArrayList<>(100);
-        //Go through a list of data files
-        for(final String fileName: dataFileNames){
-            int numRetries = 0;
-            //for each file, count entries stored in it
-            while(true){
-                try{
-                    LOG.trace("submitting countEntries task - attempt {}", numRetries);
+                for(int i = 0; i < numMatches; i++){
+                    target.add(ts, fieldValues);
+                }
 
-                    futures.add(hdsGetEntriesExecutor.submit(new Callable<Integer>(){
-                        @Override
-                        public Integer call() throws Exception {
-                            return countEntries(fileName, entryFilter, indexName, indexedValues, 
-                                    hourlyIdx==null?null:hourlyIdx.getDataFileNameToRecordIndexMap().get(fileName), dataClass);
-                        }
+                //statistics are accumulated in place, nothing needs to be collected
+                return null;
+            }
+        };
 
-                    }));
-                    break;
-                }catch(RejectedExecutionException e){
+        try {
+            readDataFile(dataFileName, entryFilter, null, BaseJsonModel.class);
+        } catch (FileNotFoundException e) {
+            LOG.trace("file {} does not exist", dataFileName);
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to read data file " + dataFileName, e);
+        }
+    }
 
-                    LOG.trace("countEntries for {} - rejected execution, will retry", fileName);
+    /**
+     * @param summaryFileName
+     * @param fieldNames - numeric fields the caller is interested in
+     * @return hourly summary, or null if it does not exist, cannot be read, or was built for different numeric fields
+     */
+    private HourlySummary getHourlySummary(String summaryFileName, String[] fieldNames) {
+        HourlySummary summary;
+        try(InputStream is = backend.read(summaryFileName)) {
+            summary = HourlySummary.fromBytes(StreamUtils.copyToByteArray(is));
+        } catch (FileNotFoundException e) {
+            LOG.trace("hourly summary {} does not exist", summaryFileName);
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Could not read hourly summary {} : {}", summaryFileName, e.getMessage());
+            return null;
+        }
 
-                    //could not submit task, will retry
-                    try {
-                        Thread.sleep(sleepBetweenRetriesMs);
-                    } catch (InterruptedException e1) {
-                        //do nothing
-                        Thread.currentThread().interrupt();
-                    }
+        return Arrays.equals(summary.getFieldNames(), fieldNames) ? summary : null;
+    }
 
-                    numRetries++;
+    /**
+     * Run the tasks as a part of the query bound to the current thread, or as a new INTERACTIVE query of the customer if there is none, 
+     * and wait for all of them to complete.
+     * If one of the tasks fails, the ones that are still outstanding are cancelled.
+     * @param customerId
+     * @param tasks
+     * @param description - used in the log messages
+     * @return results of the tasks, in the same order as the tasks
+     */
+    private <V> List<V> invokeAll(int customerId, List<Callable<V>> tasks, String description) {
+        try(HdsQueryScheduler.QueryScope queryScope = queryScheduler.joinOrStartQuery(customerId)){
+            HdsQueryScheduler.Query query = queryScope.getQuery();
 
-                    if(numRetries> maxRetries){
-                        LOG.error("countEntries for could not retrieve data from {} after {} retries", 
-                                fileName, maxRetries);
-                        throw new GenericErrorException("Could not retrieve data from "+fileName+" after "+maxRetries+" retries");
-                    }
+            List<Future<V>> futures = new ArrayList<>(tasks.size());
+            List<V> ret = new ArrayList<>(tasks.size());
+            try {
+                for(Callable<V> task: tasks){
+                    futures.add(query.submit(task));
                 }
-            }
-        }
 
-        LOG.trace("waiting for {} futures", futures.size());
+                LOG.trace("{} - waiting for {} futures", description, futures.size());
 
-        //combine entries from all the files
-        for(Future<Integer> future: futures){
-            try {
-                ret+=future.get();
-                LOG.trace("collected future result");
+                for(Future<V> future: futures){
+                    ret.add(query.waitFor(future));
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw new GenericErrorException("Failed to collect result", e);
             } catch (ExecutionException e) {
-                LOG.error("countEntries could not retrieve data", e);
+                LOG.error("{} could not retrieve data", description, e);
                 throw new GenericErrorException("Failed to collect result", e);
+            } finally {
+                if(ret.size() < futures.size()){
+                    for(Future<V> future: futures){
+                        future.cancel(true);
+                    }
+                }
             }
-        }
 
-        return ret;
+            return ret;
+        }
     }
 
-    public <T> int countEntries(int customerId, long fromTime, long toTime, final EntryFilter<T> entryFilter, String indexName, Set<String> indexedValues, Class<T> dataClass){
-        int ret = 0;
-        LOG.trace("begin countEntries for customer {} from {} to {}", customerId, fromTime, toTime);
-
-        Set<Long> equipmentIds = getEquipmentIds(customerId);
-        LOG.trace("found {} equipment ids for customer {}", equipmentIds.size(), customerId);
-
-        for(long eqId: equipmentIds){
-            LOG.trace("Collecting entries for equipment {}", eqId);
-            ret+=countEntries(customerId, eqId, fromTime, toTime, entryFilter, indexName, indexedValues, dataClass);
+    /**
+     * @param dataFileNames - names of the data files, structured as dsPrefix/customerId/equipmentId/yyyy/MM/dd/HH/fileName
+     * @return customer id of the first data file, or 0 if it cannot be determined
+     */
+    private int extractCustomerId(List<String> dataFileNames) {
+        if(dataFileNames.isEmpty()){
+            return 0;
         }
 
-        LOG.trace("getEntries for customer {} from {} to {} - found {} entries", customerId, fromTime, toTime, ret);
-
-        return ret;
+        try{
+            String fileName = dataFileNames.get(0);
+            int start = dsPrefix.length() + 1;
+            return Integer.parseInt(fileName.substring(start, fileName.indexOf('/', start)));
+        } catch (RuntimeException e) {
+            return 0;
+        }
     }
 
     public int deleteFiles(int customerId, long equipmentId, long fromTime, long toTime){
@@ -1438,25 +2066,35 @@ public class HierarchicalDatastore{
         long startTime = System.currentTimeMillis();
 
         try{
-            int i = 0;
             //Get a list of files to delete
-            for(String fileName: getFileNames(customerId, equipmentId, fromTime, toTime)){
-                //for each file, delete it
+            List<String> fileNames = getFileNames(customerId, equipmentId, fromTime, toTime);
+            List<String> idxFileNames = new ArrayList<>();
+            for(String fileName: fileNames){
                 LOG.trace("deleting file {} ", fileName);
-                File f = new File(dsRootDirName, fileName);
-                boolean result = f.delete();
-                if(result) {
-                	LOG.trace("deleted file {}", fileName);
-                    i++;
-                } else {
-                	LOG.warn("Could not delete file {}", fileName);
+                directoryListingCache.invalidate(fileName.substring(0, fileName.lastIndexOf('/')+1));
+                hotDataFileCache.invalidate(fileName);
+
+                //binary record indexes belong to the data file, remove them as well
+                for(String idxName: recordIndexes.keySet()){
+                    String idxFileName = getBinaryIndexFileName(fileName, idxName);
+                    idxFileNames.add(idxFileName);
+                    binaryRecordIndexCache.invalidate(new File(dsRootDirName, idxFileName).getPath());
                 }
-                
             }
 
+            //delete files in batches
+            int i = backend.delete(fileNames);
+            if(i < fileNames.size()) {
+                LOG.warn("Could not delete {} files out of {}", fileNames.size() - i, fileNames.size());
+            }
+
+            backend.delete(idxFileNames);
+
             LOG.trace("deleted {} files", i);
 
             return i;
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to delete files", e);
         } finally{
             long endTime = System.currentTimeMillis();
             Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
@@ -1495,14 +2133,14 @@ public class HierarchicalDatastore{
         try{
             String targetObjectName = getFileName(customerId, relativeTargetObjectName);
             
-            File f = new File(dsRootDirName, targetObjectName);
-            boolean result = f.delete();
+            boolean result = backend.delete(Collections.singletonList(targetObjectName)) > 0;
             if(result) {
             	LOG.trace("deleted file {}", targetObjectName);
             } else {
             	LOG.warn("Could not delete file {}", targetObjectName);
             }
-
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to delete file", e);
         } finally{
             long endTime = System.currentTimeMillis();
             Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
@@ -1525,13 +2163,14 @@ public class HierarchicalDatastore{
 
         try{
             String targetObjectName = getFileName(customerId, equipmentId, relativeTargetObjectName);
-            File f = new File(dsRootDirName, targetObjectName);
-            boolean result = f.delete();
+            boolean result = backend.delete(Collections.singletonList(targetObjectName)) > 0;
             if(result) {
             	LOG.trace("deleted file {}", targetObjectName);
             } else {
             	LOG.warn("Could not delete file {}", targetObjectName);
             }
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to delete file", e);
         } finally{
             long endTime = System.currentTimeMillis();
             Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
@@ -1591,12 +2230,8 @@ public class HierarchicalDatastore{
     
                 String computedPrefix = sb.toString();
     
-                File parentFolder = new File(dsRootDirName + File.separator + computedPrefix);
-                
-                FilenameFilter fnameFilter = new  FilenameFilter() { public boolean accept(File file, String name){ return true;}};
-                
                 //This will process a list of sub-folder names, each representing an equipmentId.
-                for(String fName: parentFolder.list(fnameFilter)) {
+                for(String fName: backend.list(computedPrefix)) {
     
                         try{
                             long equipmentId = Long.parseLong(fName);
@@ -1617,6 +2252,8 @@ public class HierarchicalDatastore{
             }
             
             LOG.debug("Found equipment ids for customer {} in {} ms: {}", customerId, (endTimeMs - startTimeMs), ret);
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to list equipment ids", e);
         } finally{
             endTimeMs = System.currentTimeMillis();
             Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
@@ -1652,12 +2289,8 @@ public class HierarchicalDatastore{
             long startTimeMs = System.currentTimeMillis();
             String computedPrefix = sb.toString();
             
-            File parentFolder = new File(dsRootDirName + File.separator + computedPrefix);
-            
-            FilenameFilter fnameFilter = new  FilenameFilter() { public boolean accept(File file, String name){ return true;}};
-            
             //This will process a list of sub-folder names, each representing a customerId.
-            for(String fName: parentFolder.list(fnameFilter)) {
+            for(String fName: backend.list(computedPrefix)) {
                     try{
                         int customerId = Integer.parseInt(fName);
                         ret.add(customerId);
@@ -1669,6 +2302,8 @@ public class HierarchicalDatastore{
             endTimeMs = System.currentTimeMillis();
 
             LOG.debug("Found customer {} ids ms: {}", ret.size(), (endTimeMs - startTimeMs));
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to list customer ids", e);
         } finally{
             endTimeMs = System.currentTimeMillis();
             Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
@@ -1719,12 +2354,8 @@ public class HierarchicalDatastore{
             long startTimeMs = System.currentTimeMillis();
             String computedPrefix = sb.toString();
 
-            File parentFolder = new File(dsRootDirName + File.separator + computedPrefix);
-            
-            FilenameFilter fnameFilter = new  FilenameFilter() { public boolean accept(File file, String name){ return true;}};
-            
-            //This will process a list of files in a given folder
-            for(String fName: parentFolder.list(fnameFilter)) {
+            //This will process a list of files in a given folder, empty list if directory does not exist - there is no data for this hour
+            for(String fName: backend.list(computedPrefix)) {
 
                     if(fName.startsWith(fileNamePrefix)){
                         //we're only interested in files with supplied prefix 
@@ -1736,6 +2367,8 @@ public class HierarchicalDatastore{
             endTimeMs = System.currentTimeMillis();
 
             LOG.debug("Found {} file names ms: {}", ret.size(), (endTimeMs - startTimeMs));
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to list file names", e);
         } finally{
             endTimeMs = System.currentTimeMillis();
             Timer tmr = CloudMetricsUtils.getTimer(timerMetricId);
@@ -1745,7 +2378,7 @@ public class HierarchicalDatastore{
         return ret;
     }
 
-    public void uploadStreamToFileOverwriteOld(InputStream inputStream, long dataSize, String targetObjectName){
+    public void uploadStreamToFileOverwriteOld(InputStream inputStream, long dataSize, String targetObjectName) throws IOException {
         uploadStream(inputStream, dataSize, targetObjectName, ObjectExistsBehaviour.overwriteOld);
     }
 
@@ -1754,7 +2387,11 @@ public class HierarchicalDatastore{
 
         byte[] modelBytes = model.toString().getBytes(StandardCharsets.UTF_8);
         ByteArrayInputStream bais = new ByteArrayInputStream(modelBytes);
-        uploadStream(bais, modelBytes.length, targetObjectName, ObjectExistsBehaviour.overwriteOld);
+        try {
+            uploadStream(bais, modelBytes.length, targetObjectName, ObjectExistsBehaviour.overwriteOld);
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to upload " + targetObjectName, e);
+        }
     }
 
     public void upload(BaseJsonModel model, int customerId, long equipmentId, String relativeTargetObjectName){
@@ -1762,7 +2399,11 @@ public class HierarchicalDatastore{
 
         byte[] modelBytes = model.toString().getBytes(StandardCharsets.UTF_8);
         ByteArrayInputStream bais = new ByteArrayInputStream(modelBytes);
-        uploadStream(bais, modelBytes.length, targetObjectName, ObjectExistsBehaviour.overwriteOld);
+        try {
+            uploadStream(bais, modelBytes.length, targetObjectName, ObjectExistsBehaviour.overwriteOld);
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to upload " + targetObjectName, e);
+        }
     }
 
     public BaseJsonModel getContentAsModelOrNull(int customerId, String relativeTargetObjectName){
@@ -1782,7 +2423,15 @@ public class HierarchicalDatastore{
         createNewFileWithAttemptNumber
     }
 
-    public void uploadStream(InputStream inputStream, long dataSize, String fullTargetObjectName, ObjectExistsBehaviour whenObjectExists){
+    /**
+     * Upload content of the stream into the datastore.
+     * @param inputStream
+     * @param dataSize
+     * @param fullTargetObjectName
+     * @param whenObjectExists
+     * @throws IOException - if the backend could not write the object. Nothing is uploaded in that case, caller should keep its data and retry later.
+     */
+    public void uploadStream(InputStream inputStream, long dataSize, String fullTargetObjectName, ObjectExistsBehaviour whenObjectExists) throws IOException {
 
         String counterMetricId = servoMetricPrefix + "upload-count";
         String timerMetricId = servoMetricPrefix + "upload-timer";
@@ -1803,8 +2452,7 @@ public class HierarchicalDatastore{
 
                 //check if a file with the same name was already uploaded
                 try{
-                    File f = new File(dsRootDirName, effectiveTargetName);
-                    targetObjectExists = f.exists();
+                    targetObjectExists = backend.exists(effectiveTargetName);
                 }catch(Exception e){
                     //expected it
                 }
@@ -1821,8 +2469,7 @@ public class HierarchicalDatastore{
                             targetObjectExists = false;
                             effectiveTargetName = fullTargetObjectName + "_" + attemptNumber;
                             try{
-                                File f = new File(dsRootDirName, effectiveTargetName);
-                                targetObjectExists = f.exists();
+                                targetObjectExists = backend.exists(effectiveTargetName);
                             }catch(Exception e){
                                 //expected it
                             }
@@ -1850,18 +2497,15 @@ public class HierarchicalDatastore{
 
             LOG.info("Upload started: {}/{}", dsRootDirName, effectiveTargetName);
 
-            File parentDir = new File(dsRootDirName + File.separator + effectiveTargetName.substring(0, effectiveTargetName.lastIndexOf(File.separator)));
-            if(!parentDir.exists()) {
-            	LOG.info("Creating datastore dir {}", parentDir.getAbsoluteFile());
-            	parentDir.mkdirs();
-            }
-
-            try(FileOutputStream fos = new FileOutputStream(new File(dsRootDirName, effectiveTargetName))) {
-            	StreamUtils.copy(inputStream, fos);
-            	fos.flush();
+            try {
+                backend.write(effectiveTargetName, inputStream, dataSize);
                 LOG.info("Upload complete: {}/{}", dsRootDirName, effectiveTargetName);
             } catch (IOException e) {
                 LOG.error("Unable to upload stream into {}/{}, upload was aborted. {}", dsRootDirName, effectiveTargetName, e);
+                throw e;
+            } finally {
+                //cached content, if any, is no longer valid
+                hotDataFileCache.invalidate(effectiveTargetName);
             }
 
         } finally{
@@ -1997,11 +2641,8 @@ public class HierarchicalDatastore{
             return;
         }
 
-        try(FileInputStream fis = new FileInputStream(dsRootDirName+ File.separator + fileName)){
-
-            LOG.trace("found object {}", fileName);
-
-            List<T> filteredEntries = getContent(fis, entryFilter, matchingLines, dataClass);
+        try{
+            List<T> filteredEntries = readDataFile(fileName, entryFilter, matchingLines, dataClass);
 
             for(T singleEntry: filteredEntries){
                 BaseJsonModel  convertedModel = modelConverter.convert(singleEntry);
@@ -2013,7 +2654,7 @@ public class HierarchicalDatastore{
                 }
             }
 
-        } catch (FileNotFoundException e){
+        } catch (FileNotFoundException | NoSuchFileException e){
             LOG.trace("object not found {}", fileName);
             return;
         } catch (IOException e) {
@@ -2066,10 +2707,8 @@ public class HierarchicalDatastore{
             return;
         }
 
-        try(FileInputStream fis = new FileInputStream(dsRootDirName+ File.separator + fileName)){
-            LOG.trace("found object {}", fileName);
-
-            List<T> filteredEntries = getContent(fis, entryFilter, matchingLines, dataClass);
+        try{
+            List<T> filteredEntries = readDataFile(fileName, entryFilter, matchingLines, dataClass);
 
             for(T singleEntry: filteredEntries){
 
@@ -2088,7 +2727,7 @@ public class HierarchicalDatastore{
                 }
             }
 
-        } catch (FileNotFoundException e){
+        } catch (FileNotFoundException | NoSuchFileException e){
             LOG.trace("object not found {}", fileName);
             return;
         } catch (IOException e) {
@@ -2112,11 +2751,17 @@ public class HierarchicalDatastore{
         
         FilenameFilter fnameFilter = new  FilenameFilter() { public boolean accept(File file, String name){ return true;}};
         
+        String[] fileNamesInFolder = parentFolder.list(fnameFilter);
+        if(fileNamesInFolder == null){
+            //directory does not exist
+            return fileNameToLastModMap;
+        }
+
         //This will process a list of files in a given folder
-        for(String fName: parentFolder.list(fnameFilter)) {
+        for(String fName: fileNamesInFolder) {
 
                 fullFileName = dirKey + fName;
-                File tf = new File(dirKey, fName);
+                File tf = new File(parentFolder, fName);
                 lastmodTs = tf.lastModified();
 
                 fileNameToLastModMap.put(fullFileName, lastmodTs);
@@ -2130,6 +2775,10 @@ public class HierarchicalDatastore{
         return dsRootDirName;
     }
 
+    public DatastoreBackend getBackend() {
+        return backend;
+    }
+
     public String getDsPrefix() {
         return dsPrefix;
     }
@@ -2164,19 +2813,36 @@ public class HierarchicalDatastore{
 
         String idxKey = HierarchicalDatastore.getIndexFileName(fullFileName, idxName);
 
-        RecordIndex countsAndPositions = new RecordIndex(idxCounts, idxPositions);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
-        try {
-            baos.write(countsAndPositions.toZippedBytes());
-            baos.flush();
-        } catch (IOException e) {
-            throw new GenericErrorException("Failed to store record index", e);
+        recordIdxMap.put(idxKey, getRecordIndexBytes(idxCounts, idxPositions));            
+
+    }
+
+    /**
+     * Store record index counts and positions in hazelcast in the background, together with the indexes of the other new data files.
+     * Falls back to {@link #storeRecordIndex(String, RecordIndexCounts, RecordIndexPositions, String)} when background publication is not enabled.
+     * 
+     * @param idxName
+     * @param idxCounts
+     * @param idxPositions
+     * @param fullFileName - name of the data file that this index represents
+     */
+    public void storeRecordIndexInBackground(String idxName, RecordIndexCounts idxCounts,
+            RecordIndexPositions idxPositions, String fullFileName) {
+
+        if(indexPublisher==null){
+            storeRecordIndex(idxName, idxCounts, idxPositions, fullFileName);
+            return;
         }
 
-        byte[] idxBytes = baos.toByteArray();
+        String recordIdxMapName =  hazelcastObjectsConfiguration.getRecordIndexMapPrefix() + hazelcastMapPrefix + idxName;
+        String idxKey = HierarchicalDatastore.getIndexFileName(fullFileName, idxName);
 
-        recordIdxMap.put(idxKey, idxBytes);            
+        indexPublisher.publishRecordIndex(recordIdxMapName, idxKey, getRecordIndexBytes(idxCounts, idxPositions));
+    }
 
+    private static byte[] getRecordIndexBytes(RecordIndexCounts idxCounts, RecordIndexPositions idxPositions) {
+        RecordIndex countsAndPositions = new RecordIndex(idxCounts, idxPositions);
+        return countsAndPositions.toZippedBytes();
     }
 
     /**
@@ -2221,6 +2887,93 @@ public class HierarchicalDatastore{
         return countsAndPositions;
     }
 
+    /**
+     * Build name of the binary record index file: bidx/[data_file_directory]/idx_[indexName]_[data_file_name_without.zip_extention].bidx
+     * <br>
+     * Binary record indexes mirror the directory structure of the data files in a separate tree, 
+     * so that directory listings used by the queries and by the hourly index aggregator only see data and hourly index files.
+     * @param dataFileName
+     * @param indexName
+     * @return full file name of the binary record index file
+     */
+    public static String getBinaryIndexFileName(String dataFileName, String indexName){
+        return BinaryRecordIndex.ROOT_DIR_NAME + "/" + dataFileName.substring(0, dataFileName.lastIndexOf('/')+1) + getIndexFileName(dataFileName, indexName) + BinaryRecordIndex.FILE_EXTENSION;
+    }
+
+    /**
+     * Store record index counts and positions in binary form, alongside the data file.
+     * 
+     * @param idxName
+     * @param idxCounts
+     * @param idxPositions
+     * @param fullFileName - name of the data file that this index represents
+     * @throws IOException
+     */
+    public void storeBinaryRecordIndex(String idxName, RecordIndexCounts idxCounts,
+            RecordIndexPositions idxPositions, String fullFileName) throws IOException {
+        byte[] idxBytes = BinaryRecordIndex.toBytes(idxCounts, idxPositions);
+        String idxFileName = getBinaryIndexFileName(fullFileName, idxName);
+        uploadStreamToFileOverwriteOld(new ByteArrayInputStream(idxBytes), idxBytes.length, idxFileName);
+        binaryRecordIndexCache.invalidate(new File(dsRootDirName, idxFileName).getPath());
+    }
+
+    /**
+     * Retrieve binary record index for a given data file from the cache, or from the backend.
+     * @param idxName
+     * @param fullFileName - name of the data file
+     * @return binary record index for the specified data file, or null
+     */
+    public BinaryRecordIndex findBinaryRecordIndex(String idxName, String fullFileName){
+        if(backend.getLocalFile(fullFileName) != null){
+            return findBinaryRecordIndex(dsRootDirName, idxName, fullFileName);
+        }
+
+        String idxFileName = getBinaryIndexFileName(fullFileName, idxName);
+        String cacheKey = new File(dsRootDirName, idxFileName).getPath();
+        BinaryRecordIndex ret = binaryRecordIndexCache.get(cacheKey);
+        if(ret != null) {
+            return ret;
+        }
+
+        try(InputStream is = backend.read(idxFileName)) {
+            ret = BinaryRecordIndex.wrap(StreamUtils.copyToByteArray(is));
+            binaryRecordIndexCache.put(cacheKey, ret);
+            return ret;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Could not read binary record index {} : {}", idxFileName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve binary record index for a given data file from the cache, or from the disk.
+     * @param dsRootDirName
+     * @param idxName
+     * @param fullFileName - name of the data file
+     * @return binary record index for the specified data file, or null
+     */
+    public static BinaryRecordIndex findBinaryRecordIndex(String dsRootDirName, String idxName, String fullFileName){
+        File idxFile = new File(dsRootDirName, getBinaryIndexFileName(fullFileName, idxName));
+        String cacheKey = idxFile.getPath();
+        BinaryRecordIndex ret = binaryRecordIndexCache.get(cacheKey);
+        if(ret != null) {
+            return ret;
+        }
+
+        try {
+            ret = BinaryRecordIndex.load(idxFile);
+            binaryRecordIndexCache.put(cacheKey, ret);
+            return ret;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Could not read binary record index {} : {}", idxFile, e.getMessage());
+            return null;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public static <T extends BaseJsonModel> T getModelFromFile(String dsRootDirName, String fileName) {
     	try(FileInputStream fis = new FileInputStream(dsRootDirName+ File.separator + fileName)){
@@ -2235,6 +2988,30 @@ public class HierarchicalDatastore{
 
     }
 
+    /**
+     * @param fileName - full name of the zipped (JSON) file
+     * @param dataClass
+     * @return first model stored in the zipped file, or null if the file does not exist
+     */
+    public <T extends BaseJsonModel> T getZippedModel(String fileName, Class<T> dataClass) {
+        try(InputStream is = backend.read(fileName)){
+            EntryFilter<T> entryFilter = new EntryFilter<T>() {
+                @Override
+                public T getFilteredEntry(T entry) {
+                    return entry;
+                }
+            };
+
+            List<T> list = getContent(is, entryFilter , null, dataClass);
+            return (list == null || list.isEmpty()) ? null : list.get(0);
+        } catch (FileNotFoundException e){
+            LOG.trace("object {} does not exist", fileName);
+            return null;
+        } catch (IOException e) {
+            throw new GenericErrorException("Failed to load zipped model", e);
+        }
+    }
+
     public static <T extends BaseJsonModel> T getZippedModelFromFile(String dsRootDirName, String fileName, Class<T> dataClass) {
         List<T> list = getZippedModelsFromFile(dsRootDirName, fileName, dataClass);
 
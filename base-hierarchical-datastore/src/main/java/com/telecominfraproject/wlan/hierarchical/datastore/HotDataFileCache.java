@@ -0,0 +1,174 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.telecominfraproject.wlan.hierarchical.datastore.index.DirectoryIndex;
+
+/**
+ * Local cache of the content of recently written data files, keyed by full data file name.<br>
+ * Most of the reads are for the last hour or two of data, this cache lets them skip reading the data files from the backend.
+ * Data files are kept in their zipped form - the same bytes that are stored in the backend,
+ * so that they can be added to the cache by the writer without any extra work.
+ * The writer hands over the buffer it has collected the data file in, so the content of a data file may be only a part of its array.
+ * The size of the whole array is counted against the cache size.
+ * <ul>
+ * <li>Only "hot" data files are cached - those whose time (taken from the file name) is within maxAgeMs from now.
+ *      Entries that are no longer hot are dropped when they are looked up.
+ * <li>Cache is bounded by the total size of the cached data files, least recently used data files are evicted first.
+ *      Data files larger than 1/4 of the cache size are not cached.
+ * </ul>
+ * <br>
+ * This class is thread-safe.
+ *
+ * @author dtop
+ *
+ */
+public class HotDataFileCache {
+
+    /**
+     * Approximate memory taken by a cache entry in addition to the content and the name of the data file
+     */
+    private static final int entryOverheadBytes = 96;
+
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final Map<String, ByteBuffer> cache;
+    private long totalBytes;
+    private long evictionCount;
+
+    /**
+     * @param maxBytes - maximum total size of the cached data files, value of 0 disables the cache
+     * @param maxAgeMs - only data files whose time is within maxAgeMs from now are cached
+     */
+    public HotDataFileCache(long maxBytes, long maxAgeMs) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        //access-ordered map, the least recently used data file is evicted first
+        this.cache = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param dataFileName
+     * @param nowMs
+     * @return true if the data file is recent enough to be cached
+     */
+    public boolean isHot(String dataFileName, long nowMs) {
+        if(maxBytes <= 0) {
+            return false;
+        }
+
+        long fileTimeMs = DirectoryIndex.extractTimeFromTheDataFileName(dataFileName);
+        return fileTimeMs >= 0 && fileTimeMs >= nowMs - maxAgeMs;
+    }
+
+    /**
+     * @param dataFileName
+     * @param nowMs
+     * @return zipped content of the data file between position and limit of the returned buffer, or null if it is not in the cache. Content must not be modified.
+     */
+    public synchronized ByteBuffer get(String dataFileName, long nowMs) {
+        ByteBuffer ret = cache.get(dataFileName);
+        if(ret != null && !isHot(dataFileName, nowMs)) {
+            remove(dataFileName);
+            return null;
+        }
+
+        //callers get their own position and limit
+        return ret == null ? null : ret.duplicate();
+    }
+
+    /**
+     * Add a data file to the cache, if it is hot and not too large.
+     * Least recently used data files are evicted to make room for it.
+     * @param dataFileName
+     * @param zippedBytes - content of the data file, must not be modified after it is added to the cache
+     * @param nowMs
+     * @return number of data files that were evicted
+     */
+    public int put(String dataFileName, byte[] zippedBytes, long nowMs) {
+        return put(dataFileName, ByteBuffer.wrap(zippedBytes), nowMs);
+    }
+
+    /**
+     * Add a data file to the cache, if it is hot and not too large.
+     * Least recently used data files are evicted to make room for it.
+     * @param dataFileName
+     * @param zippedBytes - array-backed buffer with the content of the data file between its position and limit, must not be modified after it is added to the cache
+     * @param nowMs
+     * @return number of data files that were evicted
+     */
+    public synchronized int put(String dataFileName, ByteBuffer zippedBytes, long nowMs) {
+        if(!isHot(dataFileName, nowMs) || getWeight(dataFileName, zippedBytes) > maxBytes / 4) {
+            return 0;
+        }
+
+        ByteBuffer entry = zippedBytes.duplicate();
+        remove(dataFileName);
+        cache.put(dataFileName, entry);
+        totalBytes += getWeight(dataFileName, entry);
+
+        int numEvicted = 0;
+        Iterator<Map.Entry<String, ByteBuffer>> iter = cache.entrySet().iterator();
+        while(totalBytes > maxBytes && iter.hasNext()) {
+            Map.Entry<String, ByteBuffer> eldest = iter.next();
+            iter.remove();
+            totalBytes -= getWeight(eldest.getKey(), eldest.getValue());
+            numEvicted++;
+        }
+
+        evictionCount += numEvicted;
+        return numEvicted;
+    }
+
+    /**
+     * Remove data file from the cache - called when the data file is overwritten or deleted.
+     * @param dataFileName
+     */
+    public synchronized void invalidate(String dataFileName) {
+        remove(dataFileName);
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        totalBytes = 0;
+    }
+
+    private void remove(String dataFileName) {
+        ByteBuffer removed = cache.remove(dataFileName);
+        if(removed != null) {
+            totalBytes -= getWeight(dataFileName, removed);
+        }
+    }
+
+    private static long getWeight(String dataFileName, ByteBuffer zippedBytes) {
+        return zippedBytes.capacity() + 2L * dataFileName.length() + entryOverheadBytes;
+    }
+
+    /**
+     * @return number of cached data files
+     */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return approximate memory taken by the cached data files
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return number of data files evicted from the cache to make room for the new ones since the cache was created
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
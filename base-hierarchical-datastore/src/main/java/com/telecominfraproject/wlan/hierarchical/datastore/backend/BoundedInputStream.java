@@ -0,0 +1,66 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.backend;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that returns at most maxBytes from the underlying stream. Closing it closes the underlying stream.
+ *
+ * @author dtop
+ *
+ */
+class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long maxBytes) {
+        super(in);
+        this.remaining = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(remaining <= 0) {
+            return -1;
+        }
+
+        int ret = super.read();
+        if(ret >= 0) {
+            remaining--;
+        }
+
+        return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(remaining <= 0) {
+            return -1;
+        }
+
+        int ret = super.read(b, off, (int) Math.min(len, remaining));
+        if(ret > 0) {
+            remaining -= ret;
+        }
+
+        return ret;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long ret = super.skip(Math.min(n, remaining));
+        remaining -= ret;
+        return ret;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
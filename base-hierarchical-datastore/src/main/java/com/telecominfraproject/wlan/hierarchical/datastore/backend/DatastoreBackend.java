@@ -0,0 +1,87 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.backend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage of the objects (data files, index files, json models) that belong to a HierarchicalDatastore.<br>
+ * Object names are relative to the root of the backend, and use '/' as a separator of the directory names,
+ * i.e. dsPrefix/customerId/equipmentId/yyyy/MM/dd/HH/fileName.zip
+ * <br>
+ * Implementations must be thread-safe.
+ *
+ * @author dtop
+ *
+ */
+public interface DatastoreBackend {
+
+    /**
+     * @param objectName
+     * @return stream with the content of the object, caller must close it
+     * @throws FileNotFoundException if object does not exist
+     * @throws IOException
+     */
+    InputStream read(String objectName) throws IOException;
+
+    /**
+     * @param objectName
+     * @param offset - position of the first byte to read
+     * @param length - number of bytes to read, fewer bytes are returned if the object ends before offset + length
+     * @return stream with the requested range of the object content, caller must close it
+     * @throws FileNotFoundException if object does not exist
+     * @throws IOException
+     */
+    InputStream readRange(String objectName, long offset, long length) throws IOException;
+
+    /**
+     * Store content of the object, replacing existing content if the object already exists.
+     * Readers never see a partially written object. Content is streamed, it is not required to fit in memory.
+     * @param objectName
+     * @param inputStream - content of the object, it is read until the end but it is not closed
+     * @param dataSize - number of bytes in the inputStream, or -1 if unknown
+     * @throws IOException
+     */
+    void write(String objectName, InputStream inputStream, long dataSize) throws IOException;
+
+    /**
+     * @param objectName
+     * @return true if object exists
+     * @throws IOException
+     */
+    boolean exists(String objectName) throws IOException;
+
+    /**
+     * @param objectName
+     * @return number of bytes in the object
+     * @throws FileNotFoundException if object does not exist
+     * @throws IOException
+     */
+    long size(String objectName) throws IOException;
+
+    /**
+     * @param directoryName - name of the directory, with or without trailing '/'
+     * @return names of the objects and sub-directories directly under the supplied directory - without the directory name prefix and without trailing '/'.
+     *  Empty list if the directory does not exist.
+     * @throws IOException
+     */
+    List<String> list(String directoryName) throws IOException;
+
+    /**
+     * Delete supplied objects, objects that do not exist are ignored.
+     * @param objectNames
+     * @return number of objects that were deleted
+     * @throws IOException
+     */
+    int delete(Collection<String> objectNames) throws IOException;
+
+    /**
+     * Backends that keep objects in the local file system allow direct access to them - for memory mapping and random access reads.
+     * @param objectName
+     * @return file that stores content of the object, or null if this backend does not store objects in the local file system
+     */
+    File getLocalFile(String objectName);
+}
@@ -0,0 +1,153 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.backend;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DatastoreBackend that keeps objects as files under a root directory of the local (or mounted) file system.<br>
+ * Objects are written into a temporary file first, and then moved into place, so readers never see partially written files.
+ *
+ * @author dtop
+ *
+ */
+public class LocalFileDatastoreBackend implements DatastoreBackend {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalFileDatastoreBackend.class);
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final String rootDirName;
+    private final Path rootDir;
+
+    public LocalFileDatastoreBackend(String rootDirName) {
+        this.rootDirName = rootDirName;
+        this.rootDir = Paths.get(rootDirName);
+    }
+
+    private Path resolve(String objectName) {
+        return rootDir.resolve(objectName);
+    }
+
+    @Override
+    public InputStream read(String objectName) throws IOException {
+        try {
+            return Files.newInputStream(resolve(objectName));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(objectName);
+        }
+    }
+
+    @Override
+    public InputStream readRange(String objectName, long offset, long length) throws IOException {
+        SeekableByteChannel channel;
+        try {
+            channel = Files.newByteChannel(resolve(objectName), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(objectName);
+        }
+
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new BoundedInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public void write(String objectName, InputStream inputStream, long dataSize) throws IOException {
+        Path target = resolve(objectName);
+        Path parentDir = target.getParent();
+        if(parentDir != null && !Files.isDirectory(parentDir)) {
+            LOG.info("Creating datastore dir {}", parentDir.toAbsolutePath());
+            Files.createDirectories(parentDir);
+        }
+
+        Path tempFile = Files.createTempFile(parentDir, "." + target.getFileName().toString(), TEMP_FILE_SUFFIX);
+        try {
+            Files.copy(inputStream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @Override
+    public boolean exists(String objectName) {
+        return Files.exists(resolve(objectName));
+    }
+
+    @Override
+    public long size(String objectName) throws IOException {
+        try {
+            return Files.size(resolve(objectName));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(objectName);
+        }
+    }
+
+    @Override
+    public List<String> list(String directoryName) throws IOException {
+        List<String> ret = new ArrayList<>();
+
+        try(DirectoryStream<Path> dirStream = Files.newDirectoryStream(resolve(directoryName))) {
+            for(Path path: dirStream) {
+                String name = path.getFileName().toString();
+                if(!name.endsWith(TEMP_FILE_SUFFIX)) {
+                    ret.add(name);
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            //directory does not exist - nothing to list
+        }
+
+        return ret;
+    }
+
+    @Override
+    public int delete(Collection<String> objectNames) throws IOException {
+        int ret = 0;
+        for(String objectName: objectNames) {
+            if(Files.deleteIfExists(resolve(objectName))) {
+                ret++;
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public File getLocalFile(String objectName) {
+        return new File(rootDirName, objectName);
+    }
+
+    @Override
+    public String toString() {
+        return "LocalFileDatastoreBackend(" + rootDirName + ")";
+    }
+}
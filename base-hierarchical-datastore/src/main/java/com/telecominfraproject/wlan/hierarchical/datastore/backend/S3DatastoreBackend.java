@@ -0,0 +1,729 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * DatastoreBackend that keeps objects in a bucket of S3-compatible object store (AWS S3, MinIO, Ceph RGW, etc.).<br>
+ * Talks to the store over its REST API using path-style urls (endpoint/bucket/objectName), requests are signed with AWS Signature Version 4.
+ * <ul>
+ * <li>Objects up to partSizeBytes are uploaded with a single PUT, larger objects and objects of unknown size are uploaded with multipart upload,
+ *      only one part is kept in memory at a time. Object becomes visible to readers only when the upload is complete.
+ * <li>Ranged reads use Range header, so that only the requested bytes are transferred.
+ * <li>Deletes are batched, up to 1000 objects per request.
+ * <li>Requests that fail with http 5xx (including SlowDown throttling) are retried with exponential backoff, up to tip.wlan.hdsS3MaxAttempts times.
+ * <li>Responses are read to the end and closed rather than disconnected, so that connections are re-used (http keep-alive).
+ * </ul>
+ * Objects are not available as local files, so HDS reads data files from this backend as streams.
+ *
+ * @author dtop
+ *
+ */
+public class S3DatastoreBackend implements DatastoreBackend {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3DatastoreBackend.class);
+
+    public static final int DEFAULT_PART_SIZE_BYTES = 8 * 1024 * 1024;
+    /**
+     * S3 rejects parts smaller than 5MB, except the last one
+     */
+    public static final int MIN_PART_SIZE_BYTES = 5 * 1024 * 1024;
+    public static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String SIGNING_ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE_NAME = "s3";
+
+    private static final int connectTimeoutMs = Integer.getInteger("tip.wlan.hdsS3ConnectTimeoutMs", 10000);
+    private static final int readTimeoutMs = Integer.getInteger("tip.wlan.hdsS3ReadTimeoutMs", 60000);
+    private static final int maxAttempts = Integer.getInteger("tip.wlan.hdsS3MaxAttempts", 4);
+    private static final long retryBackoffMs = Long.getLong("tip.wlan.hdsS3RetryBackoffMs", 100L);
+    private static final long maxRetryBackoffMs = Long.getLong("tip.wlan.hdsS3MaxRetryBackoffMs", 5000L);
+
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final int partSizeBytes;
+
+    /**
+     * @param endpoint - i.e. https://s3.us-east-1.amazonaws.com or http://minio-host:9000
+     * @param region - i.e. us-east-1
+     * @param bucket
+     * @param accessKey
+     * @param secretKey
+     */
+    public S3DatastoreBackend(String endpoint, String region, String bucket, String accessKey, String secretKey) {
+        this(endpoint, region, bucket, accessKey, secretKey, DEFAULT_PART_SIZE_BYTES);
+    }
+
+    /**
+     * @param endpoint
+     * @param region
+     * @param bucket
+     * @param accessKey
+     * @param secretKey
+     * @param partSizeBytes - size of the parts of multipart uploads, at least {@link #MIN_PART_SIZE_BYTES}
+     */
+    public S3DatastoreBackend(String endpoint, String region, String bucket, String accessKey, String secretKey, int partSizeBytes) {
+        if(partSizeBytes < MIN_PART_SIZE_BYTES) {
+            throw new IllegalArgumentException("partSizeBytes must be at least " + MIN_PART_SIZE_BYTES + ": " + partSizeBytes);
+        }
+
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.partSizeBytes = partSizeBytes;
+    }
+
+    @Override
+    public InputStream read(String objectName) throws IOException {
+        return openObject(objectName, null);
+    }
+
+    @Override
+    public InputStream readRange(String objectName, long offset, long length) throws IOException {
+        if(length <= 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        InputStream ret = openObject(objectName, "bytes=" + offset + "-" + (offset + length - 1));
+        //server may ignore Range header and return full object - guard against returning more than was asked
+        return new BoundedInputStream(ret, length);
+    }
+
+    private InputStream openObject(String objectName, String range) throws IOException {
+        Map<String, String> headers = new TreeMap<>();
+        if(range != null) {
+            headers.put("range", range);
+        }
+
+        return withRetries("GET", objectName, () -> {
+            HttpURLConnection conn = openConnection("GET", objectName, new TreeMap<>(), headers);
+            int responseCode = conn.getResponseCode();
+
+            if(responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                drainAndClose(conn);
+                throw new FileNotFoundException(objectName);
+            }
+
+            if(responseCode == 416) {
+                //requested range starts beyond the end of the object
+                drainAndClose(conn);
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            try {
+                checkResponse(conn, "GET", objectName);
+            } catch (IOException e) {
+                drainAndClose(conn);
+                throw e;
+            }
+
+            //closing the stream, instead of disconnecting, returns the connection to the keep-alive cache once the response is read to the end
+            return conn.getInputStream();
+        });
+    }
+
+    @Override
+    public void write(String objectName, InputStream inputStream, long dataSize) throws IOException {
+        if(dataSize >= 0 && dataSize <= partSizeBytes) {
+            byte[] content = readUpTo(inputStream, (int) dataSize);
+            putObject(objectName, content, content.length);
+            return;
+        }
+
+        //size is unknown or large - read the first part to find out if multipart upload is needed
+        byte[] firstPart = new byte[partSizeBytes];
+        int firstPartLength = readFully(inputStream, firstPart);
+        if(firstPartLength < partSizeBytes) {
+            putObject(objectName, firstPart, firstPartLength);
+            return;
+        }
+
+        multipartUpload(objectName, inputStream, firstPart);
+    }
+
+    private void putObject(String objectName, byte[] content, int length) throws IOException {
+        withRetries("PUT", objectName, () -> {
+            HttpURLConnection conn = openConnection("PUT", objectName, new TreeMap<>(), new TreeMap<>(), length);
+            try {
+                try(OutputStream os = conn.getOutputStream()) {
+                    os.write(content, 0, length);
+                }
+                checkResponse(conn, "PUT", objectName);
+                return null;
+            } finally {
+                drainAndClose(conn);
+            }
+        });
+    }
+
+    private void multipartUpload(String objectName, InputStream inputStream, byte[] firstPart) throws IOException {
+        Map<String, String> query = new TreeMap<>();
+        query.put("uploads", "");
+        Document initResponse = executeForXml("POST", objectName, query, new TreeMap<>(), null);
+        String uploadId = getFirstElementText(initResponse.getDocumentElement(), "UploadId");
+        if(uploadId == null) {
+            throw new IOException("Multipart upload of " + objectName + " was not initiated - no UploadId in response");
+        }
+
+        LOG.debug("Started multipart upload {} of {}", uploadId, objectName);
+
+        try {
+            List<String> etags = new ArrayList<>();
+            byte[] part = firstPart;
+            int partLength = firstPart.length;
+            while(partLength > 0) {
+                etags.add(uploadPart(objectName, uploadId, etags.size() + 1, part, partLength));
+                if(partLength < part.length) {
+                    break;
+                }
+                partLength = readFully(inputStream, part);
+            }
+
+            StringBuilder sb = new StringBuilder("<CompleteMultipartUpload>");
+            for(int i = 0; i < etags.size(); i++) {
+                sb.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                    .append(escapeXml(etags.get(i))).append("</ETag></Part>");
+            }
+            sb.append("</CompleteMultipartUpload>");
+
+            query.clear();
+            query.put("uploadId", uploadId);
+            Document completeResponse = executeForXml("POST", objectName, query, new TreeMap<>(), sb.toString().getBytes(StandardCharsets.UTF_8));
+            //S3 may report failure of the complete operation with http 200 and Error element in the body
+            if("Error".equals(completeResponse.getDocumentElement().getNodeName())) {
+                throw new IOException("Multipart upload of " + objectName + " failed: " +
+                        getFirstElementText(completeResponse.getDocumentElement(), "Message"));
+            }
+
+            LOG.debug("Completed multipart upload {} of {} in {} parts", uploadId, objectName, etags.size());
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(objectName, uploadId);
+            throw e;
+        }
+    }
+
+    private String uploadPart(String objectName, String uploadId, int partNumber, byte[] part, int partLength) throws IOException {
+        Map<String, String> query = new TreeMap<>();
+        query.put("partNumber", Integer.toString(partNumber));
+        query.put("uploadId", uploadId);
+
+        return withRetries("PUT part " + partNumber, objectName, () -> {
+            HttpURLConnection conn = openConnection("PUT", objectName, query, new TreeMap<>(), partLength);
+            try {
+                try(OutputStream os = conn.getOutputStream()) {
+                    os.write(part, 0, partLength);
+                }
+                checkResponse(conn, "PUT part " + partNumber, objectName);
+                String etag = conn.getHeaderField("ETag");
+                if(etag == null) {
+                    throw new IOException("No ETag returned for part " + partNumber + " of " + objectName);
+                }
+                return etag;
+            } finally {
+                drainAndClose(conn);
+            }
+        });
+    }
+
+    private void abortMultipartUpload(String objectName, String uploadId) {
+        Map<String, String> query = new TreeMap<>();
+        query.put("uploadId", uploadId);
+        try {
+            withRetries("DELETE upload", objectName, () -> {
+                HttpURLConnection conn = openConnection("DELETE", objectName, query, new TreeMap<>());
+                try {
+                    checkResponse(conn, "DELETE upload", objectName);
+                    return null;
+                } finally {
+                    drainAndClose(conn);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not abort multipart upload {} of {}: {}", uploadId, objectName, e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean exists(String objectName) throws IOException {
+        return withRetries("HEAD", objectName, () -> {
+            HttpURLConnection conn = openConnection("HEAD", objectName, new TreeMap<>(), new TreeMap<>());
+            try {
+                int responseCode = conn.getResponseCode();
+                if(responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                    return false;
+                }
+                checkResponse(conn, "HEAD", objectName);
+                return true;
+            } finally {
+                drainAndClose(conn);
+            }
+        });
+    }
+
+    @Override
+    public long size(String objectName) throws IOException {
+        return withRetries("HEAD", objectName, () -> {
+            HttpURLConnection conn = openConnection("HEAD", objectName, new TreeMap<>(), new TreeMap<>());
+            try {
+                int responseCode = conn.getResponseCode();
+                if(responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw new FileNotFoundException(objectName);
+                }
+                checkResponse(conn, "HEAD", objectName);
+                return conn.getContentLengthLong();
+            } finally {
+                drainAndClose(conn);
+            }
+        });
+    }
+
+    @Override
+    public List<String> list(String directoryName) throws IOException {
+        String prefix = directoryName.endsWith("/") ? directoryName : directoryName + "/";
+        List<String> ret = new ArrayList<>();
+
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("delimiter", "/");
+            query.put("prefix", prefix);
+            if(continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+
+            Element root = executeForXml("GET", null, query, new TreeMap<>(), null).getDocumentElement();
+
+            for(Element contents: getChildElements(root, "Contents")) {
+                String key = getFirstElementText(contents, "Key");
+                if(key != null && key.length() > prefix.length()) {
+                    ret.add(key.substring(prefix.length()));
+                }
+            }
+
+            for(Element commonPrefix: getChildElements(root, "CommonPrefixes")) {
+                String subDir = getFirstElementText(commonPrefix, "Prefix");
+                if(subDir != null && subDir.length() > prefix.length()) {
+                    ret.add(subDir.substring(prefix.length(), subDir.length() - 1));
+                }
+            }
+
+            continuationToken = "true".equals(getFirstElementText(root, "IsTruncated")) ? getFirstElementText(root, "NextContinuationToken") : null;
+        } while(continuationToken != null);
+
+        return ret;
+    }
+
+    /**
+     * S3 does not report whether deleted objects existed, so the returned value is the number of objects for which delete did not fail.
+     */
+    @Override
+    public int delete(Collection<String> objectNames) throws IOException {
+        int ret = 0;
+        Iterator<String> iter = objectNames.iterator();
+
+        while(iter.hasNext()) {
+            int batchSize = 0;
+            StringBuilder sb = new StringBuilder("<Delete><Quiet>true</Quiet>");
+            while(iter.hasNext() && batchSize < MAX_KEYS_PER_DELETE) {
+                sb.append("<Object><Key>").append(escapeXml(iter.next())).append("</Key></Object>");
+                batchSize++;
+            }
+            sb.append("</Delete>");
+
+            byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            Map<String, String> headers = new TreeMap<>();
+            headers.put("content-md5", Base64.getEncoder().encodeToString(digest("MD5", body)));
+            Map<String, String> query = new TreeMap<>();
+            query.put("delete", "");
+
+            Element root = executeForXml("POST", null, query, headers, body).getDocumentElement();
+            List<Element> errors = getChildElements(root, "Error");
+            for(Element error: errors) {
+                LOG.warn("Could not delete {}: {}", getFirstElementText(error, "Key"), getFirstElementText(error, "Message"));
+            }
+
+            ret += batchSize - errors.size();
+        }
+
+        return ret;
+    }
+
+    @Override
+    public File getLocalFile(String objectName) {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "S3DatastoreBackend(" + endpoint + "/" + bucket + ")";
+    }
+
+    private Document executeForXml(String method, String objectName, Map<String, String> query, Map<String, String> headers, byte[] body) throws IOException {
+        long contentLength = body != null ? body.length : ("POST".equals(method) ? 0 : -1);
+        return withRetries(method, objectName == null ? bucket : objectName, () -> {
+            HttpURLConnection conn = openConnection(method, objectName, query, headers, contentLength);
+            try {
+                if(contentLength >= 0) {
+                    try(OutputStream os = conn.getOutputStream()) {
+                        if(body != null) {
+                            os.write(body);
+                        }
+                    }
+                }
+
+                checkResponse(conn, method, objectName == null ? bucket : objectName);
+
+                try {
+                    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+                    dbf.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                    DocumentBuilder db = dbf.newDocumentBuilder();
+                    //parse from a copy of the response, so that the response is always read to the end
+                    return db.parse(new ByteArrayInputStream(readAll(conn.getInputStream())));
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Cannot parse response of " + method + " " + objectName, e);
+                }
+            } finally {
+                drainAndClose(conn);
+            }
+        });
+    }
+
+    /**
+     * Request to S3 that is safe to repeat - its request body, if any, is held in memory.
+     */
+    private interface S3Request<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * Thrown when S3 responds with http 5xx, or asks to slow down - these requests are worth repeating.
+     */
+    private static class RetryableS3Exception extends IOException {
+        private static final long serialVersionUID = 4721509238376712401L;
+
+        RetryableS3Exception(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Execute request, and repeat it with exponential backoff and jitter while it fails with {@link RetryableS3Exception}, up to maxAttempts times.
+     */
+    private static <T> T withRetries(String operation, String objectName, S3Request<T> request) throws IOException {
+        long backoffMs = retryBackoffMs;
+        for(int attempt = 1; ; attempt++) {
+            try {
+                return request.execute();
+            } catch (RetryableS3Exception e) {
+                if(attempt >= maxAttempts) {
+                    throw e;
+                }
+
+                long sleepMs = backoffMs / 2 + ThreadLocalRandom.current().nextLong(backoffMs / 2 + 1);
+                LOG.debug("{} {} failed, attempt {} of {}, will retry in {} ms: {}", operation, objectName, attempt, maxAttempts, sleepMs, e.getMessage());
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException iioe = new InterruptedIOException("Interrupted while retrying " + operation + " " + objectName);
+                    iioe.initCause(e);
+                    throw iioe;
+                }
+                backoffMs = Math.min(backoffMs * 2, maxRetryBackoffMs);
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection(String method, String objectName, Map<String, String> query, Map<String, String> headers) throws IOException {
+        return openConnection(method, objectName, query, headers, -1);
+    }
+
+    /**
+     * @param method
+     * @param objectName - null for bucket-level operations
+     * @param query - query parameters, not encoded
+     * @param headers - additional headers, names in lower case
+     * @param contentLength - length of the request body, or -1 when request has no body
+     * @return connection with signed request, ready to send the body (if any)
+     * @throws IOException
+     */
+    private HttpURLConnection openConnection(String method, String objectName, Map<String, String> query, Map<String, String> headers, long contentLength) throws IOException {
+        StringBuilder canonicalUri = new StringBuilder("/").append(uriEncode(bucket, false));
+        if(objectName != null) {
+            canonicalUri.append('/').append(uriEncode(objectName, true));
+        }
+
+        StringBuilder canonicalQuery = new StringBuilder();
+        Map<String, String> sortedQuery = new TreeMap<>();
+        for(Map.Entry<String, String> entry: query.entrySet()) {
+            sortedQuery.put(uriEncode(entry.getKey(), false), uriEncode(entry.getValue(), false));
+        }
+        for(Map.Entry<String, String> entry: sortedQuery.entrySet()) {
+            if(canonicalQuery.length() > 0) {
+                canonicalQuery.append('&');
+            }
+            canonicalQuery.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        URL url = new URL(endpoint + canonicalUri + (canonicalQuery.length() > 0 ? "?" + canonicalQuery : ""));
+
+        SimpleDateFormat amzDateFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        amzDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String amzDate = amzDateFormat.format(new Date());
+        String dateStamp = amzDate.substring(0, 8);
+
+        String host = url.getHost();
+        if(url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            host += ":" + url.getPort();
+        }
+
+        Map<String, String> signedHeaders = new TreeMap<>(headers);
+        signedHeaders.put("host", host);
+        signedHeaders.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        signedHeaders.put("x-amz-date", amzDate);
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        StringBuilder signedHeaderNames = new StringBuilder();
+        for(Map.Entry<String, String> entry: signedHeaders.entrySet()) {
+            canonicalHeaders.append(entry.getKey()).append(':').append(entry.getValue().trim()).append('\n');
+            if(signedHeaderNames.length() > 0) {
+                signedHeaderNames.append(';');
+            }
+            signedHeaderNames.append(entry.getKey());
+        }
+
+        String canonicalRequest = method + "\n" + canonicalUri + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n"
+                + signedHeaderNames + "\n" + UNSIGNED_PAYLOAD;
+
+        String scope = dateStamp + "/" + region + "/" + SERVICE_NAME + "/aws4_request";
+        String stringToSign = SIGNING_ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+                + toHex(digest("SHA-256", canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), dateStamp);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, SERVICE_NAME);
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = toHex(hmac(signingKey, stringToSign));
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        conn.setUseCaches(false);
+        for(Map.Entry<String, String> entry: signedHeaders.entrySet()) {
+            if(!"host".equals(entry.getKey())) {
+                conn.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        conn.setRequestProperty("Authorization", SIGNING_ALGORITHM + " Credential=" + accessKey + "/" + scope
+                + ", SignedHeaders=" + signedHeaderNames + ", Signature=" + signature);
+
+        if(contentLength >= 0) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(contentLength);
+        }
+
+        return conn;
+    }
+
+    private static void checkResponse(HttpURLConnection conn, String operation, String objectName) throws IOException {
+        int responseCode = conn.getResponseCode();
+        if(responseCode / 100 == 2) {
+            return;
+        }
+
+        String errorBody = "";
+        InputStream errorStream = conn.getErrorStream();
+        if(errorStream != null) {
+            try(InputStream es = errorStream) {
+                errorBody = new String(readUpTo(es, 4096), StandardCharsets.UTF_8);
+            }
+        }
+
+        String message = operation + " " + objectName + " failed with http " + responseCode + " " + errorBody;
+        if(responseCode / 100 == 5 || errorBody.contains("<Code>SlowDown</Code>")) {
+            throw new RetryableS3Exception(message);
+        }
+
+        throw new IOException(message);
+    }
+
+    /**
+     * Read the rest of the response and close it, so that the connection goes back to the keep-alive cache and is re-used by the next request.
+     */
+    private static void drainAndClose(HttpURLConnection conn) {
+        try {
+            InputStream is = conn.getResponseCode() >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if(is != null) {
+                try(InputStream in = is) {
+                    byte[] buffer = new byte[4096];
+                    while(in.read(buffer) >= 0) {
+                        //discard
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //response is already consumed, or the connection is broken - in which case it is not re-used anyway
+            LOG.trace("Could not drain response: {}", e.getMessage());
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        try(InputStream in = is) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while((n = in.read(buffer)) >= 0) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * @return number of bytes read into the buffer, less than buffer length only when the end of stream is reached
+     */
+    private static int readFully(InputStream is, byte[] buffer) throws IOException {
+        int total = 0;
+        int n;
+        while(total < buffer.length && (n = is.read(buffer, total, buffer.length - total)) > 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    private static byte[] readUpTo(InputStream is, int maxBytes) throws IOException {
+        byte[] buffer = new byte[maxBytes];
+        int length = readFully(is, buffer);
+        if(length == buffer.length) {
+            return buffer;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+        baos.write(buffer, 0, length);
+        return baos.toByteArray();
+    }
+
+    private static List<Element> getChildElements(Element parent, String localName) {
+        List<Element> ret = new ArrayList<>();
+        NodeList children = parent.getChildNodes();
+        for(int i = 0; i < children.getLength(); i++) {
+            Node node = children.item(i);
+            if(node instanceof Element && localName.equals(getLocalName(node))) {
+                ret.add((Element) node);
+            }
+        }
+        return ret;
+    }
+
+    private static String getFirstElementText(Element parent, String localName) {
+        List<Element> elements = getChildElements(parent, localName);
+        return elements.isEmpty() ? null : elements.get(0).getTextContent();
+    }
+
+    private static String getLocalName(Node node) {
+        String name = node.getNodeName();
+        int idx = name.indexOf(':');
+        return idx >= 0 ? name.substring(idx + 1) : name;
+    }
+
+    private static String escapeXml(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    /**
+     * URI-encode as required by AWS Signature Version 4: everything except unreserved characters is percent-encoded.
+     */
+    static String uriEncode(String value, boolean keepSlash) {
+        StringBuilder sb = new StringBuilder();
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for(byte b: bytes) {
+            char c = (char) (b & 0xFF);
+            if((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '~'
+                    || (keepSlash && c == '/')) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] digest(String algorithm, byte[] data) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b: bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
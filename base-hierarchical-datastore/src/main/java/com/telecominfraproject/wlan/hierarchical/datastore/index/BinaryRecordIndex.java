@@ -0,0 +1,332 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of the record index of a single data file: RecordIndexCounts and RecordIndexPositions combined.<br>
+ * It is written to disk together with the data file when the data file is flushed, and it is read through a memory-mapped buffer,
+ * so looking up positions of the indexed values does not involve json parsing and allocates almost nothing.<br>
+ * Unlike record indexes stored in hazelcast, binary record indexes do not expire.
+ * <br>
+ * Index files are kept in a separate directory tree under dsRootDirName/bidx/ that mirrors the directories of the data files.
+ * Index file name is structured as idx_[indexName]_[dataFileName].bidx, it is not compressed. Layout of the file:
+ * <pre>
+ *  header:      magic(int) version(int) totalCount(int) numValues(int) valuesAreaOffset(int) positionsAreaOffset(int)
+ *  dictionary:  numValues entries, sorted by the UTF-8 bytes of the value:
+ *                  valueOffset(int) valueLength(int) count(int) positionsOffset(int) numPositions(int)
+ *  values:      UTF-8 bytes of all values
+ *  positions:   for each value - ascending record positions, delta-encoded as unsigned varints
+ * </pre>
+ *
+ * Index files up to tip.wlan.hds.binaryIndexHeapLoadMaxBytes (default 256 KB) are read into the heap, larger ones are memory-mapped.
+ * Mappings are released only when the index is garbage-collected, so the opened indexes are kept in {@link BinaryRecordIndexCache} and re-used by the queries.
+ *
+ * Instances of this class are immutable and thread-safe.
+ *
+ * @author dtop
+ *
+ */
+public class BinaryRecordIndex {
+
+    public static final String FILE_EXTENSION = ".bidx";
+    public static final String ROOT_DIR_NAME = "bidx";
+
+    private static final int MAGIC = 0x48445349; // "HDSI"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int DICTIONARY_ENTRY_SIZE = 5 * 4;
+
+    private static final long heapLoadMaxBytes = Long.getLong("tip.wlan.hds.binaryIndexHeapLoadMaxBytes", 256 * 1024);
+
+    private final ByteBuffer buffer;
+    private final int totalCount;
+    private final int numValues;
+
+    private BinaryRecordIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a binary record index");
+        }
+        if(buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary record index version " + buffer.getInt(4));
+        }
+        this.totalCount = buffer.getInt(8);
+        this.numValues = buffer.getInt(12);
+    }
+
+    /**
+     * Read small binary record index file into the heap, memory-map the large one.
+     * @param file
+     * @return binary record index backed by the content of the file
+     * @throws IOException - if file cannot be read or it is not a binary record index, NoSuchFileException if it does not exist
+     */
+    public static BinaryRecordIndex load(File file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long size = channel.size();
+            if(size > heapLoadMaxBytes) {
+                //mapping stays valid after the channel is closed
+                return new BinaryRecordIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while(buf.hasRemaining() && channel.read(buf) >= 0) {
+                //keep reading until the whole file is in the buffer
+            }
+            buf.flip();
+            return new BinaryRecordIndex(buf);
+        }
+    }
+
+    /**
+     * @param bytes - content produced by toBytes()
+     * @return binary record index backed by the supplied bytes
+     * @throws IOException - if supplied bytes do not represent a binary record index
+     */
+    public static BinaryRecordIndex wrap(byte[] bytes) throws IOException {
+        return new BinaryRecordIndex(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Serialize record index counts and positions into the binary format.
+     * @param counts
+     * @param positions
+     * @return bytes of the binary record index
+     */
+    public static byte[] toBytes(RecordIndexCounts counts, RecordIndexPositions positions) {
+        Map<String, Integer> perValueCounts = counts.getPerValueCounts();
+
+        byte[][] values = new byte[perValueCounts.size()][];
+        int i = 0;
+        for(String value: perValueCounts.keySet()) {
+            values[i++] = value.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(values, BinaryRecordIndex::compareUnsigned);
+
+        int valuesAreaSize = 0;
+        for(byte[] value: values) {
+            valuesAreaSize += value.length;
+        }
+
+        //encode positions first, so we know the size of the file
+        byte[][] encodedPositions = new byte[values.length][];
+        int[] numPositions = new int[values.length];
+        int positionsAreaSize = 0;
+        for(i = 0; i < values.length; i++) {
+            List<Integer> valuePositions = positions == null ? null : positions.getPositionsForValue(new String(values[i], StandardCharsets.UTF_8));
+            int[] sortedPositions = new int[valuePositions == null ? 0 : valuePositions.size()];
+            for(int p = 0; p < sortedPositions.length; p++) {
+                sortedPositions[p] = valuePositions.get(p);
+            }
+            Arrays.sort(sortedPositions);
+            numPositions[i] = sortedPositions.length;
+            encodedPositions[i] = encodeDeltas(sortedPositions);
+            positionsAreaSize += encodedPositions[i].length;
+        }
+
+        int valuesAreaOffset = HEADER_SIZE + values.length * DICTIONARY_ENTRY_SIZE;
+        int positionsAreaOffset = valuesAreaOffset + valuesAreaSize;
+
+        ByteBuffer buf = ByteBuffer.allocate(positionsAreaOffset + positionsAreaSize);
+        buf.putInt(MAGIC);
+        buf.putInt(FORMAT_VERSION);
+        buf.putInt(counts.getTotalCount());
+        buf.putInt(values.length);
+        buf.putInt(valuesAreaOffset);
+        buf.putInt(positionsAreaOffset);
+
+        int valueOffset = valuesAreaOffset;
+        int positionsOffset = positionsAreaOffset;
+        for(i = 0; i < values.length; i++) {
+            buf.putInt(valueOffset);
+            buf.putInt(values[i].length);
+            buf.putInt(counts.getCountForValue(new String(values[i], StandardCharsets.UTF_8)));
+            buf.putInt(positionsOffset);
+            buf.putInt(numPositions[i]);
+            valueOffset += values[i].length;
+            positionsOffset += encodedPositions[i].length;
+        }
+
+        for(byte[] value: values) {
+            buf.put(value);
+        }
+
+        for(byte[] encoded: encodedPositions) {
+            buf.put(encoded);
+        }
+
+        return buf.array();
+    }
+
+    public int getTotalCount() {
+        return totalCount;
+    }
+
+    public int getNumberOfValues() {
+        return numValues;
+    }
+
+    /**
+     * @return size of the index content, in bytes
+     */
+    public int getSizeInBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return true if the content of the index is memory-mapped rather than kept in the heap
+     */
+    public boolean isMapped() {
+        return buffer.isDirect();
+    }
+
+    /**
+     * @param value
+     * @return number of records that contain supplied value, 0 if value is not in the index
+     */
+    public int getCountForValue(String value) {
+        int entryOffset = findEntryOffset(value);
+        return entryOffset < 0 ? 0 : buffer.getInt(entryOffset + 8);
+    }
+
+    /**
+     * Add positions of the records that contain supplied value into the target collection.
+     * @param value
+     * @param target
+     * @return number of positions added
+     */
+    public int collectPositionsForValue(String value, Collection<Integer> target) {
+        int entryOffset = findEntryOffset(value);
+        if(entryOffset < 0) {
+            return 0;
+        }
+
+        int pos = buffer.getInt(entryOffset + 12);
+        int numPositions = buffer.getInt(entryOffset + 16);
+        int position = 0;
+        for(int p = 0; p < numPositions; p++) {
+            //unsigned varint
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(pos++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+
+            position += delta;
+            target.add(position);
+        }
+
+        return numPositions;
+    }
+
+    /**
+     * Convert this index into its json-friendly representation, used in hourly directory indexes.
+     * @param indexName
+     * @return record index with the same content as this binary index
+     */
+    public RecordIndex toRecordIndex(String indexName) {
+        RecordIndexCounts counts = new RecordIndexCounts();
+        counts.setName(indexName);
+        counts.setTotalCount(totalCount);
+        RecordIndexPositions positions = new RecordIndexPositions();
+        positions.setName(indexName);
+
+        for(int i = 0; i < numValues; i++) {
+            int entryOffset = HEADER_SIZE + i * DICTIONARY_ENTRY_SIZE;
+            String value = readValue(entryOffset);
+            counts.getPerValueCounts().put(value, buffer.getInt(entryOffset + 8));
+            List<Integer> valuePositions = new ArrayList<>(buffer.getInt(entryOffset + 16));
+            collectPositionsForValue(value, valuePositions);
+            positions.getPerValuePositions().put(value, valuePositions);
+        }
+
+        return new RecordIndex(counts, positions);
+    }
+
+    private String readValue(int entryOffset) {
+        byte[] valueBytes = new byte[buffer.getInt(entryOffset + 4)];
+        int valueOffset = buffer.getInt(entryOffset);
+        for(int b = 0; b < valueBytes.length; b++) {
+            valueBytes[b] = buffer.get(valueOffset + b);
+        }
+        return new String(valueBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Binary search in the dictionary
+     * @param value
+     * @return offset of the dictionary entry for the supplied value, or -1 if value is not in the index
+     */
+    private int findEntryOffset(String value) {
+        byte[] key = value.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = numValues - 1;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int entryOffset = HEADER_SIZE + mid * DICTIONARY_ENTRY_SIZE;
+            int cmp = compareWithStoredValue(entryOffset, key);
+            if(cmp < 0) {
+                low = mid + 1;
+            } else if(cmp > 0) {
+                high = mid - 1;
+            } else {
+                return entryOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    private int compareWithStoredValue(int entryOffset, byte[] key) {
+        int valueOffset = buffer.getInt(entryOffset);
+        int valueLength = buffer.getInt(entryOffset + 4);
+        int len = Math.min(valueLength, key.length);
+        for(int i = 0; i < len; i++) {
+            int cmp = (buffer.get(valueOffset + i) & 0xFF) - (key[i] & 0xFF);
+            if(cmp != 0) {
+                return cmp;
+            }
+        }
+        return valueLength - key.length;
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for(int i = 0; i < len; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] encodeDeltas(int[] sortedPositions) {
+        //worst case is 5 bytes per int
+        ByteBuffer buf = ByteBuffer.allocate(sortedPositions.length * 5);
+        int previous = 0;
+        for(int position: sortedPositions) {
+            int delta = position - previous;
+            previous = position;
+            while((delta & ~0x7F) != 0) {
+                buf.put((byte) ((delta & 0x7F) | 0x80));
+                delta >>>= 7;
+            }
+            buf.put((byte) delta);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+}
@@ -0,0 +1,97 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the opened binary record indexes, keyed by the full name of the index file.<br>
+ * Queries look up the same index files over and over again, this cache lets them skip opening, reading or memory-mapping the files each time.
+ * <ul>
+ * <li>Cache is bounded by the number of indexes and by their total size, least recently used indexes are evicted first.
+ * <li>Evicted memory-mapped indexes are not unmapped explicitly, since queries that are in progress may still read them;
+ *      they are unmapped when garbage-collected. Bounding the cache also bounds the number of mappings that are kept alive by it.
+ * <li>Index files are written once, together with their data files. When an index file is re-written, it must be invalidated in this cache.
+ * </ul>
+ * <br>
+ * This class is thread-safe.
+ *
+ * @author dtop
+ *
+ */
+public class BinaryRecordIndexCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<String, BinaryRecordIndex> cache;
+    private long totalBytes;
+    private long evictionCount;
+
+    /**
+     * @param maxEntries - maximum number of cached indexes, value of 0 disables the cache
+     * @param maxBytes - maximum total size of the cached indexes
+     */
+    public BinaryRecordIndexCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        //access-ordered map, the least recently used index is evicted first
+        this.cache = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    /**
+     * @param indexFileName
+     * @return cached index, or null if it is not in the cache
+     */
+    public synchronized BinaryRecordIndex get(String indexFileName) {
+        return cache.get(indexFileName);
+    }
+
+    /**
+     * Add the index to the cache, evicting the least recently used ones if needed.
+     * @param indexFileName
+     * @param index
+     */
+    public synchronized void put(String indexFileName, BinaryRecordIndex index) {
+        if(maxEntries <= 0 || index.getSizeInBytes() > maxBytes) {
+            return;
+        }
+
+        BinaryRecordIndex old = cache.put(indexFileName, index);
+        if(old != null) {
+            totalBytes -= old.getSizeInBytes();
+        }
+        totalBytes += index.getSizeInBytes();
+
+        Iterator<Map.Entry<String, BinaryRecordIndex>> iter = cache.entrySet().iterator();
+        while((cache.size() > maxEntries || totalBytes > maxBytes) && iter.hasNext()) {
+            Map.Entry<String, BinaryRecordIndex> eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.getValue().getSizeInBytes();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void invalidate(String indexFileName) {
+        BinaryRecordIndex old = cache.remove(indexFileName);
+        if(old != null) {
+            totalBytes -= old.getSizeInBytes();
+        }
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
@@ -0,0 +1,358 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.telecominfraproject.wlan.hierarchical.datastore.HourlyIndexFileNames;
+
+/**
+ * Columnar roll-up of the data files of one hourly directory for one record index:
+ * for every data file and every indexed value - count of the records, min/max timestamp of the records,
+ * and count/sum/min/max of the numeric fields defined by RecordSummaryExtractor.<br>
+ * Hourly summaries are built by the hourly index aggregator alongside the hourly DirectoryIndex,
+ * and they are used to answer counts and aggregates for long time ranges without reading (and json-decoding) the data files.
+ * <br>
+ * Summary file is stored in the same directory as the hourly index, its name is the name of the hourly index file
+ * with hrIdx_ prefix replaced by hrSum_ and .zip extension replaced by .hsum. Layout of the file:
+ * <pre>
+ *  header:     magic(int) version(int) numFields(int) numDataFiles(int) numRows(int)
+ *  names:      indexName(utf) fieldNames(utf * numFields) dataFileNames(utf * numDataFiles)
+ *  columns:    dataFileIdx(int * numRows) value(utf * numRows)
+ *              count(long * numRows) minTs(long * numRows) maxTs(long * numRows)
+ *              for each field: fieldCount(long * numRows) sum(double * numRows) min(double * numRows) max(double * numRows)
+ * </pre>
+ * First numDataFiles rows hold totals of the data files (their value column is empty), remaining rows hold per-value statistics.
+ * <br>
+ * This class is not thread-safe, instances loaded for queries are not modified.
+ *
+ * @author dtop
+ *
+ */
+public class HourlySummary {
+
+    public static final String hourlySummaryFileNamePrefix = "hrSum_";
+    public static final String FILE_EXTENSION = ".hsum";
+
+    private static final int MAGIC = 0x48445353; // "HDSS"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Summary of a single data file - totals, and statistics per indexed value.
+     * For multi-value indexes a record contributes to the statistics of every value extracted from it.
+     */
+    public static class DataFileSummary {
+        private final String[] fieldNames;
+        private final SummaryStats totals;
+        private final Map<String, SummaryStats> perValueStats = new TreeMap<>();
+
+        public DataFileSummary(String[] fieldNames) {
+            this.fieldNames = fieldNames;
+            this.totals = new SummaryStats(fieldNames);
+        }
+
+        /**
+         * Add a single record to the summary.
+         * @param indexedValues - values extracted from the record by the index value extractor
+         * @param timestamp - timestamp of the record, or -1
+         * @param fieldValues - values of the numeric fields, NaN for missing values
+         */
+        public void add(Set<String> indexedValues, long timestamp, double[] fieldValues) {
+            totals.add(timestamp, fieldValues);
+            for(String value: indexedValues) {
+                getOrCreateStats(value).add(timestamp, fieldValues);
+            }
+        }
+
+        public SummaryStats getTotals() {
+            return totals;
+        }
+
+        public Map<String, SummaryStats> getPerValueStats() {
+            return perValueStats;
+        }
+
+        private SummaryStats getOrCreateStats(String value) {
+            SummaryStats stats = perValueStats.get(value);
+            if(stats == null) {
+                stats = new SummaryStats(fieldNames);
+                perValueStats.put(value, stats);
+            }
+            return stats;
+        }
+    }
+
+    private final String indexName;
+    private final String[] fieldNames;
+    private final Map<String, DataFileSummary> dataFileSummaries = new TreeMap<>();
+
+    public HourlySummary(String indexName, String[] fieldNames) {
+        this.indexName = indexName;
+        this.fieldNames = fieldNames;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * @return full names of the data files included in this summary
+     */
+    public Set<String> getDataFileNames() {
+        return dataFileSummaries.keySet();
+    }
+
+    public DataFileSummary getDataFileSummary(String dataFileName) {
+        return dataFileSummaries.get(dataFileName);
+    }
+
+    public void putDataFileSummary(String dataFileName, DataFileSummary dataFileSummary) {
+        dataFileSummaries.put(dataFileName, dataFileSummary);
+    }
+
+    /**
+     * Remove data files that are not in the supplied collection.
+     * @param dataFileNames
+     * @return true if this summary changed
+     */
+    public boolean retainDataFiles(Collection<String> dataFileNames) {
+        return dataFileSummaries.keySet().retainAll(dataFileNames);
+    }
+
+    /**
+     * Add statistics of the supplied data files into the target. Data files that are not in this summary are ignored.
+     * @param dataFileNames
+     * @param indexedValues - values of interest, if null or empty - totals of the data files are used.
+     *      For multi-value indexes a record that has several of the requested values is counted once for every one of them.
+     * @param target
+     */
+    public void aggregate(Collection<String> dataFileNames, Set<String> indexedValues, SummaryStats target) {
+        for(String dataFileName: dataFileNames) {
+            DataFileSummary dataFileSummary = dataFileSummaries.get(dataFileName);
+            if(dataFileSummary == null) {
+                continue;
+            }
+
+            if(indexedValues == null || indexedValues.isEmpty()) {
+                target.merge(dataFileSummary.totals);
+            } else {
+                for(String value: indexedValues) {
+                    SummaryStats stats = dataFileSummary.perValueStats.get(value);
+                    if(stats != null) {
+                        target.merge(stats);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param hourlyIndexFileName - full name of the hourly index file
+     * @return full name of the hourly summary file that belongs to the same index and hour
+     */
+    public static String getSummaryFileName(String hourlyIndexFileName) {
+        int pos = hourlyIndexFileName.lastIndexOf('/') + 1;
+        String shortName = hourlyIndexFileName.substring(pos);
+        if(shortName.startsWith(HourlyIndexFileNames.hourlyIndexFileNamePrefix)) {
+            shortName = shortName.substring(HourlyIndexFileNames.hourlyIndexFileNamePrefix.length());
+        }
+        if(shortName.endsWith(".zip")) {
+            shortName = shortName.substring(0, shortName.length() - 4);
+        }
+
+        return hourlyIndexFileName.substring(0, pos) + hourlySummaryFileNamePrefix + shortName + FILE_EXTENSION;
+    }
+
+    /**
+     * @return bytes of this summary in the columnar format
+     */
+    public byte[] toBytes() {
+        List<String> fileNames = new ArrayList<>(dataFileSummaries.keySet());
+        Map<String, Integer> fileIndexes = new HashMap<>();
+        for(int i = 0; i < fileNames.size(); i++) {
+            fileIndexes.put(fileNames.get(i), i);
+        }
+
+        //collect rows: totals of the data files first, then per-value statistics
+        List<Integer> rowFileIdx = new ArrayList<>();
+        List<String> rowValues = new ArrayList<>();
+        List<SummaryStats> rowStats = new ArrayList<>();
+        for(String fileName: fileNames) {
+            rowFileIdx.add(fileIndexes.get(fileName));
+            rowValues.add("");
+            rowStats.add(dataFileSummaries.get(fileName).totals);
+        }
+        for(String fileName: fileNames) {
+            for(Map.Entry<String, SummaryStats> entry: dataFileSummaries.get(fileName).perValueStats.entrySet()) {
+                rowFileIdx.add(fileIndexes.get(fileName));
+                rowValues.add(entry.getKey());
+                rowStats.add(entry.getValue());
+            }
+        }
+
+        int numRows = rowStats.size();
+
+        try(ByteArrayOutputStream baos = new ByteArrayOutputStream(1024 + numRows * (32 + fieldNames.length * 32));
+                DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(fieldNames.length);
+            dos.writeInt(fileNames.size());
+            dos.writeInt(numRows);
+
+            dos.writeUTF(indexName);
+            for(String fieldName: fieldNames) {
+                dos.writeUTF(fieldName);
+            }
+            for(String fileName: fileNames) {
+                dos.writeUTF(fileName);
+            }
+
+            for(int fileIdx: rowFileIdx) {
+                dos.writeInt(fileIdx);
+            }
+            for(String value: rowValues) {
+                dos.writeUTF(value);
+            }
+            for(SummaryStats stats: rowStats) {
+                dos.writeLong(stats.getCount());
+            }
+            for(SummaryStats stats: rowStats) {
+                dos.writeLong(stats.getRawMinTimestamp());
+            }
+            for(SummaryStats stats: rowStats) {
+                dos.writeLong(stats.getRawMaxTimestamp());
+            }
+
+            for(int f = 0; f < fieldNames.length; f++) {
+                for(SummaryStats stats: rowStats) {
+                    dos.writeLong(stats.getRawFieldCount(f));
+                }
+                for(SummaryStats stats: rowStats) {
+                    dos.writeDouble(stats.getRawSum(f));
+                }
+                for(SummaryStats stats: rowStats) {
+                    dos.writeDouble(stats.getRawMin(f));
+                }
+                for(SummaryStats stats: rowStats) {
+                    dos.writeDouble(stats.getRawMax(f));
+                }
+            }
+
+            dos.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            //does not happen with in-memory streams
+            throw new IllegalStateException("Cannot serialize hourly summary", e);
+        }
+    }
+
+    /**
+     * @param bytes - content produced by toBytes()
+     * @return hourly summary
+     * @throws IOException - if supplied bytes do not represent an hourly summary
+     */
+    public static HourlySummary fromBytes(byte[] bytes) throws IOException {
+        try(DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if(bytes.length < 20 || dis.readInt() != MAGIC) {
+                throw new IOException("Not an hourly summary");
+            }
+            int version = dis.readInt();
+            if(version != FORMAT_VERSION) {
+                throw new IOException("Unsupported hourly summary version " + version);
+            }
+
+            int numFields = dis.readInt();
+            int numDataFiles = dis.readInt();
+            int numRows = dis.readInt();
+
+            String indexName = dis.readUTF();
+            String[] fieldNames = new String[numFields];
+            for(int i = 0; i < numFields; i++) {
+                fieldNames[i] = dis.readUTF();
+            }
+
+            HourlySummary ret = new HourlySummary(indexName, fieldNames);
+            String[] fileNames = new String[numDataFiles];
+            DataFileSummary[] fileSummaries = new DataFileSummary[numDataFiles];
+            for(int i = 0; i < numDataFiles; i++) {
+                fileNames[i] = dis.readUTF();
+                fileSummaries[i] = new DataFileSummary(fieldNames);
+                ret.dataFileSummaries.put(fileNames[i], fileSummaries[i]);
+            }
+
+            int[] rowFileIdx = new int[numRows];
+            for(int r = 0; r < numRows; r++) {
+                rowFileIdx[r] = dis.readInt();
+                if(rowFileIdx[r] < 0 || rowFileIdx[r] >= numDataFiles) {
+                    throw new IOException("Corrupted hourly summary");
+                }
+            }
+
+            //first numDataFiles rows are the totals of the data files
+            SummaryStats[] rowStats = new SummaryStats[numRows];
+            for(int r = 0; r < numRows; r++) {
+                String value = dis.readUTF();
+                if(r < numDataFiles) {
+                    rowStats[r] = fileSummaries[rowFileIdx[r]].totals;
+                } else {
+                    rowStats[r] = fileSummaries[rowFileIdx[r]].getOrCreateStats(value);
+                }
+            }
+
+            long[] counts = readLongs(dis, numRows);
+            long[] minTimestamps = readLongs(dis, numRows);
+            long[] maxTimestamps = readLongs(dis, numRows);
+            for(int r = 0; r < numRows; r++) {
+                rowStats[r].setRaw(counts[r], minTimestamps[r], maxTimestamps[r]);
+            }
+
+            for(int f = 0; f < numFields; f++) {
+                long[] fieldCounts = readLongs(dis, numRows);
+                double[] sums = readDoubles(dis, numRows);
+                double[] mins = readDoubles(dis, numRows);
+                double[] maxs = readDoubles(dis, numRows);
+                for(int r = 0; r < numRows; r++) {
+                    rowStats[r].setRawField(f, fieldCounts[r], sums[r], mins[r], maxs[r]);
+                }
+            }
+
+            return ret;
+        }
+    }
+
+    private static long[] readLongs(DataInputStream dis, int num) throws IOException {
+        long[] ret = new long[num];
+        for(int i = 0; i < num; i++) {
+            ret[i] = dis.readLong();
+        }
+        return ret;
+    }
+
+    private static double[] readDoubles(DataInputStream dis, int num) throws IOException {
+        double[] ret = new double[num];
+        for(int i = 0; i < num; i++) {
+            ret[i] = dis.readDouble();
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "HourlySummary(" + indexName + ", " + Arrays.toString(fieldNames) + ", " + dataFileSummaries.size() + " data files)";
+    }
+}
@@ -0,0 +1,31 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+/**
+ * Extracts the values that are rolled up into hourly summaries - timestamp and a fixed set of numeric fields of a record.
+ * 
+ * @see HourlySummary
+ * @author dtop
+ *
+ */
+public interface RecordSummaryExtractor {
+
+    /**
+     * @param model
+     * @return timestamp of the record in ms, or -1 if the record does not have one
+     */
+    long extractTimestamp(BaseJsonModel model);
+
+    /**
+     * @return names of the numeric fields that are summarized, order of the names must not change between calls
+     */
+    String[] getNumericFieldNames();
+
+    /**
+     * @param model
+     * @param fieldName - one of the names returned by getNumericFieldNames()
+     * @return value of the field, or Double.NaN if the record does not have that field
+     */
+    double extractNumericValue(BaseJsonModel model, String fieldName);
+}
@@ -0,0 +1,217 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import java.util.Arrays;
+
+/**
+ * Count, timestamp range and per-field count/sum/min/max of a group of records.<br>
+ * Numeric fields are identified by the names returned from RecordSummaryExtractor.getNumericFieldNames(),
+ * a record that does not have a field (its value is NaN) does not contribute to the statistics of that field.
+ * <br>
+ * This class is not thread-safe.
+ *
+ * @author dtop
+ *
+ */
+public class SummaryStats {
+
+    private final String[] fieldNames;
+
+    private long count;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private final long[] fieldCounts;
+    private final double[] sums;
+    private final double[] mins;
+    private final double[] maxs;
+
+    public SummaryStats(String[] fieldNames) {
+        this.fieldNames = fieldNames;
+        this.fieldCounts = new long[fieldNames.length];
+        this.sums = new double[fieldNames.length];
+        this.mins = new double[fieldNames.length];
+        this.maxs = new double[fieldNames.length];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Add a single record to the statistics.
+     * @param timestamp - timestamp of the record, or -1 if it is not known
+     * @param fieldValues - values of the numeric fields in the order of getFieldNames(), NaN for missing values
+     */
+    public void add(long timestamp, double[] fieldValues) {
+        count++;
+        updateTimestamps(timestamp, timestamp);
+
+        for(int i = 0; i < fieldValues.length; i++) {
+            double value = fieldValues[i];
+            if(Double.isNaN(value)) {
+                continue;
+            }
+            fieldCounts[i]++;
+            sums[i] += value;
+            mins[i] = Math.min(mins[i], value);
+            maxs[i] = Math.max(maxs[i], value);
+        }
+    }
+
+    /**
+     * Add statistics of another group of records into this one. Both must have the same field names.
+     * @param other
+     */
+    public void merge(SummaryStats other) {
+        count += other.count;
+        updateTimestamps(other.minTimestamp, other.maxTimestamp);
+
+        for(int i = 0; i < fieldCounts.length; i++) {
+            fieldCounts[i] += other.fieldCounts[i];
+            sums[i] += other.sums[i];
+            mins[i] = Math.min(mins[i], other.mins[i]);
+            maxs[i] = Math.max(maxs[i], other.maxs[i]);
+        }
+    }
+
+    private void updateTimestamps(long fromTimestamp, long toTimestamp) {
+        if(fromTimestamp >= 0 && fromTimestamp < minTimestamp) {
+            minTimestamp = fromTimestamp;
+        }
+        if(toTimestamp >= 0 && toTimestamp > maxTimestamp) {
+            maxTimestamp = toTimestamp;
+        }
+    }
+
+    public String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * @return number of records
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return smallest timestamp of the records, or -1 if none of the records has a timestamp
+     */
+    public long getMinTimestamp() {
+        return minTimestamp == Long.MAX_VALUE ? -1 : minTimestamp;
+    }
+
+    /**
+     * @return largest timestamp of the records, or -1 if none of the records has a timestamp
+     */
+    public long getMaxTimestamp() {
+        return maxTimestamp == Long.MIN_VALUE ? -1 : maxTimestamp;
+    }
+
+    /**
+     * @param fieldName
+     * @return number of records that have a value for the field, 0 if the field is not summarized
+     */
+    public long getFieldCount(String fieldName) {
+        int idx = indexOf(fieldName);
+        return idx < 0 ? 0 : fieldCounts[idx];
+    }
+
+    /**
+     * @param fieldName
+     * @return sum of the field values, 0 if there are no values
+     */
+    public double getSum(String fieldName) {
+        int idx = indexOf(fieldName);
+        return idx < 0 ? 0 : sums[idx];
+    }
+
+    /**
+     * @param fieldName
+     * @return smallest field value, or NaN if there are no values
+     */
+    public double getMin(String fieldName) {
+        int idx = indexOf(fieldName);
+        return (idx < 0 || fieldCounts[idx] == 0) ? Double.NaN : mins[idx];
+    }
+
+    /**
+     * @param fieldName
+     * @return largest field value, or NaN if there are no values
+     */
+    public double getMax(String fieldName) {
+        int idx = indexOf(fieldName);
+        return (idx < 0 || fieldCounts[idx] == 0) ? Double.NaN : maxs[idx];
+    }
+
+    /**
+     * @param fieldName
+     * @return average of the field values, or NaN if there are no values
+     */
+    public double getAverage(String fieldName) {
+        int idx = indexOf(fieldName);
+        return (idx < 0 || fieldCounts[idx] == 0) ? Double.NaN : sums[idx] / fieldCounts[idx];
+    }
+
+    private int indexOf(String fieldName) {
+        for(int i = 0; i < fieldNames.length; i++) {
+            if(fieldNames[i].equals(fieldName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Raw access for the serialization of hourly summaries, min/max hold sentinel values when there is no data.
+     */
+    long getRawMinTimestamp() {
+        return minTimestamp;
+    }
+
+    long getRawMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    long getRawFieldCount(int idx) {
+        return fieldCounts[idx];
+    }
+
+    double getRawSum(int idx) {
+        return sums[idx];
+    }
+
+    double getRawMin(int idx) {
+        return mins[idx];
+    }
+
+    double getRawMax(int idx) {
+        return maxs[idx];
+    }
+
+    void setRaw(long count, long minTimestamp, long maxTimestamp) {
+        this.count = count;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+    }
+
+    void setRawField(int idx, long fieldCount, double sum, double min, double max) {
+        fieldCounts[idx] = fieldCount;
+        sums[idx] = sum;
+        mins[idx] = min;
+        maxs[idx] = max;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("SummaryStats(count=").append(count)
+            .append(", minTimestamp=").append(getMinTimestamp())
+            .append(", maxTimestamp=").append(getMaxTimestamp());
+        for(String fieldName: fieldNames) {
+            sb.append(", ").append(fieldName).append("=[n=").append(getFieldCount(fieldName))
+                .append(", sum=").append(getSum(fieldName))
+                .append(", min=").append(getMin(fieldName))
+                .append(", max=").append(getMax(fieldName)).append(']');
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+}
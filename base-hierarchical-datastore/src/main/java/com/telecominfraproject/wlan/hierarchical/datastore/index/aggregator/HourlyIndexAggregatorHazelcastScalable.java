@@ -10,7 +10,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Formatter;
@@ -18,8 +20,17 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -30,16 +41,24 @@ import org.slf4j.LoggerFactory;
 import org.springframework.util.StreamUtils;
 
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.IQueue;
+import com.netflix.servo.monitor.Timer;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
 import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
 import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest;
 import com.telecominfraproject.wlan.hazelcast.common.HazelcastObjectsConfiguration;
 import com.telecominfraproject.wlan.hierarchical.datastore.HourlyIndexFileNames;
+import com.telecominfraproject.wlan.hierarchical.datastore.DataFileBlocks;
 import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.BinaryRecordIndex;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.DirectoryIndex;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.HourlySummary;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndex;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexCounts;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexPositions;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexValueExtractor;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordSummaryExtractor;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.registry.RecordIndexRegistry;
 import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
 
@@ -62,6 +81,18 @@ import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
  * <li>store hourly index file in the same directory in zipped format 
  * </ol>
  * </ol> 
+ * <br>
+ * Hourly indexes are updated incrementally: record indexes of the data files that are already in the hourly index, 
+ * and that were not modified after the hourly index was stored, are kept as is. 
+ * Only new (or modified) data files are merged in, and data files that no longer exist are removed.
+ * <br>
+ * Hours, data file name prefixes and data files are processed in parallel by a bounded fork-join pool shared by all instances of this class.
+ * <br>
+ * When a RecordSummaryExtractor is registered for the data file name prefix, an HourlySummary is maintained next to every hourly index,
+ * it is updated incrementally in the same way, and during the same pass over the data files.
+ * <br>
+ * Each hour is claimed through the build-in-progress map in hazelcast (bipHrDirs) before it is processed, 
+ * so that several nodes can work on the same time range (or drain rebuildHrIdxQueue) concurrently without building the same hour twice.
  * 
  * @author dtop
  *
@@ -69,7 +100,43 @@ import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
 public class HourlyIndexAggregatorHazelcastScalable {
     
     private static final Logger LOG = LoggerFactory.getLogger(HourlyIndexAggregatorHazelcastScalable.class);
-        
+
+    private static final int hdsHourlyIndexAggregatorThreads = Integer.getInteger("tip.wlan.hdsHourlyIndexAggregatorThreads", 
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    /**
+     * Claim on an hour expires after this time - in case the node that claimed it went away in the middle of the build
+     */
+    private static final int hdsHourlyIndexClaimTtlMs = Integer.getInteger("tip.wlan.hdsHourlyIndexClaimTtlMs", (int) TimeUnit.MINUTES.toMillis(30));
+
+    /**
+     * Claims are stored in bipHrDirs map under the name of the hourly directory with this suffix, 
+     * so that they do not interfere with the entries that mark scheduled re-build requests
+     */
+    public static final String CLAIM_KEY_SUFFIX = "#claimed";
+
+    private static final String servoMetricPrefix = "hdsHourlyIndexAggregator-";
+
+    private static final ForkJoinPool aggregatorPool = new ForkJoinPool(hdsHourlyIndexAggregatorThreads, 
+            new ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thr = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thr.setName("hdsHourlyIndexAggregator-" + thr.getPoolIndex());
+                    thr.setDaemon(true);
+                    return thr;
+                }
+            }, null, false);
+
+    static {
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"tasksInTheQueue", 
+                new Callable<Long>(){
+            @Override
+            public Long call() throws Exception {
+                return aggregatorPool.getQueuedTaskCount() + aggregatorPool.getQueuedSubmissionCount();
+            }
+        });
+    }
+
     private final String dsRootDirName;
     private final String dsPrefix;
     private final RecordIndexRegistry recordIndexRegistry;
@@ -113,7 +180,8 @@ public class HourlyIndexAggregatorHazelcastScalable {
         Calendar toCalendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
         toCalendar.setTime(new Date(toTimeMs));
 
-        //generate list of directories based on supplied criteria
+        //generate list of directories based on supplied criteria, each hour is built by a separate task
+        List<RecursiveAction> hourTasks = new ArrayList<>();
         while(fromCalendar.before(toCalendar) || fromCalendar.equals(toCalendar)){
 
             final int year = fromCalendar.get(Calendar.YEAR);
@@ -121,16 +189,34 @@ public class HourlyIndexAggregatorHazelcastScalable {
             final int day = fromCalendar.get(Calendar.DAY_OF_MONTH);
             final int hour = fromCalendar.get(Calendar.HOUR_OF_DAY);
             
-            buildHourlyIndexForSingleHour(customerId, equipmentId, year, month, day, hour);
+            hourTasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    try {
+                        buildHourlyIndexForSingleHour(customerId, equipmentId, year, month, day, hour);
+                    } catch (Exception e) {
+                        //one failed hour should not prevent other hours from being built
+                        LOG.error("Could not build hourly index for {} {} {}/{}/{} {}: {}", customerId, equipmentId, year, month, day, hour, e);
+                    }
+                }
+            });
             
             //advance time to get directory for the next hour
             fromCalendar.add(Calendar.HOUR_OF_DAY, 1);
         }
         
+        invokeAll(hourTasks);
+        
         LOG.debug("completed buildHourlyIndex({}, {}, {}, {})", customerId, equipmentId, fromTimeMs, toTimeMs);
     }
     
-    public void buildHourlyIndexForSingleHour(int customerId, long equipmentId, int year, int month, int day, int hour){
+    /**
+     * Build hourly indexes for a single hour, unless that hour is being built by another thread or node at the moment.
+     * @return true if this call built the hourly indexes, false if the hour was claimed by somebody else
+     */
+    public boolean buildHourlyIndexForSingleHour(int customerId, long equipmentId, int year, int month, int day, int hour){
         LOG.info("started buildHourlyIndexForSingleHour({}, {}, {}, {}, {}, {})",  customerId, equipmentId, year, month, day, hour);
 
         //123wlan-datastore-us-east-1/dev1/13/834/2016/12/03/04/
@@ -152,7 +238,28 @@ public class HourlyIndexAggregatorHazelcastScalable {
         
         String hourlyIndexSuffix = sb1.toString();
         
-        Map<String,Long> fileNameToLastModMap = HierarchicalDatastore.getFileNamesAndLastMods(dsRootDirName, dirKey);
+        String claimKey = dirKey.substring(0, dirKey.length() - 1) + CLAIM_KEY_SUFFIX;
+        if(!claimHour(claimKey)){
+            LOG.info("skipping buildHourlyIndexForSingleHour({}, {}, {}, {}, {}, {}) - it is being built by another node",  customerId, equipmentId, year, month, day, hour);
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "hoursClaimedByOthers-count").increment();
+            return false;
+        }
+
+        long buildStartMs = System.currentTimeMillis();
+        try {
+            buildHourlyIndexForClaimedHour(dirKey, hourlyIndexSuffix, buildStartMs);
+        } finally {
+            releaseHour(claimKey);
+            Timer tmr = CloudMetricsUtils.getTimer(servoMetricPrefix + "hour-timer");
+            tmr.record(System.currentTimeMillis() - buildStartMs, TimeUnit.MILLISECONDS);
+        }
+
+        LOG.info("completed buildHourlyIndexForSingleHour({}, {}, {}, {}, {}, {})",  customerId, equipmentId, year, month, day, hour);
+        return true;
+    }
+
+    private void buildHourlyIndexForClaimedHour(final String dirKey, final String hourlyIndexSuffix, final long buildStartMs) {
+        final Map<String,Long> fileNameToLastModMap = HierarchicalDatastore.getFileNamesAndLastMods(dsRootDirName, dirKey);
         Set<String> dataFilesPrefixes = recordIndexRegistry.getAllFileNamePrefixes();
         Set<String> dataFilesPrefixesInUse = new HashSet<>();
         
@@ -178,14 +285,130 @@ public class HourlyIndexAggregatorHazelcastScalable {
             
         }
         
-        //now process each dataFilePrefix separately - to make sure hourly index built for them is up to date
-        for(String fNamePrefix: dataFilesPrefixesInUse){
-            buildHourlyIndexesForSingleFileNamePrefix(dirKey, fNamePrefix, hourlyIndexSuffix,  
-                        dataFilePrefixToNamesOfDataFilesMap.get(fNamePrefix), fileNameToLastModMap);
+        //now process each dataFilePrefix separately (and in parallel) - to make sure hourly index built for them is up to date
+        List<RecursiveAction> prefixTasks = new ArrayList<>();
+        for(final String fNamePrefix: dataFilesPrefixesInUse){
+            final Set<String> namesOfDataFiles = dataFilePrefixToNamesOfDataFilesMap.get(fNamePrefix);
+            prefixTasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    buildHourlyIndexesForSingleFileNamePrefix(dirKey, fNamePrefix, hourlyIndexSuffix,  
+                            namesOfDataFiles, fileNameToLastModMap, buildStartMs);
+                }
+            });
+        }
+
+        invokeAll(prefixTasks);
+
+        CloudMetricsUtils.getCounter(servoMetricPrefix + "hoursBuilt-count").increment();
+    }
+
+    /**
+     * Mark the hour as being built, so that other nodes do not build it at the same time.
+     * @param claimKey
+     * @return true if the hour was claimed by this caller
+     */
+    private boolean claimHour(String claimKey) {
+        if(hazelcastClient == null) {
+            return true;
         }
-                
-        LOG.info("completed buildHourlyIndexForSingleHour({}, {}, {}, {}, {}, {})",  customerId, equipmentId, year, month, day, hour);
 
+        IMap<String, Long> bipHrDirsMap = hazelcastClient.getMap(hazelcastObjectsConfiguration.getBuildInProgressHourlyDirectoryNamesMapPrefix());
+        return bipHrDirsMap.putIfAbsent(claimKey, System.currentTimeMillis(), hdsHourlyIndexClaimTtlMs, TimeUnit.MILLISECONDS) == null;
+    }
+
+    private void releaseHour(String claimKey) {
+        if(hazelcastClient == null) {
+            return;
+        }
+
+        IMap<String, Long> bipHrDirsMap = hazelcastClient.getMap(hazelcastObjectsConfiguration.getBuildInProgressHourlyDirectoryNamesMapPrefix());
+        bipHrDirsMap.remove(claimKey);
+    }
+
+    /**
+     * Run supplied tasks in the aggregator pool and wait for all of them to complete. 
+     * When called from within the aggregator pool the tasks are forked, and idle workers steal them.
+     * @param tasks
+     */
+    private static void invokeAll(final List<? extends ForkJoinTask<?>> tasks) {
+        if(tasks.isEmpty()) {
+            return;
+        }
+
+        if(ForkJoinTask.getPool() == aggregatorPool) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            aggregatorPool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    /**
+     * Take up to maxRequests requests to re-build hourly indexes from rebuildHrIdxQueue in hazelcast and process them in parallel.
+     * Several nodes can call this method at the same time - every request is taken from the queue by only one of them.
+     * Requests for the hours that are being built by another node are placed at the end of the queue again, 
+     * once all the requests taken by this call are processed.
+     * 
+     * @param dsRootDirName
+     * @param recordIndexRegistry
+     * @param hazelcastClient
+     * @param hazelcastObjectsConfiguration
+     * @param maxRequests - maximum number of requests to take from the queue
+     * @param pollTimeoutMs - how long to wait for the first request to appear in the queue
+     * @return number of requests that were taken from the queue and processed
+     * @throws InterruptedException
+     */
+    public static int processRebuildRequests(final String dsRootDirName, final RecordIndexRegistry recordIndexRegistry, 
+            final HazelcastInstance hazelcastClient, final HazelcastObjectsConfiguration hazelcastObjectsConfiguration,
+            int maxRequests, long pollTimeoutMs) throws InterruptedException {
+
+        IQueue<String> buildIndexRequestQueue = hazelcastClient.getQueue(hazelcastObjectsConfiguration.getRebuildIdxHourlyDirectoryNamesQueue());
+
+        List<RecursiveAction> requestTasks = new ArrayList<>();
+        final Queue<String> contendedRequests = new ConcurrentLinkedQueue<>();
+        String hourlyDirectoryName = buildIndexRequestQueue.poll(pollTimeoutMs, TimeUnit.MILLISECONDS);
+        while(hourlyDirectoryName != null) {
+            final String dirName = hourlyDirectoryName;
+            //first element of the directory name is dsPrefix
+            final String dsPrefix = dirName.substring(0, dirName.indexOf('/'));
+            requestTasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    if(!HierarchicalDatastore.rebuildHourlyIndex(dirName, dsRootDirName, dsPrefix, recordIndexRegistry, hazelcastClient, hazelcastObjectsConfiguration)) {
+                        contendedRequests.add(dirName);
+                    }
+                }
+            });
+
+            hourlyDirectoryName = requestTasks.size() < maxRequests ? buildIndexRequestQueue.poll() : null;
+        }
+
+        LOG.debug("processing {} requests to re-build hourly indexes", requestTasks.size());
+        invokeAll(requestTasks);
+
+        //re-queue them only now, so that this call does not keep taking them back while the other node is building them
+        for(String dirName: contendedRequests) {
+            if(!buildIndexRequestQueue.offer(dirName)) {
+                LOG.error("Cannot place request to rebuild indexes for {} back into the queue", dirName);
+            }
+        }
+        if(!contendedRequests.isEmpty()) {
+            LOG.debug("placed {} requests for the hours claimed by other nodes back into the queue", contendedRequests.size());
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "requestsRequeued-count").increment(contendedRequests.size());
+        }
+
+        return requestTasks.size();
     }
     
     /**
@@ -200,6 +423,11 @@ public class HourlyIndexAggregatorHazelcastScalable {
         DirectoryIndex hourlyIdx;
         long hourlyIdxFileLastmod = 0;
         boolean needsToBeStored = false;
+        //hourly summary is maintained only when summary extractor is registered for the data file name prefix
+        String summaryFileName;
+        HourlySummary summary;
+        long summaryFileLastmod = 0;
+        boolean summaryNeedsToBeStored = false;
     }
     
 
@@ -209,14 +437,17 @@ public class HourlyIndexAggregatorHazelcastScalable {
      * @param hourlyIndexSuffix - in the form "_%d_%d_%4d_%02d_%02d_%02d"
      * @param namesOfDataFiles - subset of all file names as read from directory, all having fNamePrefix
      * @param fileNameToLastModMap - file names and their lastmod timestamps read from the directory 
+     * @param buildStartMs - time when the directory was listed, stored hourly index files get this lastmod timestamp
+     *      so that data files modified after the listing are merged during the next build 
      */
     public void buildHourlyIndexesForSingleFileNamePrefix(String directory, String fNamePrefix, String hourlyIndexSuffix,
             Set<String> namesOfDataFiles,
-            Map<String,Long> fileNameToLastModMap){
+            Map<String,Long> fileNameToLastModMap, long buildStartMs){
 
         LOG.debug("started buildHourlyIndexForSingleFileNamePrefix({})", fNamePrefix);
 
         Set<String> indexNamesToProcess = recordIndexRegistry.getAllIndexesForFileNamePrefix(fNamePrefix);
+        RecordSummaryExtractor summaryExtractor = recordIndexRegistry.getSummaryExtractor(fNamePrefix);
         List<InternalDirectoryIndex> internalDirectoryIndexes = new ArrayList<>(indexNamesToProcess.size());
 
         //populate InternalDirectoryIndex-es for current fileNamePrefix
@@ -265,8 +496,21 @@ public class HourlyIndexAggregatorHazelcastScalable {
                 internalDirIdx.needsToBeStored = true;
             }
             
+            if(summaryExtractor!=null){
+                findHourlySummary(internalDirIdx, summaryExtractor.getNumericFieldNames(), fileNameToLastModMap);
+            }
         }
         
+        //data files that no longer exist are removed from the hourly indexes
+        for(InternalDirectoryIndex internalIdx: internalDirectoryIndexes){
+            if(internalIdx.hourlyIdx.getDataFileNameToRecordIndexMap().keySet().retainAll(namesOfDataFiles)){
+                internalIdx.needsToBeStored = true;
+            }
+            if(internalIdx.summary!=null && internalIdx.summary.retainDataFiles(namesOfDataFiles)){
+                internalIdx.summaryNeedsToBeStored = true;
+            }
+        }
+
         //Summary of the logic below
         // Go through each datafile with fNamePrefix:
         // + if a record index object for that datafile is present in hourlyIdx, 
@@ -277,17 +521,27 @@ public class HourlyIndexAggregatorHazelcastScalable {
         // + else if a record index object for that datafile is present in hourlyIdx, 
         //      and lastmod of that data file is newer (greater than) than hourlyIdxFileLastmod
         //      then build and replace that record index object into hourlyIdx, mark hourlyIdx as needsToBeStored
+        // Data files that need merging are processed in parallel, their record indexes are merged into hourlyIdx when all of them are done.
                 
-        RecordIndex recordIndex;
         Long dataFileLastMod;
         boolean hourlyIdxContainsIndex;
+        List<DataFileMergeTask> mergeTasks = new ArrayList<>();
         for(String dataFileName: namesOfDataFiles){
 
-            //determine what indexes need to be re-built for a given datafile
-            List<InternalDirectoryIndex> indexesToRebuild = new ArrayList<>();
+            //determine what indexes need to be merged for a given datafile
+            List<InternalDirectoryIndex> indexesToMerge = new ArrayList<>();
+            List<InternalDirectoryIndex> indexesToReplace = new ArrayList<>();
+            List<InternalDirectoryIndex> summariesToBuild = new ArrayList<>();
             for(InternalDirectoryIndex internalIdx: internalDirectoryIndexes){
                 
                 dataFileLastMod = fileNameToLastModMap.get(dataFileName);
+
+                //summaries follow the same rules as the hourly indexes, but they can only be built by reading the data file
+                if(internalIdx.summary!=null && (internalIdx.summary.getDataFileSummary(dataFileName)==null 
+                        || dataFileLastMod >= internalIdx.summaryFileLastmod)){
+                    summariesToBuild.add(internalIdx);
+                }
+
                 hourlyIdxContainsIndex = internalIdx.hourlyIdx.getDataFileNameToRecordIndexMap().get(dataFileName) != null;
                 if(hourlyIdxContainsIndex){
                     //data file already present in the hourly index
@@ -295,54 +549,205 @@ public class HourlyIndexAggregatorHazelcastScalable {
                         //nothing to do here, all up-to-date
                     } else {
                         // merge/replace record index for that new data file into hourlyIdx
-                        internalIdx.needsToBeStored = true;
-                        recordIndex = HierarchicalDatastore.findRecordIndex(hazelcastObjectsConfiguration.getRecordIndexMapPrefix(), 
-                                fNamePrefix+"-", hazelcastClient, internalIdx.indexName, dataFileName);
-                        
-                        if(recordIndex==null){
-                            //record index NOT found in hazelcast - possibly expired
-                            //we'll build on the fly
-                            LOG.debug("Could not get content of record index {} for data file {} - building record index from scratch", internalIdx.indexName, dataFileName);
-                            indexesToRebuild.add(internalIdx);
-                        } else {
-                            //record index found in hazelcast, will use it in directory index
-                            if(recordIndex!=null && recordIndex.getCounts()!=null && recordIndex.getPositions()!=null){
-                                internalIdx.hourlyIdx.getDataFileNameToRecordIndexMap().put(dataFileName, recordIndex);
-                            } else {
-                                LOG.error("Could not merge record index {} for data file {}", internalIdx.indexName, dataFileName);
-                            }
-                        }
-    
+                        indexesToReplace.add(internalIdx);
                     }                
                 } else {
                     //data file is NOT present in the hourly index
-                    // build that record index file and merge it into hourlyIdx
-                    internalIdx.needsToBeStored = true;
-                    indexesToRebuild.add(internalIdx);    
+                    indexesToMerge.add(internalIdx);
                 }
             }
 
-            if(!indexesToRebuild.isEmpty()){
-                //rebuild indexes for a given datafile, as determined above
-                buildCountsAndPositions(dataFileName, fNamePrefix, indexesToRebuild);
+            if(!indexesToMerge.isEmpty() || !indexesToReplace.isEmpty() || !summariesToBuild.isEmpty()){
+                mergeTasks.add(new DataFileMergeTask(dataFileName, fNamePrefix, indexesToMerge, indexesToReplace, summariesToBuild));
             }
             
         }
+
+        invokeAll(mergeTasks);
+
+        for(DataFileMergeTask mergeTask: mergeTasks){
+            for(InternalDirectoryIndex internalIdx: mergeTask.indexesToMerge){
+                internalIdx.needsToBeStored = true;
+            }
+            for(InternalDirectoryIndex internalIdx: mergeTask.indexesToReplace){
+                internalIdx.needsToBeStored = true;
+            }
+            for(Map.Entry<InternalDirectoryIndex, RecordIndex> entry: mergeTask.getRawResult().entrySet()){
+                entry.getKey().hourlyIdx.getDataFileNameToRecordIndexMap().put(mergeTask.dataFileName, entry.getValue());
+            }
+            for(InternalDirectoryIndex internalIdx: mergeTask.summariesToBuild){
+                internalIdx.summaryNeedsToBeStored = true;
+            }
+            for(Map.Entry<InternalDirectoryIndex, HourlySummary.DataFileSummary> entry: mergeTask.dataFileSummaries.entrySet()){
+                entry.getKey().summary.putDataFileSummary(mergeTask.dataFileName, entry.getValue());
+            }
+        }
+
+        CloudMetricsUtils.getCounter(servoMetricPrefix + "dataFilesMerged-count").increment(mergeTasks.size());
         
         //now, after processing all datafiles, store those directory indexes that were marked as needsToBeStored 
         for(InternalDirectoryIndex internalDirIdx: internalDirectoryIndexes){
             if(internalDirIdx.needsToBeStored){
                 //store zipped hourlyIdx under name hourlyIdxFileName
-                storeZippedModelInFile(internalDirIdx.hourlyIdxFileName, internalDirIdx.hourlyIdx);
+                storeZippedModelInFile(internalDirIdx.hourlyIdxFileName, internalDirIdx.hourlyIdx, buildStartMs);
+            }
+            if(internalDirIdx.summaryNeedsToBeStored){
+                storeBytesInFile(internalDirIdx.summaryFileName, internalDirIdx.summary.toBytes(), buildStartMs);
             }
         }
 
         LOG.debug("completed buildHourlyIndexesForSingleFileNamePrefix({})", fNamePrefix);
 
     }
+
+    /**
+     * Load existing hourly summary that belongs to the hourly index, or start a new one if it does not exist, 
+     * if it cannot be read, or if it was built for a different set of numeric fields. 
+     * @param internalDirIdx
+     * @param fieldNames - numeric fields that should be summarized
+     * @param fileNameToLastModMap - file names and their lastmod timestamps read from the directory
+     */
+    private void findHourlySummary(InternalDirectoryIndex internalDirIdx, String[] fieldNames, Map<String,Long> fileNameToLastModMap) {
+        internalDirIdx.summaryFileName = HourlySummary.getSummaryFileName(internalDirIdx.hourlyIdxFileName);
+        
+        Long summaryLastmod = fileNameToLastModMap.get(internalDirIdx.summaryFileName);
+        if(summaryLastmod!=null){
+            LOG.debug("hourly summary found : {}", internalDirIdx.summaryFileName);
+            try {
+                HourlySummary summary = HourlySummary.fromBytes(Files.readAllBytes(new File(dsRootDirName, internalDirIdx.summaryFileName).toPath()));
+                if(Arrays.equals(summary.getFieldNames(), fieldNames)){
+                    internalDirIdx.summary = summary;
+                    internalDirIdx.summaryFileLastmod = summaryLastmod;
+                } else {
+                    LOG.info("summarized fields changed, re-building hourly summary {}", internalDirIdx.summaryFileName);
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not read hourly summary {}, will re-build it : {}", internalDirIdx.summaryFileName, e.getMessage());
+            }
+        }
+
+        if(internalDirIdx.summary == null){
+            internalDirIdx.summary = new HourlySummary(internalDirIdx.indexName, fieldNames);
+            internalDirIdx.summaryNeedsToBeStored = true;
+        }
+    }
     
     
-    private void storeZippedModelInFile(String fileName, BaseJsonModel model) {
+    /**
+     * Gets record indexes of a single data file for the hourly indexes that need them - 
+     * from hazelcast, from the binary record index stored with the data file, or by reading the data file.
+     * Result is the map of hourly index to the record index that should be merged into it.
+     * Summaries of the data file, if requested, are collected into dataFileSummaries.
+     */
+    private class DataFileMergeTask extends RecursiveTask<Map<InternalDirectoryIndex, RecordIndex>> {
+        private static final long serialVersionUID = 1L;
+
+        final String dataFileName;
+        final String fNamePrefix;
+        //data file is not present in these hourly indexes
+        final List<InternalDirectoryIndex> indexesToMerge;
+        //data file is present in these hourly indexes, but it was modified after they were stored
+        final List<InternalDirectoryIndex> indexesToReplace;
+        //summaries of these hourly indexes need to be built for the data file
+        final List<InternalDirectoryIndex> summariesToBuild;
+        final Map<InternalDirectoryIndex, HourlySummary.DataFileSummary> dataFileSummaries = new HashMap<>();
+
+        DataFileMergeTask(String dataFileName, String fNamePrefix, List<InternalDirectoryIndex> indexesToMerge, List<InternalDirectoryIndex> indexesToReplace,
+                List<InternalDirectoryIndex> summariesToBuild) {
+            this.dataFileName = dataFileName;
+            this.fNamePrefix = fNamePrefix;
+            this.indexesToMerge = indexesToMerge;
+            this.indexesToReplace = indexesToReplace;
+            this.summariesToBuild = summariesToBuild;
+        }
+
+        @Override
+        protected Map<InternalDirectoryIndex, RecordIndex> compute() {
+            Map<InternalDirectoryIndex, RecordIndex> ret = new HashMap<>();
+            List<InternalDirectoryIndex> indexesToRebuild = new ArrayList<>();
+            RecordIndex recordIndex;
+
+            for(InternalDirectoryIndex internalIdx: indexesToReplace){
+                recordIndex = HierarchicalDatastore.findRecordIndex(hazelcastObjectsConfiguration.getRecordIndexMapPrefix(), 
+                        fNamePrefix+"-", hazelcastClient, internalIdx.indexName, dataFileName);
+                
+                if(recordIndex==null){
+                    //record index NOT found in hazelcast - possibly expired, try the binary one stored with the data file
+                    recordIndex = findBinaryRecordIndex(internalIdx.indexName, dataFileName);
+                }
+
+                if(recordIndex==null){
+                    //record index NOT found in hazelcast - possibly expired
+                    //we'll build on the fly
+                    LOG.debug("Could not get content of record index {} for data file {} - building record index from scratch", internalIdx.indexName, dataFileName);
+                    indexesToRebuild.add(internalIdx);
+                } else {
+                    //record index found in hazelcast, will use it in directory index
+                    if(recordIndex.getCounts()!=null && recordIndex.getPositions()!=null){
+                        ret.put(internalIdx, recordIndex);
+                    } else {
+                        LOG.error("Could not merge record index {} for data file {}", internalIdx.indexName, dataFileName);
+                    }
+                }
+            }
+
+            for(InternalDirectoryIndex internalIdx: indexesToMerge){
+                // use binary record index stored with the data file if it exists, 
+                // otherwise build that record index file and merge it into hourlyIdx
+                recordIndex = findBinaryRecordIndex(internalIdx.indexName, dataFileName);
+                if(recordIndex!=null){
+                    ret.put(internalIdx, recordIndex);
+                } else {
+                    indexesToRebuild.add(internalIdx);
+                }
+            }
+
+            if(!indexesToRebuild.isEmpty() || !summariesToBuild.isEmpty()){
+                //rebuild indexes and summaries for a given datafile, as determined above
+                Map<String, RecordIndex> rebuiltIndexes = buildCountsAndPositions(dataFileName, fNamePrefix, indexesToRebuild, 
+                        summariesToBuild, dataFileSummaries);
+                for(InternalDirectoryIndex internalIdx: indexesToRebuild){
+                    recordIndex = rebuiltIndexes.get(internalIdx.indexName);
+                    if(recordIndex!=null){
+                        ret.put(internalIdx, recordIndex);
+                    }
+                }
+                CloudMetricsUtils.getCounter(servoMetricPrefix + "recordIndexesRebuilt-count").increment(rebuiltIndexes.size());
+                CloudMetricsUtils.getCounter(servoMetricPrefix + "summariesBuilt-count").increment(dataFileSummaries.size());
+            }
+
+            return ret;
+        }
+    }
+
+    /**
+     * @param indexName
+     * @param dataFileName
+     * @return content of the binary record index stored with the data file, or null if it does not exist
+     */
+    private RecordIndex findBinaryRecordIndex(String indexName, String dataFileName) {
+        BinaryRecordIndex binaryRecordIndex = HierarchicalDatastore.findBinaryRecordIndex(dsRootDirName, indexName, dataFileName);
+        return binaryRecordIndex==null ? null : binaryRecordIndex.toRecordIndex(indexName);
+    }
+
+    private void storeBytesInFile(String fileName, byte[] bytes, long lastModifiedMs) {
+        LOG.info("storing {} bytes in {}/{}", bytes.length, dsRootDirName, fileName);
+
+        File file = new File(dsRootDirName, fileName);
+        try(FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(bytes);
+            fos.flush();
+        } catch (IOException e) {
+            LOG.error("Unable to store {}/{} : {}", dsRootDirName, fileName, e);
+            return;
+        }
+
+        if(!file.setLastModified(lastModifiedMs)) {
+            LOG.warn("Could not set lastmod timestamp of {}/{}", dsRootDirName, fileName);
+        }
+    }
+
+    private void storeZippedModelInFile(String fileName, BaseJsonModel model, long lastModifiedMs) {
 
         LOG.info("storing {} in {}/{}", model.getClass().getSimpleName(), dsRootDirName, fileName);
 
@@ -374,13 +779,20 @@ public class HourlyIndexAggregatorHazelcastScalable {
         ByteArrayInputStream bais = new ByteArrayInputStream(collectedBytes);
         
         LOG.info("Upload started (size {}): {}/{}", collectedBytes.length, dsRootDirName, fileName);
-        try(FileOutputStream fos = new FileOutputStream(new File(dsRootDirName, fileName))) {
+        File file = new File(dsRootDirName, fileName);
+        try(FileOutputStream fos = new FileOutputStream(file)) {
         	StreamUtils.copy(bais, fos);
         	fos.flush();
 
             LOG.info("Upload complete: {}/{}", dsRootDirName, fileName);
         } catch (IOException e) {
             LOG.error("Unable to upload stream into {}/{}, upload was aborted. {}", dsRootDirName, fileName, e);
+            return;
+        }
+
+        //data files that were modified after the directory was listed will look newer than the hourly index, and will be merged during the next build
+        if(!file.setLastModified(lastModifiedMs)) {
+            LOG.warn("Could not set lastmod timestamp of {}/{}", dsRootDirName, fileName);
         }
     }
 
@@ -405,7 +817,17 @@ public class HourlyIndexAggregatorHazelcastScalable {
         
     }
     
-    private void buildCountsAndPositions(String dataFileName, String fileNamePrefix, List<InternalDirectoryIndex> indexesToRebuild) {
+    /**
+     * Read the data file and build record indexes and summaries for it.
+     * @param dataFileName
+     * @param fileNamePrefix
+     * @param indexesToRebuild
+     * @param summariesToBuild - hourly indexes that need summaries of the data file
+     * @param dataFileSummaries - freshly built summaries of the data file are placed here, nothing is placed if the data file does not exist
+     * @return map of index name to freshly built record index, empty map if the data file does not exist
+     */
+    private Map<String, RecordIndex> buildCountsAndPositions(String dataFileName, String fileNamePrefix, List<InternalDirectoryIndex> indexesToRebuild,
+            List<InternalDirectoryIndex> summariesToBuild, Map<InternalDirectoryIndex, HourlySummary.DataFileSummary> dataFileSummaries) {
 
         Map<String, InternalRecordIndex> recordIndexes = new HashMap<>();
         
@@ -414,6 +836,19 @@ public class HourlyIndexAggregatorHazelcastScalable {
             recordIndexes.put(internalIdx.indexName, new InternalRecordIndex(fileNamePrefix, internalIdx.indexName, recordIndexRegistry));            
         }
 
+        //initialize new summaries
+        RecordSummaryExtractor summaryExtractor = recordIndexRegistry.getSummaryExtractor(fileNamePrefix);
+        String[] fieldNames = summaryExtractor==null ? new String[0] : summaryExtractor.getNumericFieldNames();
+        Map<InternalDirectoryIndex, HourlySummary.DataFileSummary> summaries = new HashMap<>();
+        Map<InternalDirectoryIndex, RecordIndexValueExtractor> summaryValueExtractors = new HashMap<>();
+        if(summaryExtractor!=null){
+            for(InternalDirectoryIndex internalIdx: summariesToBuild){
+                summaries.put(internalIdx, new HourlySummary.DataFileSummary(fieldNames));
+                summaryValueExtractors.put(internalIdx, recordIndexRegistry.getIndexValueExtractor(fileNamePrefix, internalIdx.indexName));
+            }
+        }
+        double[] fieldValues = new double[fieldNames.length];
+
         LOG.debug("Building record indexes for {}", dataFileName);
 
         try(FileInputStream fis = new FileInputStream(new File(dsRootDirName, dataFileName))) {
@@ -429,7 +864,8 @@ public class HourlyIndexAggregatorHazelcastScalable {
                     InputStreamReader isr = new InputStreamReader(zis, StandardCharsets.UTF_8);
                     BufferedReader br = new BufferedReader(isr); 
                     
-                    int lineNum = 0;
+                    //line numbers continue across the blocks (zip entries) of the data file
+                    int lineNum = DataFileBlocks.getFirstLineNumber(zipEntryName);
                     Set<String> idxValues;
 
                     for(String line; (line = br.readLine()) != null; ) {
@@ -450,6 +886,15 @@ public class HourlyIndexAggregatorHazelcastScalable {
                                }
                            }
 
+                           if(!summaries.isEmpty()){
+                               long ts = summaryExtractor.extractTimestamp(entity);
+                               for(int i = 0; i < fieldNames.length; i++){
+                                   fieldValues[i] = summaryExtractor.extractNumericValue(entity, fieldNames[i]);
+                               }
+                               for(Map.Entry<InternalDirectoryIndex, HourlySummary.DataFileSummary> entry: summaries.entrySet()){
+                                   entry.getValue().add(summaryValueExtractors.get(entry.getKey()).extractValues(entity), ts, fieldValues);
+                               }
+                           }
                        }
                        lineNum++; 
 
@@ -463,21 +908,24 @@ public class HourlyIndexAggregatorHazelcastScalable {
             
         } catch (FileNotFoundException e){
             LOG.trace("file {} does not exist", dataFileName);
-            return;
+            return new HashMap<>();
         } catch (IOException e) {
             throw new GenericErrorException(e);
         }
         
 
-        //merge freshly built record indexes into supplied indexesToRebuild
-        for(InternalDirectoryIndex internalIdx: indexesToRebuild){
-            InternalRecordIndex iRecordIdx = recordIndexes.get(internalIdx.indexName);
-            RecordIndex recordIndex =  new RecordIndex(iRecordIdx.recordIndexCounts, iRecordIdx.recordIndexPositions);           
-            internalIdx.hourlyIdx.getDataFileNameToRecordIndexMap().put(dataFileName, recordIndex);
+        dataFileSummaries.putAll(summaries);
+
+        //freshly built record indexes will be merged into supplied indexesToRebuild by the caller
+        Map<String, RecordIndex> ret = new HashMap<>();
+        for(InternalRecordIndex iRecordIdx: recordIndexes.values()){
+            ret.put(iRecordIdx.indexName, new RecordIndex(iRecordIdx.recordIndexCounts, iRecordIdx.recordIndexPositions));
         }
 
         LOG.debug("Completed building record indexes for {}", dataFileName);
 
+        return ret;
+
     }
 
     
@@ -4,12 +4,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.PostConstruct;
 
 import org.springframework.stereotype.Component;
 
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexValueExtractor;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordSummaryExtractor;
 
 /**
  * This class defines all record indexes used by hds in our system
@@ -53,6 +55,7 @@ public class RecordIndexRegistry {
 
     private Map<String, Map<String, RecordIndexValueExtractor>> fullIndexMap = new HashMap<>();
     private Set<String> fileNamePrefixes = new HashSet<>();
+    private Map<String, RecordSummaryExtractor> summaryExtractors = new ConcurrentHashMap<>();
     
     @PostConstruct
     public void postConstruct(){
@@ -231,4 +234,26 @@ public class RecordIndexRegistry {
     public Set<String> getAllFileNamePrefixes(){
         return fileNamePrefixes;
     }
+
+    /**
+     * Enable hourly summaries for the data files with the given file name prefix. 
+     * Summaries are built by the hourly index aggregator for every record index of that prefix.
+     * @param fileNamePrefix
+     * @param summaryExtractor - null disables hourly summaries for the prefix
+     */
+    public void registerSummaryExtractor(String fileNamePrefix, RecordSummaryExtractor summaryExtractor){
+        if(summaryExtractor == null){
+            summaryExtractors.remove(fileNamePrefix);
+        } else {
+            summaryExtractors.put(fileNamePrefix, summaryExtractor);
+        }
+    }
+
+    /**
+     * @param fileNamePrefix
+     * @return summary extractor for the data files with the given prefix, or null if hourly summaries are not enabled for them
+     */
+    public RecordSummaryExtractor getSummaryExtractor(String fileNamePrefix){
+        return summaryExtractors.get(fileNamePrefix);
+    }
 }
@@ -0,0 +1,47 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteArrayOutputStream that gives access to its internal buffer, so that the collected bytes can be read without making a copy of them.<br>
+ * Collected bytes are the first size() bytes of getBuffer(). They stay valid until the next write or reset.
+ *
+ * @author dtop
+ *
+ */
+public class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public DirectByteArrayOutputStream(int initialSize) {
+        super(initialSize);
+    }
+
+    /**
+     * @return internal buffer of this stream, only the first size() bytes of it are valid
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return stream that reads collected bytes directly from the internal buffer
+     */
+    public ByteArrayInputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * @return buffer that wraps collected bytes, backed by the internal buffer of this stream
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * @return capacity of the internal buffer
+     */
+    public int getCapacity() {
+        return buf.length;
+    }
+}
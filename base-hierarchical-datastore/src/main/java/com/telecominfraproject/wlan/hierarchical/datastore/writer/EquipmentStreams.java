@@ -0,0 +1,255 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasProducedTimestamp;
+import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore;
+
+/**
+ * @author dtop
+ *
+ * In-memory zip streams of a single customer_equipment key, one stream per N minutes - according to HierarchicalDatastore settings.<br>
+ * Instances of this class are owned by exactly one writer shard, and are only accessed from that shard's thread.
+ *
+ */
+public class EquipmentStreams {
+
+    private final Map<Long, StreamHolder> streamMap = new HashMap<>();
+
+    /**
+     * Streams that could not be uploaded to files yet. They keep their records and write-ahead log segments until the upload succeeds.
+     */
+    private final List<StreamHolder> failedUploads = new ArrayList<>();
+
+    private final int customerId;
+    private final long equipmentId;
+    private final HierarchicalDatastore hierarchicalDatastore;
+    private final long idleTimeoutBeforeFlushingMs;
+    private final WriteAheadLog writeAheadLog;
+
+    /**
+     * true when this key is present in the flush timer wheel of the owning shard
+     */
+    private boolean scheduledForFlush;
+
+    public EquipmentStreams(HierarchicalDatastore hierarchicalDatastore, int customerId, long equipmentId, long idleTimeoutBeforeFlushingMs) {
+        this(hierarchicalDatastore, customerId, equipmentId, idleTimeoutBeforeFlushingMs, null);
+    }
+
+    /**
+     * @param hierarchicalDatastore
+     * @param customerId
+     * @param equipmentId
+     * @param idleTimeoutBeforeFlushingMs
+     * @param writeAheadLog - write-ahead log of the owning shard, segments of the streams are released in it once the streams are uploaded to files. Can be null.
+     */
+    public EquipmentStreams(HierarchicalDatastore hierarchicalDatastore, int customerId, long equipmentId, long idleTimeoutBeforeFlushingMs, WriteAheadLog writeAheadLog) {
+        this.hierarchicalDatastore = hierarchicalDatastore;
+        this.customerId = customerId;
+        this.equipmentId = equipmentId;
+        this.idleTimeoutBeforeFlushingMs = idleTimeoutBeforeFlushingMs;
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /**
+     * Write model into the in-memory stream that corresponds to the model timestamp, creating the stream if needed.
+     * @param model - has to implement HasProducedTimestamp
+     * @throws IOException
+     */
+    public void writeModel(BaseJsonModel model) throws IOException {
+        byte[] modelBytes = model.toString().getBytes(StandardCharsets.UTF_8);
+        writeModel(model, modelBytes, modelBytes.length, -1);
+    }
+
+    /**
+     * Write model into the in-memory stream that corresponds to the model timestamp, creating the stream if needed.
+     * @param model - has to implement HasProducedTimestamp
+     * @param modelBytes - buffer that holds UTF-8 bytes of the JSON representation of the model in its first modelLength bytes
+     * @param modelLength
+     * @param walSegmentId - write-ahead log segment that contains the model, the stream retains that segment until it is uploaded to a file. Negative if the model is not in the write-ahead log.
+     * @throws IOException
+     */
+    public void writeModel(BaseJsonModel model, byte[] modelBytes, int modelLength, long walSegmentId) throws IOException {
+        long modelTs = ((HasProducedTimestamp) model).getProducedTimestampMs();
+
+        //determine the in-memory stream to write the model to
+        //first normalize timestamp to n minutes - per hDatastore configuration
+        long normalizedModelTs = modelTs - modelTs%(1L*hierarchicalDatastore.getNumberOfMinutesPerFile()*60*1000);
+        //then find the stream from the normalized timestamp
+        StreamHolder streamHolder = streamMap.get(normalizedModelTs);
+
+        //create stream if needed - only one thread is doing this
+        if(streamHolder == null){
+            streamHolder = new StreamHolder(modelTs, customerId, equipmentId, hierarchicalDatastore);
+            streamMap.put(streamHolder.getStreamKey(), streamHolder);
+        }
+
+        streamHolder.writeModelToStream(model, modelBytes, modelLength);
+
+        if(walSegmentId >= 0 && writeAheadLog != null && streamHolder.addWalSegment(walSegmentId)){
+            writeAheadLog.retain(walSegmentId);
+        }
+    }
+
+    /**
+     * Check all open streams, and upload them to files if they were idle for longer than idleTimeoutBeforeFlushingMs.
+     * Streams that failed to upload before are retried first.
+     * <br>
+     * When an upload fails, the stream stays in memory and keeps its write-ahead log segments, 
+     * the remaining streams are still processed, and the first failure is re-thrown at the end.
+     * @param forceFlush - if true, then unconditionally flush all existing streams to files
+     * @param nowMs - current time
+     * @return the earliest time at which one of the remaining streams becomes idle, or -1 if no streams are left open
+     * @throws IOException - if at least one of the streams could not be uploaded
+     */
+    public long commitOutputStreamsToFiles(boolean forceFlush, long nowMs) throws IOException {
+        StreamHolder streamHolder;
+        Map.Entry<Long, StreamHolder> mapEntry;
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        long nextDeadlineMs = -1;
+        IOException firstFailure = null;
+
+        Iterator<StreamHolder> failedIter = failedUploads.iterator();
+        while(failedIter.hasNext()){
+            streamHolder = failedIter.next();
+            try {
+                streamHolder.commitOutputStreamToFile(true);
+            } catch (IOException e) {
+                if(firstFailure == null){
+                    firstFailure = e;
+                }
+                continue;
+            }
+
+            failedIter.remove();
+            publishDataFile(streamHolder, calendar);
+        }
+
+        Iterator<Map.Entry<Long, StreamHolder>> iter = streamMap.entrySet().iterator();
+        while(iter.hasNext()){
+            mapEntry = iter.next();
+            streamHolder = mapEntry.getValue();
+            long streamDeadlineMs = streamHolder.getLastModelWrittenToStreamTimestampMs() + idleTimeoutBeforeFlushingMs;
+            if(forceFlush || streamDeadlineMs <= nowMs ){
+                //stream was idle long enough, can flush it to file now.
+                //It does not accept new records after this point, later records of the same interval go into a new stream
+                iter.remove();
+
+                //Record indexes and directory listing are published to hazelcast in the background, together with those of the other streams
+                try {
+                    streamHolder.commitOutputStreamToFile(true);
+                } catch (IOException e) {
+                    //keep the stream and its write-ahead log segments, upload will be retried on the next flush
+                    failedUploads.add(streamHolder);
+                    if(firstFailure == null){
+                        firstFailure = e;
+                    }
+                    continue;
+                }
+
+                //stream is uploaded to file, no need to keep it in memory anymore
+                publishDataFile(streamHolder, calendar);
+
+            } else if(nextDeadlineMs < 0 || streamDeadlineMs < nextDeadlineMs){
+                nextDeadlineMs = streamDeadlineMs;
+            }
+        }
+
+        if(firstFailure != null){
+            throw firstFailure;
+        }
+
+        return nextDeadlineMs;
+    }
+
+    /**
+     * Update fileCreatedTimestampsForInterval in hazelcast - append new timestamp for just-uploaded-stream to it.
+     * Write-ahead log segments of the stream are released once the file is published.
+     * @param streamHolder
+     * @param calendar
+     */
+    private void publishDataFile(StreamHolder streamHolder, Calendar calendar) {
+        calendar.setTime(new Date(streamHolder.getZipStreamStartTimeMs()));
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+
+        hierarchicalDatastore.appendFileNameToDirectoryListingInBackground(customerId, equipmentId, year, month, day, hour, streamHolder.getFullFileName(),
+                getWalReleaseCallback(streamHolder));
+    }
+
+    /**
+     * @param streamHolder
+     * @return callback that releases write-ahead log segments of the stream once its file is published, or null if write-ahead log is not used
+     */
+    private Runnable getWalReleaseCallback(StreamHolder streamHolder) {
+        if(writeAheadLog == null || streamHolder.getWalSegmentIds().isEmpty()){
+            return null;
+        }
+
+        final Set<Long> walSegmentIds = streamHolder.getWalSegmentIds();
+        return new Runnable() {
+            @Override
+            public void run() {
+                //records of this stream are in the file now, they are no longer needed in the write-ahead log
+                for(Long walSegmentId: walSegmentIds){
+                    writeAheadLog.release(walSegmentId);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the earliest time at which one of the open streams becomes idle, or -1 if there are no open streams
+     */
+    public long getNextFlushDeadlineMs() {
+        long nextDeadlineMs = -1;
+        for(StreamHolder streamHolder: streamMap.values()) {
+            long streamDeadlineMs = streamHolder.getLastModelWrittenToStreamTimestampMs() + idleTimeoutBeforeFlushingMs;
+            if(nextDeadlineMs < 0 || streamDeadlineMs < nextDeadlineMs){
+                nextDeadlineMs = streamDeadlineMs;
+            }
+        }
+        return nextDeadlineMs;
+    }
+
+    /**
+     * @return true if there are no open streams, and no streams waiting for their upload to be retried
+     */
+    public boolean isEmpty() {
+        return streamMap.isEmpty() && failedUploads.isEmpty();
+    }
+
+    public int getNumberOfOpenStreams() {
+        return streamMap.size() + failedUploads.size();
+    }
+
+    public boolean isScheduledForFlush() {
+        return scheduledForFlush;
+    }
+
+    public void setScheduledForFlush(boolean scheduledForFlush) {
+        this.scheduledForFlush = scheduledForFlush;
+    }
+
+    public int getCustomerId() {
+        return customerId;
+    }
+
+    public long getEquipmentId() {
+        return equipmentId;
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel used by the writer shards to find out which customer_equipment keys have idle streams that need flushing.<br>
+ * Keys are placed into a slot according to their deadline, and only the slots that the wheel passes over are examined on each tick,
+ * so the cost of a tick does not depend on the total number of keys owned by a shard.<br>
+ * Deadlines that are further away than one full turn of the wheel stay in their slot and are skipped until their round comes.<br>
+ *
+ * This class is not thread-safe, it is meant to be used by a single shard thread.
+ *
+ * @author dtop
+ *
+ */
+public class FlushTimerWheel<K> {
+
+    private static class WheelEntry<K> {
+        final K key;
+        final long deadlineMs;
+
+        WheelEntry(K key, long deadlineMs) {
+            this.key = key;
+            this.deadlineMs = deadlineMs;
+        }
+    }
+
+    private final long tickMs;
+    private final ArrayDeque<WheelEntry<K>>[] slots;
+    private long lastProcessedTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public FlushTimerWheel(long tickMs, int numberOfSlots, long startTimeMs) {
+        if(tickMs <= 0 || numberOfSlots <= 0) {
+            throw new IllegalArgumentException("tickMs and numberOfSlots must be positive");
+        }
+
+        this.tickMs = tickMs;
+        this.slots = new ArrayDeque[numberOfSlots];
+        for(int i = 0; i < numberOfSlots; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.lastProcessedTick = startTimeMs / tickMs;
+    }
+
+    /**
+     * Schedule a key to be reported as expired once the wheel advances past deadlineMs.
+     * Deadlines in the past are reported on the next call to advance().
+     * @param key
+     * @param deadlineMs
+     */
+    public void schedule(K key, long deadlineMs) {
+        //round up, so that by the time the wheel reaches this slot the deadline has already passed
+        long tick = Math.max((deadlineMs + tickMs - 1) / tickMs, lastProcessedTick + 1);
+        slots[(int) (tick % slots.length)].add(new WheelEntry<>(key, deadlineMs));
+        size++;
+    }
+
+    /**
+     * Move the wheel forward to nowMs and pass every key whose deadline has been reached to the supplied consumer.
+     * The consumer is allowed to schedule keys again.
+     * @param nowMs
+     * @param expiredKeyConsumer
+     */
+    public void advance(long nowMs, Consumer<K> expiredKeyConsumer) {
+        long currentTick = nowMs / tickMs;
+
+        //no need to go around the wheel more than once - all the slots will have been visited by then
+        long firstTick = Math.max(lastProcessedTick + 1, currentTick - slots.length + 1);
+
+        for(long tick = firstTick; tick <= currentTick; tick++) {
+            ArrayDeque<WheelEntry<K>> slot = slots[(int) (tick % slots.length)];
+            int entriesToCheck = slot.size();
+
+            //entries re-scheduled by the consumer into this same slot are added at the tail and will not be looked at during this pass
+            for(int i = 0; i < entriesToCheck; i++) {
+                WheelEntry<K> entry = slot.poll();
+                if(entry.deadlineMs <= nowMs) {
+                    size--;
+                    expiredKeyConsumer.accept(entry.key);
+                } else {
+                    //deadline belongs to one of the next rounds of the wheel
+                    slot.add(entry);
+                }
+            }
+        }
+
+        if(currentTick > lastProcessedTick) {
+            lastProcessedTick = currentTick;
+        }
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * @return number of keys currently scheduled in the wheel
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,76 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+/**
+ * Serializes models into UTF-8 JSON using a JsonGenerator and an output buffer that are reused for every model,
+ * so that writing a model does not create an intermediate String and byte[] for it.<br>
+ * The result is the same as BaseJsonModel.toString() encoded in UTF-8. It is kept in the internal buffer until the next call to serialize(),
+ * where the writer can copy it into a zip stream and a write-ahead log.<br>
+ * Model is serialized completely before any of it is handed over, so a model that fails to serialize never leaves a partial line in a data file.<br>
+ *
+ * This class is not thread-safe, it is meant to be used by a single shard thread.
+ *
+ * @author dtop
+ *
+ */
+public class ModelSerializer {
+
+    private static final int initialBufferSize = 4 * 1024;
+
+    /**
+     * Buffer is re-allocated after an unusually large model, so that a single model does not pin a lot of memory for the lifetime of the shard
+     */
+    private static final int maxRetainedBufferSize = 256 * 1024;
+
+    private DirectByteArrayOutputStream buffer = new DirectByteArrayOutputStream(initialBufferSize);
+    private JsonGenerator jsonGenerator;
+
+    /**
+     * Serialize the model into the internal buffer, replacing the previous content of the buffer.
+     * @param model
+     * @throws IOException
+     */
+    public void serialize(BaseJsonModel model) throws IOException {
+        if(buffer.getCapacity() > maxRetainedBufferSize) {
+            buffer = new DirectByteArrayOutputStream(initialBufferSize);
+            jsonGenerator = null;
+        }
+
+        buffer.reset();
+
+        if(jsonGenerator == null) {
+            jsonGenerator = BaseJsonModel.getMapper().getFactory().createGenerator(buffer, JsonEncoding.UTF8);
+            //models are written one after another into the same generator, they should not be separated by anything
+            jsonGenerator.setRootValueSeparator(null);
+        }
+
+        try {
+            BaseJsonModel.getMapper().writeValue(jsonGenerator, model);
+            jsonGenerator.flush();
+        } catch (IOException | RuntimeException e) {
+            //state of the generator is unknown after a failure, start with a new one next time
+            jsonGenerator = null;
+            buffer.reset();
+            throw e;
+        }
+    }
+
+    /**
+     * @return internal buffer that holds the last serialized model in its first getLength() bytes
+     */
+    public byte[] getBuffer() {
+        return buffer.getBuffer();
+    }
+
+    /**
+     * @return length of the last serialized model
+     */
+    public int getLength() {
+        return buffer.size();
+    }
+}
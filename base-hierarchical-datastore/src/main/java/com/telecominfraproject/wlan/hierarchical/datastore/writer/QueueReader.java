@@ -11,74 +11,90 @@ import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore
 import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
 
 /**
- * QueueReader picks up objects from the queue and writes them into zip streams in memory - one stream per N minutes, according to HierarchicalDatastore settings.<br>
+ * QueueReader is a single writer shard: it picks up objects from the queue and writes them into zip streams in memory - one stream per customer_equipment per N minutes, according to HierarchicalDatastore settings.<br>
  * Zip streams will be flushed into files after they have been idle for X minutes, according to HierarchicalDatastore settings.<br>
- * 
+ *
  * @author dtop
  *
  */
 public class QueueReader {
-    
+
     private static final Logger LOG = LoggerFactory.getLogger(QueueReader.class);
 
+    private static final int shardQueueSize = Integer.getInteger("tip.wlan.hdsWriterShardQueueSize", 50000);
+
     @SuppressWarnings("serial")
     static final BaseJsonModel poisonPill = new BaseJsonModel(){};
 
-    private final int customerId;
-    private final long equipmentId;
+    private final int shardIndex;
     private final String fileNamePrefix;
-    private final BlockingQueue<BaseJsonModel> queue = new ArrayBlockingQueue<>(5000);
+    private final BlockingQueue<BaseJsonModel> queue = new ArrayBlockingQueue<>(shardQueueSize);
+    private final QueueReaderRunnable queueReaderRunnable;
     private final Thread queueReaderThread;
     private boolean shutdownRequested;
-    
-    public QueueReader(HierarchicalDatastore hierarchicalDatastore, int customerId, long equipmentId, long idleTimeoutBeforeFlushingMs) {
-        this.customerId = customerId;
-        this.equipmentId = equipmentId;
+
+    public QueueReader(HierarchicalDatastore hierarchicalDatastore, int shardIndex, long idleTimeoutBeforeFlushingMs) {
+        this.shardIndex = shardIndex;
         this.fileNamePrefix = hierarchicalDatastore.getFileNamePrefix();
 
-        queueReaderThread = new Thread(new QueueReaderRunnable(queue, hierarchicalDatastore, customerId, equipmentId, idleTimeoutBeforeFlushingMs), 
-                "queueReader_"+fileNamePrefix+"_"+customerId+"_"+equipmentId+"_"+System.currentTimeMillis());
-        
-        //This thread has to be non-daemon because we need it alive when shutdown hook 
-        // runs - to process poison pills and perform flush to files 
+        queueReaderRunnable = new QueueReaderRunnable(queue, hierarchicalDatastore, shardIndex, idleTimeoutBeforeFlushingMs);
+        queueReaderThread = new Thread(queueReaderRunnable,
+                "queueReader_"+fileNamePrefix+"_shard_"+shardIndex+"_"+System.currentTimeMillis());
+
+        //This thread has to be non-daemon because we need it alive when shutdown hook
+        // runs - to process poison pills and perform flush to files
         queueReaderThread.setDaemon(false);
-        
+
     }
-    
+
     /**
      * Start reading messages from the queue
      */
     public void start(){
         queueReaderThread.start();
     }
-    
+
     public int getQueueSize(){
         return queue.size();
     }
-    
+
+    /**
+     * @return number of customer_equipment keys that currently have open streams in this shard
+     */
+    public int getNumberOfActiveKeys(){
+        return queueReaderRunnable.getNumberOfActiveKeys();
+    }
+
+    /**
+     * @return number of write-ahead log segments of this shard that are kept on disk
+     */
+    public int getNumberOfWalSegments(){
+        return queueReaderRunnable.getNumberOfWalSegments();
+    }
+
     public boolean isAlive(){
         return queueReaderThread.isAlive();
     }
 
     /**
-     * Shutdown and flush to files all existing streams. 
+     * Shutdown and flush to files all existing streams.
      * Actual shutdown and flush is performed when poison pill is read by the queueReaderThread.
      */
     public void shutdown(){
         if(!shutdownRequested){
             shutdownRequested = true;
-            LOG.info("Shutting down queue {}_{}_{}", fileNamePrefix, customerId, equipmentId);
-            addToQueue(poisonPill);            
+            LOG.info("Shutting down queue {}_shard_{}", fileNamePrefix, shardIndex);
+            addToQueue(poisonPill);
         }
     }
-    
+
     public void addToQueue(BaseJsonModel model){
-        LOG.trace("Adding model to queue({}_{}_{}) {}", fileNamePrefix, customerId, equipmentId, model);
+        LOG.trace("Adding model to queue({}_shard_{}) {}", fileNamePrefix, shardIndex, model);
         try {
             queue.put(model);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            throw new GenericErrorException("Interrupted while trying to insert model into a queue " + fileNamePrefix + " for customer "+customerId+" equipment "+equipmentId, e);
+            throw new GenericErrorException("Interrupted while trying to insert model into a queue " + fileNamePrefix + " shard "+shardIndex, e);
         }
     }
 
@@ -88,5 +104,5 @@ public class QueueReader {
     public boolean isShutdownCompleted() {
         return shutdownRequested && !queueReaderThread.isAlive();
     }
-    
+
 }
@@ -1,12 +1,10 @@
 package com.telecominfraproject.wlan.hierarchical.datastore.writer;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -20,160 +18,373 @@ import com.telecominfraproject.wlan.core.model.json.interfaces.HasCustomerId;
 import com.telecominfraproject.wlan.core.model.json.interfaces.HasEquipmentId;
 import com.telecominfraproject.wlan.core.model.json.interfaces.HasProducedTimestamp;
 import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore;
+import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
 
 /**
  * @author dtop
- * 
- * This class reads models from a customer_equipment queue, writes them
- * into appropriate zipStreams according to model timestamps, and
- * triggers flushes of those streams to files.
+ *
+ * This class reads models from a writer shard queue, writes them
+ * into appropriate zipStreams according to model customer, equipment and timestamps, and
+ * triggers flushes of those streams to files.<br>
+ * Each shard owns the streams of all the customer_equipment keys that hash onto it.
+ * Idle streams are found with the help of a timer wheel, and keys without open streams are evicted from the shard.<br>
+ * When tip.wlan.hdsWriterWalDir system property is set, every model is first appended to the write-ahead log of the shard,
+ * and the log is replayed into the streams when the shard starts - so the streams that were not uploaded to files survive a crash of the JVM.
+ * Logs of the shards that no longer exist are moved into the logs of the current shards before the shards start, see {@link #redistributeOrphanedWriteAheadLogs(HierarchicalDatastore, int)}.
  *
  */
 public class QueueReaderRunnable implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(QueueReader.class);
 
-    private final Map<Long, StreamHolder> streamMap = new HashMap<>();
-    
-    private final int customerId;
-    private final long equipmentId;
+    private static final int flushTimerWheelSlots = Integer.getInteger("tip.wlan.hdsWriterFlushTimerWheelSlots", 512);
+
+    private static final long indexPublisherFlushTimeoutMs = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String walRootDirName = System.getProperty("tip.wlan.hdsWriterWalDir");
+    private static final int walSegmentMaxMb = Integer.getInteger("tip.wlan.hdsWriterWalSegmentMaxMb", 64);
+    private static final int walSyncEveryRecords = Integer.getInteger("tip.wlan.hdsWriterWalSyncEveryRecords", 1000);
+    private static final int walSyncIntervalMs = Integer.getInteger("tip.wlan.hdsWriterWalSyncIntervalMs", 200);
+    private static final String walShardDirPrefix = "shard_";
+
+    private final Map<String, EquipmentStreams> equipmentStreamsMap = new HashMap<>();
+    private final FlushTimerWheel<String> flushTimerWheel;
+    private final ModelSerializer modelSerializer = new ModelSerializer();
+
+    private final int shardIndex;
     private final BlockingQueue<BaseJsonModel> queue;
     private final String servoMetricPrefix;
     private final Counter processedModelCounter;
+    private final Counter evictedKeyCounter;
+    private final Counter walErrorCounter;
+    private final Counter walReplayedModelCounter;
     private final HierarchicalDatastore hierarchicalDatastore;
     private final long idleTimeoutBeforeFlushingMs;
 
-    public QueueReaderRunnable(BlockingQueue<BaseJsonModel> queue, HierarchicalDatastore hierarchicalDatastore, int customerId, long equipmentId, long idleTimeoutBeforeFlushingMs) {
+    /**
+     * null when write-ahead log is not configured, or when it could not be recovered
+     */
+    private WriteAheadLog writeAheadLog;
+
+    private volatile int numberOfActiveKeys;
+
+    public QueueReaderRunnable(BlockingQueue<BaseJsonModel> queue, HierarchicalDatastore hierarchicalDatastore, int shardIndex, long idleTimeoutBeforeFlushingMs) {
         this.queue = queue;
-        this.customerId = customerId;
-        this.equipmentId = equipmentId;
+        this.shardIndex = shardIndex;
         this.servoMetricPrefix = "hdsQueueReader-"+hierarchicalDatastore.getDsRootDirName()+"-"+hierarchicalDatastore.getDsPrefix()+"-"+hierarchicalDatastore.getFileNamePrefix()+"-";
         this.processedModelCounter = CloudMetricsUtils.getCounter(servoMetricPrefix+"processedModel-count");
+        this.evictedKeyCounter = CloudMetricsUtils.getCounter(servoMetricPrefix+"evictedKey-count");
+        this.walErrorCounter = CloudMetricsUtils.getCounter(servoMetricPrefix+"walError-count");
+        this.walReplayedModelCounter = CloudMetricsUtils.getCounter(servoMetricPrefix+"walReplayedModel-count");
         this.idleTimeoutBeforeFlushingMs = idleTimeoutBeforeFlushingMs;
         this.hierarchicalDatastore = hierarchicalDatastore;
+
+        //aim for a few ticks per idle timeout, but do not wake up more often than every millisecond or less often than every second
+        long tickMs = Math.max(1L, Math.min(idleTimeoutBeforeFlushingMs / 4, 1000L));
+        this.flushTimerWheel = new FlushTimerWheel<>(tickMs, flushTimerWheelSlots, System.currentTimeMillis());
+
+        if(isWriteAheadLogEnabled()) {
+            this.writeAheadLog = new WriteAheadLog(getWalShardDir(hierarchicalDatastore, shardIndex),
+                    walSegmentMaxMb * 1024L * 1024L, walSyncEveryRecords, walSyncIntervalMs);
+        }
     }
-    
+
+    private static boolean isWriteAheadLogEnabled() {
+        return walRootDirName != null && !walRootDirName.isEmpty();
+    }
+
+    private static File getWalDsDir(HierarchicalDatastore hierarchicalDatastore) {
+        String dsName = (hierarchicalDatastore.getDsRootDirName()+"-"+hierarchicalDatastore.getDsPrefix()+"-"+hierarchicalDatastore.getFileNamePrefix()).replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(walRootDirName, dsName);
+    }
+
+    private static File getWalShardDir(HierarchicalDatastore hierarchicalDatastore, int shardIndex) {
+        return new File(getWalDsDir(hierarchicalDatastore), walShardDirPrefix+shardIndex);
+    }
+
+    /**
+     * Write-ahead logs are kept per shard, and records are mapped onto shards by their partition key. 
+     * When the number of shards is reduced (i.e. tip.wlan.hdsWriterShards or number of processors went down), logs of the removed shards are not replayed by anyone.
+     * This method moves records of such logs into the logs of the current shards, according to their partition keys. 
+     * It has to be called before the shards are started.
+     * @param hierarchicalDatastore
+     * @param numberOfShards - current number of shards
+     * @throws GenericErrorException - if an orphaned log cannot be moved, so that the writer does not start with a part of the records left behind
+     */
+    static void redistributeOrphanedWriteAheadLogs(HierarchicalDatastore hierarchicalDatastore, int numberOfShards) {
+        if(!isWriteAheadLogEnabled()) {
+            return;
+        }
+
+        File[] shardDirs = getWalDsDir(hierarchicalDatastore).listFiles();
+        if(shardDirs == null) {
+            return;
+        }
+
+        File[] targetWalDirs = new File[numberOfShards];
+        for(int i = 0; i < numberOfShards; i++) {
+            targetWalDirs[i] = getWalShardDir(hierarchicalDatastore, i);
+        }
+
+        for(File shardDir: shardDirs) {
+            int shardIndex;
+            try {
+                shardIndex = shardDir.getName().startsWith(walShardDirPrefix) ? Integer.parseInt(shardDir.getName().substring(walShardDirPrefix.length())) : -1;
+            } catch (NumberFormatException e) {
+                shardIndex = -1;
+            }
+
+            if(!shardDir.isDirectory() || shardIndex < numberOfShards) {
+                continue;
+            }
+
+            LOG.warn("Write-ahead log {} does not belong to any of the {} shards, moving its records to the current shards", shardDir, numberOfShards);
+
+            try {
+                WriteAheadLog.redistribute(shardDir, targetWalDirs, record -> getShardIndexOfRecord(record, numberOfShards), walSegmentMaxMb * 1024L * 1024L);
+            } catch (Exception e) {
+                throw new GenericErrorException("Cannot move records of the orphaned write-ahead log " + shardDir + 
+                        " - fix or remove it, or restore tip.wlan.hdsWriterShards to at least " + (shardIndex + 1), e);
+            }
+        }
+    }
+
+    /**
+     * @param record - serialized model from the write-ahead log
+     * @param numberOfShards
+     * @return index of the shard that owns partition key of the model, or -1 if the record cannot be read
+     */
+    private static int getShardIndexOfRecord(byte[] record, int numberOfShards) {
+        BaseJsonModel model;
+        try {
+            model = BaseJsonModel.fromString(new String(record, StandardCharsets.UTF_8), BaseJsonModel.class);
+        } catch (Exception e) {
+            LOG.error("Cannot read model from the write-ahead log, will skip it", e);
+            return -1;
+        }
+
+        if(!isStorable(model)) {
+            return -1;
+        }
+
+        return RecordToQueueMapper.getShardIndex(((HasCustomerId)model).getCustomerId(), ((HasEquipmentId)model).getEquipmentId(), numberOfShards);
+    }
+
     @Override
     public void run() {
         try{
             LOG.info("Started QueueReader thread {} ", Thread.currentThread().getName());
+
+            if(writeAheadLog != null) {
+                recoverFromWriteAheadLog();
+            }
+
             while(true){
                 BaseJsonModel model = null;
                 try {
-                    model = queue.poll(idleTimeoutBeforeFlushingMs, TimeUnit.MILLISECONDS);
-                    
+                    //wake up at least once per tick of the timer wheel, so idle streams are flushed even when no new models arrive
+                    model = queue.poll(flushTimerWheel.getTickMs(), TimeUnit.MILLISECONDS);
+
                     if(model!=null){
-                        LOG.trace("Got from queue({}:{}) {}", customerId, equipmentId, model);
+                        LOG.trace("Got from queue(shard {}) {}", shardIndex, model);
                     }
                 } catch (InterruptedException e) {
                     // do nothing
                     Thread.currentThread().interrupt();
                 }
-    
+
                 if(model == QueueReader.poisonPill){
                     //stop work and exit
                     break;
                 }
-    
+
                 try{
-    
-                    if(model==null){
-                        //did not read anything from the queue after idleTimeout of waiting.
-                        //Check if existing zipStreams need to be flushed into files.
-                        //Although we did not read anything from the queue here, we do not want to wait too long until 
-                        //the next model appears in the queue before we flush existing streams to files.
-                        //That is why we are flushing to files after the idleTimeout after last model was read from queue, no matter what. 
-                        commitOutputStreamsToFiles(false);
-                        
-                        //wait for the next message in the queue
-                        continue;
-                    }
-    
-                    if(  !(    model instanceof HasCustomerId 
-                            && model instanceof HasEquipmentId 
-                            && model instanceof HasProducedTimestamp
-                          )){
-                        LOG.debug("Not enough information to store this model {}, will skip it. Model has to provide customer id, equipment id and timestamp.", model.getClass());
-                        //wait for the next message in the queue
-                        continue;
+
+                    if(model!=null){
+                        writeModel(model);
                     }
-    
-                    long modelTs = ((HasProducedTimestamp) model).getProducedTimestampMs();
-    
-                    //determine the in-memory stream to write the model to
-                    //first normalize timestamp to n minutes - per hDatastore configuration
-                    long normalizedModelTs = modelTs - modelTs%(1L*hierarchicalDatastore.getNumberOfMinutesPerFile()*60*1000);
-                    //then find the stream from the normalized timestamp
-                    StreamHolder streamHolder = streamMap.get(normalizedModelTs);
-                    
-                    //create stream if needed - only one thread is doing this
-                    if(streamHolder == null){
-                        streamHolder = new StreamHolder(modelTs, customerId, equipmentId, hierarchicalDatastore);
-                        streamMap.put(streamHolder.getStreamKey(), streamHolder);
+
+                    //group commit - sync the write-ahead log once the queue is drained, or when enough records have accumulated since the last sync
+                    if(writeAheadLog != null && (queue.isEmpty() || writeAheadLog.isSyncDue(System.currentTimeMillis()))) {
+                        syncWriteAheadLog();
                     }
-    
-                    streamHolder.writeModelToStream(model);
-                    
-                    processedModelCounter.increment();
-    
+
                     //flush only idle streams to files
-                    commitOutputStreamsToFiles(false);
-                    
+                    flushTimerWheel.advance(System.currentTimeMillis(), this::flushIdleStreams);
+
                 }catch(Exception e){
                     LOG.error("Exception when writing into stream", e);
                 }
             }
-    
+
             //unconditionally flush the remainder of streams into files before exiting
-            try {
-                commitOutputStreamsToFiles(true);
-            } catch (IOException e) {
-                LOG.error("Exception when writing into stream", e);
+            for(EquipmentStreams equipmentStreams: equipmentStreamsMap.values()){
+                try {
+                    equipmentStreams.commitOutputStreamsToFiles(true, System.currentTimeMillis());
+                } catch (IOException e) {
+                    LOG.error("Exception when writing into stream", e);
+                }
             }
+            equipmentStreamsMap.clear();
+            numberOfActiveKeys = 0;
+
+            //indexes and directory listings of the flushed streams are published in the background, wait for them
+            if(!hierarchicalDatastore.flushIndexPublisher(indexPublisherFlushTimeoutMs)) {
+                LOG.warn("Not all record indexes and directory listings were published to hazelcast before exiting {}", Thread.currentThread().getName());
+            }
+
+            if(writeAheadLog != null) {
+                //segments of the streams that were not uploaded are kept, they will be replayed on the next start
+                writeAheadLog.close();
+            }
+
         }catch(Exception e){
             LOG.error("Got exception: ",e);
         }
-        
+
         LOG.info("Thread exited {}", Thread.currentThread().getName());
 
     }
 
+    private void writeModel(BaseJsonModel model) throws IOException {
+        if(!isStorable(model)){
+            LOG.debug("Not enough information to store this model {}, will skip it. Model has to provide customer id, equipment id and timestamp.", model.getClass());
+            return;
+        }
+
+        //serialized model is kept in the buffer of the serializer, the same bytes go into the write-ahead log and into the zip stream
+        modelSerializer.serialize(model);
+
+        long walSegmentId = -1;
+        if(writeAheadLog != null) {
+            try {
+                walSegmentId = writeAheadLog.append(modelSerializer.getBuffer(), 0, modelSerializer.getLength());
+            } catch (IOException e) {
+                //model is still written into the stream, it just will not survive a crash
+                walErrorCounter.increment();
+                LOG.error("Cannot append model to the write-ahead log {}", writeAheadLog.getWalDir(), e);
+            }
+        }
+
+        writeModelToStreams(model, modelSerializer.getBuffer(), modelSerializer.getLength(), walSegmentId);
+    }
+
+    private static boolean isStorable(BaseJsonModel model) {
+        return model instanceof HasCustomerId
+                && model instanceof HasEquipmentId
+                && model instanceof HasProducedTimestamp;
+    }
+
+    private void writeModelToStreams(BaseJsonModel model, byte[] modelBytes, int modelLength, long walSegmentId) throws IOException {
+        int customerId = ((HasCustomerId)model).getCustomerId();
+        long equipmentId = ((HasEquipmentId)model).getEquipmentId();
+        String partitionKey = RecordToQueueMapper.getPartitionKey(customerId, equipmentId);
+
+        EquipmentStreams equipmentStreams = equipmentStreamsMap.get(partitionKey);
+        if(equipmentStreams == null) {
+            equipmentStreams = new EquipmentStreams(hierarchicalDatastore, customerId, equipmentId, idleTimeoutBeforeFlushingMs, writeAheadLog);
+            equipmentStreamsMap.put(partitionKey, equipmentStreams);
+            numberOfActiveKeys = equipmentStreamsMap.size();
+        }
+
+        equipmentStreams.writeModel(model, modelBytes, modelLength, walSegmentId);
+
+        processedModelCounter.increment();
+
+        if(!equipmentStreams.isScheduledForFlush()) {
+            //key will be looked at again when its earliest stream becomes idle.
+            //Later writes only move the deadline forward, which is re-checked when the key comes out of the wheel.
+            flushTimerWheel.schedule(partitionKey, equipmentStreams.getNextFlushDeadlineMs());
+            equipmentStreams.setScheduledForFlush(true);
+        }
+    }
+
     /**
-     * Check all open streams, and upload them to files if they were idle for longer than idleTimeoutBeforeFlushingMs.
-     * @param forceFlush - if true, then unconditionally flush all existing streams to files
-     * @throws IOException
+     * Called by the timer wheel for every key whose flush deadline has been reached.
+     * Flush idle streams of that key, and either re-schedule the key or evict it if it has no open streams left.
+     * @param partitionKey
      */
-    private void commitOutputStreamsToFiles(boolean forceFlush) throws IOException {
-        StreamHolder streamHolder;
-        Map.Entry<Long, StreamHolder> mapEntry;
-        Iterator<Map.Entry<Long, StreamHolder>> iter = streamMap.entrySet().iterator();
-        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
-        
-        while(iter.hasNext()){
-            mapEntry = iter.next();
-            streamHolder = mapEntry.getValue();
-            if(forceFlush || (System.currentTimeMillis() - streamHolder.getLastModelWrittenToStreamTimestampMs()) >= idleTimeoutBeforeFlushingMs ){
-                //stream was idle long enough, can flush it to file now
-                streamHolder.commitOutputStreamToFile();
-                
-                //stream is uploaded to file, no need to keep it in memory anymore
-                iter.remove();
-                
-                //now we can update fileCreatedTimestampsForInterval in hazelcast - append new timestamp for just-uploaded-stream to it 
-                calendar.setTime(new Date(streamHolder.getZipStreamStartTimeMs()));
-                int year = calendar.get(Calendar.YEAR);
-                int month = calendar.get(Calendar.MONTH) + 1;
-                int day = calendar.get(Calendar.DAY_OF_MONTH);
-                int hour = calendar.get(Calendar.HOUR_OF_DAY);
-                //int minute = calendar.get(Calendar.MINUTE);
-                
-                hierarchicalDatastore.appendFileNameToDirectoryListing(customerId, equipmentId, year, month, day, hour, streamHolder.getFullFileName());
+    private void flushIdleStreams(String partitionKey) {
+        EquipmentStreams equipmentStreams = equipmentStreamsMap.get(partitionKey);
+        if(equipmentStreams == null) {
+            return;
+        }
 
-            }
+        long nextDeadlineMs;
+        try {
+            nextDeadlineMs = equipmentStreams.commitOutputStreamsToFiles(false, System.currentTimeMillis());
+        } catch (Exception e) {
+            LOG.error("Exception when flushing streams for {}", partitionKey, e);
+            //try again on one of the next ticks
+            nextDeadlineMs = equipmentStreams.isEmpty() ? -1 : System.currentTimeMillis() + idleTimeoutBeforeFlushingMs;
+        }
+
+        if(nextDeadlineMs < 0) {
+            //no more open streams for this key, no need to keep it in memory anymore
+            equipmentStreamsMap.remove(partitionKey);
+            numberOfActiveKeys = equipmentStreamsMap.size();
+            evictedKeyCounter.increment();
+            LOG.trace("Evicted idle key {} from shard {}", partitionKey, shardIndex);
+        } else {
+            flushTimerWheel.schedule(partitionKey, nextDeadlineMs);
+        }
+    }
+
+    /**
+     * Re-create the streams that were not uploaded to files before the previous shutdown or crash from the write-ahead log of this shard.
+     * Write-ahead log is disabled for this run if it cannot be recovered, its segments are left in place.
+     */
+    private void recoverFromWriteAheadLog() {
+        try {
+            long numRecords = writeAheadLog.recover(new WriteAheadLog.RecordConsumer() {
+                @Override
+                public void accept(long segmentId, byte[] record) throws IOException {
+                    BaseJsonModel model;
+                    try {
+                        model = BaseJsonModel.fromString(new String(record, StandardCharsets.UTF_8), BaseJsonModel.class);
+                    } catch (Exception e) {
+                        walErrorCounter.increment();
+                        LOG.error("Cannot read model from the write-ahead log {}, will skip it", writeAheadLog.getWalDir(), e);
+                        return;
+                    }
+
+                    if(isStorable(model)) {
+                        writeModelToStreams(model, record, record.length, segmentId);
+                        walReplayedModelCounter.increment();
+                    }
+                }
+            });
+
+            LOG.info("Recovered {} models from the write-ahead log {} into {} keys", numRecords, writeAheadLog.getWalDir(), equipmentStreamsMap.size());
+        } catch (Exception e) {
+            walErrorCounter.increment();
+            LOG.error("Cannot recover write-ahead log {}, it is disabled until restart", writeAheadLog.getWalDir(), e);
+            writeAheadLog = null;
+        }
+    }
+
+    private void syncWriteAheadLog() {
+        try {
+            writeAheadLog.sync();
+        } catch (IOException e) {
+            walErrorCounter.increment();
+            LOG.error("Cannot sync write-ahead log {}", writeAheadLog.getWalDir(), e);
         }
-        
     }
 
-    
+    /**
+     * @return number of write-ahead log segments of this shard that are kept on disk, 0 when write-ahead log is not used
+     */
+    public int getNumberOfWalSegments() {
+        WriteAheadLog wal = writeAheadLog;
+        return wal == null ? 0 : wal.getNumberOfSegments();
+    }
+
+    /**
+     * @return number of customer_equipment keys that currently have open streams in this shard
+     */
+    public int getNumberOfActiveKeys() {
+        return numberOfActiveKeys;
+    }
 
 }
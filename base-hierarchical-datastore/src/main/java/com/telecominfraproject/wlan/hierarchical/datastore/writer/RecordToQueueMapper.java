@@ -1,8 +1,6 @@
 package com.telecominfraproject.wlan.hierarchical.datastore.writer;
 
-import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +17,9 @@ import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore
  * This component takes incoming BaseJsonModel, extracts partitioning key from
  * it (usually customerId_equipmentId), and delivers BaseJsonModel into
  * appropriate queue.<br>
+ * Partitioning keys are hashed onto a fixed set of writer shards (QueueReaders) - by default one per available processor,
+ * configurable with the tip.wlan.hdsWriterShards system property.
+ * All models for the same key always end up in the same shard, so they are written in the order they were added.<br>
  * QueueReaders will pick up objects from the queues and write them into zip streams in memory.<br>
  * Zip stream will be flushed into file every n-minute - according to hDatastore configuration.<br>
  * 
@@ -31,7 +32,9 @@ public class RecordToQueueMapper {
 
     private static final Logger LOG = LoggerFactory.getLogger(RecordToQueueMapper.class);
 
-    private Map<String, QueueReader> partitionedQueues = new ConcurrentHashMap<>();
+    private static final int numberOfShards = Integer.getInteger("tip.wlan.hdsWriterShards", Runtime.getRuntime().availableProcessors());
+
+    private final QueueReader[] partitionedQueues;
 
     private final HierarchicalDatastore hierarchicalDatastore;
     private final String servoMetricPrefix;
@@ -42,12 +45,46 @@ public class RecordToQueueMapper {
         this.hierarchicalDatastore = hierarchicalDatastore;
         this.servoMetricPrefix = "hdsQueueReader-"+hierarchicalDatastore.getDsRootDirName()+"-"+hierarchicalDatastore.getDsPrefix()+"-"+hierarchicalDatastore.getFileNamePrefix()+"-";
         this.addModelCounter = CloudMetricsUtils.getCounter(servoMetricPrefix+"addModel-count");
-        
+
+        this.partitionedQueues = new QueueReader[Math.max(1, numberOfShards)];
+
+        //write-ahead logs of the shards that no longer exist have to be moved before the shards recover their own logs
+        QueueReaderRunnable.redistributeOrphanedWriteAheadLogs(hierarchicalDatastore, partitionedQueues.length);
+
+        for(int i = 0; i < partitionedQueues.length; i++){
+            partitionedQueues[i] = new QueueReader(hierarchicalDatastore, i, hierarchicalDatastore.getIdleTimeoutBeforeFlushingMs());
+            partitionedQueues[i].start();
+        }
+
         CloudMetricsUtils.registerGauge(servoMetricPrefix+"numQueues", 
                 new Callable<Long>(){
                     @Override
                     public Long call() throws Exception {
-                        return (long) partitionedQueues.size();
+                        return (long) partitionedQueues.length;
+                    }
+                });
+
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"numActiveKeys", 
+                new Callable<Long>(){
+                    @Override
+                    public Long call() throws Exception {
+                        long s = 0;
+                        for(QueueReader qr: partitionedQueues){
+                            s+=qr.getNumberOfActiveKeys();
+                        }
+                        return s;
+                    }
+                });
+        
+        CloudMetricsUtils.registerGauge(servoMetricPrefix+"walSegments", 
+                new Callable<Long>(){
+                    @Override
+                    public Long call() throws Exception {
+                        long s = 0;
+                        for(QueueReader qr: partitionedQueues){
+                            s+=qr.getNumberOfWalSegments();
+                        }
+                        return s;
                     }
                 });
         
@@ -57,7 +94,7 @@ public class RecordToQueueMapper {
                     public Long call() throws Exception {
                         long s = 0;
                         try{
-                            for(QueueReader qr: partitionedQueues.values()){
+                            for(QueueReader qr: partitionedQueues){
                                 s+=qr.getQueueSize();
                             }
                         }catch(Exception e){
@@ -73,7 +110,7 @@ public class RecordToQueueMapper {
                     public Long call() throws Exception {
                         long s = 0;
                         try{
-                            for(QueueReader qr: partitionedQueues.values()){
+                            for(QueueReader qr: partitionedQueues){
                                 if(!qr.isAlive()){
                                     s++;
                                 }
@@ -101,31 +138,41 @@ public class RecordToQueueMapper {
         int customerId = ((HasCustomerId)model).getCustomerId();
         long equipmentId = ((HasEquipmentId)model).getEquipmentId();
         
-        String partitionKey = Integer.toString(customerId) + "_" + Long.toString(equipmentId);
-        
-        QueueReader queueReader = partitionedQueues.get(partitionKey);
-        if(queueReader == null){
-            synchronized(partitionedQueues){
-                queueReader = partitionedQueues.get(partitionKey);
-                if(queueReader==null){
-                    queueReader = new QueueReader(hierarchicalDatastore, customerId, equipmentId, hierarchicalDatastore.getIdleTimeoutBeforeFlushingMs());
-                    partitionedQueues.put(partitionKey, queueReader);
-                    queueReader.start();
-                }
-            }
-        }
+        QueueReader queueReader = partitionedQueues[getShardIndex(customerId, equipmentId, partitionedQueues.length)];
 
         addModelCounter.increment();
         queueReader.addToQueue(model);
     }
     
+    /**
+     * @param customerId
+     * @param equipmentId
+     * @return partitioning key used by the writer shards to group streams of the same customer equipment
+     */
+    public static String getPartitionKey(int customerId, long equipmentId){
+        return Integer.toString(customerId) + "_" + Long.toString(equipmentId);
+    }
+
+    /**
+     * @param customerId
+     * @param equipmentId
+     * @param numberOfShards
+     * @return index of the writer shard responsible for the supplied customer equipment
+     */
+    static int getShardIndex(int customerId, long equipmentId, int numberOfShards){
+        int hash = 31 * customerId + Long.hashCode(equipmentId);
+        //spread the bits, equipment ids are often sequential
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, numberOfShards);
+    }
+
     /**
      * Shutdown and flush to files all existing queue readers
      */
     public void shutdown(){
         if(!shutdownRequested){
             shutdownRequested = true;
-            for(QueueReader qReader: partitionedQueues.values()){
+            for(QueueReader qReader: partitionedQueues){
                 qReader.shutdown();
             }
         }
@@ -144,9 +191,9 @@ public class RecordToQueueMapper {
         }
         
         boolean shutdownDone = true;
-        for(Map.Entry<String,QueueReader> entry: partitionedQueues.entrySet()){
-            shutdownDone = shutdownDone && entry.getValue().isShutdownCompleted();
-            LOG.info("Shutdown status for QueueReader {} : {}", entry.getKey(), entry.getValue().isShutdownCompleted());
+        for(int i = 0; i < partitionedQueues.length; i++){
+            shutdownDone = shutdownDone && partitionedQueues[i].isShutdownCompleted();
+            LOG.info("Shutdown status for QueueReader shard {} : {}", i, partitionedQueues[i].isShutdownCompleted());
             if(!shutdownDone){
                 break;
             }
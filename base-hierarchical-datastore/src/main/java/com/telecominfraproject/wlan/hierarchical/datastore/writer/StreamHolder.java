@@ -1,11 +1,11 @@
 package com.telecominfraproject.wlan.hierarchical.datastore.writer;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -13,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.hierarchical.datastore.DataFileBlocks;
 import com.telecominfraproject.wlan.hierarchical.datastore.HierarchicalDatastore;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexCounts;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexPositions;
@@ -28,7 +29,7 @@ public class StreamHolder {
 
     private static final Logger LOG = LoggerFactory.getLogger(StreamHolder.class);
 
-    private ByteArrayOutputStream outputStream;
+    private DirectByteArrayOutputStream outputStream;
     private ZipOutputStream zipOutputStream;
     private long zipStreamStartTimeMs;
 
@@ -42,9 +43,15 @@ public class StreamHolder {
     private String partFileName;
     private long timestampFromFileName;
     private long lastModelWrittenToStreamTimestampMs = System.currentTimeMillis(); 
+    private boolean dataFileUploaded;
     
     private Map<String, RecordIndexCounts> indexCountsMap = new HashMap<>();
     private Map<String, RecordIndexPositions> indexPositionsMap = new HashMap<>();
+
+    /**
+     * Write-ahead log segments that contain records of this stream
+     */
+    private final Set<Long> walSegmentIds = new HashSet<>();
     
     public StreamHolder(long streamFirstModelStartTimeMs, int customerId, long equipmentId, HierarchicalDatastore hierarchicalDatastore){
         this.customerId = customerId;
@@ -61,7 +68,7 @@ public class StreamHolder {
         //extract timestamp from the file name - number after the last '_'
         this.timestampFromFileName = Long.parseLong(partFileName.substring(partFileName.lastIndexOf('_')+1));
         
-        this.outputStream = new ByteArrayOutputStream(5*1024);
+        this.outputStream = new DirectByteArrayOutputStream(5*1024);
         this.zipOutputStream = new ZipOutputStream(outputStream);
         ZipEntry entry = new ZipEntry(partFileName);
         
@@ -84,36 +91,51 @@ public class StreamHolder {
     }
     
     public void commitOutputStreamToFile() throws IOException {
+        commitOutputStreamToFile(false);
+    }
+
+    /**
+     * Upload collected records into the data file, and store its record indexes.
+     * <br>
+     * No more records can be written into this stream once this method is called. 
+     * If the upload fails, collected records are kept in memory and the next call to this method tries to upload them again.
+     * @param publishIndexesInBackground - if true, record indexes are stored in hazelcast in the background together with the indexes of the other data files,
+     *  see {@link HierarchicalDatastore#storeRecordIndexInBackground(String, RecordIndexCounts, RecordIndexPositions, String)}
+     * @throws IOException - if the data file or one of its record indexes could not be uploaded
+     */
+    public void commitOutputStreamToFile(boolean publishIndexesInBackground) throws IOException {
         
         if(outputStream == null){
             //nothing to do here
             return;
         }
 
-        LOG.info("Closing existing stream from queue({}_{}_{})", hierarchicalDatastore.getFileNamePrefix(), customerId, equipmentId);
+        if(zipOutputStream != null){
+            LOG.info("Closing existing stream from queue({}_{}_{})", hierarchicalDatastore.getFileNamePrefix(), customerId, equipmentId);
 
-        zipOutputStream.closeEntry();
-        zipOutputStream.flush();
-        zipOutputStream.close();
+            zipOutputStream.closeEntry();
+            zipOutputStream.flush();
+            zipOutputStream.close();
+            zipOutputStream = null;
 
-        outputStream.flush();
+            outputStream.flush();
+        }
         
         //write into file only if at least one record was put into output stream
         //otherwise - just close existing stream
-        if(bytesWrittenToPart > 0){
-            //write collected bytes into file
-            byte[] collectedBytes = outputStream.toByteArray();
-            ByteArrayInputStream bais = new ByteArrayInputStream(collectedBytes);
-            hierarchicalDatastore.uploadStreamToFileOverwriteOld(bais, collectedBytes.length, fullFileName);
+        if(bytesWrittenToPart > 0 && !dataFileUploaded){
+            //write collected bytes into file - directly from the buffer of the stream, without copying them.
+            //If this fails, the bytes stay in the stream for the next attempt
+            hierarchicalDatastore.uploadStreamToFileOverwriteOld(outputStream.toInputStream(), outputStream.size(), fullFileName);
+            dataFileUploaded = true;
             LOG.trace("Uploaded to s3 {}", fullFileName);
 
+            //recent data files are read the most, keep their content in memory.
+            //Buffer of the stream is handed over to the cache, nothing writes into it after this point
+            hierarchicalDatastore.cacheRecentlyWrittenDataFile(fullFileName, outputStream.toByteBuffer());
+
         }
         
-        outputStream.close();
-        outputStream = null;
-        zipOutputStream = null;
-        
-        
         //now write accumulated values for all registered indexes - one file per index, not compressed
         Map<String, RecordIndexValueExtractor> allIndexes = hierarchicalDatastore.getRecordIndexes();
         for(Map.Entry<String, RecordIndexValueExtractor> idxEntry: allIndexes.entrySet()){
@@ -132,24 +154,56 @@ public class StreamHolder {
                 idxPositions.setName(idxName);
             }
 
-            hierarchicalDatastore.storeRecordIndex(idxName, idxCounts, idxPositions, fullFileName);
+            if(publishIndexesInBackground){
+                hierarchicalDatastore.storeRecordIndexInBackground(idxName, idxCounts, idxPositions, fullFileName);
+            } else {
+                hierarchicalDatastore.storeRecordIndex(idxName, idxCounts, idxPositions, fullFileName);
+            }
+
+            if(bytesWrittenToPart > 0){
+                //binary copy of the index is kept on disk with the data file, it outlives the one in hazelcast
+                hierarchicalDatastore.storeBinaryRecordIndex(idxName, idxCounts, idxPositions, fullFileName);
+            }
             
             LOG.trace("Uploaded index {} for {}", idxName, fullFileName);
         }
 
+        outputStream.close();
+        outputStream = null;
+
         indexCountsMap.clear();
         indexPositionsMap.clear();
 
     }
 
     public void writeModelToStream(BaseJsonModel model) throws IOException {
-        
-        byte[] modelBytes = model.toString().getBytes(StandardCharsets.UTF_8); 
-        zipOutputStream.write(modelBytes);
+        byte[] modelBytes = model.toString().getBytes(StandardCharsets.UTF_8);
+        writeModelToStream(model, modelBytes, modelBytes.length);
+    }
+
+    /**
+     * @param model
+     * @param modelBytes - buffer that holds UTF-8 bytes of the JSON representation of the model in its first modelLength bytes, see {@link ModelSerializer}
+     * @param modelLength
+     * @throws IOException
+     */
+    public void writeModelToStream(BaseJsonModel model, byte[] modelBytes, int modelLength) throws IOException {
+
+        if(zipOutputStream == null){
+            throw new GenericErrorException("Stream is already committed to file "+partFileName);
+        }
+
+        if(lineNumber > 0 && lineNumber % hierarchicalDatastore.getRecordsPerDataFileBlock() == 0){
+            //start new block - it is compressed independently, so readers can skip it when they do not need any of its lines
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry(DataFileBlocks.getBlockEntryName(partFileName, lineNumber)));
+        }
+
+        zipOutputStream.write(modelBytes, 0, modelLength);
         zipOutputStream.write(13);
         zipOutputStream.write(10);
         
-        bytesWrittenToPart += modelBytes.length + 2;
+        bytesWrittenToPart += modelLength + 2;
         
         lastModelWrittenToStreamTimestampMs = System.currentTimeMillis();
         
@@ -184,6 +238,26 @@ public class StreamHolder {
         lineNumber++;
     }
 
+    /**
+     * Remember that this stream has records in the write-ahead log segment.
+     * @param walSegmentId
+     * @return true if this is the first record of the stream in that segment
+     */
+    public boolean addWalSegment(long walSegmentId) {
+        return walSegmentIds.add(walSegmentId);
+    }
+
+    public Set<Long> getWalSegmentIds() {
+        return walSegmentIds;
+    }
+
+    /**
+     * @return true if commitOutputStreamToFile() was called, but did not complete - the stream does not accept new records, and it needs to be committed again
+     */
+    public boolean isCommitPending() {
+        return outputStream != null && zipOutputStream == null;
+    }
+
     public long getLastModelWrittenToStreamTimestampMs() {
         return lastModelWrittenToStreamTimestampMs;
     }
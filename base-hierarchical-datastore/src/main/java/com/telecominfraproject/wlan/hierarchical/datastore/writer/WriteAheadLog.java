@@ -0,0 +1,464 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only write-ahead log of a single writer shard.<br>
+ * Every model is appended to the log before it is written into an in-memory zip stream,
+ * so that the content of the streams that have not been uploaded yet survives a crash of the JVM.<br>
+ * <ul>
+ * <li>The log consists of numbered segment files - wal_&lt;segmentId&gt;.log. New records are always appended to the latest segment,
+ *      a new segment is started when the current one grows over maxSegmentBytes.
+ * <li>Each record is stored as: int length, int crc32 of the record bytes, record bytes. A torn or corrupted tail of a segment is ignored on replay.
+ * <li>Records are group-committed: appends are buffered, and sync() forces them to disk.
+ *      Caller decides when to sync - usually when its queue is drained, or when isSyncDue() says that too many records or too much time have passed since the last sync.
+ * <li>Streams that have records in a segment retain that segment, and release it once they have been uploaded to a file.
+ *      Segments that are not current and are not retained by any stream are deleted.
+ * <li>On startup recover() passes all the records from the existing segments to the supplied consumer, which is expected to write them into the streams again,
+ *      and then starts a new segment for the new records.
+ * </ul>
+ * Records are replayed at least once - if the JVM dies after a stream was uploaded but before its segments were released, the stream will be uploaded again after the restart.<br>
+ * Logs of the shards that no longer exist (i.e. after the number of shards was reduced) are moved into the logs of the current shards with redistribute().<br>
+ *
+ * This class is used by a single shard thread, except for release() which is called once the files of the streams are published - possibly from another thread.
+ * Methods are synchronized for that reason.
+ *
+ * @author dtop
+ *
+ */
+public class WriteAheadLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String segmentFilePrefix = "wal_";
+    private static final String segmentFileSuffix = ".log";
+
+    /**
+     * Records that are larger than this are considered to be corruption of the segment
+     */
+    private static final int maxRecordBytes = 64 * 1024 * 1024;
+
+    /**
+     * Receives records of the existing segments during recovery.
+     */
+    public interface RecordConsumer {
+        /**
+         * @param segmentId - segment that contains the record, streams that receive the record have to retain it
+         * @param record
+         * @throws IOException
+         */
+        void accept(long segmentId, byte[] record) throws IOException;
+    }
+
+    private final File walDir;
+    private final long maxSegmentBytes;
+    private final int syncEveryRecords;
+    private final long syncIntervalMs;
+
+    /**
+     * Number of streams that retain each of the existing segments
+     */
+    private final Map<Long, Integer> segmentRefCounts = new HashMap<>();
+
+    private final CRC32 appendCrc = new CRC32();
+
+    private long currentSegmentId = -1;
+    private FileOutputStream currentFileStream;
+    private DataOutputStream currentOutputStream;
+    private long currentSegmentBytes;
+    private int unsyncedRecords;
+    private volatile int numberOfSegments;
+    private long lastSyncTimeMs = System.currentTimeMillis();
+
+    /**
+     * @param walDir - directory that holds the segments of this log, it is created if it does not exist
+     * @param maxSegmentBytes - new segment is started when the current one grows larger than this
+     * @param syncEveryRecords - sync is due when this many records were appended since the last sync
+     * @param syncIntervalMs - sync is due when the oldest unsynced record was appended this long ago
+     */
+    public WriteAheadLog(File walDir, long maxSegmentBytes, int syncEveryRecords, long syncIntervalMs) {
+        this.walDir = walDir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncEveryRecords = Math.max(1, syncEveryRecords);
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    /**
+     * Replay all the records of the existing segments, and start a new segment for the new records.
+     * Replayed segments that were not retained by the consumer are deleted.
+     * @param recordConsumer
+     * @return number of replayed records
+     * @throws IOException
+     */
+    public synchronized long recover(RecordConsumer recordConsumer) throws IOException {
+        if(!walDir.isDirectory() && !walDir.mkdirs()) {
+            throw new IOException("Cannot create write-ahead log directory " + walDir);
+        }
+
+        List<Long> segmentIds = getExistingSegmentIds();
+        long numRecords = 0;
+        long lastSegmentId = 0;
+
+        try {
+            for(Long segmentId: segmentIds) {
+                segmentRefCounts.put(segmentId, 0);
+                numRecords += replaySegment(segmentId, recordConsumer);
+                lastSegmentId = segmentId;
+            }
+        } catch (IOException | RuntimeException e) {
+            //forget about the segments, so that none of them are deleted when the streams that were already replayed release them
+            segmentRefCounts.clear();
+            numberOfSegments = 0;
+            throw e;
+        }
+
+        if(!segmentIds.isEmpty()) {
+            LOG.info("Replayed {} records from {} segments of the write-ahead log {}", numRecords, segmentIds.size(), walDir);
+        }
+
+        startNewSegment(lastSegmentId + 1);
+
+        //segments that do not have any records of the open streams are no longer needed
+        for(Long segmentId: segmentIds) {
+            deleteSegmentIfUnused(segmentId);
+        }
+
+        return numRecords;
+    }
+
+    private long replaySegment(long segmentId, RecordConsumer recordConsumer) throws IOException {
+        File segmentFile = getSegmentFile(segmentId);
+        long numRecords = 0;
+        CRC32 crc = new CRC32();
+
+        try(DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 64 * 1024))) {
+            while(true) {
+                byte[] record;
+                try {
+                    int length = dis.readInt();
+                    int checksum = dis.readInt();
+                    if(length < 0 || length > maxRecordBytes) {
+                        LOG.warn("Ignoring the remainder of the write-ahead log segment {} after {} records: invalid record length {}", segmentFile, numRecords, length);
+                        break;
+                    }
+
+                    record = new byte[length];
+                    dis.readFully(record);
+
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if((int) crc.getValue() != checksum) {
+                        LOG.warn("Ignoring the remainder of the write-ahead log segment {} after {} records: checksum mismatch", segmentFile, numRecords);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    //end of the segment, or a record that was not completely written before the crash
+                    break;
+                }
+
+                recordConsumer.accept(segmentId, record);
+                numRecords++;
+            }
+        }
+
+        return numRecords;
+    }
+
+    /**
+     * Move all the records of a log into the other logs, and delete the log. 
+     * Used on startup for the logs of the shards that no longer exist, before the logs of the current shards are recovered.
+     * <br>
+     * Records are appended to the new segments of the target logs, and the existing segments of the target logs are kept intact.
+     * Segments of the source log are deleted only after the target logs are synced, so a crash in the middle leaves the records in both places - they are replayed at least once.
+     * @param sourceWalDir - log to move the records from
+     * @param targetWalDirs - logs to move the records to
+     * @param recordMapper - returns index of the target log for a record, or a negative number if the record should be dropped
+     * @param maxSegmentBytes
+     * @return number of moved records
+     * @throws IOException - if the records could not be moved, source log is left in place in that case
+     */
+    public static long redistribute(File sourceWalDir, File[] targetWalDirs, ToIntFunction<byte[]> recordMapper, long maxSegmentBytes) throws IOException {
+        WriteAheadLog sourceWal = new WriteAheadLog(sourceWalDir, maxSegmentBytes, Integer.MAX_VALUE, Long.MAX_VALUE);
+        WriteAheadLog[] targetWals = new WriteAheadLog[targetWalDirs.length];
+        List<Long> sourceSegmentIds = new ArrayList<>();
+        long[] numRecords = new long[1];
+
+        try {
+            sourceWal.recover(new RecordConsumer() {
+                @Override
+                public void accept(long segmentId, byte[] record) throws IOException {
+                    //keep the source segments until the records are durable in the target logs
+                    if(sourceSegmentIds.isEmpty() || sourceSegmentIds.get(sourceSegmentIds.size() - 1) != segmentId) {
+                        sourceWal.retain(segmentId);
+                        sourceSegmentIds.add(segmentId);
+                    }
+
+                    int targetIdx = recordMapper.applyAsInt(record);
+                    if(targetIdx < 0) {
+                        return;
+                    }
+
+                    if(targetWals[targetIdx] == null) {
+                        targetWals[targetIdx] = openForAppend(targetWalDirs[targetIdx], maxSegmentBytes);
+                    }
+
+                    //retained segments are not deleted when the target log is closed
+                    targetWals[targetIdx].retain(targetWals[targetIdx].append(record));
+                    numRecords[0]++;
+                }
+            });
+
+            for(WriteAheadLog targetWal: targetWals) {
+                if(targetWal != null) {
+                    targetWal.sync();
+                }
+            }
+        } finally {
+            for(WriteAheadLog targetWal: targetWals) {
+                if(targetWal != null) {
+                    targetWal.close();
+                }
+            }
+        }
+
+        //records are durable in the target logs now, source log is no longer needed
+        for(Long segmentId: sourceSegmentIds) {
+            sourceWal.release(segmentId);
+        }
+        sourceWal.close();
+
+        if(!sourceWalDir.delete()) {
+            LOG.warn("Cannot delete write-ahead log directory {}", sourceWalDir);
+        }
+
+        LOG.info("Moved {} records from the write-ahead log {}", numRecords[0], sourceWalDir);
+
+        return numRecords[0];
+    }
+
+    /**
+     * @return log that keeps all of its existing segments, and accepts new records into a new segment
+     */
+    private static WriteAheadLog openForAppend(File walDir, long maxSegmentBytes) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(walDir, maxSegmentBytes, Integer.MAX_VALUE, Long.MAX_VALUE);
+        wal.recover(new RecordConsumer() {
+            @Override
+            public void accept(long segmentId, byte[] record) {
+                wal.retain(segmentId);
+            }
+        });
+        return wal;
+    }
+
+    /**
+     * Append a record to the current segment. The record is durable only after the next sync().
+     * @param record
+     * @return id of the segment the record was appended to
+     * @throws IOException
+     */
+    public long append(byte[] record) throws IOException {
+        return append(record, 0, record.length);
+    }
+
+    /**
+     * Append a record to the current segment. The record is durable only after the next sync().
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return id of the segment the record was appended to
+     * @throws IOException
+     */
+    public synchronized long append(byte[] buffer, int offset, int length) throws IOException {
+        if(currentOutputStream == null) {
+            throw new IllegalStateException("Write-ahead log " + walDir + " is not recovered yet");
+        }
+
+        if(currentSegmentBytes > 0 && currentSegmentBytes + length + 8 > maxSegmentBytes) {
+            sync();
+            long previousSegmentId = currentSegmentId;
+            closeCurrentSegment();
+            startNewSegment(previousSegmentId + 1);
+            deleteSegmentIfUnused(previousSegmentId);
+        }
+
+        appendCrc.reset();
+        appendCrc.update(buffer, offset, length);
+
+        currentOutputStream.writeInt(length);
+        currentOutputStream.writeInt((int) appendCrc.getValue());
+        currentOutputStream.write(buffer, offset, length);
+
+        currentSegmentBytes += length + 8;
+        if(unsyncedRecords == 0) {
+            lastSyncTimeMs = System.currentTimeMillis();
+        }
+        unsyncedRecords++;
+
+        return currentSegmentId;
+    }
+
+    /**
+     * @param nowMs
+     * @return true if enough records were appended, or enough time has passed since the first unsynced record was appended
+     */
+    public synchronized boolean isSyncDue(long nowMs) {
+        return unsyncedRecords >= syncEveryRecords || (unsyncedRecords > 0 && nowMs - lastSyncTimeMs >= syncIntervalMs);
+    }
+
+    /**
+     * Force all appended records to disk.
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if(unsyncedRecords == 0 || currentOutputStream == null) {
+            return;
+        }
+
+        currentOutputStream.flush();
+        currentFileStream.getChannel().force(false);
+        unsyncedRecords = 0;
+        lastSyncTimeMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Called when a stream writes its first record from the segment. Retained segment is not deleted until it is released.
+     * @param segmentId
+     */
+    public synchronized void retain(long segmentId) {
+        Integer refCount = segmentRefCounts.get(segmentId);
+        segmentRefCounts.put(segmentId, refCount == null ? 1 : refCount + 1);
+    }
+
+    /**
+     * Called when a stream that retained the segment has been uploaded to a file.
+     * Segment is deleted when it is no longer retained by any stream and it is not the current segment.
+     * @param segmentId
+     */
+    public synchronized void release(long segmentId) {
+        Integer refCount = segmentRefCounts.get(segmentId);
+        if(refCount == null) {
+            return;
+        }
+
+        segmentRefCounts.put(segmentId, Math.max(0, refCount - 1));
+        deleteSegmentIfUnused(segmentId);
+    }
+
+    /**
+     * Sync and close the current segment. It is deleted if no open streams retain it.
+     */
+    public synchronized void close() {
+        if(currentOutputStream == null) {
+            return;
+        }
+
+        try {
+            sync();
+        } catch (IOException e) {
+            LOG.error("Cannot sync write-ahead log {}", walDir, e);
+        }
+
+        long lastSegmentId = currentSegmentId;
+        closeCurrentSegment();
+        deleteSegmentIfUnused(lastSegmentId);
+    }
+
+    /**
+     * @return number of segments that exist on disk, including the current one. Can be called from any thread.
+     */
+    public int getNumberOfSegments() {
+        return numberOfSegments;
+    }
+
+    public synchronized long getCurrentSegmentId() {
+        return currentSegmentId;
+    }
+
+    public File getWalDir() {
+        return walDir;
+    }
+
+    private void startNewSegment(long segmentId) throws IOException {
+        currentSegmentId = segmentId;
+        currentFileStream = new FileOutputStream(getSegmentFile(segmentId), true);
+        currentOutputStream = new DataOutputStream(new BufferedOutputStream(currentFileStream, 64 * 1024));
+        currentSegmentBytes = currentFileStream.getChannel().size();
+        unsyncedRecords = 0;
+        if(!segmentRefCounts.containsKey(segmentId)) {
+            segmentRefCounts.put(segmentId, 0);
+        }
+        numberOfSegments = segmentRefCounts.size();
+    }
+
+    private void closeCurrentSegment() {
+        try {
+            currentOutputStream.close();
+        } catch (IOException e) {
+            LOG.error("Cannot close write-ahead log segment {}", getSegmentFile(currentSegmentId), e);
+        }
+
+        currentOutputStream = null;
+        currentFileStream = null;
+        currentSegmentId = -1;
+    }
+
+    private void deleteSegmentIfUnused(long segmentId) {
+        Integer refCount = segmentRefCounts.get(segmentId);
+        if(segmentId == currentSegmentId || refCount == null || refCount > 0) {
+            return;
+        }
+
+        File segmentFile = getSegmentFile(segmentId);
+        if(segmentFile.exists() && !segmentFile.delete()) {
+            LOG.warn("Cannot delete write-ahead log segment {}", segmentFile);
+            return;
+        }
+
+        segmentRefCounts.remove(segmentId);
+        numberOfSegments = segmentRefCounts.size();
+        LOG.debug("Deleted write-ahead log segment {}", segmentFile);
+    }
+
+    private File getSegmentFile(long segmentId) {
+        return new File(walDir, String.format("%s%020d%s", segmentFilePrefix, segmentId, segmentFileSuffix));
+    }
+
+    private List<Long> getExistingSegmentIds() {
+        List<Long> ret = new ArrayList<>();
+        String[] fileNames = walDir.list();
+        if(fileNames == null) {
+            return ret;
+        }
+
+        for(String fileName: fileNames) {
+            if(fileName.startsWith(segmentFilePrefix) && fileName.endsWith(segmentFileSuffix)) {
+                try {
+                    ret.add(Long.parseLong(fileName.substring(segmentFilePrefix.length(), fileName.length() - segmentFileSuffix.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unexpected file {} in the write-ahead log directory {}", fileName, walDir);
+                }
+            }
+        }
+
+        Collections.sort(ret);
+        return ret;
+    }
+}
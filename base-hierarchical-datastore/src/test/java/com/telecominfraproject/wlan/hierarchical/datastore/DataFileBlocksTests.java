@@ -0,0 +1,165 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.hierarchical.datastore.backend.DatastoreBackend;
+import com.telecominfraproject.wlan.hierarchical.datastore.backend.LocalFileDatastoreBackend;
+
+public class DataFileBlocksTests {
+
+    private static final String partFileName = "testF_1_2_2017_06_12_11_05_1497265547000";
+
+    private static File createDataFile(int numLines, int linesPerBlock) throws IOException {
+        File file = File.createTempFile("hdsBlocks", ".zip");
+        file.deleteOnExit();
+
+        try(ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+            for(int lineNum = 0; lineNum < numLines; lineNum++) {
+                if(lineNum % linesPerBlock == 0) {
+                    if(lineNum > 0) {
+                        zos.closeEntry();
+                    }
+                    zos.putNextEntry(new ZipEntry(DataFileBlocks.getBlockEntryName(partFileName, lineNum)));
+                }
+                zos.write(("line_" + lineNum + "\r\n").getBytes(StandardCharsets.UTF_8));
+            }
+            zos.closeEntry();
+        }
+
+        return file;
+    }
+
+    @Test
+    public void testBlockEntryNames() {
+        assertEquals(partFileName, DataFileBlocks.getBlockEntryName(partFileName, 0));
+        assertEquals(0, DataFileBlocks.getFirstLineNumber(partFileName));
+        assertEquals(1500, DataFileBlocks.getFirstLineNumber(DataFileBlocks.getBlockEntryName(partFileName, 1500)));
+    }
+
+    @Test
+    public void testReadAllLines() throws IOException {
+        File dataFile = createDataFile(1234, 100);
+        List<Integer> readLineNumbers = new ArrayList<>();
+
+        DataFileBlocks.processLines(dataFile, null, (lineNum, line) -> {
+            assertEquals("line_" + lineNum, line);
+            readLineNumbers.add(lineNum);
+        });
+
+        assertEquals(1234, readLineNumbers.size());
+        assertEquals(Integer.valueOf(1233), readLineNumbers.get(1233));
+    }
+
+    @Test
+    public void testReadSelectedLines() throws IOException {
+        List<Integer> expectedLineNumbers = Arrays.asList(0, 99, 100, 101, 555, 1000, 1233);
+
+        //blocked data file and legacy data file with a single zip entry should produce the same results
+        for(File dataFile: Arrays.asList(createDataFile(1234, 100), createDataFile(1234, Integer.MAX_VALUE))) {
+            List<Integer> readLineNumbers = new ArrayList<>();
+
+            DataFileBlocks.processLines(dataFile, new HashSet<>(Arrays.asList(1233, 555, 0, 99, 100, 101, 1000, 5000)), (lineNum, line) -> {
+                assertEquals("line_" + lineNum, line);
+                readLineNumbers.add(lineNum);
+            });
+
+            assertEquals(expectedLineNumbers, readLineNumbers);
+        }
+    }
+
+    @Test
+    public void testReadSelectedLinesWithRangedReads() throws IOException {
+        List<Integer> expectedLineNumbers = Arrays.asList(0, 99, 100, 101, 555, 1000, 1233);
+        File dataFile = createDataFile(1234, 100);
+        File legacyDataFile = createDataFile(1234, Integer.MAX_VALUE);
+
+        //one read for the tail of the file with the central directory, and one read for every block that contains requested lines
+        Map<File, Integer> expectedRangeReads = new HashMap<>();
+        expectedRangeReads.put(dataFile, 1 + 5);
+        expectedRangeReads.put(legacyDataFile, 1 + 1);
+
+        for(File file: Arrays.asList(dataFile, legacyDataFile)) {
+            CountingBackend backend = new CountingBackend(new LocalFileDatastoreBackend(file.getParent()));
+            List<Integer> readLineNumbers = new ArrayList<>();
+
+            DataFileBlocks.processLines(backend, file.getName(), new HashSet<>(Arrays.asList(1233, 555, 0, 99, 100, 101, 1000, 5000)), (lineNum, line) -> {
+                assertEquals("line_" + lineNum, line);
+                readLineNumbers.add(lineNum);
+            });
+
+            assertEquals(expectedLineNumbers, readLineNumbers);
+            assertEquals(expectedRangeReads.get(file).intValue(), backend.rangeReads.get());
+        }
+    }
+
+    /**
+     * Backend that does not keep files locally, and counts the ranged reads
+     */
+    private static class CountingBackend implements DatastoreBackend {
+        private final DatastoreBackend delegate;
+        final AtomicInteger rangeReads = new AtomicInteger();
+
+        CountingBackend(DatastoreBackend delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InputStream read(String objectName) throws IOException {
+            throw new UnsupportedOperationException("full read of " + objectName);
+        }
+
+        @Override
+        public InputStream readRange(String objectName, long offset, long length) throws IOException {
+            rangeReads.incrementAndGet();
+            return delegate.readRange(objectName, offset, length);
+        }
+
+        @Override
+        public void write(String objectName, InputStream inputStream, long dataSize) throws IOException {
+            delegate.write(objectName, inputStream, dataSize);
+        }
+
+        @Override
+        public boolean exists(String objectName) throws IOException {
+            return delegate.exists(objectName);
+        }
+
+        @Override
+        public long size(String objectName) throws IOException {
+            return delegate.size(objectName);
+        }
+
+        @Override
+        public List<String> list(String directoryName) throws IOException {
+            return delegate.list(directoryName);
+        }
+
+        @Override
+        public int delete(Collection<String> objectNames) throws IOException {
+            return delegate.delete(objectNames);
+        }
+
+        @Override
+        public File getLocalFile(String objectName) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class DirectoryListingCacheTests {
+
+    private static final String dir1 = "testDs/42/314/2015/11/09/07/";
+    private static final String dir2 = "testDs/42/314/2015/11/09/08/";
+    private static final String dir3 = "testDs/42/314/2015/11/09/09/";
+
+    @Test
+    public void testClosedOpenAndEmptyListings() {
+        DirectoryListingCache cache = new DirectoryListingCache(100, 1000, 5000);
+        Set<String> fileNames = new HashSet<>(Collections.singleton(dir1 + "testF_42_314_2015_11_09_07_04_1447052640015.zip"));
+
+        //closed hour does not expire
+        cache.put(dir1, fileNames, true, 0, cache.getGeneration(dir1));
+        assertEquals(fileNames, cache.get(dir1, Long.MAX_VALUE - 1));
+
+        //open hour expires after openHourTtlMs
+        cache.put(dir2, fileNames, false, 0, cache.getGeneration(dir2));
+        assertEquals(fileNames, cache.get(dir2, 999));
+        assertNull(cache.get(dir2, 1000));
+
+        //empty closed hour expires after emptyListingTtlMs
+        cache.put(dir3, Collections.emptySet(), true, 0, cache.getGeneration(dir3));
+        assertTrue(cache.get(dir3, 4999).isEmpty());
+        assertNull(cache.get(dir3, 5000));
+    }
+
+    @Test
+    public void testInvalidationAndEviction() {
+        DirectoryListingCache cache = new DirectoryListingCache(2, 0, 5000);
+        Set<String> fileNames = Collections.singleton(dir1 + "testF_42_314_2015_11_09_07_04_1447052640015.zip");
+
+        //caching of open hours is disabled
+        cache.put(dir1, fileNames, false, 0, cache.getGeneration(dir1));
+        assertNull(cache.get(dir1, 0));
+
+        //listing taken before an invalidation of the directory is not cached
+        long generation = cache.getGeneration(dir1);
+        cache.invalidate(dir1);
+        cache.put(dir1, fileNames, true, 0, generation);
+        assertNull(cache.get(dir1, 0));
+
+        cache.put(dir1, fileNames, true, 0, cache.getGeneration(dir1));
+        cache.invalidate(dir1);
+        assertNull(cache.get(dir1, 0));
+
+        //least recently used listing is evicted
+        cache.put(dir1, fileNames, true, 0, cache.getGeneration(dir1));
+        cache.put(dir2, fileNames, true, 0, cache.getGeneration(dir2));
+        cache.get(dir1, 0);
+        cache.put(dir3, fileNames, true, 0, cache.getGeneration(dir3));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(dir2, 0));
+        assertEquals(fileNames, cache.get(dir1, 0));
+    }
+
+    @Test
+    public void testInvalidationOfOtherDirectoryDoesNotBlockCaching() {
+        DirectoryListingCache cache = new DirectoryListingCache(100, 1000, 5000);
+        Set<String> fileNames = Collections.singleton(dir1 + "testF_42_314_2015_11_09_07_04_1447052640015.zip");
+
+        long generation = cache.getGeneration(dir1);
+        //data files are appended to other hours while dir1 is being listed
+        cache.invalidate(dir2);
+        cache.invalidate(dir3);
+        assertEquals(generation, cache.getGeneration(dir1));
+
+        cache.put(dir1, fileNames, true, 0, generation);
+        assertEquals(fileNames, cache.get(dir1, 0));
+
+        //the invalidated directories are still protected from their stale listings
+        long generation2 = cache.getGeneration(dir2);
+        cache.invalidate(dir2);
+        cache.put(dir2, fileNames, true, 0, generation2);
+        assertNull(cache.get(dir2, 0));
+    }
+}
@@ -0,0 +1,298 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest;
+import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest.HazelcastUnitTestManager;
+import com.telecominfraproject.wlan.hazelcast.common.HazelcastObjectsConfiguration;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.registry.RecordIndexRegistry;
+
+/**
+ * @author dtop
+ *
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.NONE, classes = HazelcastIndexPublisherTests.class)
+@Import(value = {
+        HazelcastForUnitTest.class,
+        RecordIndexRegistry.class,
+        HazelcastObjectsConfiguration.class,
+        PropertySourcesPlaceholderConfigurer.class, //must have this to resolve non-string @Value annotations, i.e. int properties, etc.
+        })
+@ActiveProfiles({"HazelcastForUnitTest"})
+public class HazelcastIndexPublisherTests {
+
+    static{
+        HazelcastUnitTestManager.initializeSystemProperty(HazelcastIndexPublisherTests.class);
+    }
+
+    static final HazelcastUnitTestManager testManager = new HazelcastUnitTestManager();
+
+    @Autowired
+    public void setHazelcastInstance(HazelcastInstance hazelcastInstance) {
+        this.hazelcastInstance = hazelcastInstance;
+        testManager.registerInstance(hazelcastInstance);
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        testManager.shutdownAllInstances();
+    }
+
+    private static final String dsRootDirName = "hds-test";
+    private static final String dsPrefix = "testDsIP";
+
+    String fileNamePrefix = "testF";
+    String hazelcastMapPrefix = fileNamePrefix+"-";
+
+    private HazelcastInstance hazelcastInstance;
+    @Autowired HazelcastObjectsConfiguration hazelcastObjectsConfiguration;
+    @Autowired RecordIndexRegistry recordIndexRegistry;
+
+    HierarchicalDatastore hDs;
+
+    /**
+     * Calls of putAll() and executeOnKeys() made through the publisher, per method name
+     */
+    private final Map<String, AtomicInteger> callCounts = new ConcurrentHashMap<>();
+    /**
+     * Number of the next putAll() and executeOnKeys() calls that should fail, per method name
+     */
+    private final Map<String, AtomicInteger> failuresToInject = new ConcurrentHashMap<>();
+    /**
+     * putAll() and executeOnKeys() calls wait for this latch before they proceed
+     */
+    private volatile CountDownLatch callsBlockedUntil = new CountDownLatch(0);
+
+    @AfterClass
+    public static void removeAllHdsFiles(){
+        File dsRootDir = new File(dsRootDirName + File.separator + dsPrefix);
+        HdsCommonTests.removeAllHdsFiles(dsRootDir);
+    }
+
+    @PostConstruct
+    void initHds(){
+        //remove previous datastore content, if any
+        removeAllHdsFiles();
+
+        hDs = new HierarchicalDatastore(dsRootDirName, dsPrefix, fileNamePrefix, 1, 20L,
+                hazelcastInstance, hazelcastMapPrefix, hazelcastObjectsConfiguration, recordIndexRegistry);
+    }
+
+    @Test
+    public void testUpdatesArePublishedInBatches() {
+        HazelcastIndexPublisher publisher = newPublisher(100, 10, 1000);
+        String recordIdxMapName = "testIdxPublisherBatch-" + System.nanoTime();
+
+        int customerId = (int)System.currentTimeMillis();
+        long equipmentId = System.currentTimeMillis();
+        long hourStartMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        hourStartMs = hourStartMs - hourStartMs%TimeUnit.HOURS.toMillis(1);
+
+        //5 record indexes and 5 file names of the same hourly directory make a full batch
+        AtomicInteger publishedFiles = new AtomicInteger();
+        Set<String> shortFileNames = new HashSet<>();
+        String dirKey = null;
+        for(int i = 0; i < 5; i++) {
+            publisher.publishRecordIndex(recordIdxMapName, "idx" + i, new byte[] { (byte) i });
+
+            String fullFileName = hDs.getFileNameForNewFile(customerId, equipmentId, hourStartMs + TimeUnit.MINUTES.toMillis(i));
+            dirKey = fullFileName.substring(0, fullFileName.lastIndexOf('/')+1);
+            shortFileNames.add(fullFileName.substring(fullFileName.lastIndexOf('/')+1));
+            publisher.appendFileNameToDirectoryListing(customerId, equipmentId, hourStartMs, fullFileName, () -> publishedFiles.incrementAndGet());
+        }
+
+        assertTrue(publisher.flush(TimeUnit.SECONDS.toMillis(10)));
+
+        //one putAll for all the record indexes of the batch
+        assertEquals(1, getCallCount("putAll"));
+        IMap<String, byte[]> recordIdxMap = hazelcastInstance.getMap(recordIdxMapName);
+        assertEquals(5, recordIdxMap.size());
+        assertArrayEquals(new byte[] { 3 }, recordIdxMap.get("idx3"));
+
+        //one append for the directory, and one more after its listing was populated from the backend
+        assertTrue(getCallCount("executeOnKeys") <= 2);
+        IMap<String, Set<String>> dirListMap = hazelcastInstance.getMap(hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
+        assertTrue(dirListMap.get(dirKey).containsAll(shortFileNames));
+        assertEquals(5, publishedFiles.get());
+
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testWritersBlockWhenQueueIsFull() throws InterruptedException {
+        //one update at a time, and room for 2 more in the queue
+        HazelcastIndexPublisher publisher = newPublisher(2, 1, 0);
+        String recordIdxMapName = "testIdxPublisherQueue-" + System.nanoTime();
+
+        //publisher thread gets stuck on the first update
+        callsBlockedUntil = new CountDownLatch(1);
+        publisher.publishRecordIndex(recordIdxMapName, "idx0", new byte[] { 0 });
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while(getCallCount("putAll") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, getCallCount("putAll"));
+
+        publisher.publishRecordIndex(recordIdxMapName, "idx1", new byte[] { 1 });
+        publisher.publishRecordIndex(recordIdxMapName, "idx2", new byte[] { 2 });
+        assertEquals(2, publisher.getQueueSize());
+
+        //queue is full - next writer has to wait
+        Thread writer = new Thread(() -> publisher.publishRecordIndex(recordIdxMapName, "idx3", new byte[] { 3 }), "UnitTest-HazelcastIndexPublisherTests-writer");
+        writer.setDaemon(true);
+        writer.start();
+        writer.join(500);
+        assertTrue(writer.isAlive());
+        assertFalse(publisher.flush(100));
+
+        //writer proceeds once the publisher catches up
+        callsBlockedUntil.countDown();
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(writer.isAlive());
+        assertTrue(publisher.flush(TimeUnit.SECONDS.toMillis(10)));
+
+        assertEquals(4, hazelcastInstance.getMap(recordIdxMapName).size());
+
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testFailedBatchesAreRetried() {
+        HazelcastIndexPublisher publisher = newPublisher(100, 10, 0);
+        String recordIdxMapName = "testIdxPublisherRetry-" + System.nanoTime();
+
+        int customerId = (int)System.currentTimeMillis();
+        long equipmentId = System.currentTimeMillis();
+        long hourStartMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        hourStartMs = hourStartMs - hourStartMs%TimeUnit.HOURS.toMillis(1);
+        String fullFileName = hDs.getFileNameForNewFile(customerId, equipmentId, hourStartMs);
+        String dirKey = fullFileName.substring(0, fullFileName.lastIndexOf('/')+1);
+
+        //fewer failures than the publisher is willing to tolerate
+        getFailuresToInject("putAll").set(2);
+        getFailuresToInject("executeOnKeys").set(2);
+
+        AtomicInteger publishedFiles = new AtomicInteger();
+        publisher.publishRecordIndex(recordIdxMapName, "idx0", new byte[] { 0 });
+        publisher.appendFileNameToDirectoryListing(customerId, equipmentId, hourStartMs, fullFileName, () -> publishedFiles.incrementAndGet());
+        assertTrue(publisher.flush(TimeUnit.SECONDS.toMillis(10)));
+
+        assertEquals(3, getCallCount("putAll"));
+        assertTrue(hazelcastInstance.getMap(recordIdxMapName).containsKey("idx0"));
+
+        IMap<String, Set<String>> dirListMap = hazelcastInstance.getMap(hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
+        assertTrue(dirListMap.get(dirKey).contains(fullFileName.substring(fullFileName.lastIndexOf('/')+1)));
+        assertEquals(1, publishedFiles.get());
+
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testDirectoryListingIsRemovedWhenAppendFails() {
+        HazelcastIndexPublisher publisher = newPublisher(100, 10, 0);
+
+        int customerId = (int)System.currentTimeMillis();
+        long equipmentId = System.currentTimeMillis();
+        long hourStartMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        hourStartMs = hourStartMs - hourStartMs%TimeUnit.HOURS.toMillis(1);
+        String fullFileName = hDs.getFileNameForNewFile(customerId, equipmentId, hourStartMs);
+        String dirKey = fullFileName.substring(0, fullFileName.lastIndexOf('/')+1);
+
+        IMap<String, Set<String>> dirListMap = hazelcastInstance.getMap(hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName());
+        dirListMap.put(dirKey, new HashSet<>(Arrays.asList("old.zip")));
+
+        //append keeps failing
+        getFailuresToInject("executeOnKeys").set(Integer.MAX_VALUE);
+
+        AtomicInteger publishedFiles = new AtomicInteger();
+        publisher.appendFileNameToDirectoryListing(customerId, equipmentId, hourStartMs, fullFileName, () -> publishedFiles.incrementAndGet());
+        assertTrue(publisher.flush(TimeUnit.SECONDS.toMillis(10)));
+
+        //listing that misses the new file is not left in hazelcast, it will be re-read from the backend
+        assertFalse(dirListMap.containsKey(dirKey));
+        //callback is still called, so the writer does not wait for the update forever
+        assertEquals(1, publishedFiles.get());
+
+        publisher.shutdown();
+    }
+
+    private HazelcastIndexPublisher newPublisher(int queueSize, int batchSize, long lingerMs) {
+        return new HazelcastIndexPublisher("unitTest-" + System.nanoTime(), "unitTest-", hDs, newFaultyHazelcastInstance(),
+                hazelcastObjectsConfiguration.getHdsDirectoryListingsMapName(), queueSize, batchSize, lingerMs);
+    }
+
+    private int getCallCount(String methodName) {
+        return callCounts.computeIfAbsent(methodName, k -> new AtomicInteger()).get();
+    }
+
+    private AtomicInteger getFailuresToInject(String methodName) {
+        return failuresToInject.computeIfAbsent(methodName, k -> new AtomicInteger());
+    }
+
+    /**
+     * @return hazelcast instance that hands out maps whose putAll() and executeOnKeys() calls are counted, and can be made to fail or to block
+     */
+    private HazelcastInstance newFaultyHazelcastInstance() {
+        return (HazelcastInstance) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HazelcastInstance.class },
+                (proxy, method, args) -> {
+                    Object ret = invoke(hazelcastInstance, method, args);
+                    if(!"getMap".equals(method.getName())) {
+                        return ret;
+                    }
+
+                    IMap<?, ?> map = (IMap<?, ?>) ret;
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { IMap.class },
+                            (mapProxy, mapMethod, mapArgs) -> {
+                                String methodName = mapMethod.getName();
+                                if("putAll".equals(methodName) || "executeOnKeys".equals(methodName)) {
+                                    callCounts.computeIfAbsent(methodName, k -> new AtomicInteger()).incrementAndGet();
+                                    callsBlockedUntil.await();
+                                    if(getFailuresToInject(methodName).getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                                        throw new IllegalStateException("Injected failure of " + methodName);
+                                    }
+                                }
+                                return invoke(map, mapMethod, mapArgs);
+                            });
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
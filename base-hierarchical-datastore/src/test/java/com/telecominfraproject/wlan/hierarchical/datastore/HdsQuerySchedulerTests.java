@@ -0,0 +1,299 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.hierarchical.datastore.HdsQueryScheduler.Priority;
+import com.telecominfraproject.wlan.hierarchical.datastore.HdsQueryScheduler.Query;
+import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
+
+public class HdsQuerySchedulerTests {
+
+    private HdsQueryScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if(scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrencyBudget() throws Exception {
+        scheduler = new HdsQueryScheduler("test", "test-budget-", 8, 8, 1000, 1000, 3, 1, 0);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        try(Query query = scheduler.startQuery(1, Priority.INTERACTIVE)) {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for(int i = 0; i < 30; i++) {
+                final int value = i;
+                futures.add(query.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int cur = running.incrementAndGet();
+                        maxRunning.accumulateAndGet(cur, Math::max);
+                        Thread.sleep(5);
+                        running.decrementAndGet();
+                        return value;
+                    }
+                }));
+            }
+
+            //wait without helping, so that only the workers run the tasks
+            int sum = 0;
+            for(Future<Integer> future: futures) {
+                sum += future.get();
+            }
+            assertEquals(435, sum);
+        }
+
+        assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 3);
+        assertEquals(0, scheduler.getActiveQueries());
+        assertEquals(0, scheduler.getQueuedTasks());
+    }
+
+    @Test
+    public void testFairnessBetweenCustomers() throws Exception {
+        scheduler = new HdsQueryScheduler("test", "test-fairness-", 1, 1, 1000, 1000, 10, 10, 0);
+
+        final List<Integer> executionOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        Query wideQuery = scheduler.newQuery(1, Priority.INTERACTIVE);
+        Query narrowQuery = scheduler.newQuery(2, Priority.INTERACTIVE);
+
+        //occupy the only worker, so that all the tasks below are queued before any of them runs
+        Future<Integer> blockingTask = wideQuery.submit(newTask(blocker, executionOrder, 0));
+        waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return scheduler.getQueuedTasks() == 0;
+            }
+        });
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            futures.add(wideQuery.submit(newTask(null, executionOrder, 1)));
+        }
+        for(int i = 0; i < 3; i++) {
+            futures.add(narrowQuery.submit(newTask(null, executionOrder, 2)));
+        }
+
+        blocker.countDown();
+        blockingTask.get();
+        for(Future<Integer> future: futures) {
+            future.get();
+        }
+
+        //customers take turns, the narrow query does not wait for the wide one to finish
+        assertEquals(14, executionOrder.size());
+        assertEquals(Integer.valueOf(2), executionOrder.get(2));
+        assertEquals(Integer.valueOf(2), executionOrder.get(4));
+        assertEquals(Integer.valueOf(2), executionOrder.get(6));
+
+        wideQuery.close();
+        narrowQuery.close();
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        scheduler = new HdsQueryScheduler("test", "test-priorities-", 1, 1, 1000, 1000, 10, 10, 3);
+
+        final List<Integer> executionOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch blocker = new CountDownLatch(1);
+
+        Query batchQuery = scheduler.newQuery(1, Priority.BATCH);
+        Query interactiveQuery = scheduler.newQuery(2, Priority.INTERACTIVE);
+
+        Future<Integer> blockingTask = batchQuery.submit(newTask(blocker, executionOrder, 0));
+        waitUntil(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return scheduler.getQueuedTasks() == 0;
+            }
+        });
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            futures.add(batchQuery.submit(newTask(null, executionOrder, 1)));
+        }
+        for(int i = 0; i < 6; i++) {
+            futures.add(interactiveQuery.submit(newTask(null, executionOrder, 2)));
+        }
+
+        blocker.countDown();
+        for(Future<Integer> future: futures) {
+            future.get();
+        }
+
+        //every 3rd task goes to the batch query while interactive one has work queued
+        assertEquals(Arrays.asList(0, 2, 1, 2, 2, 1, 2, 2, 1, 2, 1), executionOrder);
+
+        batchQuery.close();
+        interactiveQuery.close();
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        scheduler = new HdsQueryScheduler("test", "test-cancel-", 2, 2, 1000, 1000, 1, 1, 0);
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Query query = scheduler.newQuery(1, Priority.INTERACTIVE);
+        Future<Integer> longTask = query.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                started.countDown();
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                return 1;
+            }
+        });
+        List<Future<Integer>> queued = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            queued.add(query.submit(newTask(null, new ArrayList<Integer>(), 1)));
+        }
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        //budget of 1 keeps the rest of the tasks in the queue
+        assertEquals(5, scheduler.getQueuedTasks());
+
+        query.cancel();
+        assertTrue(query.isCancelled());
+        assertEquals(0, scheduler.getQueuedTasks());
+        assertTrue(longTask.isCancelled());
+        for(Future<Integer> future: queued) {
+            assertTrue(future.isCancelled());
+        }
+
+        try {
+            query.waitFor(longTask);
+            fail("query was cancelled");
+        } catch (GenericErrorException e) {
+            //expected it
+        }
+
+        try {
+            query.submit(newTask(null, new ArrayList<Integer>(), 1));
+            fail("query was cancelled");
+        } catch (GenericErrorException e) {
+            //expected it
+        }
+
+        query.close();
+        assertEquals(0, scheduler.getActiveQueries());
+    }
+
+    @Test
+    public void testNestedTasksWithSingleWorker() throws Exception {
+        //tasks that wait for their own sub-tasks would dead-lock a single worker if the waiting thread did not help
+        scheduler = new HdsQueryScheduler("test", "test-nested-", 1, 1, 1000, 1000, 1, 1, 0);
+
+        try(Query query = scheduler.startQuery(1, Priority.INTERACTIVE)) {
+            assertSame(query, scheduler.getCurrentQuery());
+
+            Future<Integer> outer = query.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Query current = scheduler.getCurrentQuery();
+                    List<Future<Integer>> inner = new ArrayList<>();
+                    for(int i = 1; i <= 4; i++) {
+                        final int value = i;
+                        inner.add(current.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return value;
+                            }
+                        }));
+                    }
+                    int sum = 0;
+                    for(Future<Integer> future: inner) {
+                        sum += current.waitFor(future);
+                    }
+                    return sum;
+                }
+            });
+
+            assertEquals(Integer.valueOf(10), query.waitFor(outer));
+
+            //nested scope joins the bound query, and does not close it
+            try(HdsQueryScheduler.QueryScope scope = scheduler.joinOrStartQuery(2)) {
+                assertSame(query, scope.getQuery());
+            }
+            assertEquals(1, scheduler.getActiveQueries());
+        }
+
+        assertNull(scheduler.getCurrentQuery());
+        assertEquals(0, scheduler.getActiveQueries());
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        scheduler = new HdsQueryScheduler("test", "test-limit-", 1, 1, 1000, 3, 1, 1, 0);
+
+        final CountDownLatch blocker = new CountDownLatch(1);
+        try(Query query = scheduler.startQuery(1, Priority.INTERACTIVE)) {
+            query.submit(newTask(blocker, new ArrayList<Integer>(), 0));
+            waitUntil(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return scheduler.getQueuedTasks() == 0;
+                }
+            });
+
+            for(int i = 0; i < 3; i++) {
+                query.submit(newTask(null, new ArrayList<Integer>(), 1));
+            }
+
+            try {
+                query.submit(newTask(null, new ArrayList<Integer>(), 1));
+                fail("queue is full");
+            } catch (GenericErrorException e) {
+                //expected it
+            }
+
+            blocker.countDown();
+        }
+    }
+
+    private static Callable<Integer> newTask(final CountDownLatch blocker, final List<Integer> executionOrder, final int marker) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                if(blocker != null) {
+                    blocker.await();
+                }
+                executionOrder.add(marker);
+                return marker;
+            }
+        };
+    }
+
+    private static void waitUntil(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!condition.call()) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new ExecutionException("condition is not met", null);
+            }
+            Thread.sleep(5);
+        }
+    }
+}
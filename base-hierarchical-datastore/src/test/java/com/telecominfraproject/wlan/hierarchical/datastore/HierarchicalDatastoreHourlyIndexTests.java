@@ -7,6 +7,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
@@ -20,6 +22,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.annotation.PostConstruct;
 
@@ -36,13 +41,18 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
+import com.hazelcast.core.IQueue;
 import com.telecominfraproject.wlan.core.model.filter.EntryFilter;
 import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
 import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest;
 import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest.HazelcastUnitTestManager;
 import com.telecominfraproject.wlan.hazelcast.common.HazelcastObjectsConfiguration;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.DirectoryIndex;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.HourlySummary;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordIndexValueExtractor;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.RecordSummaryExtractor;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.SummaryStats;
+import com.telecominfraproject.wlan.hierarchical.datastore.index.aggregator.HourlyIndexAggregatorHazelcastScalable;
 import com.telecominfraproject.wlan.hierarchical.datastore.index.registry.RecordIndexRegistry;
 import com.telecominfraproject.wlan.hierarchical.datastore.writer.StreamHolder;
 
@@ -478,6 +488,272 @@ public class HierarchicalDatastoreHourlyIndexTests {
     }
 
 
+    @Test
+    public void testIncrementalHourlyIndexBuild() throws IOException, InterruptedException{
+
+        TestModelForHds mdl1 = new TestModelForHds("t1", "c1", "v1");
+        TestModelForHds mdl2 = new TestModelForHds("t2", "c2", "v2");
+        TestModelForHds mdl3 = new TestModelForHds("t1", "c1", "v3");
+
+        int customerId = (int)System.currentTimeMillis() + 1;
+        long equipmentId = System.currentTimeMillis() + 1;       
+        long streamFirstModelStartTimeMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        streamFirstModelStartTimeMs = streamFirstModelStartTimeMs - streamFirstModelStartTimeMs%TimeUnit.HOURS.toMillis(1);
+
+        RecordIndexValueExtractor recordTypeIdxValueExtractor = new RecordIndexValueExtractor() {
+            @Override
+            public Set<String> extractValues(BaseJsonModel model) {
+                return Collections.singleton(((TestModelForHds)model).getRecordType());
+            }
+        };
+
+        //hDs shares its map of record indexes with the registry
+        hDs.registerRecordIndex(recordTypeIdx, recordTypeIdxValueExtractor );        
+        recordIndexRegistry.getAllFileNamePrefixes().add(fileNamePrefix);
+        try {
+            verifyIncrementalHourlyIndexBuild(customerId, equipmentId, streamFirstModelStartTimeMs, mdl1, mdl2, mdl3);
+        } finally {
+            //other tests expect to register this index themselves
+            recordIndexRegistry.getIndexMap(fileNamePrefix).remove(recordTypeIdx, recordTypeIdxValueExtractor);
+        }
+    }
+
+    private void verifyIncrementalHourlyIndexBuild(int customerId, long equipmentId, long streamFirstModelStartTimeMs, 
+            TestModelForHds mdl1, TestModelForHds mdl2, TestModelForHds mdl3) throws IOException, InterruptedException {
+
+        StreamHolder streamHolder1 = new StreamHolder(streamFirstModelStartTimeMs , customerId, equipmentId, hDs);        
+        streamHolder1.writeModelToStream(mdl1);
+        streamHolder1.writeModelToStream(mdl2);
+        streamHolder1.commitOutputStreamToFile();
+
+        String dataFileName = streamHolder1.getFullFileName();
+        String hourlyDirectoryName = dataFileName.substring(0, dataFileName.lastIndexOf('/')+1);
+        String hrIdxFileName = new HourlyIndexFileNames(
+                customerId, equipmentId, streamFirstModelStartTimeMs, streamFirstModelStartTimeMs+ 1000, 
+                recordTypeIdx, dsPrefix, fileNamePrefix, numberOfMinutesPerFile).iterator().next();
+
+        HierarchicalDatastore.rebuildHourlyIndex(hourlyDirectoryName, dsRootDirName, dsPrefix, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration);
+        Long hrIdxLastMod = HierarchicalDatastore.getFileNamesAndLastMods(dsRootDirName, hourlyDirectoryName).get(hrIdxFileName);
+        assertNotNull(hrIdxLastMod);
+
+        //nothing changed in the directory - hourly index is not re-written
+        HierarchicalDatastore.rebuildHourlyIndex(hourlyDirectoryName, dsRootDirName, dsPrefix, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration);
+        assertEquals(hrIdxLastMod, HierarchicalDatastore.getFileNamesAndLastMods(dsRootDirName, hourlyDirectoryName).get(hrIdxFileName));
+
+        StreamHolder streamHolder2 = new StreamHolder(streamFirstModelStartTimeMs + 100 , customerId, equipmentId, hDs);        
+        streamHolder2.writeModelToStream(mdl3);
+        streamHolder2.commitOutputStreamToFile();
+
+        //hour is claimed by another node - hourly index is not built by this one
+        IMap<String, Long> bipHrDirsMap = hazelcastInstance.getMap(hazelcastObjectsConfiguration.getBuildInProgressHourlyDirectoryNamesMapPrefix());
+        String claimKey = hourlyDirectoryName.substring(0, hourlyDirectoryName.length() - 1) + HourlyIndexAggregatorHazelcastScalable.CLAIM_KEY_SUFFIX;
+        bipHrDirsMap.put(claimKey, System.currentTimeMillis());
+        assertFalse(HierarchicalDatastore.rebuildHourlyIndex(hourlyDirectoryName, dsRootDirName, dsPrefix, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration));
+        DirectoryIndex hrIdx = HierarchicalDatastore.getZippedModelFromFile(dsRootDirName, hrIdxFileName,  DirectoryIndex.class);
+        assertEquals(1, hrIdx.getDataFileNameToRecordIndexMap().size());
+
+        //request taken from the queue while the hour is claimed is placed back into the queue, and is not marked as completed
+        String requestDirName = hourlyDirectoryName.substring(0, hourlyDirectoryName.length() - 1);
+        IQueue<String> buildIndexRequestQueue = hazelcastInstance.getQueue(hazelcastObjectsConfiguration.getRebuildIdxHourlyDirectoryNamesQueue());
+        bipHrDirsMap.put(requestDirName, streamFirstModelStartTimeMs);
+        buildIndexRequestQueue.put(requestDirName);
+        assertEquals(1, HourlyIndexAggregatorHazelcastScalable.processRebuildRequests(dsRootDirName, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration, 10, 1000));
+        assertEquals(Collections.singletonList(requestDirName), new ArrayList<>(buildIndexRequestQueue));
+        assertTrue(bipHrDirsMap.containsKey(requestDirName));
+        hrIdx = HierarchicalDatastore.getZippedModelFromFile(dsRootDirName, hrIdxFileName,  DirectoryIndex.class);
+        assertEquals(1, hrIdx.getDataFileNameToRecordIndexMap().size());
+        bipHrDirsMap.remove(claimKey);
+
+        //new data file is merged into existing hourly index once the claim is released
+        assertEquals(1, HourlyIndexAggregatorHazelcastScalable.processRebuildRequests(dsRootDirName, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration, 10, 1000));
+        assertTrue(buildIndexRequestQueue.isEmpty());
+        assertFalse(bipHrDirsMap.containsKey(requestDirName));
+        hrIdx = HierarchicalDatastore.getZippedModelFromFile(dsRootDirName, hrIdxFileName,  DirectoryIndex.class);
+        assertEquals(2, hrIdx.getDataFileNameToRecordIndexMap().size());
+        assertEquals(2, hrIdx.getDataFileNameToRecordIndexMap().get(streamHolder1.getFullFileName()).getCounts().getTotalCount());
+        assertEquals(1, hrIdx.getDataFileNameToRecordIndexMap().get(streamHolder2.getFullFileName()).getCounts().getTotalCount());
+        assertFalse(bipHrDirsMap.containsKey(claimKey));
+    }
+
+    @Test
+    public void testHourlySummaries() throws IOException{
+
+        TestModelForHds mdl1 = new TestModelForHds("t1", "c1", "10");
+        TestModelForHds mdl2 = new TestModelForHds("t2", "c2", "20");
+        TestModelForHds mdl3 = new TestModelForHds("t1", "c1", "not-a-number");
+
+        int customerId = (int)System.currentTimeMillis() + 2;
+        long equipmentId = System.currentTimeMillis() + 2;       
+        long streamFirstModelStartTimeMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        streamFirstModelStartTimeMs = streamFirstModelStartTimeMs - streamFirstModelStartTimeMs%TimeUnit.HOURS.toMillis(1);
+
+        RecordIndexValueExtractor recordTypeIdxValueExtractor = new RecordIndexValueExtractor() {
+            @Override
+            public Set<String> extractValues(BaseJsonModel model) {
+                return Collections.singleton(((TestModelForHds)model).getRecordType());
+            }
+        };
+
+        RecordSummaryExtractor summaryExtractor = new RecordSummaryExtractor() {
+            @Override
+            public long extractTimestamp(BaseJsonModel model) {
+                return -1;
+            }
+
+            @Override
+            public String[] getNumericFieldNames() {
+                return new String[] {"value"};
+            }
+
+            @Override
+            public double extractNumericValue(BaseJsonModel model, String fieldName) {
+                try {
+                    return Double.parseDouble(((TestModelForHds)model).getValue());
+                } catch (NumberFormatException e) {
+                    return Double.NaN;
+                }
+            }
+        };
+
+        //hDs shares its map of record indexes with the registry
+        hDs.registerRecordIndex(recordTypeIdx, recordTypeIdxValueExtractor );        
+        recordIndexRegistry.getAllFileNamePrefixes().add(fileNamePrefix);
+        recordIndexRegistry.registerSummaryExtractor(fileNamePrefix, summaryExtractor);
+        try {
+            verifyHourlySummaries(customerId, equipmentId, streamFirstModelStartTimeMs, mdl1, mdl2, mdl3);
+        } finally {
+            //other tests expect to register this index themselves, and do not expect summaries
+            recordIndexRegistry.getIndexMap(fileNamePrefix).remove(recordTypeIdx, recordTypeIdxValueExtractor);
+            recordIndexRegistry.registerSummaryExtractor(fileNamePrefix, null);
+        }
+    }
+
+    private void verifyHourlySummaries(int customerId, long equipmentId, long streamFirstModelStartTimeMs, 
+            TestModelForHds mdl1, TestModelForHds mdl2, TestModelForHds mdl3) throws IOException {
+
+        long fromTime = streamFirstModelStartTimeMs;
+        long toTime = streamFirstModelStartTimeMs + TimeUnit.HOURS.toMillis(1) - 1;
+
+        StreamHolder streamHolder1 = new StreamHolder(streamFirstModelStartTimeMs , customerId, equipmentId, hDs);        
+        streamHolder1.writeModelToStream(mdl1);
+        streamHolder1.writeModelToStream(mdl2);
+        streamHolder1.commitOutputStreamToFile();
+
+        String dataFileName = streamHolder1.getFullFileName();
+        String hourlyDirectoryName = dataFileName.substring(0, dataFileName.lastIndexOf('/')+1);
+        String hrSumFileName = HourlySummary.getSummaryFileName(new HourlyIndexFileNames(
+                customerId, equipmentId, streamFirstModelStartTimeMs, streamFirstModelStartTimeMs+ 1000, 
+                recordTypeIdx, dsPrefix, fileNamePrefix, numberOfMinutesPerFile).iterator().next());
+
+        //summary is not built yet - statistics come from the data files
+        SummaryStats stats = hDs.aggregate(customerId, equipmentId, fromTime, toTime, recordTypeIdx, Collections.singleton("t1"));
+        assertEquals(1, stats.getCount());
+        assertEquals(10, stats.getSum("value"), 0.0001);
+
+        HierarchicalDatastore.rebuildHourlyIndex(hourlyDirectoryName, dsRootDirName, dsPrefix, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration);
+        assertTrue(checkIfS3ObjectExists(hrSumFileName));
+
+        //same statistics come from the summary
+        stats = hDs.aggregate(customerId, equipmentId, fromTime, toTime, recordTypeIdx, Collections.singleton("t1"));
+        assertEquals(1, stats.getCount());
+        assertEquals(10, stats.getSum("value"), 0.0001);
+        stats = hDs.aggregate(customerId, equipmentId, fromTime, toTime, null, null);
+        assertEquals(2, stats.getCount());
+        assertEquals(15, stats.getAverage("value"), 0.0001);
+        assertEquals(20, stats.getMax("value"), 0.0001);
+
+        //data file that is not in the summary yet is read directly
+        StreamHolder streamHolder2 = new StreamHolder(streamFirstModelStartTimeMs + 100 , customerId, equipmentId, hDs);        
+        streamHolder2.writeModelToStream(mdl3);
+        streamHolder2.commitOutputStreamToFile();
+
+        assertEquals(2, hDs.countEntries(customerId, equipmentId, fromTime, toTime, recordTypeIdx, Collections.singleton("t1")));
+        assertEquals(3, hDs.countEntries(customerId, equipmentId, fromTime, toTime, null, null));
+
+        //new data file is merged into the summary
+        HierarchicalDatastore.rebuildHourlyIndex(hourlyDirectoryName, dsRootDirName, dsPrefix, recordIndexRegistry, hazelcastInstance, hazelcastObjectsConfiguration);
+        HourlySummary summary = HourlySummary.fromBytes(Files.readAllBytes(new File(dsRootDirName, hrSumFileName).toPath()));
+        assertEquals(new HashSet<>(Arrays.asList(streamHolder1.getFullFileName(), streamHolder2.getFullFileName())), summary.getDataFileNames());
+
+        stats = hDs.aggregate(customerId, equipmentId, fromTime, toTime, recordTypeIdx, Collections.singleton("t1"));
+        assertEquals(2, stats.getCount());
+        assertEquals(1, stats.getFieldCount("value"));
+        assertEquals(10, stats.getSum("value"), 0.0001);
+    }
+
+    @Test
+    public void testEntryIteratorOrderAndReadAhead() throws InterruptedException{
+
+        //create 20 data files in s3ds, one minute apart, 2 records each
+        int numberOfFiles = 20;
+        int readAheadFiles = Integer.getInteger("tip.wlan.hdsEntryIteratorReadAheadFiles", 8);
+
+        int customerId = (int)System.currentTimeMillis();
+        long equipmentId = System.currentTimeMillis();
+        //if time is less than 70 minutes from now, hourly indexes will not be used, so we'll adjust time to be in the past
+        long streamFirstModelStartTimeMs = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+
+        //align our data files at the beginning of the hour, so that all of them end up in the same hourly directory
+        streamFirstModelStartTimeMs = streamFirstModelStartTimeMs 
+                - streamFirstModelStartTimeMs%TimeUnit.HOURS.toMillis(1) 
+                + ((long)(100*Math.random()));
+
+        List<TestModelForHds> expectedEntries = new ArrayList<>();
+        for(int i = 0; i < numberOfFiles; i++){
+            TestModelForHds mdlA = new TestModelForHds("t1", "c1", "v" + i + "a");
+            TestModelForHds mdlB = new TestModelForHds("t2", "c2", "v" + i + "b");
+
+            StreamHolder streamHolder = new StreamHolder(streamFirstModelStartTimeMs + TimeUnit.MINUTES.toMillis(i), customerId, equipmentId, hDs);
+            streamHolder.writeModelToStream(mdlA);
+            streamHolder.writeModelToStream(mdlB);
+            streamHolder.commitOutputStreamToFile();
+
+            expectedEntries.add(mdlA);
+            expectedEntries.add(mdlB);
+        }
+
+        long streamLastModelTimeMs = streamFirstModelStartTimeMs + TimeUnit.MINUTES.toMillis(numberOfFiles);
+
+        //streaming read should return entries in timestamp order across all the data files
+        try(Stream<TestModelForHds> entryStream = hDs.getEntriesStream(customerId, equipmentId, streamFirstModelStartTimeMs, streamLastModelTimeMs, matchAllEntryFilter , null, null /*no index*/, TestModelForHds.class)){
+            assertEquals(expectedEntries, entryStream.collect(Collectors.toList()));
+        }
+
+        //entry filter is applied while data files are read, so it tells us how far ahead of the consumer the reading went
+        AtomicInteger entriesRead = new AtomicInteger();
+        EntryFilter<TestModelForHds> countingEntryFilter = new EntryFilter<TestModelForHds>() {
+            @Override
+            public TestModelForHds getFilteredEntry(TestModelForHds entry) {
+                entriesRead.incrementAndGet();
+                return entry;
+            }
+        };
+
+        List<TestModelForHds> iteratedEntries = new ArrayList<>();
+        try(EntryIterator<TestModelForHds> entryIterator = hDs.getEntriesIterator(customerId, equipmentId, streamFirstModelStartTimeMs, streamLastModelTimeMs, countingEntryFilter ,
+                null, null /*no index*/, TestModelForHds.class)){
+            assertTrue(entryIterator.hasNext());
+            iteratedEntries.add(entryIterator.next());
+
+            //consumer stalls - reading of the data files should stop once the read-ahead window is full
+            Thread.sleep(500);
+            int entriesReadWhileStalled = entriesRead.get();
+            Thread.sleep(500);
+            assertEquals(entriesReadWhileStalled, entriesRead.get());
+            //current data file plus the ones read ahead of it, 2 entries per file
+            assertTrue(entriesReadWhileStalled <= 2 * (readAheadFiles + 1));
+            assertTrue(entriesReadWhileStalled < expectedEntries.size());
+
+            //consumer resumes - the rest of the entries should arrive in timestamp order
+            while(entryIterator.hasNext()){
+                iteratedEntries.add(entryIterator.next());
+            }
+        }
+
+        assertEquals(expectedEntries, iteratedEntries);
+        assertEquals(expectedEntries.size(), entriesRead.get());
+    }
+
     private boolean checkIfHazelcastObjectExists(String mapName, String mapKey) {
         IMap<String, byte[]> hcMap = hazelcastInstance.getMap(mapName);
         return hcMap==null?false:hcMap.containsKey(mapKey);
@@ -516,7 +792,22 @@ public class HierarchicalDatastoreHourlyIndexTests {
         assertTrue(entryList.contains(mdl2));
         assertTrue(entryList.contains(mdl3));
         assertTrue(entryList.contains(mdl4));
-        
+
+        //streaming read should return the same entries as getEntries
+        try(Stream<TestModelForHds> entryStream = hDs.getEntriesStream(customerId, equipmentId, streamFirstModelStartTimeMs, streamLastModelTimeMs, matchAllEntryFilter , null, null /*no index*/, TestModelForHds.class)){
+            List<TestModelForHds> streamedEntryList = entryStream.collect(Collectors.toList());
+            //data files are read in timestamp order: mdl1 and mdl2 are in the first data file, mdl3 and mdl4 are in the second one
+            assertEquals(Arrays.asList(mdl1, mdl2, mdl3, mdl4), streamedEntryList);
+        }
+
+        //streaming read with index, caller stops consuming after the first entry
+        try(EntryIterator<TestModelForHds> entryIterator = hDs.getEntriesIterator(customerId, equipmentId, streamFirstModelStartTimeMs, streamLastModelTimeMs, matchAllEntryFilter ,
+                indexName, new HashSet<>(Arrays.asList(idxValue1)), TestModelForHds.class)){
+            assertTrue(entryIterator.hasNext());
+            TestModelForHds firstEntry = entryIterator.next();
+            assertTrue(firstEntry.equals(mdl1) || firstEntry.equals(mdl3));
+        }
+
         //test read/count with not-null index name and null set of indexed values - results in full scan of the data files
         entryList = hDs.getEntries(customerId, equipmentId, streamFirstModelStartTimeMs, streamLastModelTimeMs, matchAllEntryFilter , indexName, null, TestModelForHds.class);
         assertEquals(4, entryList.size());
@@ -162,7 +162,7 @@ public class HierarchicalDatastoreTests {
             
             futures.add(executor.submit(new Callable<Boolean>(){
                 @Override
-                    public Boolean call() {
+                    public Boolean call() throws IOException {
                         InputStream inputStream = new ByteArrayInputStream(zippedBytes);
                         hDs.uploadStreamToFileOverwriteOld(inputStream, zippedBytes.length, fileName);
                         
@@ -0,0 +1,114 @@
+package com.telecominfraproject.wlan.hierarchical.datastore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.hierarchical.datastore.index.DirectoryIndex;
+
+public class HotDataFileCacheTests {
+
+    private static final String file1 = "testDs/42/314/2015/11/09/07/testF_42_314_2015_11_09_07_04_1447052640015.zip";
+    private static final String file2 = "testDs/42/314/2015/11/09/07/testF_42_314_2015_11_09_07_05_1447052700015.zip";
+    private static final long file1TimeMs = DirectoryIndex.extractTimeFromTheDataFileName(file1);
+
+    @Test
+    public void testHotDataFiles() {
+        HotDataFileCache cache = new HotDataFileCache(100000, TimeUnit.HOURS.toMillis(2));
+        byte[] content = new byte[] {1, 2, 3};
+
+        long nowMs = file1TimeMs + TimeUnit.MINUTES.toMillis(30);
+        assertTrue(cache.isHot(file1, nowMs));
+        assertFalse(cache.isHot("testDs/42/314/not-a-data-file", nowMs));
+
+        cache.put(file1, content, nowMs);
+        assertArrayEquals(content, toBytes(cache.get(file1, nowMs)));
+        assertNull(cache.get(file2, nowMs));
+        assertEquals(1, cache.size());
+
+        //data files that are too old are not cached
+        long laterMs = file1TimeMs + TimeUnit.HOURS.toMillis(3);
+        assertFalse(cache.isHot(file1, laterMs));
+        assertEquals(0, cache.put(file2, content, laterMs));
+        assertEquals(1, cache.size());
+
+        //and are dropped when looked up
+        assertNull(cache.get(file1, laterMs));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getTotalBytes());
+
+        //invalidation
+        cache.put(file1, content, nowMs);
+        cache.invalidate(file1);
+        assertNull(cache.get(file1, nowMs));
+
+        //disabled cache
+        HotDataFileCache disabledCache = new HotDataFileCache(0, TimeUnit.HOURS.toMillis(2));
+        assertFalse(disabledCache.isHot(file1, nowMs));
+    }
+
+    @Test
+    public void testSizeBoundedEviction() {
+        //room for four of the data files below
+        long entryBytes = 1000 + 2 * file1.length() + 96;
+        HotDataFileCache cache = new HotDataFileCache(4 * entryBytes, TimeUnit.HOURS.toMillis(2));
+        long nowMs = file1TimeMs;
+
+        for(int minute = 0; minute < 4; minute++) {
+            assertEquals(0, cache.put(getFileName(minute), new byte[1000], nowMs));
+        }
+        assertEquals(4 * entryBytes, cache.getTotalBytes());
+
+        //least recently used data file is evicted first
+        cache.get(getFileName(0), nowMs);
+        assertEquals(1, cache.put(getFileName(4), new byte[1000], nowMs));
+        assertNull(cache.get(getFileName(1), nowMs));
+        assertEquals(1000, cache.get(getFileName(0), nowMs).remaining());
+        assertEquals(1000, cache.get(getFileName(4), nowMs).remaining());
+        assertEquals(1, cache.getEvictionCount());
+
+        //replacing an entry does not count its old content twice
+        cache.put(getFileName(4), new byte[1000], nowMs);
+        assertEquals(4 * entryBytes, cache.getTotalBytes());
+
+        //data files that take more than a quarter of the cache are not cached
+        assertEquals(0, cache.put(getFileName(1), new byte[1001], nowMs));
+        assertNull(cache.get(getFileName(1), nowMs));
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testPartOfTheBuffer() {
+        HotDataFileCache cache = new HotDataFileCache(100000, TimeUnit.HOURS.toMillis(2));
+        long nowMs = file1TimeMs;
+
+        //writer hands over the buffer it has collected the data file in
+        byte[] buffer = new byte[] {1, 2, 3, 0, 0, 0, 0, 0};
+        cache.put(file1, ByteBuffer.wrap(buffer, 0, 3), nowMs);
+        assertArrayEquals(new byte[] {1, 2, 3}, toBytes(cache.get(file1, nowMs)));
+
+        //readers do not affect each other
+        cache.get(file1, nowMs).get();
+        assertEquals(3, cache.get(file1, nowMs).remaining());
+
+        //whole buffer is counted against the cache size
+        assertEquals(buffer.length + 2 * file1.length() + 96, cache.getTotalBytes());
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] ret = new byte[buffer.remaining()];
+        buffer.get(ret);
+        return ret;
+    }
+
+    private static String getFileName(int minute) {
+        return String.format("testDs/42/314/2015/11/09/07/testF_42_314_2015_11_09_07_%02d_1447052640015.zip", minute);
+    }
+}
@@ -0,0 +1,379 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.backend;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class DatastoreBackendTests {
+
+    private static final String bucket = "hds-test";
+
+    private File rootDir;
+    private HttpServer s3Server;
+    private final Map<String, byte[]> s3Objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> s3Uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger s3UploadIdGenerator = new AtomicInteger();
+    private final AtomicInteger s3DeleteRequests = new AtomicInteger();
+    private final AtomicInteger s3FailuresToInject = new AtomicInteger();
+    private volatile int s3InjectedFailureCode;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = Files.createTempDirectory("hdsBackendTest").toFile();
+
+        s3Server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        s3Server.createContext("/", this::handleS3Request);
+        s3Server.start();
+    }
+
+    @After
+    public void tearDown() {
+        s3Server.stop(0);
+        deleteRecursively(rootDir);
+    }
+
+    @Test
+    public void testLocalFileBackend() throws IOException {
+        LocalFileDatastoreBackend backend = new LocalFileDatastoreBackend(rootDir.getAbsolutePath());
+        verifyBackend(backend, 100_000);
+
+        assertTrue(backend.getLocalFile("testDs/42/314/f2.zip").isFile());
+    }
+
+    @Test
+    public void testS3Backend() throws IOException {
+        //smallest allowed part size, objects larger than 2 parts exercise multipart uploads
+        S3DatastoreBackend backend = new S3DatastoreBackend("http://127.0.0.1:" + s3Server.getAddress().getPort(),
+                "us-east-1", bucket, "testAccessKey", "testSecretKey", S3DatastoreBackend.MIN_PART_SIZE_BYTES);
+        verifyBackend(backend, 2 * S3DatastoreBackend.MIN_PART_SIZE_BYTES + 100_000);
+
+        assertNull(backend.getLocalFile("testDs/42/314/f1.zip"));
+        assertTrue(s3Uploads.isEmpty());
+
+        //deletes are batched
+        List<String> manyObjects = new ArrayList<>();
+        for(int i = 0; i < 2500; i++) {
+            manyObjects.add("testDs/many/obj" + i);
+        }
+        s3DeleteRequests.set(0);
+        assertEquals(2500, backend.delete(manyObjects));
+        assertEquals(3, s3DeleteRequests.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testS3PartSizeTooSmall() {
+        new S3DatastoreBackend("http://127.0.0.1:" + s3Server.getAddress().getPort(),
+                "us-east-1", bucket, "testAccessKey", "testSecretKey", S3DatastoreBackend.MIN_PART_SIZE_BYTES - 1);
+    }
+
+    @Test
+    public void testS3BackendRetries() throws IOException {
+        S3DatastoreBackend backend = new S3DatastoreBackend("http://127.0.0.1:" + s3Server.getAddress().getPort(),
+                "us-east-1", bucket, "testAccessKey", "testSecretKey");
+        byte[] content = "hello datastore".getBytes(StandardCharsets.UTF_8);
+
+        //throttled requests are retried
+        s3InjectedFailureCode = 503;
+        s3FailuresToInject.set(2);
+        backend.write("testDs/42/314/f1.zip", new ByteArrayInputStream(content), content.length);
+        assertEquals(0, s3FailuresToInject.get());
+
+        //server errors are retried
+        s3InjectedFailureCode = 500;
+        s3FailuresToInject.set(2);
+        assertArrayEquals(content, readAll(backend.read("testDs/42/314/f1.zip")));
+        assertEquals(0, s3FailuresToInject.get());
+
+        //number of attempts is bounded
+        s3InjectedFailureCode = 503;
+        s3FailuresToInject.set(100);
+        try {
+            backend.exists("testDs/42/314/f1.zip");
+            fail("request should have failed");
+        } catch (IOException e) {
+            //expected it
+        }
+        assertEquals(100 - Integer.getInteger("tip.wlan.hdsS3MaxAttempts", 4), s3FailuresToInject.get());
+
+        //client errors are not retried
+        s3FailuresToInject.set(0);
+        S3DatastoreBackend unauthorizedBackend = new S3DatastoreBackend("http://127.0.0.1:" + s3Server.getAddress().getPort(),
+                "us-east-1", bucket, "wrongAccessKey", "testSecretKey");
+        try {
+            unauthorizedBackend.exists("testDs/42/314/f1.zip");
+            fail("request should have failed");
+        } catch (IOException e) {
+            //expected it
+        }
+    }
+
+    private void verifyBackend(DatastoreBackend backend, int largeObjectSize) throws IOException {
+        byte[] content = "hello datastore".getBytes(StandardCharsets.UTF_8);
+        byte[] largeContent = new byte[largeObjectSize];
+        for(int i = 0; i < largeContent.length; i++) {
+            largeContent[i] = (byte) (i % 251);
+        }
+
+        assertFalse(backend.exists("testDs/42/314/f1.zip"));
+        try(InputStream is = backend.read("testDs/42/314/f1.zip")) {
+            fail("object should not exist");
+        } catch (FileNotFoundException e) {
+            //expected it
+        }
+        assertTrue(backend.list("testDs/42").isEmpty());
+
+        backend.write("testDs/42/314/f1.zip", new ByteArrayInputStream(content), content.length);
+        //size not known in advance
+        backend.write("testDs/42/314/f2.zip", new ByteArrayInputStream(largeContent), -1);
+        backend.write("testDs/42/315/f3.zip", new ByteArrayInputStream(content), content.length);
+
+        assertTrue(backend.exists("testDs/42/314/f1.zip"));
+        assertEquals(content.length, backend.size("testDs/42/314/f1.zip"));
+        assertEquals(largeObjectSize, backend.size("testDs/42/314/f2.zip"));
+        try {
+            backend.size("testDs/42/314/f4.zip");
+            fail("object should not exist");
+        } catch (FileNotFoundException e) {
+            //expected it
+        }
+        assertArrayEquals(content, readAll(backend.read("testDs/42/314/f1.zip")));
+        assertArrayEquals(largeContent, readAll(backend.read("testDs/42/314/f2.zip")));
+
+        //overwrite
+        backend.write("testDs/42/314/f1.zip", new ByteArrayInputStream(largeContent), largeContent.length);
+        assertArrayEquals(largeContent, readAll(backend.read("testDs/42/314/f1.zip")));
+
+        //ranged reads
+        assertArrayEquals(Arrays.copyOfRange(largeContent, 1000, 1100), readAll(backend.readRange("testDs/42/314/f2.zip", 1000, 100)));
+        assertArrayEquals(Arrays.copyOfRange(largeContent, largeObjectSize - 10, largeObjectSize),
+                readAll(backend.readRange("testDs/42/314/f2.zip", largeObjectSize - 10, 100)));
+
+        //listings
+        List<String> names = backend.list("testDs/42/");
+        Collections.sort(names);
+        assertEquals(Arrays.asList("314", "315"), names);
+        names = backend.list("testDs/42/314");
+        Collections.sort(names);
+        assertEquals(Arrays.asList("f1.zip", "f2.zip"), names);
+
+        //deletes
+        assertEquals(2, backend.delete(Arrays.asList("testDs/42/314/f1.zip", "testDs/42/315/f3.zip")));
+        assertFalse(backend.exists("testDs/42/314/f1.zip"));
+        assertEquals(Collections.singletonList("f2.zip"), backend.list("testDs/42/314"));
+        assertNotNull(backend.toString());
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        try(InputStream in = is) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                baos.write(buffer, 0, n);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Minimal in-memory stand-in for an S3-compatible object store, supports only the operations used by S3DatastoreBackend.
+     * Signatures are not verified, only their presence.
+     */
+    private void handleS3Request(HttpExchange exchange) throws IOException {
+        try {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if(authorization == null || !authorization.startsWith("AWS4-HMAC-SHA256 Credential=testAccessKey/")) {
+                respond(exchange, 403, null);
+                return;
+            }
+
+            if(s3FailuresToInject.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) {
+                readAll(exchange.getRequestBody());
+                respond(exchange, s3InjectedFailureCode, s3InjectedFailureCode == 503 && !"HEAD".equals(exchange.getRequestMethod())
+                        ? "<Error><Code>SlowDown</Code><Message>Please reduce your request rate.</Message></Error>".getBytes(StandardCharsets.UTF_8)
+                        : null);
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            byte[] body = readAll(exchange.getRequestBody());
+
+            String bucketPrefix = "/" + bucket;
+            if(!path.startsWith(bucketPrefix)) {
+                respond(exchange, 404, null);
+                return;
+            }
+            String key = path.length() > bucketPrefix.length() + 1 ? path.substring(bucketPrefix.length() + 1) : null;
+
+            if(key == null) {
+                if("GET".equals(method)) {
+                    respond(exchange, 200, listObjects(query.get("prefix")));
+                } else if("POST".equals(method) && query.containsKey("delete")) {
+                    s3DeleteRequests.incrementAndGet();
+                    Matcher m = Pattern.compile("<Key>(.*?)</Key>").matcher(new String(body, StandardCharsets.UTF_8));
+                    while(m.find()) {
+                        s3Objects.remove(m.group(1));
+                    }
+                    respond(exchange, 200, "<DeleteResult></DeleteResult>".getBytes(StandardCharsets.UTF_8));
+                } else {
+                    respond(exchange, 400, null);
+                }
+                return;
+            }
+
+            switch(method) {
+            case "GET":
+                byte[] content = s3Objects.get(key);
+                if(content == null) {
+                    respond(exchange, 404, null);
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if(range != null) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int from = Integer.parseInt(bounds[0]);
+                    int to = Math.min(Integer.parseInt(bounds[1]), content.length - 1);
+                    respond(exchange, 206, Arrays.copyOfRange(content, from, to + 1));
+                } else {
+                    respond(exchange, 200, content);
+                }
+                return;
+            case "HEAD":
+                if(s3Objects.containsKey(key)) {
+                    exchange.getResponseHeaders().add("Content-Length", Integer.toString(s3Objects.get(key).length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                return;
+            case "PUT":
+                if(query.containsKey("uploadId")) {
+                    s3Uploads.get(query.get("uploadId")).put(Integer.parseInt(query.get("partNumber")), body);
+                    exchange.getResponseHeaders().add("ETag", "\"etag-" + query.get("partNumber") + "\"");
+                } else {
+                    s3Objects.put(key, body);
+                }
+                respond(exchange, 200, null);
+                return;
+            case "POST":
+                if(query.containsKey("uploads")) {
+                    String uploadId = "upload-" + s3UploadIdGenerator.incrementAndGet();
+                    s3Uploads.put(uploadId, new TreeMap<>());
+                    respond(exchange, 200, ("<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>")
+                            .getBytes(StandardCharsets.UTF_8));
+                } else {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    for(byte[] part: s3Uploads.remove(query.get("uploadId")).values()) {
+                        baos.write(part);
+                    }
+                    s3Objects.put(key, baos.toByteArray());
+                    respond(exchange, 200, "<CompleteMultipartUploadResult></CompleteMultipartUploadResult>".getBytes(StandardCharsets.UTF_8));
+                }
+                return;
+            case "DELETE":
+                s3Uploads.remove(query.get("uploadId"));
+                respond(exchange, 204, null);
+                return;
+            default:
+                respond(exchange, 400, null);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] listObjects(String prefix) {
+        StringBuilder sb = new StringBuilder("<ListBucketResult><IsTruncated>false</IsTruncated>");
+        List<String> commonPrefixes = new ArrayList<>();
+        for(String key: new TreeMap<>(s3Objects).keySet()) {
+            if(!key.startsWith(prefix)) {
+                continue;
+            }
+            int idx = key.indexOf('/', prefix.length());
+            if(idx >= 0) {
+                String commonPrefix = key.substring(0, idx + 1);
+                if(!commonPrefixes.contains(commonPrefix)) {
+                    commonPrefixes.add(commonPrefix);
+                }
+            } else {
+                sb.append("<Contents><Key>").append(key).append("</Key></Contents>");
+            }
+        }
+        for(String commonPrefix: commonPrefixes) {
+            sb.append("<CommonPrefixes><Prefix>").append(commonPrefix).append("</Prefix></CommonPrefixes>");
+        }
+        sb.append("</ListBucketResult>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> ret = new HashMap<>();
+        if(rawQuery == null) {
+            return ret;
+        }
+        for(String param: rawQuery.split("&")) {
+            int idx = param.indexOf('=');
+            String name = idx >= 0 ? param.substring(0, idx) : param;
+            String value = idx >= 0 ? param.substring(idx + 1) : "";
+            ret.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return ret;
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        if(body == null || body.length == 0) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        try(OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
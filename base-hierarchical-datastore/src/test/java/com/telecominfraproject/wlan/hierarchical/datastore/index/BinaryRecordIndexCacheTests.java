@@ -0,0 +1,83 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class BinaryRecordIndexCacheTests {
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        BinaryRecordIndexCache cache = new BinaryRecordIndexCache(2, 1024 * 1024);
+        BinaryRecordIndex idx1 = createIndex("v1");
+        BinaryRecordIndex idx2 = createIndex("v2");
+        BinaryRecordIndex idx3 = createIndex("v3");
+
+        cache.put("idx1", idx1);
+        cache.put("idx2", idx2);
+        //touch idx1, so idx2 becomes the least recently used
+        assertSame(idx1, cache.get("idx1"));
+        cache.put("idx3", idx3);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(idx1, cache.get("idx1"));
+        assertNull(cache.get("idx2"));
+        assertSame(idx3, cache.get("idx3"));
+        assertEquals(idx1.getSizeInBytes() + idx3.getSizeInBytes(), cache.getTotalBytes());
+
+        cache.invalidate("idx1");
+        assertNull(cache.get("idx1"));
+        assertEquals(idx3.getSizeInBytes(), cache.getTotalBytes());
+    }
+
+    @Test
+    public void testBoundedBySize() throws IOException {
+        BinaryRecordIndex idx1 = createIndex("v1");
+        BinaryRecordIndexCache cache = new BinaryRecordIndexCache(100, idx1.getSizeInBytes() * 2);
+
+        cache.put("idx1", idx1);
+        cache.put("idx2", createIndex("v2"));
+        cache.put("idx3", createIndex("v3"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("idx1"));
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        BinaryRecordIndexCache cache = new BinaryRecordIndexCache(0, 1024 * 1024);
+        cache.put("idx1", createIndex("v1"));
+        assertEquals(0, cache.size());
+        assertNull(cache.get("idx1"));
+    }
+
+    @Test
+    public void testSmallIndexFileIsReadIntoHeap() throws IOException {
+        File idxFile = File.createTempFile("idx_client_", BinaryRecordIndex.FILE_EXTENSION);
+        idxFile.deleteOnExit();
+        RecordIndexCounts counts = new RecordIndexCounts();
+        counts.incrementCountForValue("c1");
+        Files.write(idxFile.toPath(), BinaryRecordIndex.toBytes(counts, new RecordIndexPositions()));
+
+        BinaryRecordIndex binaryIndex = BinaryRecordIndex.load(idxFile);
+        assertFalse(binaryIndex.isMapped());
+        assertEquals(1, binaryIndex.getCountForValue("c1"));
+        assertEquals(idxFile.length(), binaryIndex.getSizeInBytes());
+    }
+
+    private static BinaryRecordIndex createIndex(String value) throws IOException {
+        RecordIndexCounts counts = new RecordIndexCounts();
+        RecordIndexPositions positions = new RecordIndexPositions();
+        counts.incrementCountForValue(value);
+        positions.addPositionForValue(value, 0);
+        return BinaryRecordIndex.wrap(BinaryRecordIndex.toBytes(counts, positions));
+    }
+}
@@ -0,0 +1,85 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BinaryRecordIndexTests {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        RecordIndexCounts counts = new RecordIndexCounts();
+        counts.setName("recordType");
+        RecordIndexPositions positions = new RecordIndexPositions();
+        positions.setName("recordType");
+
+        String[] values = {"t1", "t2", "", "client-\u00e9", "t10"};
+        Map<String, List<Integer>> expectedPositions = new HashMap<>();
+        Random rnd = new Random(42);
+
+        for(int lineNum = 0; lineNum < 3000; lineNum++) {
+            String value = values[rnd.nextInt(values.length)];
+            counts.incrementCountForValue(value);
+            positions.addPositionForValue(value, lineNum);
+            expectedPositions.computeIfAbsent(value, k -> new ArrayList<>()).add(lineNum);
+        }
+
+        BinaryRecordIndex binaryIndex = BinaryRecordIndex.wrap(BinaryRecordIndex.toBytes(counts, positions));
+
+        assertEquals(3000, binaryIndex.getTotalCount());
+        assertEquals(values.length, binaryIndex.getNumberOfValues());
+
+        for(String value: values) {
+            List<Integer> found = new ArrayList<>();
+            binaryIndex.collectPositionsForValue(value, found);
+            assertEquals(expectedPositions.get(value), found);
+            assertEquals(expectedPositions.get(value).size(), binaryIndex.getCountForValue(value));
+        }
+
+        assertEquals(0, binaryIndex.getCountForValue("non-existing-type"));
+        assertEquals(0, binaryIndex.collectPositionsForValue("non-existing-type", new ArrayList<>()));
+
+        RecordIndex recordIndex = binaryIndex.toRecordIndex("recordType");
+        assertEquals(counts.getPerValueCounts(), recordIndex.getCounts().getPerValueCounts());
+        assertEquals(positions.getPerValuePositions(), recordIndex.getPositions().getPerValuePositions());
+    }
+
+    @Test
+    public void testLoadFromFile() throws IOException {
+        RecordIndexCounts counts = new RecordIndexCounts();
+        RecordIndexPositions positions = new RecordIndexPositions();
+        counts.incrementCountForValue("c1");
+        positions.addPositionForValue("c1", 0);
+        counts.incrementCountForValue("c2");
+        positions.addPositionForValue("c2", 1);
+        counts.incrementCountForValue("c1");
+        positions.addPositionForValue("c1", 4900);
+
+        File idxFile = File.createTempFile("idx_client_", BinaryRecordIndex.FILE_EXTENSION);
+        idxFile.deleteOnExit();
+        Files.write(idxFile.toPath(), BinaryRecordIndex.toBytes(counts, positions));
+
+        BinaryRecordIndex binaryIndex = BinaryRecordIndex.load(idxFile);
+        List<Integer> found = new ArrayList<>();
+        binaryIndex.collectPositionsForValue("c1", found);
+
+        assertEquals(3, binaryIndex.getTotalCount());
+        assertEquals(2, found.size());
+        assertEquals(0, (int) found.get(0));
+        assertEquals(4900, (int) found.get(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnIndex() throws IOException {
+        BinaryRecordIndex.wrap(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24});
+    }
+}
@@ -0,0 +1,106 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class HourlySummaryTests {
+
+    private static final String[] fieldNames = {"rxBytes", "txBytes"};
+    private static final String f1 = "dev1/13/834/2016/12/03/04/ree_13_834_2016_12_03_04_00_1480737600000.zip";
+    private static final String f2 = "dev1/13/834/2016/12/03/04/ree_13_834_2016_12_03_04_05_1480737900000.zip";
+
+    @Test
+    public void testRoundTripAndAggregate() throws IOException {
+        HourlySummary summary = new HourlySummary("eventType", fieldNames);
+
+        HourlySummary.DataFileSummary dfs1 = new HourlySummary.DataFileSummary(fieldNames);
+        dfs1.add(Collections.singleton("t1"), 1000, new double[] {10, 1});
+        dfs1.add(Collections.singleton("t2"), 2000, new double[] {20, Double.NaN});
+        dfs1.add(new HashSet<>(Arrays.asList("t1", "t2")), 1500, new double[] {5, 3});
+        summary.putDataFileSummary(f1, dfs1);
+
+        HourlySummary.DataFileSummary dfs2 = new HourlySummary.DataFileSummary(fieldNames);
+        dfs2.add(Collections.singleton("t1"), -1, new double[] {Double.NaN, Double.NaN});
+        dfs2.add(Collections.singleton("t\u00e9"), 3000, new double[] {1, 2});
+        summary.putDataFileSummary(f2, dfs2);
+
+        HourlySummary loaded = HourlySummary.fromBytes(summary.toBytes());
+        assertEquals("eventType", loaded.getIndexName());
+        assertArrayEquals(fieldNames, loaded.getFieldNames());
+        assertEquals(new HashSet<>(Arrays.asList(f1, f2)), loaded.getDataFileNames());
+
+        //totals of all data files
+        SummaryStats stats = new SummaryStats(fieldNames);
+        loaded.aggregate(Arrays.asList(f1, f2), null, stats);
+        assertEquals(5, stats.getCount());
+        assertEquals(1000, stats.getMinTimestamp());
+        assertEquals(3000, stats.getMaxTimestamp());
+        assertEquals(4, stats.getFieldCount("rxBytes"));
+        assertEquals(36, stats.getSum("rxBytes"), 0.0001);
+        assertEquals(1, stats.getMin("rxBytes"), 0.0001);
+        assertEquals(20, stats.getMax("rxBytes"), 0.0001);
+        assertEquals(9, stats.getAverage("rxBytes"), 0.0001);
+        assertEquals(3, stats.getFieldCount("txBytes"));
+        assertEquals(6, stats.getSum("txBytes"), 0.0001);
+
+        //selected values of a single data file
+        stats = new SummaryStats(fieldNames);
+        loaded.aggregate(Collections.singleton(f1), Collections.singleton("t1"), stats);
+        assertEquals(2, stats.getCount());
+        assertEquals(15, stats.getSum("rxBytes"), 0.0001);
+        assertEquals(1500, stats.getMaxTimestamp());
+
+        //record with several requested values is counted for each of them
+        stats = new SummaryStats(fieldNames);
+        loaded.aggregate(Arrays.asList(f1, f2), new HashSet<>(Arrays.asList("t1", "t2", "t\u00e9")), stats);
+        assertEquals(6, stats.getCount());
+
+        //unknown values, files and fields
+        stats = new SummaryStats(fieldNames);
+        loaded.aggregate(Arrays.asList(f1, "no-such-file"), Collections.singleton("t3"), stats);
+        assertEquals(0, stats.getCount());
+        assertEquals(-1, stats.getMinTimestamp());
+        assertTrue(Double.isNaN(stats.getMin("rxBytes")));
+        assertTrue(Double.isNaN(stats.getAverage("no-such-field")));
+
+        //data files that no longer exist are removed
+        assertTrue(loaded.retainDataFiles(Collections.singleton(f2)));
+        assertFalse(loaded.retainDataFiles(Collections.singleton(f2)));
+        loaded = HourlySummary.fromBytes(loaded.toBytes());
+        stats = new SummaryStats(fieldNames);
+        loaded.aggregate(Arrays.asList(f1, f2), null, stats);
+        assertEquals(2, stats.getCount());
+        assertEquals(3000, stats.getMinTimestamp());
+    }
+
+    @Test
+    public void testEmptySummary() throws IOException {
+        HourlySummary loaded = HourlySummary.fromBytes(new HourlySummary("clientMac", new String[0]).toBytes());
+        assertEquals("clientMac", loaded.getIndexName());
+        assertEquals(0, loaded.getFieldNames().length);
+        assertTrue(loaded.getDataFileNames().isEmpty());
+
+        try {
+            HourlySummary.fromBytes(new byte[] {1, 2, 3});
+            fail("not an hourly summary");
+        } catch (IOException e) {
+            //expected it
+        }
+    }
+
+    @Test
+    public void testSummaryFileName() {
+        assertEquals("dev1/13/834/2016/12/03/04/hrSum_eventType_ree_13_834_2016_12_03_04.hsum",
+                HourlySummary.getSummaryFileName("dev1/13/834/2016/12/03/04/hrIdx_eventType_ree_13_834_2016_12_03_04.zip"));
+    }
+}
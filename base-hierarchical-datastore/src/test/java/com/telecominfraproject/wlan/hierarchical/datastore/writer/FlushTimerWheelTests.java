@@ -0,0 +1,80 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FlushTimerWheelTests {
+
+    @Test
+    public void testExpiredKeysAreReportedOnce() {
+        FlushTimerWheel<String> wheel = new FlushTimerWheel<>(10, 8, 1000);
+        List<String> expired = new ArrayList<>();
+
+        wheel.schedule("k1", 1025);
+        wheel.schedule("k2", 1055);
+        assertEquals(2, wheel.size());
+
+        wheel.advance(1020, expired::add);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(1030, expired::add);
+        assertEquals(1, expired.size());
+        assertEquals("k1", expired.get(0));
+
+        wheel.advance(1060, expired::add);
+        assertEquals(2, expired.size());
+        assertEquals("k2", expired.get(1));
+        assertEquals(0, wheel.size());
+
+        //nothing is left in the wheel
+        wheel.advance(2000, expired::add);
+        assertEquals(2, expired.size());
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneTurnOfTheWheel() {
+        //one turn of the wheel is 80 ms
+        FlushTimerWheel<String> wheel = new FlushTimerWheel<>(10, 8, 1000);
+        List<String> expired = new ArrayList<>();
+
+        wheel.schedule("far", 1250);
+
+        //the slot of this key is visited several times before its deadline
+        for(long now = 1010; now < 1250; now += 10) {
+            wheel.advance(now, expired::add);
+        }
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(1250, expired::add);
+        assertEquals(1, expired.size());
+    }
+
+    @Test
+    public void testLargeJumpAndReschedule() {
+        FlushTimerWheel<String> wheel = new FlushTimerWheel<>(10, 8, 1000);
+        List<String> expired = new ArrayList<>();
+
+        wheel.schedule("a", 1015);
+        wheel.schedule("b", 1045);
+
+        //jump more than one turn of the wheel at once, every key has to be reported
+        wheel.advance(5000, key -> {
+            expired.add(key);
+            if(key.equals("a")) {
+                wheel.schedule(key, 5100);
+            }
+        });
+
+        assertEquals(2, expired.size());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(5100, expired::add);
+        assertEquals(3, expired.size());
+        assertEquals("a", expired.get(2));
+    }
+}
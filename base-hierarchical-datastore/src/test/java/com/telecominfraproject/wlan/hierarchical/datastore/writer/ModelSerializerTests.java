@@ -0,0 +1,83 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+
+public class ModelSerializerTests {
+
+    @Test
+    public void testSerializedModelMatchesToString() throws Exception {
+        ModelSerializer serializer = new ModelSerializer();
+
+        SerializerTestModel model1 = new SerializerTestModel("first", 1);
+        serializer.serialize(model1);
+        assertEquals(model1.toString(), getSerializedString(serializer));
+
+        //generator and buffer are reused, the next model replaces the previous one and is not prefixed with a separator
+        byte[] buffer = serializer.getBuffer();
+        SerializerTestModel model2 = new SerializerTestModel("second \u00e9", 2);
+        serializer.serialize(model2);
+        assertEquals(model2.toString(), getSerializedString(serializer));
+        assertSame(buffer, serializer.getBuffer());
+    }
+
+    @Test
+    public void testLargeModelBufferIsNotRetained() throws Exception {
+        ModelSerializer serializer = new ModelSerializer();
+
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 300 * 1024; i++) {
+            sb.append('x');
+        }
+
+        SerializerTestModel largeModel = new SerializerTestModel(sb.toString(), 3);
+        serializer.serialize(largeModel);
+        assertEquals(largeModel.toString(), getSerializedString(serializer));
+
+        SerializerTestModel model = new SerializerTestModel("small", 4);
+        serializer.serialize(model);
+        assertEquals(model.toString(), getSerializedString(serializer));
+        assertEquals(4 * 1024, serializer.getBuffer().length);
+    }
+
+    private static String getSerializedString(ModelSerializer serializer) {
+        return new String(serializer.getBuffer(), 0, serializer.getLength(), StandardCharsets.UTF_8);
+    }
+
+    public static class SerializerTestModel extends BaseJsonModel {
+        private static final long serialVersionUID = 4553478126046893162L;
+
+        private String name;
+        private int value;
+
+        public SerializerTestModel() {
+        }
+
+        public SerializerTestModel(String name, int value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public void setValue(int value) {
+            this.value = value;
+        }
+    }
+}
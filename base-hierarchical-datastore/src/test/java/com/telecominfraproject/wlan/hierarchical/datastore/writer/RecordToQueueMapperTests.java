@@ -0,0 +1,17 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RecordToQueueMapperTests {
+
+    @Test
+    public void testShardIndexIsStable() {
+        int shard = RecordToQueueMapper.getShardIndex(42, 314L, 8);
+        assertTrue(shard >= 0 && shard < 8);
+        assertEquals(shard, RecordToQueueMapper.getShardIndex(42, 314L, 8));
+        assertTrue(RecordToQueueMapper.getShardIndex(-5, -77L, 3) >= 0);
+    }
+}
@@ -0,0 +1,187 @@
+package com.telecominfraproject.wlan.hierarchical.datastore.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteAheadLogTests {
+
+    private File walDir;
+
+    @Before
+    public void setUp() throws IOException {
+        walDir = Files.createTempDirectory("walTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(walDir);
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 100, 1000);
+        assertEquals(0, wal.recover(new CollectingConsumer()));
+
+        long segmentId = wal.append(bytes("r1"));
+        wal.retain(segmentId);
+        wal.append(bytes("r2"));
+        assertFalse(wal.isSyncDue(System.currentTimeMillis()));
+        wal.sync();
+
+        //log is not closed - as if the JVM died
+        File segmentFile = walDir.listFiles()[0];
+
+        //simulate a torn write at the end of the segment
+        try(RandomAccessFile raf = new RandomAccessFile(segmentFile, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(100);
+            raf.writeInt(12345);
+            raf.write(new byte[10]);
+        }
+
+        final WriteAheadLog recoveredWal = new WriteAheadLog(walDir, 1024 * 1024, 100, 1000);
+        //replayed records are written into a stream, which retains their segment
+        CollectingConsumer consumer = new CollectingConsumer() {
+            @Override
+            public void accept(long segmentId, byte[] record) {
+                super.accept(segmentId, record);
+                if(records.size() == 1) {
+                    recoveredWal.retain(segmentId);
+                }
+            }
+        };
+        assertEquals(2, recoveredWal.recover(consumer));
+        assertEquals("r1", consumer.records.get(0));
+        assertEquals("r2", consumer.records.get(1));
+        assertEquals(segmentId, consumer.segmentIds.get(0).longValue());
+
+        //replayed segment is kept while the replayed stream is open, new records go into a new segment
+        assertEquals(2, recoveredWal.getNumberOfSegments());
+        assertTrue(recoveredWal.getCurrentSegmentId() > segmentId);
+
+        //once the replayed stream is uploaded, its segment is deleted
+        recoveredWal.release(segmentId);
+        assertEquals(1, recoveredWal.getNumberOfSegments());
+
+        recoveredWal.close();
+        assertEquals(0, walDir.listFiles().length);
+    }
+
+    @Test
+    public void testSegmentsAreDeletedWhenReleased() throws IOException {
+        //small segments, so that every few records start a new segment
+        WriteAheadLog wal = new WriteAheadLog(walDir, 40, 3, 1000);
+        wal.recover(new CollectingConsumer());
+
+        List<Long> retainedSegments = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            long segmentId = wal.append(bytes("record_" + i));
+            if(!retainedSegments.contains(segmentId)) {
+                wal.retain(segmentId);
+                retainedSegments.add(segmentId);
+            }
+            if(wal.isSyncDue(System.currentTimeMillis())) {
+                wal.sync();
+            }
+        }
+
+        assertTrue(retainedSegments.size() > 2);
+        assertEquals(retainedSegments.size(), wal.getNumberOfSegments());
+
+        //the oldest segment is not needed once all the streams that have records in it are uploaded
+        wal.release(retainedSegments.get(0));
+        assertEquals(retainedSegments.size() - 1, wal.getNumberOfSegments());
+
+        //current segment is kept even when it is released, and deleted when the log is closed
+        long currentSegmentId = wal.getCurrentSegmentId();
+        wal.release(currentSegmentId);
+        assertTrue(new File(walDir, String.format("wal_%020d.log", currentSegmentId)).exists());
+
+        //remaining segments are replayed after restart
+        wal.close();
+        WriteAheadLog recoveredWal = new WriteAheadLog(walDir, 40, 3, 1000);
+        CollectingConsumer consumer = new CollectingConsumer();
+        recoveredWal.recover(consumer);
+        assertFalse(consumer.records.contains("record_0"));
+        assertFalse(consumer.records.contains("record_9"));
+        assertTrue(consumer.records.contains("record_2"));
+
+        //nothing retained the replayed segments, so they are gone
+        assertEquals(1, recoveredWal.getNumberOfSegments());
+        recoveredWal.close();
+    }
+
+    @Test
+    public void testRedistributeOrphanedLog() throws IOException {
+        File sourceDir = new File(walDir, "shard_2");
+        File[] targetDirs = { new File(walDir, "shard_0"), new File(walDir, "shard_1") };
+
+        //target log has a record of its own, which should stay where it is
+        WriteAheadLog targetWal = new WriteAheadLog(targetDirs[0], 1024 * 1024, 100, 1000);
+        targetWal.recover(new CollectingConsumer());
+        targetWal.retain(targetWal.append(bytes("0_own")));
+        targetWal.close();
+
+        //small segments, so that the source log has several of them
+        WriteAheadLog sourceWal = new WriteAheadLog(sourceDir, 40, 100, 1000);
+        sourceWal.recover(new CollectingConsumer());
+        for(int i = 0; i < 6; i++) {
+            sourceWal.retain(sourceWal.append(bytes((i % 2) + "_moved_" + i)));
+        }
+        sourceWal.retain(sourceWal.append(bytes("x_dropped")));
+        sourceWal.sync();
+        //log is not closed - as if the JVM died
+
+        long numMoved = WriteAheadLog.redistribute(sourceDir, targetDirs, record -> record[0] == 'x' ? -1 : record[0] - '0', 1024 * 1024);
+        assertEquals(6, numMoved);
+        assertFalse(sourceDir.exists());
+
+        //records are in the logs that own them, in their original order
+        CollectingConsumer consumer0 = new CollectingConsumer();
+        new WriteAheadLog(targetDirs[0], 1024 * 1024, 100, 1000).recover(consumer0);
+        assertEquals(Arrays.asList("0_own", "0_moved_0", "0_moved_2", "0_moved_4"), consumer0.records);
+
+        CollectingConsumer consumer1 = new CollectingConsumer();
+        new WriteAheadLog(targetDirs[1], 1024 * 1024, 100, 1000).recover(consumer1);
+        assertEquals(Arrays.asList("1_moved_1", "1_moved_3", "1_moved_5"), consumer1.records);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child: children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class CollectingConsumer implements WriteAheadLog.RecordConsumer {
+        final List<String> records = new ArrayList<>();
+        final List<Long> segmentIds = new ArrayList<>();
+
+        @Override
+        public void accept(long segmentId, byte[] record) {
+            records.add(new String(record, StandardCharsets.UTF_8));
+            segmentIds.add(segmentId);
+        }
+    }
+}
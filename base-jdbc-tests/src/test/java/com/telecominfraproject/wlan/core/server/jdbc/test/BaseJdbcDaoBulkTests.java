@@ -0,0 +1,125 @@
+package com.telecominfraproject.wlan.core.server.jdbc.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+
+import com.telecominfraproject.wlan.core.server.jdbc.BaseJdbcDao;
+
+/**
+ * Bulk helpers of {@link BaseJdbcDao} against the embedded HSQL database, where they fall back from the PostgreSQL-only statements.
+ */
+@Import(value = { BaseJdbcDaoBulkTests.BulkTestDAO.class })
+@TestWithEmbeddedDB
+public class BaseJdbcDaoBulkTests extends BaseJdbcTest {
+
+    private static final List<String> COLUMNS = Arrays.asList("name", "payload", "lastModifiedTimestamp");
+
+    @Autowired
+    private BulkTestDAO bulkTestDAO;
+
+    public static class BulkTestDAO extends BaseJdbcDao {
+
+        public int insert(List<Object[]> rows) {
+            return bulkInsert("bulk_test", COLUMNS, rows);
+        }
+
+        public List<Object> insertReturningIds(List<Object[]> rows) {
+            return bulkInsertReturning("bulk_test", COLUMNS, rows, "id");
+        }
+
+        public int upsert(List<Object[]> rows) {
+            return bulkUpsert("bulk_test", COLUMNS, Collections.singletonList("name"), rows);
+        }
+
+        public Set<Object> update(List<Object[]> rows) {
+            return bulkUpdate("bulk_test", "id", "lastModifiedTimestamp", Collections.singletonList("name"), rows);
+        }
+
+        public Map<String, Object> getRow(Object id) {
+            return jdbcTemplate.queryForMap("select name, payload, lastModifiedTimestamp from bulk_test where id = ?", id);
+        }
+
+        public Long getId(String name) {
+            return jdbcTemplate.queryForObject("select id from bulk_test where name = ?", Long.class, name);
+        }
+
+        public int count() {
+            return jdbcTemplate.queryForObject("select count(*) from bulk_test", Integer.class);
+        }
+    }
+
+    @Test
+    public void testBulkInsert() {
+        List<Object> ids = bulkTestDAO.insertReturningIds(Arrays.asList(row("r1", 1), row("r2", 1), row("r3", 1)));
+        assertEquals(3, ids.size());
+        assertEquals(3, new HashSet<>(ids).size());
+        assertEquals("r2", bulkTestDAO.getRow(ids.get(1)).get("name"));
+
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            rows.add(row("i" + i, 1));
+        }
+        rows.add(new Object[] { "nullPayload", null, 1L });
+        assertEquals(6, bulkTestDAO.insert(rows));
+        assertEquals(9, bulkTestDAO.count());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) bulkTestDAO.getRow(bulkTestDAO.getId("i3")).get("payload"));
+        assertNull(bulkTestDAO.getRow(bulkTestDAO.getId("nullPayload")).get("payload"));
+    }
+
+    @Test
+    public void testBulkUpsert() {
+        bulkTestDAO.insert(Arrays.asList(row("u1", 1), row("u2", 1)));
+        Long u1Id = bulkTestDAO.getId("u1");
+
+        assertEquals(3, bulkTestDAO.upsert(Arrays.asList(row("u1", 2), row("u2", 2), row("u3", 2))));
+
+        assertEquals(3, bulkTestDAO.count());
+        // existing row is updated in place
+        assertEquals(u1Id, bulkTestDAO.getId("u1"));
+        for (String name : Arrays.asList("u1", "u2", "u3")) {
+            assertEquals(2L, ((Number) bulkTestDAO.getRow(bulkTestDAO.getId(name)).get("lastModifiedTimestamp")).longValue());
+        }
+    }
+
+    @Test
+    public void testBulkUpdateChecksLastModifiedTimestamp() {
+        bulkTestDAO.insert(Arrays.asList(row("n1", 10), row("n2", 10)));
+        Long n1Id = bulkTestDAO.getId("n1");
+        Long n2Id = bulkTestDAO.getId("n2");
+
+        Set<Object> updatedIds = bulkTestDAO.update(Arrays.asList(
+                new Object[] { n1Id, 10L, 11L, "n1-updated" },
+                // modified concurrently
+                new Object[] { n2Id, 9L, 11L, "n2-updated" },
+                // deleted
+                new Object[] { -1L, 10L, 11L, "deleted-updated" }));
+
+        assertEquals(1, updatedIds.size());
+        assertEquals(n1Id.longValue(), ((Number) updatedIds.iterator().next()).longValue());
+
+        Map<String, Object> n1 = bulkTestDAO.getRow(n1Id);
+        assertEquals("n1-updated", n1.get("name"));
+        assertEquals(11L, ((Number) n1.get("lastModifiedTimestamp")).longValue());
+
+        Map<String, Object> n2 = bulkTestDAO.getRow(n2Id);
+        assertEquals("n2", n2.get("name"));
+        assertEquals(10L, ((Number) n2.get("lastModifiedTimestamp")).longValue());
+    }
+
+    private static Object[] row(String name, long lastModifiedTimestamp) {
+        return new Object[] { name, new byte[] { 1, 2, 3 }, lastModifiedTimestamp };
+    }
+}
@@ -0,0 +1,10 @@
+drop table bulk_test if exists;
+
+create table bulk_test (
+    id BIGINT GENERATED BY DEFAULT AS IDENTITY (START WITH 1, INCREMENT BY 1) PRIMARY KEY,
+    name varchar(50) not null,
+    payload varbinary(100),
+    lastModifiedTimestamp bigint not null,
+
+    constraint bulk_test_name_unique unique (name)
+);
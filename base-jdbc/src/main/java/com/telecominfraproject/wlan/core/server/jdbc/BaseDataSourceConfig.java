@@ -116,7 +116,13 @@ public abstract class BaseDataSourceConfig {
         }
 
         //Add SSL related properties
-        driverAdapterCPDS.setConnectionProperties(updateSSLProperties(dataSourceProperties));
+        Properties connectionProperties = updateSSLProperties(dataSourceProperties);
+        //let the PostgreSQL driver turn batches of inserts into multi-row inserts, other drivers may reject unknown properties
+        String reWriteBatchedInserts = dataSourceProperties.getProperty("reWriteBatchedInserts");
+        if (reWriteBatchedInserts != null && isPostgreSqlDriver(dataSourceProperties.getProperty("driverClass"))) {
+            connectionProperties.setProperty("reWriteBatchedInserts", reWriteBatchedInserts);
+        }
+        driverAdapterCPDS.setConnectionProperties(connectionProperties);
         driverAdapterCPDS
                 .setMaxPreparedStatements(Integer.valueOf(dataSourceProperties.getProperty("maxPreparedStatements")));
         driverAdapterCPDS.setMaxIdle(Integer.valueOf(dataSourceProperties.getProperty("maxIdlePreparedStatements")));
@@ -187,6 +193,10 @@ public abstract class BaseDataSourceConfig {
         return sslProperties;
     }
 
+    private static boolean isPostgreSqlDriver(String driverClass) {
+        return driverClass != null && driverClass.startsWith("org.postgresql.");
+    }
+
     public abstract String getDataSourceName();
 
     /**
@@ -242,6 +252,8 @@ public abstract class BaseDataSourceConfig {
         p.setProperty("testOnBorrow", environment.getProperty(getDataSourceName() + ".testOnBorrow", "true"));
         p.setProperty("testOnReturn", environment.getProperty(getDataSourceName() + ".testOnReturn", "true"));
         p.setProperty("testWhileIdle", environment.getProperty(getDataSourceName() + ".testWhileIdle", "true"));
+        p.setProperty("reWriteBatchedInserts",
+                environment.getProperty(getDataSourceName() + ".reWriteBatchedInserts", "true"));
         p.setProperty("keyColConversionClass", environment.getProperty(getDataSourceName() + ".keyColConversionClass",
                 "com.telecominfraproject.wlan.core.server.jdbc.KeyColumnLowerCaseConverter"));
 
@@ -1,5 +1,27 @@
 package com.telecominfraproject.wlan.core.server.jdbc;
 
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
@@ -8,20 +30,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 
 import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
 
 /**
  * @author dtop
- *
+ * <br>
+ * Bulk helpers write many rows with few round trips: {@link #bulkInsert(String, List, List)}, {@link #bulkInsertReturning(String, List, List, String)},
+ * {@link #bulkUpsert(String, List, List, List)}, {@link #bulkUpdate(String, String, String, List, List)} and {@link #batchUpdateInChunks(String, List)}.
+ * Rows are written in chunks of at most tip.wlan.jdbc.bulkChunkSize (default 1000) rows per statement,
+ * and inserts of at least tip.wlan.jdbc.bulkCopyThreshold (default 5000) rows into PostgreSQL are streamed with COPY ... FROM STDIN.
+ * RETURNING, ON CONFLICT and UPDATE ... FROM (VALUES ...) are used only with PostgreSQL; with the other databases (i.e. embedded HSQL in the unit tests)
+ * the same helpers fall back to statements executed row by row, in JDBC batches where possible.
+ * Table and column names are put into the SQL as they are, they must come from the DAO code and never from the callers.
  */
 public abstract class BaseJdbcDao {
     /**
      * Wait to up to 5 seconds to catch up with current last mod
      */
     private static final long NEXT_LASTMOD_WAIT_THRESHOLD = 5;
+
+    /**
+     * Older PostgreSQL JDBC drivers allow up to 32767 bind parameters in a single statement
+     */
+    private static final int MAX_BIND_PARAMETERS = 32767;
     
     private static final Logger LOG = LoggerFactory.getLogger(BaseJdbcDao.class);
     
@@ -34,6 +74,22 @@ public abstract class BaseJdbcDao {
 
     private boolean skipCheckForConcurrentUpdates;
 
+    @Value("${tip.wlan.jdbc.bulkChunkSize:1000}")
+    private int bulkChunkSize = 1000;
+
+    @Value("${tip.wlan.jdbc.bulkCopyThreshold:5000}")
+    private int bulkCopyThreshold = 5000;
+
+    /**
+     * null until the first bulk operation checks the database product
+     */
+    private volatile Boolean postgreSql;
+
+    /**
+     * Database type names of the columns, used to cast the parameters of the bulk updates
+     */
+    private final Map<String, List<String>> columnTypeNamesCache = new ConcurrentHashMap<>();
+
     
     @Autowired(required=false)
     public void setDataSource(DataSource dataSource) {
@@ -115,4 +171,513 @@ public abstract class BaseJdbcDao {
         }
         return result;
     }
+
+    /**
+     * Insert the rows with COPY ... FROM STDIN when there are at least bulkCopyThreshold of them and the database is PostgreSQL,
+     * otherwise with multi-row INSERT ... VALUES statements of at most bulkChunkSize rows each.
+     * @param tableName
+     * @param columnNames
+     * @param rows - values of the columns, in the order of columnNames
+     * @return number of inserted rows
+     */
+    protected int bulkInsert(String tableName, List<String> columnNames, List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        if (rows.size() >= bulkCopyThreshold && isCopySupported()) {
+            String sql = "COPY " + tableName + " (" + String.join(", ", columnNames) + ") FROM STDIN WITH (FORMAT csv)";
+            LOG.debug("{} copying {} rows into {}", this.getClass().getSimpleName(), rows.size(), tableName);
+            long ret = ((JdbcOperationsWithMetrics) jdbcTemplate).copyIn(sql, new CsvRowsReader(rows.iterator()));
+            recordBulkRowsWritten(ret);
+            return (int) ret;
+        }
+
+        int ret = 0;
+        for (List<Object[]> chunk : chunks(rows, columnNames.size())) {
+            ret += jdbcTemplate.update(buildMultiRowInsert(tableName, columnNames, chunk.size()), flatten(chunk));
+        }
+        recordBulkRowsWritten(ret);
+        return ret;
+    }
+
+    /**
+     * Insert the rows with multi-row INSERT ... VALUES ... RETURNING statements of at most bulkChunkSize rows each.
+     * With the other databases the rows are inserted one at a time, and returningColumnName must be a generated key column.
+     * @param tableName
+     * @param columnNames
+     * @param rows - values of the columns, in the order of columnNames
+     * @param returningColumnName - usually the generated key column
+     * @return values of the returningColumnName of the inserted rows, in the order of the rows
+     */
+    protected List<Object> bulkInsertReturning(String tableName, List<String> columnNames, List<Object[]> rows,
+            String returningColumnName) {
+        if (!isPostgreSql()) {
+            return insertReturningGeneratedKeys(tableName, columnNames, rows, returningColumnName);
+        }
+
+        List<Object> ret = new ArrayList<>(rows.size());
+        for (List<Object[]> chunk : chunks(rows, columnNames.size())) {
+            String sql = buildMultiRowInsert(tableName, columnNames, chunk.size()) + " RETURNING " + returningColumnName;
+            ret.addAll(jdbcTemplate.queryForList(sql, Object.class, flatten(chunk)));
+        }
+        recordBulkRowsWritten(ret.size());
+        return ret;
+    }
+
+    /**
+     * Insert the rows, or update the existing rows with the same key, with multi-row INSERT ... ON CONFLICT DO UPDATE statements
+     * of at most bulkChunkSize rows each. Rows must have distinct keys: PostgreSQL does not allow a statement to update the same row twice.
+     * <br>
+     * With the other databases the rows are updated with JDBC batches of UPDATE statements, and the rows that were not found are inserted;
+     * this is not atomic, a row inserted concurrently with the same key makes the insert fail.
+     * @param tableName
+     * @param columnNames
+     * @param keyColumnNames - columns of a primary key or a unique index, must be in columnNames
+     * @param rows - values of the columns, in the order of columnNames
+     * @return number of inserted or updated rows
+     */
+    protected int bulkUpsert(String tableName, List<String> columnNames, List<String> keyColumnNames, List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        if (!isPostgreSql()) {
+            return upsertWithBatches(tableName, columnNames, keyColumnNames, rows);
+        }
+
+        StringBuilder onConflict = new StringBuilder(" ON CONFLICT (").append(String.join(", ", keyColumnNames)).append(") DO ");
+        List<String> updatedColumnNames = new ArrayList<>(columnNames);
+        updatedColumnNames.removeAll(keyColumnNames);
+        if (updatedColumnNames.isEmpty()) {
+            onConflict.append("NOTHING");
+        } else {
+            onConflict.append("UPDATE SET ");
+            for (int i = 0; i < updatedColumnNames.size(); i++) {
+                if (i > 0) {
+                    onConflict.append(", ");
+                }
+                onConflict.append(updatedColumnNames.get(i)).append(" = EXCLUDED.").append(updatedColumnNames.get(i));
+            }
+        }
+
+        int ret = 0;
+        for (List<Object[]> chunk : chunks(rows, columnNames.size())) {
+            ret += jdbcTemplate.update(buildMultiRowInsert(tableName, columnNames, chunk.size()) + onConflict, flatten(chunk));
+        }
+        recordBulkRowsWritten(ret);
+        return ret;
+    }
+
+    /**
+     * Update the rows with UPDATE ... FROM (VALUES ...) RETURNING statements of at most bulkChunkSize rows each.
+     * Unless skipCheckForConcurrentUpdates is set, a row is updated only if its last modified timestamp is still the expected one.
+     * <br>
+     * Use {@link #getNewLastModTs(long)} for the new last modified timestamps.
+     * <br>
+     * With the other databases the rows are updated with JDBC batches of UPDATE statements, one statement per row.
+     * @param tableName
+     * @param idColumnName
+     * @param lastModColumnName
+     * @param columnNames - updated columns, without the id and the last modified timestamp
+     * @param rows - id, expected last modified timestamp, new last modified timestamp, then values of the columns in the order of columnNames
+     * @return ids of the updated rows; an id that is not there belongs to a row that was deleted or modified concurrently
+     */
+    protected Set<Object> bulkUpdate(String tableName, String idColumnName, String lastModColumnName, List<String> columnNames,
+            List<Object[]> rows) {
+        if (rows.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        if (!isPostgreSql()) {
+            return updateWithBatches(tableName, idColumnName, lastModColumnName, columnNames, rows);
+        }
+
+        List<String> allColumnNames = new ArrayList<>(columnNames.size() + 2);
+        allColumnNames.add(idColumnName);
+        allColumnNames.add(lastModColumnName);
+        allColumnNames.addAll(columnNames);
+        List<String> columnTypeNames = getColumnTypeNames(tableName, allColumnNames);
+
+        // type names of the values, in the order of the row: id, expected and new last modified timestamps, updated columns
+        List<String> valueTypeNames = new ArrayList<>(columnNames.size() + 3);
+        valueTypeNames.add(columnTypeNames.get(0));
+        valueTypeNames.add(columnTypeNames.get(1));
+        valueTypeNames.addAll(columnTypeNames.subList(1, columnTypeNames.size()));
+
+        Set<Object> ret = new HashSet<>();
+        for (List<Object[]> chunk : chunks(rows, valueTypeNames.size())) {
+            StringBuilder sql = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+            for (int i = 0; i < columnNames.size(); i++) {
+                sql.append(columnNames.get(i)).append(" = v.c").append(i).append(", ");
+            }
+            sql.append(lastModColumnName).append(" = v.new_lastmod FROM (VALUES ");
+
+            for (int r = 0; r < chunk.size(); r++) {
+                sql.append(r > 0 ? ", (" : "(");
+                for (int i = 0; i < valueTypeNames.size(); i++) {
+                    if (i > 0) {
+                        sql.append(", ");
+                    }
+                    // types of the VALUES columns are taken from the first row
+                    sql.append(r == 0 ? "CAST(? AS " + valueTypeNames.get(i) + ")" : "?");
+                }
+                sql.append(')');
+            }
+
+            sql.append(") AS v(id, expected_lastmod, new_lastmod");
+            for (int i = 0; i < columnNames.size(); i++) {
+                sql.append(", c").append(i);
+            }
+            sql.append(") WHERE ").append(tableName).append('.').append(idColumnName).append(" = v.id");
+            if (!skipCheckForConcurrentUpdates) {
+                sql.append(" AND ").append(tableName).append('.').append(lastModColumnName).append(" = v.expected_lastmod");
+            }
+            sql.append(" RETURNING ").append(tableName).append('.').append(idColumnName);
+
+            ret.addAll(jdbcTemplate.queryForList(sql.toString(), Object.class, flatten(chunk)));
+        }
+
+        recordBulkRowsWritten(ret.size());
+        if (ret.size() < rows.size()) {
+            LOG.debug("{} updated {} out of {} rows of {}", this.getClass().getSimpleName(), ret.size(), rows.size(), tableName);
+        }
+        return ret;
+    }
+
+    /**
+     * Execute the statement for every row with JDBC batches of at most bulkChunkSize rows each.
+     * PostgreSQL driver turns batches of inserts into multi-row inserts when reWriteBatchedInserts is on (see {@link BaseDataSourceConfig}).
+     * @param sql
+     * @param rows - parameters of the statement
+     * @return number of rows affected by each statement
+     */
+    protected int[] batchUpdateInChunks(String sql, List<Object[]> rows) {
+        int[] ret = new int[rows.size()];
+        int pos = 0;
+        for (List<Object[]> chunk : chunks(rows, 0)) {
+            int[] chunkResult = jdbcTemplate.batchUpdate(sql, chunk);
+            System.arraycopy(chunkResult, 0, ret, pos, chunkResult.length);
+            pos += chunkResult.length;
+        }
+
+        long affectedRows = 0;
+        for (int count : ret) {
+            affectedRows += Math.max(0, count);
+        }
+        recordBulkRowsWritten(affectedRows);
+        return ret;
+    }
+
+    private List<Object> insertReturningGeneratedKeys(String tableName, List<String> columnNames, List<Object[]> rows,
+            String returningColumnName) {
+        final String sql = buildMultiRowInsert(tableName, columnNames, 1);
+        final String[] keyColumnNames = keyColumnConverter == null ? new String[] { returningColumnName }
+                : keyColumnConverter.getKeyColumnName(new String[] { returningColumnName });
+
+        List<Object> ret = new ArrayList<>(rows.size());
+        for (final Object[] row : rows) {
+            KeyHolder keyHolder = new GeneratedKeyHolder();
+            jdbcTemplate.update(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+                    PreparedStatement ps = connection.prepareStatement(sql, keyColumnNames);
+                    new ArgumentPreparedStatementSetter(row).setValues(ps);
+                    return ps;
+                }
+            }, keyHolder);
+            ret.add(keyHolder.getKeys() == null ? null : keyHolder.getKeys().values().iterator().next());
+        }
+        recordBulkRowsWritten(ret.size());
+        return ret;
+    }
+
+    private int upsertWithBatches(String tableName, List<String> columnNames, List<String> keyColumnNames, List<Object[]> rows) {
+        List<String> updatedColumnNames = new ArrayList<>(columnNames);
+        updatedColumnNames.removeAll(keyColumnNames);
+
+        StringBuilder sql = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+        if (updatedColumnNames.isEmpty()) {
+            // finds the existing rows without changing them
+            sql.append(keyColumnNames.get(0)).append(" = ").append(keyColumnNames.get(0));
+        } else {
+            sql.append(String.join(" = ?, ", updatedColumnNames)).append(" = ?");
+        }
+        sql.append(" WHERE ").append(String.join(" = ? AND ", keyColumnNames)).append(" = ?");
+
+        // positions in the row of the values of the updated columns, then of the key columns
+        List<String> parameterColumnNames = new ArrayList<>(updatedColumnNames);
+        parameterColumnNames.addAll(keyColumnNames);
+        int[] parameterPositions = new int[parameterColumnNames.size()];
+        for (int i = 0; i < parameterPositions.length; i++) {
+            parameterPositions[i] = columnNames.indexOf(parameterColumnNames.get(i));
+        }
+
+        List<Object[]> updateParameters = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            Object[] parameters = new Object[parameterPositions.length];
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = row[parameterPositions[i]];
+            }
+            updateParameters.add(parameters);
+        }
+
+        int[] updateCounts = batchUpdateInChunks(sql.toString(), updateParameters);
+        int ret = 0;
+        List<Object[]> newRows = new ArrayList<>();
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] > 0) {
+                // ON CONFLICT DO NOTHING does not count the existing rows
+                ret += updatedColumnNames.isEmpty() ? 0 : updateCounts[i];
+            } else {
+                newRows.add(rows.get(i));
+            }
+        }
+
+        return ret + bulkInsert(tableName, columnNames, newRows);
+    }
+
+    private Set<Object> updateWithBatches(String tableName, String idColumnName, String lastModColumnName, List<String> columnNames,
+            List<Object[]> rows) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(tableName).append(" SET ");
+        for (String columnName : columnNames) {
+            sql.append(columnName).append(" = ?, ");
+        }
+        sql.append(lastModColumnName).append(" = ? WHERE ").append(idColumnName).append(" = ?");
+        if (!skipCheckForConcurrentUpdates) {
+            sql.append(" AND ").append(lastModColumnName).append(" = ?");
+        }
+
+        // row is id, expected and new last modified timestamps, then values of the columns
+        List<Object[]> updateParameters = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            List<Object> parameters = new ArrayList<>(row.length);
+            parameters.addAll(Arrays.asList(row).subList(3, row.length));
+            parameters.add(row[2]);
+            parameters.add(row[0]);
+            if (!skipCheckForConcurrentUpdates) {
+                parameters.add(row[1]);
+            }
+            updateParameters.add(parameters.toArray());
+        }
+
+        int[] updateCounts = batchUpdateInChunks(sql.toString(), updateParameters);
+        Set<Object> ret = new HashSet<>();
+        for (int i = 0; i < updateCounts.length; i++) {
+            if (updateCounts[i] > 0) {
+                ret.add(rows.get(i)[0]);
+            }
+        }
+
+        if (ret.size() < rows.size()) {
+            LOG.debug("{} updated {} out of {} rows of {}", this.getClass().getSimpleName(), ret.size(), rows.size(), tableName);
+        }
+        return ret;
+    }
+
+    /**
+     * Split the rows into chunks of at most bulkChunkSize rows, and at most MAX_BIND_PARAMETERS parameters
+     * @param rows
+     * @param parametersPerRow - 0 if the parameters are not all in the same statement
+     * @return chunks, views of the original list
+     */
+    private List<List<Object[]>> chunks(List<Object[]> rows, int parametersPerRow) {
+        int chunkSize = Math.max(1, bulkChunkSize);
+        if (parametersPerRow > 0) {
+            chunkSize = Math.max(1, Math.min(chunkSize, MAX_BIND_PARAMETERS / parametersPerRow));
+        }
+
+        List<List<Object[]>> ret = new ArrayList<>((rows.size() + chunkSize - 1) / chunkSize);
+        for (int from = 0; from < rows.size(); from += chunkSize) {
+            ret.add(rows.subList(from, Math.min(rows.size(), from + chunkSize)));
+        }
+        return ret;
+    }
+
+    private static String buildMultiRowInsert(String tableName, List<String> columnNames, int numberOfRows) {
+        StringBuilder rowPlaceholders = new StringBuilder("(");
+        for (int i = 0; i < columnNames.size(); i++) {
+            rowPlaceholders.append(i > 0 ? ", ?" : "?");
+        }
+        rowPlaceholders.append(')');
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (")
+                .append(String.join(", ", columnNames)).append(") VALUES ");
+        for (int r = 0; r < numberOfRows; r++) {
+            if (r > 0) {
+                sql.append(", ");
+            }
+            sql.append(rowPlaceholders);
+        }
+        return sql.toString();
+    }
+
+    private static Object[] flatten(List<Object[]> rows) {
+        List<Object> ret = new ArrayList<>();
+        for (Object[] row : rows) {
+            Collections.addAll(ret, row);
+        }
+        return ret.toArray();
+    }
+
+    private boolean isCopySupported() {
+        return jdbcTemplate instanceof JdbcOperationsWithMetrics && isPostgreSql();
+    }
+
+    private boolean isPostgreSql() {
+        Boolean ret = postgreSql;
+        if (ret == null) {
+            ret = "PostgreSQL".equalsIgnoreCase(jdbcTemplate.execute(new ConnectionCallback<String>() {
+                @Override
+                public String doInConnection(Connection con) throws SQLException {
+                    return con.getMetaData().getDatabaseProductName();
+                }
+            }));
+            postgreSql = ret;
+        }
+        return ret;
+    }
+
+    private List<String> getColumnTypeNames(String tableName, List<String> columnNames) {
+        String columns = String.join(", ", columnNames);
+        return columnTypeNamesCache.computeIfAbsent(tableName + ":" + columns,
+                k -> jdbcTemplate.query("SELECT " + columns + " FROM " + tableName + " WHERE 1 = 0", new ResultSetExtractor<List<String>>() {
+                    @Override
+                    public List<String> extractData(ResultSet rs) throws SQLException {
+                        ResultSetMetaData metaData = rs.getMetaData();
+                        List<String> ret = new ArrayList<>(metaData.getColumnCount());
+                        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                            String typeName = metaData.getColumnTypeName(i);
+                            // PostgreSQL driver reports the auto-increment columns as serial, which cannot be used in a cast
+                            if ("serial".equals(typeName)) {
+                                typeName = "int4";
+                            } else if ("bigserial".equals(typeName)) {
+                                typeName = "int8";
+                            } else if ("smallserial".equals(typeName)) {
+                                typeName = "int2";
+                            }
+                            ret.add(typeName);
+                        }
+                        return ret;
+                    }
+                }));
+    }
+
+    private void recordBulkRowsWritten(long numberOfRows) {
+        if (jdbcTemplate instanceof JdbcOperationsWithMetrics) {
+            ((JdbcOperationsWithMetrics) jdbcTemplate).recordBulkRowsWritten(numberOfRows);
+        }
+    }
+
+    /**
+     * Renders the rows in the CSV format of COPY ... FROM STDIN one at a time, so that the whole batch is never held in memory as text.
+     * <br>
+     * Values are rendered the way PostgreSQL parses them: byte[] in the hex format of bytea, and dates and times in the ISO 8601 format.
+     * Points in time (java.util.Date, Calendar, Instant) get the offset of the default time zone, like the driver uses for bound parameters.
+     */
+    private static class CsvRowsReader extends Reader {
+        private final Iterator<Object[]> rows;
+        private final StringBuilder currentRow = new StringBuilder();
+        private int currentPos;
+
+        CsvRowsReader(Iterator<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            while (currentPos >= currentRow.length()) {
+                if (!rows.hasNext()) {
+                    return -1;
+                }
+                currentRow.setLength(0);
+                currentPos = 0;
+                appendRow(rows.next());
+            }
+
+            int count = Math.min(len, currentRow.length() - currentPos);
+            currentRow.getChars(currentPos, currentPos + count, cbuf, off);
+            currentPos += count;
+            return count;
+        }
+
+        private void appendRow(Object[] row) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    currentRow.append(',');
+                }
+                Object value = row[i];
+                if (value == null) {
+                    // unquoted empty value is NULL in the CSV format
+                    continue;
+                }
+                if (value instanceof Number || value instanceof Boolean) {
+                    currentRow.append(value);
+                    continue;
+                }
+
+                String str;
+                if (value instanceof byte[]) {
+                    // hex format of bytea
+                    StringBuilder hex = new StringBuilder("\\x");
+                    for (byte b : (byte[]) value) {
+                        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                    }
+                    str = hex.toString();
+                } else {
+                    str = formatTemporal(value);
+                    if (str == null) {
+                        str = value.toString();
+                    }
+                }
+                currentRow.append('"').append(str.replace("\"", "\"\"")).append('"');
+            }
+            currentRow.append('\n');
+        }
+
+        /**
+         * @param value
+         * @return value in the ISO 8601 format, or null if it is not a date or a time
+         */
+        private static String formatTemporal(Object value) {
+            // java.sql types keep their local date and time, like the driver does for setDate, setTime and setTimestamp
+            if (value instanceof java.sql.Date) {
+                return ((java.sql.Date) value).toLocalDate().toString();
+            }
+            if (value instanceof java.sql.Time) {
+                return ((java.sql.Time) value).toLocalTime().toString();
+            }
+            if (value instanceof java.sql.Timestamp) {
+                return DateTimeFormatter.ISO_OFFSET_DATE_TIME
+                        .format(((java.sql.Timestamp) value).toLocalDateTime().atZone(ZoneId.systemDefault()));
+            }
+            if (value instanceof java.util.Date) {
+                return formatInstant(((java.util.Date) value).toInstant());
+            }
+            if (value instanceof Calendar) {
+                return formatInstant(((Calendar) value).toInstant());
+            }
+            if (value instanceof Instant) {
+                return formatInstant((Instant) value);
+            }
+            if (value instanceof ZonedDateTime) {
+                // without the [zone id] suffix
+                return DateTimeFormatter.ISO_OFFSET_DATE_TIME.format((ZonedDateTime) value);
+            }
+            if (value instanceof TemporalAccessor) {
+                // LocalDate, LocalTime, LocalDateTime, OffsetDateTime and OffsetTime print themselves in the ISO 8601 format
+                return value.toString();
+            }
+            return null;
+        }
+
+        private static String formatInstant(Instant instant) {
+            return DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(OffsetDateTime.ofInstant(instant, ZoneId.systemDefault()));
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
 }
@@ -1,9 +1,14 @@
 package com.telecominfraproject.wlan.core.server.jdbc;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import org.postgresql.PGConnection;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.CallableStatementCallback;
@@ -45,18 +50,23 @@ class JdbcOperationsWithMetrics implements JdbcOperations{
     private final Counter execsExecuted;
     private final Counter callsExecuted;
     private final Counter batchesExecuted;
+    private final Counter copiesExecuted;
 
     private final Counter queriesErrors;
     private final Counter updatesErrors;
     private final Counter execsErrors;
     private final Counter callsErrors;
     private final Counter batchesErrors;
+    private final Counter copiesErrors;
 
     private final Timer queriesTimer;
     private final Timer updatesTimer;
     private final Timer execsTimer;
     private final Timer callsTimer;
     private final Timer batchesTimer;
+    private final Timer copiesTimer;
+
+    private final Counter bulkRowsWritten;
     
     private final JdbcOperations delegate;
     
@@ -68,38 +78,88 @@ class JdbcOperationsWithMetrics implements JdbcOperations{
         execsExecuted = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-execsExecuted").withTags(tags).build());
         callsExecuted = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-callsExecuted").withTags(tags).build());
         batchesExecuted = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-batchesExecuted").withTags(tags).build());
+        copiesExecuted = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-copiesExecuted").withTags(tags).build());
 
         queriesErrors = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-queriesErrors").withTags(tags).build());
         updatesErrors = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-updatesErrors").withTags(tags).build());
         execsErrors = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-execsErrors").withTags(tags).build());
         callsErrors = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-callsErrors").withTags(tags).build());
         batchesErrors = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-batchesErrors").withTags(tags).build());
+        copiesErrors = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-copiesErrors").withTags(tags).build());
 
         queriesTimer = new BasicTimer(MonitorConfig.builder("Jdbc-"+metricsId + "-queriesTimer").withTags(tags).build());
         updatesTimer = new BasicTimer(MonitorConfig.builder("Jdbc-"+metricsId + "-updatesTimer").withTags(tags).build());
         execsTimer = new BasicTimer(MonitorConfig.builder("Jdbc-"+metricsId + "-execsTimer").withTags(tags).build());
         callsTimer = new BasicTimer(MonitorConfig.builder("Jdbc-"+metricsId + "-callsTimer").withTags(tags).build());
         batchesTimer = new BasicTimer(MonitorConfig.builder("Jdbc-"+metricsId + "-batchesTimer").withTags(tags).build());
+        copiesTimer = new BasicTimer(MonitorConfig.builder("Jdbc-"+metricsId + "-copiesTimer").withTags(tags).build());
+
+        bulkRowsWritten = new BasicCounter(MonitorConfig.builder("Jdbc-"+metricsId + "-bulkRowsWritten").withTags(tags).build());
         
         DefaultMonitorRegistry.getInstance().register(queriesExecuted);
         DefaultMonitorRegistry.getInstance().register(updatesExecuted);
         DefaultMonitorRegistry.getInstance().register(execsExecuted);
         DefaultMonitorRegistry.getInstance().register(callsExecuted);
         DefaultMonitorRegistry.getInstance().register(batchesExecuted);
+        DefaultMonitorRegistry.getInstance().register(copiesExecuted);
 
         DefaultMonitorRegistry.getInstance().register(queriesErrors);
         DefaultMonitorRegistry.getInstance().register(updatesErrors);
         DefaultMonitorRegistry.getInstance().register(execsErrors);
         DefaultMonitorRegistry.getInstance().register(callsErrors);
         DefaultMonitorRegistry.getInstance().register(batchesErrors);
+        DefaultMonitorRegistry.getInstance().register(copiesErrors);
 
         DefaultMonitorRegistry.getInstance().register(queriesTimer);
         DefaultMonitorRegistry.getInstance().register(updatesTimer);
         DefaultMonitorRegistry.getInstance().register(execsTimer);
         DefaultMonitorRegistry.getInstance().register(callsTimer);
         DefaultMonitorRegistry.getInstance().register(batchesTimer);
+        DefaultMonitorRegistry.getInstance().register(copiesTimer);
+
+        DefaultMonitorRegistry.getInstance().register(bulkRowsWritten);
 }
 
+    /**
+     * Stream the rows into PostgreSQL with COPY ... FROM STDIN.
+     * @param sql - COPY statement
+     * @param reader - rows in the format of the COPY statement
+     * @return number of copied rows
+     */
+    public long copyIn(final String sql, final Reader reader) throws DataAccessException {
+        copiesExecuted.increment();
+        Stopwatch s = copiesTimer.start();
+        boolean success = false;
+
+        try{
+            Long ret = delegate.execute(new ConnectionCallback<Long>() {
+                @Override
+                public Long doInConnection(Connection con) throws SQLException {
+                    try {
+                        return con.unwrap(PGConnection.class).getCopyAPI().copyIn(sql, reader);
+                    } catch (IOException e) {
+                        throw new SQLException("Failed to read the rows for " + sql, e);
+                    }
+                }
+            });
+            success = true;
+            return ret;
+        }finally{
+            s.stop();
+            if(!success){
+                copiesErrors.increment();
+            }
+        }
+    }
+
+    /**
+     * Count the rows written by the bulk operations of {@link BaseJdbcDao}
+     * @param numberOfRows
+     */
+    public void recordBulkRowsWritten(long numberOfRows) {
+        bulkRowsWritten.increment(numberOfRows);
+    }
+
     public <T> T execute(ConnectionCallback<T> action) throws DataAccessException {
         execsExecuted.increment();
         Stopwatch s = execsTimer.start();
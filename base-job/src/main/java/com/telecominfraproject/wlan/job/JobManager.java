@@ -1,19 +1,40 @@
 package com.telecominfraproject.wlan.job;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
 import com.telecominfraproject.wlan.core.model.json.GenericResponse;
 import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
 
 /**
+ * Runs submitted jobs on a pool of worker threads (tip.wlan.JobManager.numberOfThreads).<br>
+ * Jobs with the same key (see {@link NamedJob#getJobKey()}) run one at a time in the order they were submitted,
+ * jobs with different keys and jobs without a key run in parallel.
+ * Queued jobs of a higher {@link JobPriority} are started before the jobs of a lower priority.<br>
+ * Metrics per job name: jobManager-[jobName]-wait-timer, -run-timer, -error-count, -queueDepth. Queue depth per priority: jobManager-queueDepth-[priority].<br>
+ * Queue depth gauges are registered for the first tip.wlan.JobManager.maxJobNameGauges job names, 
+ * queued jobs with the other names are counted together in jobManager-otherJobNames-queueDepth.
+ *
  * @author ekeddy
  *
  */
@@ -26,41 +47,181 @@ public class JobManager {
      */
     protected static final long JOB_QUEUE_POLL_TIME_MS = 1000;
 
+    private static final String UNNAMED_JOB_NAME = "unnamed";
+
     private final int queueSize = Integer.getInteger("tip.wlan.JobManager.queueSize", 10000);
+
+    private final int numberOfThreads = Math.max(1, Integer.getInteger("tip.wlan.JobManager.numberOfThreads", 4));
+
+    private final int maxJobNameGauges = Integer.getInteger("tip.wlan.JobManager.maxJobNameGauges", 100);
+
+    /**
+     * Job and its state in the queue
+     */
+    private static class QueuedJob implements Comparable<QueuedJob> {
+        private final Runnable job;
+        private final String jobName;
+        private final String jobKey;
+        private final JobPriority priority;
+        private final AtomicInteger queuedJobsWithName;
+        private final long sequence;
+        private final long submitTimeMs = System.currentTimeMillis();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        QueuedJob(Runnable job, String jobName, String jobKey, JobPriority priority, AtomicInteger queuedJobsWithName, long sequence) {
+            this.job = job;
+            this.jobName = jobName;
+            this.jobKey = jobKey;
+            this.priority = priority;
+            this.queuedJobsWithName = queuedJobsWithName;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedJob other) {
+            int result = priority.compareTo(other.priority);
+            if (0 == result) {
+                return Long.compare(sequence, other.sequence);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Jobs that can be started - no other job with the same key is running or queued before them
+     */
+    private final PriorityBlockingQueue<QueuedJob> readyJobs = new PriorityBlockingQueue<>();
+
+    /**
+     * Jobs that wait for the earlier jobs with the same key to complete.
+     * Key is present in this map while a job with that key is ready or running.
+     */
+    private final Map<String, Deque<QueuedJob>> waitingJobsByKey = new HashMap<>();
+
+    private final AtomicInteger numberOfQueuedJobs = new AtomicInteger();
+    private final AtomicLong jobSequence = new AtomicLong();
+    private final Map<JobPriority, AtomicInteger> queuedJobsByPriority = new EnumMap<>(JobPriority.class);
+    /**
+     * Number of queued jobs per job name, bounded by maxJobNameGauges. Entries are never removed - their gauges stay registered.
+     */
+    private final Map<String, AtomicInteger> queuedJobsByName = new ConcurrentHashMap<>();
+    private final AtomicInteger queuedJobsWithOtherNames = new AtomicInteger();
+
+    private final List<Thread> jobManagerThreads = new ArrayList<>();
+    private volatile boolean isRunning = true;
+
+    public JobManager() {
+        CloudMetricsUtils.registerGauge("jobManager-queueSize",
+                new Callable<Long>(){
+                    @Override
+                    public Long call() throws Exception {
+                        return (long) numberOfQueuedJobs.get();
+                    }
+                });
+
+        for (JobPriority priority : JobPriority.values()) {
+            AtomicInteger counter = new AtomicInteger();
+            queuedJobsByPriority.put(priority, counter);
+            registerQueueDepthGauge("jobManager-queueDepth-" + priority, counter);
+        }
+
+        registerQueueDepthGauge("jobManager-otherJobNames-queueDepth", queuedJobsWithOtherNames);
+    }
+
+    private static void registerQueueDepthGauge(String metricName, final AtomicInteger counter) {
+        CloudMetricsUtils.registerGauge(metricName,
+                new Callable<Long>(){
+                    @Override
+                    public Long call() throws Exception {
+                        return (long) counter.get();
+                    }
+                });
+    }
+
     /**
-     *  job queue
+     * @param jobName
+     * @return counter of the queued jobs with the supplied name, or the shared counter for all other names once maxJobNameGauges names are tracked
      */
-    private final BlockingQueue<Runnable> jobQueue = new LinkedBlockingDeque<>(queueSize);
+    private AtomicInteger getQueuedJobsWithName(String jobName) {
+        AtomicInteger ret = queuedJobsByName.get(jobName);
+        if (ret != null) {
+            return ret;
+        }
+
+        synchronized (queuedJobsByName) {
+            ret = queuedJobsByName.get(jobName);
+            if (ret == null) {
+                if (queuedJobsByName.size() >= maxJobNameGauges) {
+                    return queuedJobsWithOtherNames;
+                }
+                ret = new AtomicInteger();
+                registerQueueDepthGauge("jobManager-" + jobName + "-queueDepth", ret);
+                queuedJobsByName.put(jobName, ret);
+            }
+        }
 
-    private Thread jobManagerThread;
+        return ret;
+    }
 
     @PostConstruct
-    public void startupAuditor() {
-        // start up the thread
-        jobManagerThread = new Thread(new Runnable() {
-            private boolean isRunning = true;
-
-            @Override
-            public void run() {
-                LOG.info("Job Manager Started");
-                while (isRunning) {
-                    try {
-                        Runnable job = jobQueue.poll(JOB_QUEUE_POLL_TIME_MS, TimeUnit.MILLISECONDS);
-                        if (null != job) {
-                            job.run();
+    public synchronized void startupAuditor() {
+        if (!jobManagerThreads.isEmpty()) {
+            return;
+        }
+
+        // start up the worker threads
+        for (int i = 0; i < numberOfThreads; i++) {
+            Thread jobManagerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    LOG.info("Job Manager Started");
+                    while (isRunning) {
+                        QueuedJob queuedJob;
+                        try {
+                            queuedJob = readyJobs.poll(JOB_QUEUE_POLL_TIME_MS, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            LOG.debug("Job queue poll interrupted");
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+
+                        if (null != queuedJob) {
+                            runJob(queuedJob);
                         }
-                    } catch (RuntimeException e) {
-                        LOG.error("Failed to run job", e);
-                    } catch (InterruptedException e) {
-                        LOG.debug("Job queue poll interrupted");
-                        Thread.currentThread().interrupt();
                     }
+                    LOG.info("Job Manager Stopped");
                 }
-                LOG.info("Job Manager Stopped");
+            }, "JobManagerThread-" + i);
+            jobManagerThread.setDaemon(true);
+            jobManagerThread.start();
+            jobManagerThreads.add(jobManagerThread);
+        }
+    }
+
+    /**
+     * Stop the worker threads once they complete their current jobs.
+     * Jobs that are still queued are not run, their futures are cancelled. Jobs submitted after shutdown are rejected.
+     */
+    @PreDestroy
+    public void shutdown() {
+        isRunning = false;
+
+        List<QueuedJob> droppedJobs = new ArrayList<>();
+        synchronized (waitingJobsByKey) {
+            for (Deque<QueuedJob> waitingJobs : waitingJobsByKey.values()) {
+                droppedJobs.addAll(waitingJobs);
+                waitingJobs.clear();
             }
-        }, "JobManagerThread");
-        jobManagerThread.setDaemon(true);
-        jobManagerThread.start();
+        }
+        readyJobs.drainTo(droppedJobs);
+
+        for (QueuedJob queuedJob : droppedJobs) {
+            cancelJob(queuedJob);
+        }
+
+        if (!droppedJobs.isEmpty()) {
+            LOG.info("Job Manager cancelled {} queued jobs on shutdown", droppedJobs.size());
+        }
     }
 
     /**
@@ -68,9 +229,37 @@ public class JobManager {
      * @param job
      */
     public void submitJob(Runnable job) {
-        if(!jobQueue.offer(job)){
-            throw new GenericErrorException("Job Manager queue is over capacity ("+queueSize+")");
-        }        
+        submit(job);
+    }
+
+    /**
+     * Submit a job to the queue.
+     * NamedJobs are serialized by their key and run in their priority lane, other jobs run in parallel with normal priority.
+     * @param job
+     * @return future that completes when the job has run, or completes exceptionally with the exception thrown by the job.
+     * It is cancelled if the JobManager shuts down before the job is started.
+     * @throws GenericErrorException if the queue is over capacity, or the JobManager is shut down
+     */
+    public CompletableFuture<Void> submit(Runnable job) {
+        if (job instanceof NamedJob) {
+            NamedJob namedJob = (NamedJob) job;
+            return submit(job, namedJob.getJobName(), namedJob.getJobKey(), namedJob.getJobPriority());
+        }
+
+        return submit(job, UNNAMED_JOB_NAME, null, JobPriority.NORMAL);
+    }
+
+    /**
+     * Submit a job to the queue
+     * @param job
+     * @param jobKey - jobs with the same key run one at a time in the order of submission, null - no ordering
+     * @param priority
+     * @return future that completes when the job has run, or completes exceptionally with the exception thrown by the job.
+     * It is cancelled if the JobManager shuts down before the job is started.
+     * @throws GenericErrorException if the queue is over capacity, or the JobManager is shut down
+     */
+    public CompletableFuture<Void> submit(NamedJob job, String jobKey, JobPriority priority) {
+        return submit(job, job.getJobName(), jobKey, priority);
     }
 
     /**
@@ -90,4 +279,120 @@ public class JobManager {
         return result;
     }
 
+    /**
+     * @return number of jobs that are submitted and not started yet
+     */
+    public int getNumberOfQueuedJobs() {
+        return numberOfQueuedJobs.get();
+    }
+
+    /**
+     * @param jobName
+     * @return number of jobs with the supplied name that are submitted and not started yet. 
+     * Once maxJobNameGauges job names are tracked, jobs with the other names are counted together.
+     */
+    public int getNumberOfQueuedJobs(String jobName) {
+        AtomicInteger counter = queuedJobsByName.get(jobName);
+        if (counter == null) {
+            return queuedJobsByName.size() >= maxJobNameGauges ? queuedJobsWithOtherNames.get() : 0;
+        }
+        return counter.get();
+    }
+
+    private CompletableFuture<Void> submit(Runnable job, String jobName, String jobKey, JobPriority priority) {
+        if (!isRunning) {
+            throw new GenericErrorException("Job Manager is shut down");
+        }
+
+        if (numberOfQueuedJobs.incrementAndGet() > queueSize) {
+            numberOfQueuedJobs.decrementAndGet();
+            throw new GenericErrorException("Job Manager queue is over capacity ("+queueSize+")");
+        }
+
+        if (jobName == null) {
+            jobName = UNNAMED_JOB_NAME;
+        }
+
+        QueuedJob queuedJob = new QueuedJob(job, jobName, jobKey, priority == null ? JobPriority.NORMAL : priority, 
+                getQueuedJobsWithName(jobName), jobSequence.incrementAndGet());
+        queuedJobsByPriority.get(queuedJob.priority).incrementAndGet();
+        queuedJob.queuedJobsWithName.incrementAndGet();
+
+        if (jobKey != null) {
+            synchronized (waitingJobsByKey) {
+                if (!isRunning) {
+                    cancelJob(queuedJob);
+                    return queuedJob.future;
+                }
+                Deque<QueuedJob> waitingJobs = waitingJobsByKey.get(jobKey);
+                if (waitingJobs != null) {
+                    // another job with this key is ready or running, this one is started after it
+                    waitingJobs.add(queuedJob);
+                    return queuedJob.future;
+                }
+                waitingJobsByKey.put(jobKey, new ArrayDeque<QueuedJob>());
+            }
+        }
+
+        addReadyJob(queuedJob);
+        return queuedJob.future;
+    }
+
+    private void addReadyJob(QueuedJob queuedJob) {
+        readyJobs.add(queuedJob);
+        if (!isRunning && readyJobs.remove(queuedJob)) {
+            // shutdown has drained the queue already
+            cancelJob(queuedJob);
+        }
+    }
+
+    private void cancelJob(QueuedJob queuedJob) {
+        numberOfQueuedJobs.decrementAndGet();
+        queuedJobsByPriority.get(queuedJob.priority).decrementAndGet();
+        queuedJob.queuedJobsWithName.decrementAndGet();
+        queuedJob.future.cancel(false);
+    }
+
+    private void runJob(QueuedJob queuedJob) {
+        numberOfQueuedJobs.decrementAndGet();
+        queuedJobsByPriority.get(queuedJob.priority).decrementAndGet();
+        queuedJob.queuedJobsWithName.decrementAndGet();
+
+        String servoMetricPrefix = "jobManager-" + queuedJob.jobName + "-";
+        long startTime = System.currentTimeMillis();
+        CloudMetricsUtils.getTimer(servoMetricPrefix + "wait-timer").record(startTime - queuedJob.submitTimeMs, TimeUnit.MILLISECONDS);
+
+        try {
+            queuedJob.job.run();
+            queuedJob.future.complete(null);
+        } catch (Throwable e) {
+            // the worker thread keeps running other jobs even if this one threw an Error
+            LOG.error("Failed to run job {}", queuedJob.jobName, e);
+            CloudMetricsUtils.getCounter(servoMetricPrefix + "error-count").increment();
+            queuedJob.future.completeExceptionally(e);
+        } finally {
+            CloudMetricsUtils.getTimer(servoMetricPrefix + "run-timer").record(System.currentTimeMillis() - startTime, TimeUnit.MILLISECONDS);
+            startNextJobWithKey(queuedJob.jobKey);
+        }
+    }
+
+    private void startNextJobWithKey(String jobKey) {
+        if (jobKey == null) {
+            return;
+        }
+
+        QueuedJob nextJob;
+        synchronized (waitingJobsByKey) {
+            Deque<QueuedJob> waitingJobs = waitingJobsByKey.get(jobKey);
+            nextJob = waitingJobs.poll();
+            if (nextJob == null) {
+                waitingJobsByKey.remove(jobKey);
+            }
+        }
+
+        if (nextJob != null) {
+            addReadyJob(nextJob);
+        }
+    }
+
 }
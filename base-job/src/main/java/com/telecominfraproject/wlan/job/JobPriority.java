@@ -0,0 +1,13 @@
+package com.telecominfraproject.wlan.job;
+
+/**
+ * Priority lanes of the JobManager. Queued jobs of a higher priority are always started before the jobs of a lower priority.
+ * 
+ * @author ekeddy
+ *
+ */
+public enum JobPriority {
+    HIGH,
+    NORMAL,
+    LOW
+}
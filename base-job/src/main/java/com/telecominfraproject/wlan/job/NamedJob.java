@@ -10,4 +10,19 @@ package com.telecominfraproject.wlan.job;
 public interface NamedJob extends Runnable {
 
     String getJobName();
+
+    /**
+     * Jobs with the same key run one at a time, in the order they were submitted. Jobs with different keys can run in parallel.
+     * @return key of the job, by default - its name
+     */
+    default String getJobKey() {
+        return getJobName();
+    }
+
+    /**
+     * @return priority lane of the job
+     */
+    default JobPriority getJobPriority() {
+        return JobPriority.NORMAL;
+    }
 }
@@ -0,0 +1,335 @@
+package com.telecominfraproject.wlan.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.server.exceptions.GenericErrorException;
+
+public class JobManagerTests {
+
+    private JobManager jobManager;
+
+    @After
+    public void tearDown() {
+        if (jobManager != null) {
+            jobManager.shutdown();
+        }
+    }
+
+    @Test
+    public void testJobsWithSameKeyRunInSubmissionOrder() throws Exception {
+        jobManager = createJobManager(4);
+
+        final List<Integer> completedJobs = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger runningJobs = new AtomicInteger();
+        final AtomicInteger maxRunningJobs = new AtomicInteger();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final int jobIndex = i;
+            futures.add(jobManager.submit(new TestJob("ordered", "key1", JobPriority.NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    int running = runningJobs.incrementAndGet();
+                    maxRunningJobs.accumulateAndGet(running, Math::max);
+                    sleep(jobIndex % 3);
+                    completedJobs.add(jobIndex);
+                    runningJobs.decrementAndGet();
+                }
+            })));
+        }
+
+        waitForAll(futures);
+
+        assertEquals(1, maxRunningJobs.get());
+        List<Integer> expectedOrder = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            expectedOrder.add(i);
+        }
+        assertEquals(expectedOrder, completedJobs);
+        assertEquals(0, jobManager.getNumberOfQueuedJobs());
+    }
+
+    @Test
+    public void testJobsWithDifferentKeysRunInParallel() throws Exception {
+        jobManager = createJobManager(2);
+
+        final CountDownLatch job2Started = new CountDownLatch(1);
+        final AtomicInteger job1SawJob2 = new AtomicInteger();
+
+        CompletableFuture<Void> future1 = jobManager.submit(new TestJob("parallel", "key1", JobPriority.NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                // completes only if the job with the other key runs at the same time
+                try {
+                    if (job2Started.await(5, TimeUnit.SECONDS)) {
+                        job1SawJob2.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        CompletableFuture<Void> future2 = jobManager.submit(new TestJob("parallel", "key2", JobPriority.NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                job2Started.countDown();
+            }
+        }));
+
+        waitForAll(Arrays.asList(future1, future2));
+        assertEquals(1, job1SawJob2.get());
+    }
+
+    @Test
+    public void testHigherPriorityJobsStartFirst() throws Exception {
+        jobManager = createJobManager(1);
+
+        CountDownLatch blockerStarted = new CountDownLatch(1);
+        CountDownLatch releaseBlocker = new CountDownLatch(1);
+        CompletableFuture<Void> blocker = jobManager.submit(new BlockingJob(blockerStarted, releaseBlocker));
+        assertTrue(blockerStarted.await(5, TimeUnit.SECONDS));
+
+        final List<String> startedJobs = Collections.synchronizedList(new ArrayList<String>());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(jobManager.submit(new RecordingJob("low1", JobPriority.LOW, startedJobs)));
+        futures.add(jobManager.submit(new RecordingJob("normal1", JobPriority.NORMAL, startedJobs)));
+        futures.add(jobManager.submit(new RecordingJob("high1", JobPriority.HIGH, startedJobs)));
+        futures.add(jobManager.submit(new RecordingJob("normal2", JobPriority.NORMAL, startedJobs)));
+        futures.add(jobManager.submit(new RecordingJob("high2", JobPriority.HIGH, startedJobs)));
+        assertEquals(5, jobManager.getNumberOfQueuedJobs());
+
+        releaseBlocker.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        waitForAll(futures);
+
+        assertEquals(Arrays.asList("high1", "high2", "normal1", "normal2", "low1"), startedJobs);
+    }
+
+    @Test
+    public void testQueueDepthIsTrackedPerJobName() throws Exception {
+        System.setProperty("tip.wlan.JobManager.maxJobNameGauges", "2");
+        try {
+            jobManager = createJobManager(1);
+        } finally {
+            System.clearProperty("tip.wlan.JobManager.maxJobNameGauges");
+        }
+
+        CountDownLatch blockerStarted = new CountDownLatch(1);
+        CountDownLatch releaseBlocker = new CountDownLatch(1);
+        CompletableFuture<Void> blocker = jobManager.submit(new TestJob("blocker", null, JobPriority.NORMAL, new BlockingJob(blockerStarted, releaseBlocker)));
+        assertTrue(blockerStarted.await(5, TimeUnit.SECONDS));
+
+        final List<String> startedJobs = Collections.synchronizedList(new ArrayList<String>());
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(jobManager.submit(new RecordingJob("name1", JobPriority.NORMAL, startedJobs)));
+        futures.add(jobManager.submit(new RecordingJob("name1", JobPriority.LOW, startedJobs)));
+        // names beyond maxJobNameGauges are counted together
+        futures.add(jobManager.submit(new RecordingJob("name2", JobPriority.NORMAL, startedJobs)));
+        futures.add(jobManager.submit(new RecordingJob("name3", JobPriority.NORMAL, startedJobs)));
+
+        assertEquals(0, jobManager.getNumberOfQueuedJobs("blocker"));
+        assertEquals(2, jobManager.getNumberOfQueuedJobs("name1"));
+        assertEquals(2, jobManager.getNumberOfQueuedJobs("name2"));
+        assertEquals(2, jobManager.getNumberOfQueuedJobs("name3"));
+        assertEquals(4, jobManager.getNumberOfQueuedJobs());
+
+        releaseBlocker.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        waitForAll(futures);
+
+        assertEquals(0, jobManager.getNumberOfQueuedJobs("name1"));
+        assertEquals(0, jobManager.getNumberOfQueuedJobs("name2"));
+        assertEquals(0, jobManager.getNumberOfQueuedJobs());
+    }
+
+    @Test
+    public void testFailedJobsCompleteExceptionally() throws Exception {
+        jobManager = createJobManager(1);
+
+        final RuntimeException jobException = new IllegalStateException("test failure");
+        CompletableFuture<Void> failedJob = jobManager.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw jobException;
+            }
+        });
+        assertSame(jobException, getFailure(failedJob));
+
+        // an Error does not kill the only worker thread
+        final Error jobError = new AssertionError("test error");
+        CompletableFuture<Void> errorJob = jobManager.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw jobError;
+            }
+        });
+        assertSame(jobError, getFailure(errorJob));
+
+        final AtomicInteger runCount = new AtomicInteger();
+        jobManager.submit(new Runnable() {
+            @Override
+            public void run() {
+                runCount.incrementAndGet();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertEquals(1, runCount.get());
+    }
+
+    @Test
+    public void testShutdownCancelsQueuedJobs() throws Exception {
+        jobManager = createJobManager(1);
+
+        CountDownLatch blockerStarted = new CountDownLatch(1);
+        CountDownLatch releaseBlocker = new CountDownLatch(1);
+        CompletableFuture<Void> blocker = jobManager.submit(new TestJob("blocker", "key1", JobPriority.NORMAL, new BlockingJob(blockerStarted, releaseBlocker)));
+        assertTrue(blockerStarted.await(5, TimeUnit.SECONDS));
+
+        final AtomicInteger runCount = new AtomicInteger();
+        Runnable countingJob = new Runnable() {
+            @Override
+            public void run() {
+                runCount.incrementAndGet();
+            }
+        };
+        // waits for the blocker
+        CompletableFuture<Void> sameKeyJob = jobManager.submit(new TestJob("sameKey", "key1", JobPriority.NORMAL, countingJob));
+        // waits for the worker thread
+        CompletableFuture<Void> readyJob = jobManager.submit(countingJob);
+        assertEquals(2, jobManager.getNumberOfQueuedJobs());
+
+        jobManager.shutdown();
+
+        assertTrue(sameKeyJob.isCancelled());
+        assertTrue(readyJob.isCancelled());
+        assertEquals(0, jobManager.getNumberOfQueuedJobs());
+
+        try {
+            jobManager.submit(countingJob);
+            fail("job submitted after shutdown");
+        } catch (GenericErrorException e) {
+            // expected
+        }
+
+        // running job completes normally
+        releaseBlocker.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        assertEquals(0, runCount.get());
+    }
+
+    private static JobManager createJobManager(int numberOfThreads) {
+        System.setProperty("tip.wlan.JobManager.numberOfThreads", Integer.toString(numberOfThreads));
+        try {
+            JobManager jobManager = new JobManager();
+            jobManager.startupAuditor();
+            return jobManager;
+        } finally {
+            System.clearProperty("tip.wlan.JobManager.numberOfThreads");
+        }
+    }
+
+    private static void waitForAll(List<CompletableFuture<Void>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+    }
+
+    private static Throwable getFailure(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("job did not fail");
+        return null;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class TestJob implements NamedJob {
+        private final String jobName;
+        private final String jobKey;
+        private final JobPriority jobPriority;
+        private final Runnable body;
+
+        TestJob(String jobName, String jobKey, JobPriority jobPriority, Runnable body) {
+            this.jobName = jobName;
+            this.jobKey = jobKey;
+            this.jobPriority = jobPriority;
+            this.body = body;
+        }
+
+        @Override
+        public String getJobName() {
+            return jobName;
+        }
+
+        @Override
+        public String getJobKey() {
+            return jobKey;
+        }
+
+        @Override
+        public JobPriority getJobPriority() {
+            return jobPriority;
+        }
+
+        @Override
+        public void run() {
+            body.run();
+        }
+    }
+
+    /**
+     * Records its name when started, every job has its own key
+     */
+    private static class RecordingJob extends TestJob {
+        RecordingJob(final String jobName, JobPriority jobPriority, final List<String> startedJobs) {
+            super(jobName, jobName, jobPriority, new Runnable() {
+                @Override
+                public void run() {
+                    startedJobs.add(jobName);
+                }
+            });
+        }
+    }
+
+    private static class BlockingJob implements Runnable {
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        BlockingJob(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
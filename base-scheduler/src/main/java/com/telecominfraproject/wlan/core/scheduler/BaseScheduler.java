@@ -3,24 +3,42 @@
  */
 package com.telecominfraproject.wlan.core.scheduler;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Timer;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
 import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
 import com.telecominfraproject.wlan.core.model.scheduler.TimeWindowValue;
-import com.telecominfraproject.wlan.core.scheduler.models.JobMap;
 import com.telecominfraproject.wlan.core.scheduler.models.JobMapStatus;
 import com.telecominfraproject.wlan.core.scheduler.models.JobSchedule;
 import com.telecominfraproject.wlan.core.scheduler.models.ScheduleThrottle;
 import com.telecominfraproject.wlan.core.scheduler.models.ScheduledJob;
+import com.telecominfraproject.wlan.core.scheduler.models.TimingWheel;
 import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
 
 /**
  * Schedule Service
  * 
+ * Jobs are kept in a {@link TimingWheel}. On every tick all the jobs that
+ * became due are fired in batches of at most tip.wlan.scheduler.maxBatchSize
+ * jobs, {@link ScheduleThrottle} is consulted once per batch. When a dispatch
+ * executor is provided, {@link #enqueuJob(JobDetails)} is called on it,
+ * otherwise on the scheduler thread.
+ * 
+ * Metrics: scheduler-[name]-lag-timer (actual vs planned fire time),
+ * -fired-count, -expired-count, -size.
+ * 
  * @param T
  *            Job Id
  * 
@@ -30,28 +48,51 @@ import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
 public abstract class BaseScheduler<I extends Comparable<I>> {
 
     /**
-     * Frequency to check the {@link #jobMap}
+     * Frequency to check the {@link #jobWheel}
      */
-    private static final long MAX_SLEEP_TIME_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long TICK_MS = Long.getLong("tip.wlan.scheduler.tickMs", 100);
+    private static final int WHEEL_SIZE = Integer.getInteger("tip.wlan.scheduler.wheelSize", 1024);
+    private static final int MAX_BATCH_SIZE = Math.max(1, Integer.getInteger("tip.wlan.scheduler.maxBatchSize", 1000));
 
-    private boolean endScheduler = false;
+    private volatile boolean endScheduler = false;
+    /**
+     * Scheduled jobs
+     */
+    private final TimingWheel<I> jobWheel = new TimingWheel<>(TICK_MS, WHEEL_SIZE);
     /**
-     * Map of scheduled job
+     * Run thread waits on it between the ticks
      */
-    private final JobMap<I> jobMap = new JobMap<>();
+    private final Object tickLock = new Object();
     private final Logger Logger;
     private Thread runThread;
     private boolean startScheduler = false;
 
     private final ScheduleThrottle throttle;
+    private final Executor dispatchExecutor;
+
+    private Timer lagTimer;
+    private Counter firedCounter;
+    private Counter expiredCounter;
 
     public BaseScheduler(Logger Logger, final ScheduleThrottle throttle) {
+        this(Logger, throttle, null);
+    }
+
+    /**
+     * @param Logger
+     * @param throttle
+     * @param dispatchExecutor
+     *            - worker pool that runs {@link #enqueuJob(JobDetails)}, null
+     *            to run it on the scheduler thread
+     */
+    public BaseScheduler(Logger Logger, final ScheduleThrottle throttle, final Executor dispatchExecutor) {
         if (null != Logger) {
             this.Logger = Logger;
         } else {
             this.Logger = LoggerFactory.getLogger(getClass());
         }
         this.throttle = throttle;
+        this.dispatchExecutor = dispatchExecutor;
     }
 
     /**
@@ -64,7 +105,7 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
         if (null == jobId) {
             return;
         }
-        JobDetails<I> jobDetails = this.jobMap.removeJob(jobId);
+        JobDetails<I> jobDetails = this.jobWheel.removeJob(jobId);
         if (null != jobDetails) {
             jobDetails.getJob().cancel(jobDetails.getSchedule().getJobId(), System.currentTimeMillis(),
                     jobDetails.getSchedule().getTimeWindows());
@@ -85,7 +126,7 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
      * @return
      */
     public JobMapStatus<I> getStatus() {
-        return this.jobMap.getStatus();
+        return this.jobWheel.getStatus();
     }
 
     public ScheduleThrottle getThrottle() {
@@ -116,8 +157,8 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
                     .currentTimeMillis()) {
                 if (null != this.runThread) {
                     if (this.runThread.isAlive()) {
-                        synchronized (this.jobMap) {
-                            this.jobMap.notifyAll();
+                        synchronized (this.tickLock) {
+                            this.tickLock.notifyAll();
                         }
                     } else {
                         this.runThread = null;
@@ -155,6 +196,7 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
                 throw new IllegalStateException("Run thread already started");
             }
 
+            initMetrics();
             this.runThread = new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -206,10 +248,24 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
             throw new IllegalArgumentException("Empty time window in " + schedule);
         }
         this.Logger.debug("submitJob({},{})", schedule, job);
-        this.jobMap.addJob(schedule, job);
-        synchronized (this.jobMap) {
-            this.jobMap.notifyAll();
+        this.jobWheel.addJob(schedule, job);
+    }
+
+    /**
+     * Move a submitted job to a new time window.
+     * 
+     * @throws IllegalArgumentException
+     *             if time window is empty
+     * @param jobId
+     * @param timeWindows
+     * @return false if job is not scheduled
+     */
+    public boolean rescheduleJob(final I jobId, final ImmutableTimeWindow timeWindows) {
+        if (timeWindows.isEmpty()) {
+            throw new IllegalArgumentException("Empty time window for " + jobId);
         }
+        this.Logger.debug("rescheduleJob({},{})", jobId, timeWindows);
+        return null != this.jobWheel.rescheduleJob(jobId, timeWindows);
     }
 
     @Override
@@ -218,31 +274,108 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
     }
 
     /**
-     * Subclass should run this in a fixed timer interval. It returns the
-     * {@linkplain TimeWindowValue#getBeginTime()} of the first job in the
-     * queue.
+     * Fire all the jobs that are due at currentTime, in batches of at most
+     * {@link #MAX_BATCH_SIZE}. Jobs whose time window has already ended are
+     * passed to {@link #expireJobs(List, long)} instead.
      * 
      * @param currentTime
-     * @return begin time for the first job in the queue
      */
-    private Long runScheduledJob(long currentTime) {
-        Long firstStartup = null;
-        JobSchedule<I> timer = jobMap.getFirstTimer();
-        if (null != timer) {
-            firstStartup = timer.getTimeWindows().getBeginTime();
-            if (timer.getTimeWindows().isWithin(currentTime)) {
-                JobDetails<I> jobDetails = jobMap.removeJob(timer);
-                if (null != jobDetails) {
-                    try {
-                        enqueuJob(jobDetails);
-                    } catch (Exception exp) {
-                        getLogger().error("enqueuJob({}) failed due to {} exception {}", jobDetails,
-                                exp.getClass().getSimpleName(), exp.getLocalizedMessage());
-                    }
+    private void runScheduledJobs(long currentTime) {
+        List<JobDetails<I>> dueJobs = jobWheel.advance(currentTime);
+        for (int from = 0; from < dueJobs.size(); from += MAX_BATCH_SIZE) {
+            List<JobDetails<I>> batch = dueJobs.subList(from, Math.min(dueJobs.size(), from + MAX_BATCH_SIZE));
+            long fireTime = System.currentTimeMillis();
+            if (null != this.getThrottle()) {
+                fireTime = this.getThrottle().ready(fireTime);
+            }
+
+            List<JobDetails<I>> readyJobs = new ArrayList<>(batch.size());
+            List<JobDetails<I>> expiredJobs = new ArrayList<>();
+            for (JobDetails<I> jobDetails : batch) {
+                ImmutableTimeWindow timeWindows = jobDetails.getSchedule().getTimeWindows();
+                lagTimer.record(Math.max(0, fireTime - timeWindows.getBeginTime()), TimeUnit.MILLISECONDS);
+                if (timeWindows.isAfter(fireTime)) {
+                    getLogger().warn("Time window of {} ended before it could be fired", jobDetails);
+                    expiredCounter.increment();
+                    expiredJobs.add(jobDetails);
+                } else {
+                    readyJobs.add(jobDetails);
                 }
             }
+
+            if (!expiredJobs.isEmpty()) {
+                expireJobs(expiredJobs, fireTime);
+            }
+            firedCounter.increment(readyJobs.size());
+            enqueuJobs(readyJobs);
+        }
+    }
+
+    /**
+     * Handle the jobs whose time window ended before they could be fired, they
+     * are already removed from the {@link #jobWheel}. By default invokes
+     * {@linkplain ScheduledJob#cancel(Object, long, ImmutableTimeWindow)} for
+     * each job.
+     * 
+     * @param expiredJobs
+     * @param fireTime
+     */
+    protected void expireJobs(List<JobDetails<I>> expiredJobs, long fireTime) {
+        for (JobDetails<I> jobDetails : expiredJobs) {
+            jobDetails.getJob().cancel(jobDetails.getSchedule().getJobId(), fireTime,
+                    jobDetails.getSchedule().getTimeWindows());
         }
-        return firstStartup;
+    }
+
+    /**
+     * Enqueue a batch of due jobs. By default calls
+     * {@link #enqueuJob(JobDetails)} for each job, on the dispatch executor if
+     * one is provided.
+     * 
+     * @param batch
+     */
+    protected void enqueuJobs(List<JobDetails<I>> batch) {
+        for (final JobDetails<I> jobDetails : batch) {
+            if (null == this.dispatchExecutor) {
+                safeEnqueuJob(jobDetails);
+                continue;
+            }
+            try {
+                this.dispatchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        safeEnqueuJob(jobDetails);
+                    }
+                });
+            } catch (RejectedExecutionException exp) {
+                getLogger().error("enqueuJob({}) rejected by dispatch executor", jobDetails);
+            }
+        }
+    }
+
+    private void safeEnqueuJob(JobDetails<I> jobDetails) {
+        try {
+            enqueuJob(jobDetails);
+        } catch (Exception exp) {
+            getLogger().error("enqueuJob({}) failed due to {} exception {}", jobDetails, exp.getClass().getSimpleName(),
+                    exp.getLocalizedMessage());
+        }
+    }
+
+    private void initMetrics() {
+        if (null != this.lagTimer) {
+            return;
+        }
+        String servoMetricPrefix = "scheduler-" + getName() + "-";
+        this.lagTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "lag-timer");
+        this.firedCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "fired-count");
+        this.expiredCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "expired-count");
+        CloudMetricsUtils.registerGauge(servoMetricPrefix + "size", new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return (long) jobWheel.getSize();
+            }
+        });
     }
 
     /**
@@ -261,30 +394,19 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
         try {
             while (!this.endScheduler) {
                 try {
-                    long currentTime = System.currentTimeMillis();
-                    if (null != this.getThrottle()) {
-                        currentTime = this.getThrottle().ready(currentTime);
-                    }
-                    Long nextStartupTime = runScheduledJob(currentTime);
-                    long waitTime = MAX_SLEEP_TIME_MS;
-                    if (null != nextStartupTime) {
-                        currentTime = System.currentTimeMillis();
-                        if (nextStartupTime <= currentTime) {
-                            waitTime = 0;
-                        } else if (nextStartupTime < currentTime + MAX_SLEEP_TIME_MS) {
-                            waitTime = nextStartupTime - currentTime;
-                        }
-                    }
-                    if (waitTime > 0) {
-                        synchronized (this.jobMap) {
-                            if (!this.endScheduler) {
-                                this.jobMap.wait(waitTime);
-                            }
+                    runScheduledJobs(System.currentTimeMillis());
+                    // sleep till the start of the next tick
+                    long waitTime = TICK_MS - Math.floorMod(System.currentTimeMillis(), TICK_MS);
+                    synchronized (this.tickLock) {
+                        if (!this.endScheduler) {
+                            this.tickLock.wait(waitTime);
                         }
                     }
                 } catch (InterruptedException exp) {
                     // ignore it
                     Thread.currentThread().interrupt();
+                } catch (RuntimeException exp) {
+                    getLogger().error("Scheduler tick failed", exp);
                 }
             }
         } finally {
@@ -313,4 +435,14 @@ public abstract class BaseScheduler<I extends Comparable<I>> {
     protected Logger getLogger() {
         return Logger;
     }
+
+    /**
+     * Jobs scheduled on this node
+     * 
+     * @return
+     */
+    @JsonIgnore
+    protected TimingWheel<I> getJobWheel() {
+        return jobWheel;
+    }
 }
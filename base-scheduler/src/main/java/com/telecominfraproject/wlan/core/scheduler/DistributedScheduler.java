@@ -0,0 +1,518 @@
+/**
+ *
+ */
+package com.telecominfraproject.wlan.core.scheduler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+import com.hazelcast.query.Predicate;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+import com.telecominfraproject.wlan.core.scheduler.models.DistributedJobFactory;
+import com.telecominfraproject.wlan.core.scheduler.models.DistributedJobRecord;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
+import com.telecominfraproject.wlan.core.scheduler.models.JobSchedule;
+import com.telecominfraproject.wlan.core.scheduler.models.ScheduleThrottle;
+import com.telecominfraproject.wlan.core.scheduler.models.ScheduledJob;
+import com.telecominfraproject.wlan.partitioner.ServicePartitionerInterface;
+
+/**
+ * Scheduler that shares its jobs with the other members of the cluster.
+ *
+ * Every job is persisted in a Hazelcast IMap (jobId -> zipped
+ * {@link DistributedJobRecord}), and is scheduled only on the member that owns
+ * it: hash of the jobId modulo total number of partitions equals the current
+ * partition of the {@link ServicePartitionerInterface} - use the server side
+ * partitioner, see DynamicServiceServerPartitioner. Jobs submitted on other
+ * members, and jobs that move to this member when the cluster membership
+ * changes, are re-created with the {@link DistributedJobFactory}.
+ *
+ * Before a due job is enqueued the owner removes its record from the IMap, if
+ * the record is gone the job has been fired or cancelled elsewhere and it is
+ * dropped. Records of the jobs whose time window ended before they could be
+ * fired are removed the same way, the owner cancels those jobs. Jobs are fired at most once; a job claimed by a member that crashes
+ * before running it is lost. A job whose claim fails is not fired, it stays in
+ * the IMap and is picked up again by the next full sync.
+ *
+ * Cancelled jobs are marked as cancelled in the IMap before their records are
+ * removed, only those invoke
+ * {@linkplain ScheduledJob#cancel(Object, long, ImmutableTimeWindow)} on the
+ * owner. Records removed by a claim of another member just drop the local
+ * copy of the job.
+ *
+ * Ownership is re-checked every
+ * tip.wlan.scheduler.distributed.rebalanceIntervalMs, when it changed the
+ * records of the owned jobs are read from the IMap and the local jobs are
+ * re-homed. Records are selected on the cluster members with
+ * {@link OwnedJobsPredicate}, so this class has to be on the classpath of the
+ * Hazelcast members.
+ *
+ * @author yongli
+ *
+ */
+public abstract class DistributedScheduler<I extends Comparable<I>> extends BaseScheduler<I> {
+
+    private static final long REBALANCE_INTERVAL_MS = Long.getLong("tip.wlan.scheduler.distributed.rebalanceIntervalMs",
+            TimeUnit.SECONDS.toMillis(30));
+    private static final long FULL_SYNC_INTERVAL_MS = Long.getLong("tip.wlan.scheduler.distributed.fullSyncIntervalMs",
+            TimeUnit.MINUTES.toMillis(10));
+    private static final long CLAIM_TIMEOUT_MS = Long.getLong("tip.wlan.scheduler.distributed.claimTimeoutMs",
+            TimeUnit.SECONDS.toMillis(10));
+    private static final int MAX_SUBMIT_ATTEMPTS = 3;
+
+    private final HazelcastInstance hazelcastInstance;
+    private final String mapName;
+    private final ServicePartitionerInterface partitioner;
+    private final DistributedJobFactory<I> jobFactory;
+
+    private ScheduledExecutorService rebalanceExecutor;
+
+    /**
+     * Map proxy the listener is registered with. Hazelcast client can be
+     * re-connected, and the new proxy needs its own listener.
+     */
+    private IMap<I, byte[]> listenedJobsMap;
+    private String listenerRegistrationId;
+    private int lastTotalNumberOfPartitions = -1;
+    private int lastCurrentPartition = -1;
+    private long lastFullSyncTime;
+
+    /**
+     * @param Logger
+     * @param throttle
+     * @param dispatchExecutor
+     *            - worker pool that runs {@link #enqueuJob(JobDetails)}, null
+     *            to run it on the scheduler thread
+     * @param hazelcastInstance
+     * @param mapName
+     *            - name of the IMap where jobs are kept, must be the same on
+     *            all the members
+     * @param partitioner
+     * @param jobFactory
+     */
+    public DistributedScheduler(Logger Logger, final ScheduleThrottle throttle, final Executor dispatchExecutor,
+            HazelcastInstance hazelcastInstance, String mapName, ServicePartitionerInterface partitioner,
+            DistributedJobFactory<I> jobFactory) {
+        super(Logger, throttle, dispatchExecutor);
+        this.hazelcastInstance = hazelcastInstance;
+        this.mapName = mapName;
+        this.partitioner = partitioner;
+        this.jobFactory = jobFactory;
+    }
+
+    @Override
+    public boolean startScheduler(long timeout) {
+        boolean result = super.startScheduler(timeout);
+        synchronized (this) {
+            if (result && null == this.rebalanceExecutor) {
+                this.rebalanceExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, getName() + "-rebalance");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                this.rebalanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            rebalance();
+                        } catch (Exception exp) {
+                            getLogger().error("Scheduler {} failed to rebalance jobs", getName(), exp);
+                        }
+                    }
+                }, 0, REBALANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean shutdownScheduler(long timeout) {
+        synchronized (this) {
+            if (null != this.rebalanceExecutor) {
+                this.rebalanceExecutor.shutdownNow();
+                this.rebalanceExecutor = null;
+            }
+            removeListener();
+        }
+        return super.shutdownScheduler(timeout);
+    }
+
+    /**
+     * Persist the job in the cluster. It is scheduled on this member only if
+     * this member owns it, otherwise the job is re-created by the owner and
+     * the passed job object is not used.
+     *
+     * @throws IllegalArgumentException
+     *             if schedule has empty time window
+     * @throws IllegalStateException
+     *             if scheduler is not running
+     */
+    @Override
+    public void submitJob(final JobSchedule<I> schedule, final ScheduledJob<I> job) {
+        if (!isRunning()) {
+            throw new IllegalStateException("Schedule is not running");
+        }
+        if (schedule.getTimeWindows().isEmpty()) {
+            throw new IllegalArgumentException("Empty time window in " + schedule);
+        }
+        // record goes first, a due job cannot be claimed before it exists
+        getJobsMap().set(schedule.getJobId(), new DistributedJobRecord(schedule.getTimeWindows()).toZippedBytes());
+        if (isOwner(schedule.getJobId())) {
+            // replace the copy the listener may have created with the factory,
+            // the listener can create it again before we add ours
+            boolean added = false;
+            for (int attempt = 0; attempt < MAX_SUBMIT_ATTEMPTS && !added; ++attempt) {
+                getJobWheel().removeJob(schedule.getJobId());
+                added = getJobWheel().addJob(schedule, job);
+            }
+            if (!added) {
+                getLogger().warn("Job {} is scheduled with the copy created by {}", schedule.getJobId(),
+                        jobFactory.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Remove the job from the cluster, the owner will invoke
+     * {@linkplain ScheduledJob#cancel(Object, long, ImmutableTimeWindow)}
+     */
+    @Override
+    public void cancelJob(final I jobId) {
+        if (null == jobId) {
+            return;
+        }
+        IMap<I, byte[]> jobsMap = getJobsMap();
+        DistributedJobRecord cancelledRecord = new DistributedJobRecord();
+        cancelledRecord.setCancelled(true);
+        if (null != jobsMap.replace(jobId, cancelledRecord.toZippedBytes())) {
+            jobsMap.delete(jobId);
+        }
+        super.cancelJob(jobId);
+    }
+
+    @Override
+    public boolean rescheduleJob(final I jobId, final ImmutableTimeWindow timeWindows) {
+        if (timeWindows.isEmpty()) {
+            throw new IllegalArgumentException("Empty time window for " + jobId);
+        }
+        if (null == getJobsMap().replace(jobId, new DistributedJobRecord(timeWindows).toZippedBytes())) {
+            return false;
+        }
+        if (isOwner(jobId)) {
+            super.rescheduleJob(jobId, timeWindows);
+        }
+        return true;
+    }
+
+    /**
+     * Claim the due jobs by removing their records from the cluster, and
+     * enqueue the ones that were claimed.
+     */
+    @Override
+    protected void enqueuJobs(List<JobDetails<I>> batch) {
+        IMap<I, byte[]> jobsMap = getJobsMap();
+        List<Future<byte[]>> claims = new ArrayList<>(batch.size());
+        for (JobDetails<I> jobDetails : batch) {
+            claims.add(jobsMap.removeAsync(jobDetails.getSchedule().getJobId()));
+        }
+
+        String servoMetricPrefix = "scheduler-" + getName() + "-";
+        List<JobDetails<I>> claimedJobs = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); ++i) {
+            JobDetails<I> jobDetails = batch.get(i);
+            byte[] claimedRecord;
+            try {
+                claimedRecord = claims.get(i).get(CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                getLogger().warn("Interrupted while claiming job {}, skipping it", jobDetails);
+                CloudMetricsUtils.getCounter(servoMetricPrefix + "claimError-count").increment();
+                continue;
+            } catch (ExecutionException | TimeoutException exp) {
+                // if the record is still there, the next full sync schedules the job again
+                getLogger().warn("Failed to claim job {}, skipping it: {}", jobDetails, exp.getMessage());
+                CloudMetricsUtils.getCounter(servoMetricPrefix + "claimError-count").increment();
+                continue;
+            }
+
+            if (null == claimedRecord) {
+                getLogger().debug("Job {} was fired or cancelled by another member", jobDetails);
+                CloudMetricsUtils.getCounter(servoMetricPrefix + "claimLost-count").increment();
+            } else if (readRecord(claimedRecord).isCancelled()) {
+                // claimed between the cancel mark and the removal, the listener will not find it in the wheel
+                jobDetails.getJob().cancel(jobDetails.getSchedule().getJobId(), System.currentTimeMillis(),
+                        jobDetails.getSchedule().getTimeWindows());
+            } else {
+                claimedJobs.add(jobDetails);
+            }
+        }
+
+        super.enqueuJobs(claimedJobs);
+    }
+
+    /**
+     * Remove the records of the expired jobs from the cluster, otherwise every
+     * full sync would schedule them again. Only the jobs whose records were
+     * removed by this member are cancelled.
+     */
+    @Override
+    protected void expireJobs(List<JobDetails<I>> expiredJobs, long fireTime) {
+        IMap<I, byte[]> jobsMap = getJobsMap();
+        List<Future<byte[]>> removals = new ArrayList<>(expiredJobs.size());
+        for (JobDetails<I> jobDetails : expiredJobs) {
+            removals.add(jobsMap.removeAsync(jobDetails.getSchedule().getJobId()));
+        }
+
+        List<JobDetails<I>> removedJobs = new ArrayList<>(expiredJobs.size());
+        for (int i = 0; i < expiredJobs.size(); ++i) {
+            JobDetails<I> jobDetails = expiredJobs.get(i);
+            try {
+                if (null != removals.get(i).get(CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    removedJobs.add(jobDetails);
+                } else {
+                    getLogger().debug("Expired job {} was fired or cancelled by another member", jobDetails);
+                }
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                getLogger().warn("Interrupted while removing expired job {}", jobDetails);
+                CloudMetricsUtils.getCounter("scheduler-" + getName() + "-claimError-count").increment();
+            } catch (ExecutionException | TimeoutException exp) {
+                // if the record is still there, the next full sync expires the job again
+                getLogger().warn("Failed to remove expired job {}: {}", jobDetails, exp.getMessage());
+                CloudMetricsUtils.getCounter("scheduler-" + getName() + "-claimError-count").increment();
+            }
+        }
+
+        super.expireJobs(removedJobs, fireTime);
+    }
+
+    /**
+     * Make sure the listener is registered with the current map proxy, and
+     * re-home the jobs if the ownership has changed. Called periodically, can
+     * be called when the partitioner reports a membership change.
+     */
+    public synchronized void rebalance() {
+        IMap<I, byte[]> jobsMap = getJobsMap();
+        boolean listenerChanged = false;
+        if (jobsMap != this.listenedJobsMap) {
+            removeListener();
+            this.listenerRegistrationId = jobsMap.addEntryListener(new JobsMapListener(), true);
+            this.listenedJobsMap = jobsMap;
+            listenerChanged = true;
+        }
+
+        int totalNumberOfPartitions = partitioner.getTotalNumberOfPartitions();
+        int currentPartition = partitioner.getCurrentPartition();
+        boolean partitionChanged = (totalNumberOfPartitions != this.lastTotalNumberOfPartitions)
+                || (currentPartition != this.lastCurrentPartition);
+        long currentTime = System.currentTimeMillis();
+
+        if (!listenerChanged && !partitionChanged && currentTime - this.lastFullSyncTime < FULL_SYNC_INTERVAL_MS) {
+            return;
+        }
+
+        if (partitionChanged) {
+            getLogger().info("Scheduler {} partition changed from {} of {} to {} of {}, re-homing jobs", getName(),
+                    this.lastCurrentPartition, this.lastTotalNumberOfPartitions, currentPartition,
+                    totalNumberOfPartitions);
+        }
+        this.lastTotalNumberOfPartitions = totalNumberOfPartitions;
+        this.lastCurrentPartition = currentPartition;
+        this.lastFullSyncTime = currentTime;
+
+        syncWithJobsMap(jobsMap, totalNumberOfPartitions, currentPartition);
+    }
+
+    /**
+     * @param jobId
+     * @return true if this member should fire the job
+     */
+    protected boolean isOwner(I jobId) {
+        return isOwner(jobId, partitioner.getTotalNumberOfPartitions(), partitioner.getCurrentPartition());
+    }
+
+    private static boolean isOwner(Object jobId, int totalNumberOfPartitions, int currentPartition) {
+        if (totalNumberOfPartitions <= 0) {
+            // partitioner has not registered this member yet
+            return false;
+        }
+        return Math.floorMod(jobId.hashCode(), totalNumberOfPartitions) == currentPartition;
+    }
+
+    private IMap<I, byte[]> getJobsMap() {
+        return hazelcastInstance.getMap(mapName);
+    }
+
+    private void removeListener() {
+        if (null != this.listenedJobsMap && null != this.listenerRegistrationId) {
+            try {
+                this.listenedJobsMap.removeEntryListener(this.listenerRegistrationId);
+            } catch (Exception exp) {
+                // proxy of the old client, nothing to remove
+                getLogger().debug("Failed to remove listener from {}: {}", mapName, exp.getMessage());
+            }
+        }
+        this.listenedJobsMap = null;
+        this.listenerRegistrationId = null;
+    }
+
+    /**
+     * Schedule the jobs this member owns, and drop the ones it does not own or
+     * the ones that are no longer in the cluster. Only the records of the owned
+     * jobs are read from the cluster.
+     */
+    private void syncWithJobsMap(IMap<I, byte[]> jobsMap, int totalNumberOfPartitions, int currentPartition) {
+        Set<I> localJobIds = getJobWheel().getJobIds();
+        int added = 0;
+        int released = 0;
+
+        for (Iterator<I> iter = localJobIds.iterator(); iter.hasNext();) {
+            I jobId = iter.next();
+            if (!isOwner(jobId, totalNumberOfPartitions, currentPartition)) {
+                iter.remove();
+                if (null != getJobWheel().removeJob(jobId)) {
+                    // new owner picks it up
+                    released++;
+                }
+            }
+        }
+
+        if (totalNumberOfPartitions > 0) {
+            for (Map.Entry<I, byte[]> entry : jobsMap
+                    .entrySet(new OwnedJobsPredicate<I>(totalNumberOfPartitions, currentPartition))) {
+                I jobId = entry.getKey();
+                boolean isLocal = localJobIds.remove(jobId);
+                if (!isLocal) {
+                    added++;
+                }
+                scheduleLocally(jobId, entry.getValue());
+            }
+        }
+
+        // fired or cancelled on another member
+        for (I jobId : localJobIds) {
+            getJobWheel().removeJob(jobId);
+        }
+
+        getLogger().info("Scheduler {} synchronized with {}: added {}, released {}, removed {}, scheduled {}", getName(),
+                mapName, added, released, localJobIds.size(), getJobWheel().getSize());
+        if (added + released > 0) {
+            CloudMetricsUtils.getCounter("scheduler-" + getName() + "-rehomed-count").increment(added + released);
+        }
+    }
+
+    /**
+     * Add the job to the local wheel, or move it to the time window from the
+     * record.
+     */
+    private void scheduleLocally(I jobId, byte[] recordBytes) {
+        DistributedJobRecord record = readRecord(recordBytes);
+        if (record.isCancelled()) {
+            // being removed, the listener cancels the local copy
+            return;
+        }
+        ImmutableTimeWindow timeWindows = record.getTimeWindows();
+        JobDetails<I> jobDetails = getJobWheel().getJob(jobId);
+        if (null != jobDetails) {
+            if (!timeWindows.equals(jobDetails.getSchedule().getTimeWindows())) {
+                getJobWheel().rescheduleJob(jobId, timeWindows);
+            }
+            return;
+        }
+
+        ScheduledJob<I> job = jobFactory.createJob(jobId, timeWindows);
+        if (null != job) {
+            getJobWheel().addJob(new JobSchedule<>(jobId, timeWindows), job);
+        }
+    }
+
+    private void cancelLocally(I jobId) {
+        JobDetails<I> jobDetails = getJobWheel().removeJob(jobId);
+        if (null != jobDetails) {
+            jobDetails.getJob().cancel(jobId, System.currentTimeMillis(), jobDetails.getSchedule().getTimeWindows());
+        }
+    }
+
+    private static DistributedJobRecord readRecord(byte[] recordBytes) {
+        return BaseJsonModel.fromZippedBytes(recordBytes, DistributedJobRecord.class);
+    }
+
+    /**
+     * Selects the records of the jobs owned by one partition, evaluated on the
+     * Hazelcast members
+     */
+    public static class OwnedJobsPredicate<I> implements Predicate<I, byte[]> {
+        private static final long serialVersionUID = -3604712378941623521L;
+
+        private final int totalNumberOfPartitions;
+        private final int currentPartition;
+
+        public OwnedJobsPredicate(int totalNumberOfPartitions, int currentPartition) {
+            this.totalNumberOfPartitions = totalNumberOfPartitions;
+            this.currentPartition = currentPartition;
+        }
+
+        @Override
+        public boolean apply(Map.Entry<I, byte[]> mapEntry) {
+            return isOwner(mapEntry.getKey(), totalNumberOfPartitions, currentPartition);
+        }
+    }
+
+    /**
+     * Keeps the local wheel in sync with the changes made by the other members
+     */
+    private class JobsMapListener implements EntryAddedListener<I, byte[]>, EntryUpdatedListener<I, byte[]>,
+            EntryRemovedListener<I, byte[]> {
+
+        @Override
+        public void entryAdded(EntryEvent<I, byte[]> event) {
+            if (isOwner(event.getKey())) {
+                scheduleLocally(event.getKey(), event.getValue());
+            }
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<I, byte[]> event) {
+            if (readRecord(event.getValue()).isCancelled()) {
+                cancelLocally(event.getKey());
+            } else if (isOwner(event.getKey())) {
+                scheduleLocally(event.getKey(), event.getValue());
+            }
+        }
+
+        @Override
+        public void entryRemoved(EntryEvent<I, byte[]> event) {
+            byte[] removedRecord = (null != event.getOldValue()) ? event.getOldValue() : event.getValue();
+            if (null != removedRecord && readRecord(removedRecord).isCancelled()) {
+                cancelLocally(event.getKey());
+            } else {
+                // claimed by another member - fired there, or to be fired by it
+                getJobWheel().removeJob(event.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * 
+ */
+package com.telecominfraproject.wlan.core.scheduler.models;
+
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+
+/**
+ * Used by the distributed scheduler to re-create a job on the member that
+ * owns it: the job was submitted on another member, or the ownership has moved
+ * after a cluster membership change.
+ * 
+ * @author yongli
+ *
+ */
+public interface DistributedJobFactory<I> {
+
+    /**
+     * @param id
+     * @param timeWindows
+     *            - time windows when the job is schedule to run
+     * @return job, null if it should not be scheduled any more
+     */
+    public ScheduledJob<I> createJob(final I id, final ImmutableTimeWindow timeWindows);
+}
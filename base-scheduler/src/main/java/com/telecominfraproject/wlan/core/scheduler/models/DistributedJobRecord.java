@@ -0,0 +1,69 @@
+/**
+ * 
+ */
+package com.telecominfraproject.wlan.core.scheduler.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+
+/**
+ * Record of a scheduled job kept in the cluster by the distributed scheduler,
+ * the job itself is re-created from its id on the member that owns it.
+ * 
+ * @author yongli
+ *
+ */
+public class DistributedJobRecord extends BaseJsonModel {
+    private static final long serialVersionUID = 3395167467209870237L;
+
+    private long beginTime;
+    private long endTime;
+    /**
+     * Set on the record right before it is removed by cancelJob, so that the
+     * owner can tell a cancellation from a job claimed by another member
+     */
+    private boolean cancelled;
+
+    public DistributedJobRecord() {
+    }
+
+    public DistributedJobRecord(ImmutableTimeWindow timeWindows) {
+        this.beginTime = timeWindows.getBeginTime();
+        this.endTime = timeWindows.getEndTime();
+    }
+
+    public long getBeginTime() {
+        return beginTime;
+    }
+
+    public void setBeginTime(long beginTime) {
+        this.beginTime = beginTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    @JsonIgnore
+    public ImmutableTimeWindow getTimeWindows() {
+        return new ImmutableTimeWindow(beginTime, endTime);
+    }
+
+    @Override
+    public DistributedJobRecord clone() {
+        return (DistributedJobRecord) super.clone();
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ *
+ */
+package com.telecominfraproject.wlan.core.scheduler.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
+
+/**
+ * Hashed timing wheel of scheduled jobs.
+ *
+ * Time is divided into ticks of {@link #getTickMs()}, a job is placed into the
+ * bucket of the first tick at or after the begin time of its time window.
+ * Adding, removing and re-scheduling a job are constant time, regardless of how
+ * many jobs are in the wheel. {@link #advance(long)} returns all the jobs that
+ * became due since the previous call, only the buckets of the elapsed ticks are
+ * visited.
+ *
+ * @param I
+ *            - Id
+ * @author yongli
+ *
+ */
+public class TimingWheel<I extends Comparable<I>> {
+
+    private static class Entry<C extends Comparable<C>> {
+        private final JobDetails<C> details;
+        private final long tick;
+
+        Entry(JobDetails<C> details, long tick) {
+            this.details = details;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final List<Map<I, Entry<I>>> buckets;
+    private final Map<I, Entry<I>> entries = new HashMap<>();
+
+    /**
+     * Last tick processed by {@link #advance(long)}, negative if it was never
+     * called
+     */
+    private long lastTick = -1;
+
+    /**
+     * @param tickMs
+     *            - resolution of the wheel, in ms
+     * @param wheelSize
+     *            - number of buckets, rounded up to the power of 2
+     */
+    public TimingWheel(long tickMs, int wheelSize) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs must be positive: " + tickMs);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("wheelSize is out of range: " + wheelSize);
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            this.buckets.add(new LinkedHashMap<I, Entry<I>>());
+        }
+    }
+
+    /**
+     * Add a job, it is ignored if a job with the same id is already in the
+     * wheel.
+     *
+     * @param schedule
+     * @param job
+     * @return true if job is added
+     */
+    public synchronized boolean addJob(JobSchedule<I> schedule, ScheduledJob<I> job) {
+        if (entries.containsKey(schedule.getJobId())) {
+            return false;
+        }
+        long tick = ceilTick(schedule.getTimeWindows().getBeginTime());
+        if (lastTick >= 0 && tick <= lastTick) {
+            // already due, fire it on the next advance
+            tick = lastTick + 1;
+        }
+        Entry<I> entry = new Entry<>(new JobDetails<>(schedule, job), tick);
+        entries.put(schedule.getJobId(), entry);
+        bucket(tick).put(schedule.getJobId(), entry);
+        return true;
+    }
+
+    /**
+     * Remove a job
+     *
+     * @param jobId
+     * @return removed job, null if it is not in the wheel
+     */
+    public synchronized JobDetails<I> removeJob(final I jobId) {
+        Entry<I> entry = entries.remove(jobId);
+        if (null == entry) {
+            return null;
+        }
+        bucket(entry.tick).remove(jobId);
+        return entry.details;
+    }
+
+    /**
+     * Move a job to a new time window
+     *
+     * @param jobId
+     * @param timeWindows
+     * @return re-scheduled job, null if it is not in the wheel
+     */
+    public synchronized JobDetails<I> rescheduleJob(final I jobId, final ImmutableTimeWindow timeWindows) {
+        JobDetails<I> details = removeJob(jobId);
+        if (null == details) {
+            return null;
+        }
+        addJob(new JobSchedule<>(jobId, timeWindows), details.getJob());
+        return entries.get(jobId).details;
+    }
+
+    /**
+     * Remove and return all the jobs that are due at currentTime, ordered by
+     * their schedule.
+     *
+     * @param currentTime
+     * @return due jobs, empty list if none
+     */
+    public synchronized List<JobDetails<I>> advance(long currentTime) {
+        long currentTick = Math.floorDiv(currentTime, tickMs);
+        if (currentTick <= lastTick) {
+            return Collections.emptyList();
+        }
+
+        List<JobDetails<I>> result = new ArrayList<>();
+        if (lastTick < 0 || currentTick - lastTick > mask) {
+            // first run, or more than a full turn of the wheel has elapsed
+            for (Map<I, Entry<I>> bucket : buckets) {
+                collectDue(bucket, currentTick, result);
+            }
+        } else {
+            for (long tick = lastTick + 1; tick <= currentTick; ++tick) {
+                collectDue(bucket(tick), currentTick, result);
+            }
+        }
+        lastTick = currentTick;
+
+        if (result.size() > 1) {
+            Collections.sort(result, new Comparator<JobDetails<I>>() {
+                @Override
+                public int compare(JobDetails<I> o1, JobDetails<I> o2) {
+                    return o1.getSchedule().compareTo(o2.getSchedule());
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * @param jobId
+     * @return job in the wheel, null if there is none
+     */
+    public synchronized JobDetails<I> getJob(final I jobId) {
+        Entry<I> entry = entries.get(jobId);
+        return (null == entry) ? null : entry.details;
+    }
+
+    /**
+     * @return copy of the ids of all the jobs in the wheel
+     */
+    @JsonIgnore
+    public synchronized Set<I> getJobIds() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * Scans all the jobs, use it for the status only.
+     *
+     * @return schedule of the earliest job in the wheel, null if empty
+     */
+    @JsonIgnore
+    public synchronized JobSchedule<I> getFirstTimer() {
+        JobSchedule<I> result = null;
+        for (Entry<I> entry : entries.values()) {
+            if (null == result || entry.details.getSchedule().compareTo(result) < 0) {
+                result = entry.details.getSchedule();
+            }
+        }
+        return result;
+    }
+
+    @JsonIgnore
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    public int getWheelSize() {
+        return mask + 1;
+    }
+
+    public JobMapStatus<I> getStatus() {
+        return new JobMapStatus<>(getSize(), getFirstTimer());
+    }
+
+    @Override
+    public final String toString() {
+        return BaseJsonModel.toJsonString(this);
+    }
+
+    private void collectDue(Map<I, Entry<I>> bucket, long currentTick, List<JobDetails<I>> result) {
+        Iterator<Entry<I>> iter = bucket.values().iterator();
+        while (iter.hasNext()) {
+            Entry<I> entry = iter.next();
+            // entries of the later turns of the wheel stay in the bucket
+            if (entry.tick <= currentTick) {
+                iter.remove();
+                entries.remove(entry.details.getSchedule().getJobId());
+                result.add(entry.details);
+            }
+        }
+    }
+
+    private Map<I, Entry<I>> bucket(long tick) {
+        return buckets.get((int) (tick & mask));
+    }
+
+    private long ceilTick(long time) {
+        return -Math.floorDiv(-time, tickMs);
+    }
+}
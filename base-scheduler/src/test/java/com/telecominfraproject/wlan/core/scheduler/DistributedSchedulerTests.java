@@ -0,0 +1,350 @@
+package com.telecominfraproject.wlan.core.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+import com.telecominfraproject.wlan.core.scheduler.models.DistributedJobFactory;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
+import com.telecominfraproject.wlan.core.scheduler.models.JobSchedule;
+import com.telecominfraproject.wlan.core.scheduler.models.ScheduledJob;
+import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest;
+import com.telecominfraproject.wlan.hazelcast.HazelcastForUnitTest.HazelcastUnitTestManager;
+import com.telecominfraproject.wlan.partitioner.ClusterMonitorCallback;
+import com.telecominfraproject.wlan.partitioner.ServicePartitionerInterface;
+
+/**
+ * Members of the cluster are simulated by several schedulers that share the same hazelcast instance,
+ * each with its own partitioner.
+ */
+public class DistributedSchedulerTests {
+    private static final Logger LOG = LoggerFactory.getLogger(DistributedSchedulerTests.class);
+
+    private static final long START_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long WAIT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static HazelcastUnitTestManager testManager = new HazelcastUnitTestManager();
+    private static HazelcastInstance hazelcastInstance;
+
+    /**
+     * jobId -> names of the members that fired it
+     */
+    private final ConcurrentHashMap<Long, List<String>> firedJobs = new ConcurrentHashMap<>();
+    /**
+     * jobId -> names of the members that cancelled it
+     */
+    private final ConcurrentHashMap<Long, List<String>> cancelledJobs = new ConcurrentHashMap<>();
+    private final List<TestDistributedScheduler> schedulers = new ArrayList<>();
+    private String mapName;
+
+    @BeforeClass
+    public static void setUp() {
+        HazelcastUnitTestManager.initializeSystemProperty(DistributedSchedulerTests.class);
+        hazelcastInstance = new HazelcastForUnitTest().hazelcastInstanceTest();
+        testManager.registerInstance(hazelcastInstance);
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        testManager.shutdownAllInstances();
+    }
+
+    @After
+    public void stopSchedulers() {
+        for (TestDistributedScheduler scheduler : schedulers) {
+            if (scheduler.isRunning()) {
+                scheduler.shutdownScheduler(START_TIMEOUT_MS);
+            }
+        }
+        schedulers.clear();
+    }
+
+    @Test
+    public void testJobsAreClaimedAndFiredOnceByTheirOwners() throws InterruptedException {
+        mapName = "ds-claim";
+        TestDistributedScheduler member0 = startMember("member0", 2, 0);
+        TestDistributedScheduler member1 = startMember("member1", 2, 1);
+
+        List<Long> jobIds = new ArrayList<>();
+        for (long jobId = 1; jobId <= 20; jobId++) {
+            jobIds.add(jobId);
+            // half of the jobs are submitted on the member that does not own them
+            TestDistributedScheduler submitter = (jobId % 4 < 2) ? member0 : member1;
+            submitter.submitJob(new JobSchedule<>(jobId, dueIn(500)), submitter.createJob(jobId));
+        }
+
+        waitForFiredJobs(jobIds);
+        // give duplicate firings time to show up
+        Thread.sleep(500);
+
+        for (Long jobId : jobIds) {
+            assertEquals("job " + jobId, Collections.singletonList(ownerName(jobId, 2)), firedJobs.get(jobId));
+        }
+        assertTrue(hazelcastInstance.getMap(mapName).isEmpty());
+        assertTrue(cancelledJobs.isEmpty());
+        assertEquals(0, member0.getJobWheel().getSize());
+        assertEquals(0, member1.getJobWheel().getSize());
+    }
+
+    @Test
+    public void testCancelIsDistinguishedFromClaim() throws InterruptedException {
+        mapName = "ds-cancel";
+        TestDistributedScheduler member0 = startMember("member0", 2, 0);
+        TestDistributedScheduler member1 = startMember("member1", 2, 1);
+
+        // both jobs are owned by member1, and submitted on member0
+        member0.submitJob(new JobSchedule<>(1L, dueIn(60000)), member0.createJob(1L));
+        member0.submitJob(new JobSchedule<>(3L, dueIn(60000)), member0.createJob(3L));
+        waitForWheelSize(member1, 2);
+
+        // explicit cancel on a member that does not own the job - owner cancels it
+        member0.cancelJob(1L);
+        waitForCancelledJob(1L);
+        assertEquals(Collections.singletonList("member1"), cancelledJobs.get(1L));
+
+        // record removed by a claim of another member - owner drops the job without cancelling it
+        assertTrue(null != hazelcastInstance.getMap(mapName).remove(3L));
+        waitForWheelSize(member1, 0);
+        Thread.sleep(500);
+        assertNull(cancelledJobs.get(3L));
+        assertTrue(firedJobs.isEmpty());
+    }
+
+    @Test
+    public void testJobsOfFailedMemberAreFiredBySurvivor() throws InterruptedException {
+        mapName = "ds-failover";
+        TestDistributedScheduler member0 = startMember("member0", 2, 0);
+        TestDistributedScheduler member1 = startMember("member1", 2, 1);
+
+        List<Long> jobIds = new ArrayList<>();
+        for (long jobId = 1; jobId <= 10; jobId++) {
+            jobIds.add(jobId);
+            member0.submitJob(new JobSchedule<>(jobId, dueIn(2000)), member0.createJob(jobId));
+        }
+        waitForWheelSize(member0, 5);
+        waitForWheelSize(member1, 5);
+
+        // member1 crashes, its records stay in the cluster
+        member1.shutdownScheduler(START_TIMEOUT_MS);
+        assertFalse(member1.isRunning());
+
+        // partitioner of the survivor reports the new membership
+        member0.getPartitioner().set(1, 0);
+        member0.rebalance();
+        assertEquals(10, member0.getJobWheel().getSize());
+
+        waitForFiredJobs(jobIds);
+        for (Long jobId : jobIds) {
+            assertEquals("job " + jobId, Collections.singletonList("member0"), firedJobs.get(jobId));
+        }
+    }
+
+    @Test
+    public void testJobsAreRehomedWhenMemberJoins() throws InterruptedException {
+        mapName = "ds-rehome";
+        TestDistributedScheduler member0 = startMember("member0", 1, 0);
+
+        List<Long> jobIds = new ArrayList<>();
+        for (long jobId = 1; jobId <= 10; jobId++) {
+            jobIds.add(jobId);
+            member0.submitJob(new JobSchedule<>(jobId, dueIn(3000)), member0.createJob(jobId));
+        }
+        assertEquals(10, member0.getJobWheel().getSize());
+
+        // member1 joins, member0 releases the odd jobs
+        TestDistributedScheduler member1 = startMember("member1", 2, 1);
+        member0.getPartitioner().set(2, 0);
+        member0.rebalance();
+        assertEquals(5, member0.getJobWheel().getSize());
+        assertEquals(5, member1.getJobWheel().getSize());
+
+        waitForFiredJobs(jobIds);
+        Thread.sleep(500);
+        for (Long jobId : jobIds) {
+            assertEquals("job " + jobId, Collections.singletonList(ownerName(jobId, 2)), firedJobs.get(jobId));
+        }
+        assertTrue(cancelledJobs.isEmpty());
+    }
+
+    @Test
+    public void testRecordOfExpiredJobIsRemoved() throws InterruptedException {
+        mapName = "ds-expired";
+        TestDistributedScheduler member0 = startMember("member0", 1, 0);
+
+        // time window ended before the job could be fired
+        long endTime = System.currentTimeMillis() - 1000;
+        member0.submitJob(new JobSchedule<>(1L, new ImmutableTimeWindow(endTime - 1000, endTime)), member0.createJob(1L));
+        waitForCancelledJob(1L);
+        assertTrue(hazelcastInstance.getMap(mapName).isEmpty());
+
+        // full syncs do not pick up the expired job again
+        member0.getPartitioner().set(2, 0);
+        member0.rebalance();
+        member0.getPartitioner().set(1, 0);
+        member0.rebalance();
+        Thread.sleep(500);
+        assertEquals(0, member0.getJobWheel().getSize());
+        assertEquals(Collections.singletonList("member0"), cancelledJobs.get(1L));
+        assertTrue(firedJobs.isEmpty());
+    }
+
+    private TestDistributedScheduler startMember(String name, int totalNumberOfPartitions, int currentPartition) {
+        TestPartitioner partitioner = new TestPartitioner();
+        partitioner.set(totalNumberOfPartitions, currentPartition);
+        TestDistributedScheduler scheduler = new TestDistributedScheduler(name, mapName, partitioner);
+        schedulers.add(scheduler);
+        assertTrue(scheduler.startScheduler(START_TIMEOUT_MS));
+        // register the listener and load the jobs of this member right away
+        scheduler.rebalance();
+        return scheduler;
+    }
+
+    private static ImmutableTimeWindow dueIn(long ms) {
+        long beginTime = System.currentTimeMillis() + ms;
+        return new ImmutableTimeWindow(beginTime, beginTime + TimeUnit.MINUTES.toMillis(5));
+    }
+
+    private static String ownerName(long jobId, int totalNumberOfPartitions) {
+        return "member" + Math.floorMod(Long.hashCode(jobId), totalNumberOfPartitions);
+    }
+
+    private void waitForFiredJobs(List<Long> jobIds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (!firedJobs.keySet().containsAll(jobIds) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("fired " + firedJobs.keySet(), firedJobs.keySet().containsAll(jobIds));
+    }
+
+    private void waitForCancelledJob(Long jobId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (!cancelledJobs.containsKey(jobId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("cancelled " + cancelledJobs.keySet(), cancelledJobs.containsKey(jobId));
+    }
+
+    private static void waitForWheelSize(TestDistributedScheduler scheduler, int expectedSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (scheduler.getJobWheel().getSize() != expectedSize && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(expectedSize, scheduler.getJobWheel().getSize());
+    }
+
+    private static void record(ConcurrentHashMap<Long, List<String>> jobs, Long jobId, String memberName) {
+        jobs.computeIfAbsent(jobId, k -> Collections.synchronizedList(new ArrayList<String>())).add(memberName);
+    }
+
+    private static class TestPartitioner implements ServicePartitionerInterface {
+        private volatile int totalNumberOfPartitions;
+        private volatile int currentPartition;
+
+        void set(int totalNumberOfPartitions, int currentPartition) {
+            this.totalNumberOfPartitions = totalNumberOfPartitions;
+            this.currentPartition = currentPartition;
+        }
+
+        @Override
+        public int getTotalNumberOfPartitions() {
+            return totalNumberOfPartitions;
+        }
+
+        @Override
+        public int getCurrentPartition() {
+            return currentPartition;
+        }
+
+        @Override
+        public void monitorCluster(ClusterMonitorCallback clusterMonitorCallback) {
+        }
+
+        @Override
+        public List<String> getNodeUrls() {
+            return Collections.emptyList();
+        }
+    }
+
+    private class TestDistributedScheduler extends DistributedScheduler<Long> {
+        private final String name;
+        private final TestPartitioner partitioner;
+
+        TestDistributedScheduler(final String name, String mapName, TestPartitioner partitioner) {
+            super(LOG, null, null, hazelcastInstance, mapName, partitioner, new DistributedJobFactory<Long>() {
+                @Override
+                public ScheduledJob<Long> createJob(Long id, ImmutableTimeWindow timeWindows) {
+                    return new RecordingJob(name);
+                }
+            });
+            this.name = name;
+            this.partitioner = partitioner;
+        }
+
+        ScheduledJob<Long> createJob(Long jobId) {
+            return new RecordingJob(name);
+        }
+
+        TestPartitioner getPartitioner() {
+            return partitioner;
+        }
+
+        @Override
+        protected void enqueuJob(JobDetails<Long> jobDetails) {
+            JobSchedule<Long> schedule = jobDetails.getSchedule();
+            jobDetails.getJob().runJob(schedule.getJobId(), System.currentTimeMillis(), schedule.getTimeWindows());
+        }
+
+        @Override
+        protected void emptyJobQueue() {
+        }
+
+        @Override
+        public String getName() {
+            return "DistributedSchedulerTests-" + mapName + "-" + name;
+        }
+    }
+
+    /**
+     * Records the member where it was fired or cancelled
+     */
+    private class RecordingJob implements ScheduledJob<Long> {
+        private final String memberName;
+        private volatile boolean cancelled;
+
+        RecordingJob(String memberName) {
+            this.memberName = memberName;
+        }
+
+        @Override
+        public void runJob(Long id, long startTime, ImmutableTimeWindow timeWindows) {
+            record(firedJobs, id, memberName);
+        }
+
+        @Override
+        public void cancel(Long id, long startTime, ImmutableTimeWindow immutableTimeWindow) {
+            cancelled = true;
+            record(cancelledJobs, id, memberName);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.telecominfraproject.wlan.core.scheduler.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.core.model.scheduler.ImmutableTimeWindow;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMap.JobDetails;
+import com.telecominfraproject.wlan.core.scheduler.models.JobMapTests.TestJob;
+
+public class TimingWheelTests {
+
+    private static final long TICK_MS = 100;
+    private static final int WHEEL_SIZE = 8;
+    private static final long baseTime = 1500000000000L;
+
+    private TimingWheel<Long> wheel;
+
+    @Before
+    public void setup() {
+        this.wheel = new TimingWheel<>(TICK_MS, WHEEL_SIZE);
+        // position the wheel at baseTime
+        assertTrue(this.wheel.advance(baseTime).isEmpty());
+    }
+
+    @Test
+    public void testFireInOrder() {
+        for (long i = 0; i < 10; ++i) {
+            // reverse order of job ids
+            assertTrue(addJob(i, baseTime + (10 - i) * 50));
+        }
+        assertEquals(10, wheel.getSize());
+        assertEquals(Long.valueOf(9), wheel.getFirstTimer().getJobId());
+
+        assertTrue(wheel.advance(baseTime + 49).isEmpty());
+
+        List<JobDetails<Long>> due = wheel.advance(baseTime + 200);
+        assertEquals(4, due.size());
+        Long lastJobId = null;
+        for (JobDetails<Long> details : due) {
+            Long jobId = details.getSchedule().getJobId();
+            if (null != lastJobId) {
+                assertTrue(lastJobId > jobId);
+            }
+            lastJobId = jobId;
+            assertTrue(details.getSchedule().getTimeWindows().getBeginTime() <= baseTime + 200);
+        }
+
+        due = wheel.advance(baseTime + 1000);
+        assertEquals(6, due.size());
+        assertEquals(0, wheel.getSize());
+        assertNull(wheel.getFirstTimer());
+    }
+
+    @Test
+    public void testNotFiredEarly() {
+        assertTrue(addJob(1L, baseTime + 150));
+        // first tick at or after the begin time is baseTime + 200
+        assertTrue(wheel.advance(baseTime + 199).isEmpty());
+        assertEquals(1, wheel.advance(baseTime + 200).size());
+    }
+
+    @Test
+    public void testLaterTurns() {
+        long turn = TICK_MS * WHEEL_SIZE;
+        assertTrue(addJob(1L, baseTime + turn + TICK_MS));
+        assertTrue(addJob(2L, baseTime + 3 * turn + TICK_MS));
+
+        // same bucket, earlier turns of the wheel
+        assertTrue(wheel.advance(baseTime + TICK_MS).isEmpty());
+        assertTrue(wheel.advance(baseTime + turn).isEmpty());
+
+        List<JobDetails<Long>> due = wheel.advance(baseTime + turn + TICK_MS);
+        assertEquals(1, due.size());
+        assertEquals(Long.valueOf(1), due.get(0).getSchedule().getJobId());
+
+        // jump over more than a full turn
+        due = wheel.advance(baseTime + 5 * turn);
+        assertEquals(1, due.size());
+        assertEquals(Long.valueOf(2), due.get(0).getSchedule().getJobId());
+    }
+
+    @Test
+    public void testPastDue() {
+        wheel.advance(baseTime + 1000);
+        assertTrue(addJob(1L, baseTime));
+        assertEquals(1, wheel.advance(baseTime + 1000 + TICK_MS).size());
+    }
+
+    @Test
+    public void testRemoveAndReschedule() {
+        assertTrue(addJob(1L, baseTime + 100));
+        assertTrue(addJob(2L, baseTime + 100));
+        assertFalse(addJob(2L, baseTime + 300));
+
+        JobDetails<Long> removed = wheel.removeJob(1L);
+        assertNotNull(removed);
+        assertEquals(Long.valueOf(1), removed.getSchedule().getJobId());
+        assertNull(wheel.removeJob(1L));
+
+        JobDetails<Long> rescheduled = wheel.rescheduleJob(2L, new ImmutableTimeWindow(baseTime + 500, baseTime + 600));
+        assertNotNull(rescheduled);
+        assertEquals(baseTime + 500, rescheduled.getSchedule().getTimeWindows().getBeginTime());
+        assertTrue(rescheduled.getJob() instanceof TestJob);
+        assertNull(wheel.rescheduleJob(3L, new ImmutableTimeWindow(baseTime + 500, baseTime + 600)));
+
+        assertTrue(wheel.advance(baseTime + 400).isEmpty());
+        assertEquals(1, wheel.advance(baseTime + 500).size());
+        assertEquals(0, wheel.getSize());
+    }
+
+    private boolean addJob(long jobId, long beginTime) {
+        return wheel.addJob(new JobSchedule<>(jobId, new ImmutableTimeWindow(beginTime, beginTime + TimeUnit.MINUTES.toMillis(1))),
+                new TestJob(jobId));
+    }
+}
@@ -0,0 +1,194 @@
+package com.telecominfraproject.wlan.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasCustomerId;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasEquipmentId;
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+/**
+ * @author dtop
+ * Partitioned stream kept in memory, stand-in for the message broker in tests and benchmarks of the stream consumers.
+ * <br>
+ * Messages are appended to a partition picked by equipmentId or customerId of the model (round-robin for the other models),
+ * and are never removed. There is a single consumer group: all consumers created by {@link #createConsumer(long)} share the committed offsets,
+ * every consumer reads all the partitions starting from the committed offsets at the time it was created.
+ */
+public class InMemoryStreamBroker implements StreamInterface<QueuedStreamMessage> {
+
+	private final List<List<QueuedStreamMessage>> partitions;
+	private final long[] committedOffsets;
+	private final AtomicInteger nextUnkeyedPartition = new AtomicInteger();
+
+	public InMemoryStreamBroker(int numberOfPartitions) {
+		if(numberOfPartitions <= 0) {
+			throw new IllegalArgumentException("numberOfPartitions must be positive: " + numberOfPartitions);
+		}
+
+		partitions = new ArrayList<>(numberOfPartitions);
+		for(int i = 0; i < numberOfPartitions; i++) {
+			partitions.add(new ArrayList<>());
+		}
+		committedOffsets = new long[numberOfPartitions];
+	}
+
+	@Override
+	public void publish(QueuedStreamMessage record) {
+		publish(getPartition(record), record);
+	}
+
+	public synchronized void publish(int partition, QueuedStreamMessage record) {
+		partitions.get(partition).add(record);
+		notifyAll();
+	}
+
+	public int getNumberOfPartitions() {
+		return partitions.size();
+	}
+
+	/**
+	 * @param partition
+	 * @return offset of the next message to be published into the partition
+	 */
+	public synchronized long getEndOffset(int partition) {
+		return partitions.get(partition).size();
+	}
+
+	/**
+	 * @param partition
+	 * @return offset of the next message the consumers will read from the partition after a restart
+	 */
+	public synchronized long getCommittedOffset(int partition) {
+		return committedOffsets[partition];
+	}
+
+	/**
+	 * @return number of published messages that are not committed yet, in all the partitions
+	 */
+	public synchronized long getLag() {
+		long lag = 0;
+		for(int i = 0; i < partitions.size(); i++) {
+			lag += partitions.get(i).size() - committedOffsets[i];
+		}
+		return lag;
+	}
+
+	/**
+	 * @param pollTimeoutMs - how long {@link StreamConsumerInterface#poll()} waits for new messages
+	 * @return new consumer that reads all the partitions of this broker
+	 */
+	public synchronized StreamConsumerInterface<StreamRecord> createConsumer(long pollTimeoutMs) {
+		return new Consumer(pollTimeoutMs, committedOffsets.clone());
+	}
+
+	private int getPartition(QueuedStreamMessage record) {
+		BaseJsonModel model = record.getModel();
+		int h;
+		if(model instanceof HasEquipmentId) {
+			h = Long.hashCode(((HasEquipmentId) model).getEquipmentId());
+		} else if(model instanceof HasCustomerId) {
+			h = ((HasCustomerId) model).getCustomerId();
+		} else {
+			h = nextUnkeyedPartition.getAndIncrement();
+		}
+		return Math.floorMod(h ^ (h >>> 16), partitions.size());
+	}
+
+	private class Consumer implements StreamConsumerInterface<StreamRecord> {
+
+		private final long pollTimeoutMs;
+		private final long[] positions;
+		private final Set<Integer> pausedPartitions = new HashSet<>();
+		private int nextPartition;
+		private boolean closed;
+
+		Consumer(long pollTimeoutMs, long[] positions) {
+			this.pollTimeoutMs = pollTimeoutMs;
+			this.positions = positions;
+		}
+
+		@Override
+		public List<StreamRecord> poll() {
+			return poll(Integer.MAX_VALUE);
+		}
+
+		@Override
+		public List<StreamRecord> poll(int maxRecords) {
+			List<StreamRecord> result = new ArrayList<>();
+			synchronized(InMemoryStreamBroker.this) {
+				long deadline = System.currentTimeMillis() + pollTimeoutMs;
+				while(!closed) {
+					// round-robin over the partitions, so that a busy partition does not starve the others
+					for(int i = 0; i < positions.length && result.size() < maxRecords; i++) {
+						int partition = (nextPartition + i) % positions.length;
+						if(pausedPartitions.contains(partition)) {
+							continue;
+						}
+						List<QueuedStreamMessage> log = partitions.get(partition);
+						while(positions[partition] < log.size() && result.size() < maxRecords) {
+							long offset = positions[partition]++;
+							result.add(new StreamRecord(partition, offset, log.get((int) offset)));
+						}
+					}
+					nextPartition = (nextPartition + 1) % positions.length;
+
+					long waitMs = deadline - System.currentTimeMillis();
+					if(!result.isEmpty() || waitMs <= 0) {
+						break;
+					}
+					try {
+						InMemoryStreamBroker.this.wait(waitMs);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void commit(Map<Integer, Long> nextOffsets) {
+			synchronized(InMemoryStreamBroker.this) {
+				nextOffsets.forEach((partition, offset) -> committedOffsets[partition] = Math.max(committedOffsets[partition], offset));
+			}
+		}
+
+		@Override
+		public void seek(Map<Integer, Long> nextOffsets) {
+			synchronized(InMemoryStreamBroker.this) {
+				nextOffsets.forEach((partition, offset) -> positions[partition] = offset);
+			}
+		}
+
+		@Override
+		public void pause(Collection<Integer> partitionsToPause) {
+			synchronized(InMemoryStreamBroker.this) {
+				pausedPartitions.addAll(partitionsToPause);
+			}
+		}
+
+		@Override
+		public void resume(Collection<Integer> partitionsToResume) {
+			synchronized(InMemoryStreamBroker.this) {
+				pausedPartitions.removeAll(partitionsToResume);
+				InMemoryStreamBroker.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized(InMemoryStreamBroker.this) {
+				closed = true;
+				InMemoryStreamBroker.this.notifyAll();
+			}
+		}
+	}
+}
@@ -1,13 +1,65 @@
 package com.telecominfraproject.wlan.stream;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author dtop
+ * Client of a partitioned stream, driven by {@link StreamConsumerRuntime}.
+ * <br>
+ * Like the Kafka consumer, implementations do not have to be thread-safe: the runtime calls all the methods from its poll thread.
  *
  */
 public interface StreamConsumerInterface<T> {
 
-	//work in progress
+	/**
+	 * Read the next records from the partitions that are not paused. May block for a short time when there are none.
+	 * @return next records, empty list if none are available
+	 */
     List<T> poll();
+
+    /**
+     * Read at most maxRecords next records. Default implementation ignores the limit, implementations should override it when the underlying client supports it.
+     * @param maxRecords
+     * @return next records, empty list if none are available
+     */
+    default List<T> poll(int maxRecords) {
+    	return poll();
+    }
+
+    /**
+     * Store the positions from which the stream will be read after a restart.
+     * @param nextOffsets - partition to the offset of the next record to read
+     */
+    default void commit(Map<Integer, Long> nextOffsets) {
+    	//nothing to do by default
+    }
+
+    /**
+     * Move the read positions of the partitions back, so that the next {@link #poll()} returns the records from the specified offsets again.
+     * Used to re-deliver the messages that the stream processors failed to process - 
+     * there is no default, a consumer that cannot seek would stall the partition of a failed message forever.
+     * @param nextOffsets - partition to the offset of the next record to read
+     */
+    void seek(Map<Integer, Long> nextOffsets);
+
+    /**
+     * Stop returning records of the specified partitions from {@link #poll()} until they are resumed.
+     * @param partitions
+     */
+    default void pause(Collection<Integer> partitions) {
+    	//nothing to do by default
+    }
+
+    /**
+     * @param partitions - partitions to return records of again
+     */
+    default void resume(Collection<Integer> partitions) {
+    	//nothing to do by default
+    }
+
+    default void close() {
+    	//nothing to do by default
+    }
 }
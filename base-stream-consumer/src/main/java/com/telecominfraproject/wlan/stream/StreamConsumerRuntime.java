@@ -0,0 +1,466 @@
+package com.telecominfraproject.wlan.stream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Timer;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+/**
+ * @author dtop
+ * Poll loop that reads a partitioned stream with a {@link StreamConsumerInterface} and pushes the messages into the {@link StreamMessageDispatcher}.
+ * <br>
+ * A single poll thread reads up to pollBatchSize records at a time and appends them to the fetch-ahead buffer of their partition.
+ * Partitions are spread over numberOfPartitionWorkers worker threads: messages of one partition are pushed to the dispatcher in order,
+ * in batches of up to pollBatchSize, and different partitions are pushed in parallel.
+ * <br>
+ * Offsets are committed every commitIntervalMs, and only up to the last message that all the stream processors are done with,
+ * so after a crash the stream is re-read from the first message that may not have been processed (at-least-once delivery).
+ * When a batch fails in one of the processors (or is dropped by it), the committed offset of its partition stops at the first message of that batch;
+ * on the next commit the messages buffered and in flight for the partition are discarded, and the consumer seeks back to re-deliver them from that message.
+ * <br>
+ * When the stream processors cannot keep up, their queues fill up and the dispatcher blocks the partition workers (see {@link StreamProcessor}).
+ * A partition that has fetchAheadCapacity or more messages buffered or being processed is paused in the consumer,
+ * and it is resumed when that number drops to a half of fetchAheadCapacity, so a slow processor does not make the buffers grow without bound.
+ * <br>
+ * Settings are read from tip.wlan.streamConsumer.[consumerName].[setting], with the fall back to tip.wlan.streamConsumer.[setting]:
+ * pollBatchSize, fetchAheadCapacity, numberOfPartitionWorkers, commitIntervalMs, shutdownTimeoutMs.
+ * <br>
+ * Metrics: streamConsumer-[consumerName]-polled-count, -poll-timer, -commit-count, -paused-count, -redelivered-count (partitions re-delivered after a failure),
+ * -error-count, -buffered and -inFlight.
+ * <br>
+ * {@link InMemoryStreamBroker} can be used in place of the message broker to tune and test the consumers.
+ */
+public class StreamConsumerRuntime {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamConsumerRuntime.class);
+
+	private final String consumerName;
+	private final StreamConsumerInterface<StreamRecord> consumer;
+	private final StreamMessageDispatcher streamMessageDispatcher;
+
+	private final int pollBatchSize;
+	private final int fetchAheadCapacity;
+	private final int numberOfPartitionWorkers;
+	private final long commitIntervalMs;
+	private final long shutdownTimeoutMs;
+
+	private final Counter polledCounter;
+	private final Timer pollTimer;
+	private final Counter commitCounter;
+	private final Counter pausedCounter;
+	private final Counter redeliveredCounter;
+	private final Counter errorCounter;
+
+	private final Map<Integer, PartitionState> partitionStates = new ConcurrentHashMap<>();
+	private final ExecutorService[] partitionWorkers;
+
+	private Thread pollThread;
+	private volatile boolean running;
+
+	/**
+	 * Messages of a single partition, from the moment they are polled until all the stream processors are done with them.
+	 */
+	private class PartitionState {
+		private final int partition;
+
+		//guarded by this
+		private final ArrayDeque<StreamRecord> buffer = new ArrayDeque<>();
+		private final ArrayDeque<InFlightBatch> inFlightBatches = new ArrayDeque<>();
+		private int inFlightMessages;
+		private boolean drainScheduled;
+		//incremented when the partition is re-delivered, batches of the previous generation are discarded
+		private int generation;
+
+		//used only by the poll thread
+		private boolean paused;
+		private long acknowledgedOffset = -1;
+		private long committedOffset = -1;
+
+		PartitionState(int partition) {
+			this.partition = partition;
+		}
+
+		synchronized void add(List<StreamRecord> records) {
+			buffer.addAll(records);
+			if(!drainScheduled) {
+				drainScheduled = true;
+				scheduleDrain();
+			}
+		}
+
+		private void scheduleDrain() {
+			partitionWorkers[Math.floorMod(partition, partitionWorkers.length)].execute(this::drain);
+		}
+
+		/**
+		 * Push one batch of the buffered messages into the dispatcher, and re-schedule itself if there are more.
+		 * One batch at a time, so that a busy partition does not starve the other partitions of the same worker.
+		 */
+		private void drain() {
+			List<StreamRecord> batch = new ArrayList<>();
+			int batchGeneration;
+			synchronized(this) {
+				batchGeneration = generation;
+				while(batch.size() < pollBatchSize && !buffer.isEmpty()) {
+					batch.add(buffer.poll());
+				}
+				if(batch.isEmpty()) {
+					drainScheduled = false;
+					return;
+				}
+			}
+
+			List<QueuedStreamMessage> messages = new ArrayList<>(batch.size());
+			batch.forEach(r -> messages.add(r.getMessage()));
+
+			CompletableFuture<Void> processed;
+			try {
+				processed = streamMessageDispatcher.pushAll(messages);
+			} catch (Exception e) {
+				errorCounter.increment();
+				LOG.error("Exception when pushing {} messages of partition {} in {}", messages.size(), partition, consumerName, e);
+				processed = new CompletableFuture<>();
+				processed.completeExceptionally(e);
+			}
+
+			synchronized(this) {
+				if(batchGeneration == generation) {
+					inFlightBatches.add(new InFlightBatch(processed, batch.get(0).getOffset(), batch.get(batch.size() - 1).getOffset() + 1, batch.size()));
+					inFlightMessages += batch.size();
+				}
+				if(buffer.isEmpty()) {
+					drainScheduled = false;
+				} else {
+					scheduleDrain();
+				}
+			}
+		}
+
+		/**
+		 * Batches are acknowledged in order, up to the first one that is not done yet or that failed.
+		 * @return number of messages that are buffered or being processed, after removing the batches that are done
+		 */
+		synchronized int acknowledge() {
+			InFlightBatch head;
+			while((head = inFlightBatches.peek()) != null && head.processed.isDone() && !head.processed.isCompletedExceptionally()) {
+				inFlightBatches.poll();
+				inFlightMessages -= head.numberOfMessages;
+				acknowledgedOffset = head.nextOffset;
+			}
+			return buffer.size() + inFlightMessages;
+		}
+
+		/**
+		 * @return offset of the first message of the oldest in-flight batch if that batch failed, -1 otherwise
+		 */
+		synchronized long getFailedOffset() {
+			InFlightBatch head = inFlightBatches.peek();
+			return head != null && head.processed.isCompletedExceptionally() ? head.firstOffset : -1;
+		}
+
+		/**
+		 * Discard the buffered and in-flight messages, the consumer re-reads them from the failed offset.
+		 * Processors may still be working on the discarded batches, their results are ignored.
+		 */
+		synchronized void discardForRedelivery() {
+			generation++;
+			buffer.clear();
+			inFlightBatches.clear();
+			inFlightMessages = 0;
+		}
+
+		synchronized int getBufferedMessages() {
+			return buffer.size();
+		}
+
+		synchronized int getInFlightMessages() {
+			return inFlightMessages;
+		}
+	}
+
+	private static class InFlightBatch {
+		private final CompletableFuture<Void> processed;
+		private final long firstOffset;
+		private final long nextOffset;
+		private final int numberOfMessages;
+
+		InFlightBatch(CompletableFuture<Void> processed, long firstOffset, long nextOffset, int numberOfMessages) {
+			this.processed = processed;
+			this.firstOffset = firstOffset;
+			this.nextOffset = nextOffset;
+			this.numberOfMessages = numberOfMessages;
+		}
+	}
+
+	/**
+	 * @param consumerName - used in the names of the settings, threads and metrics
+	 * @param consumer
+	 * @param streamMessageDispatcher
+	 */
+	public StreamConsumerRuntime(String consumerName, StreamConsumerInterface<StreamRecord> consumer, StreamMessageDispatcher streamMessageDispatcher) {
+		this.consumerName = consumerName;
+		this.consumer = consumer;
+		this.streamMessageDispatcher = streamMessageDispatcher;
+
+		this.pollBatchSize = Math.max(1, getIntProperty("pollBatchSize", 500));
+		this.fetchAheadCapacity = Math.max(pollBatchSize, getIntProperty("fetchAheadCapacity", 2000));
+		this.numberOfPartitionWorkers = Math.max(1, getIntProperty("numberOfPartitionWorkers", 4));
+		this.commitIntervalMs = getLongProperty("commitIntervalMs", 1000);
+		this.shutdownTimeoutMs = getLongProperty("shutdownTimeoutMs", 30000);
+
+		String servoMetricPrefix = "streamConsumer-" + consumerName + "-";
+		this.polledCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "polled-count");
+		this.pollTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "poll-timer");
+		this.commitCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "commit-count");
+		this.pausedCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "paused-count");
+		this.redeliveredCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "redelivered-count");
+		this.errorCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "error-count");
+
+		CloudMetricsUtils.registerGauge(servoMetricPrefix + "buffered",
+				new Callable<Long>(){
+					@Override
+					public Long call() throws Exception {
+						long result = 0;
+						for(PartitionState state: partitionStates.values()) {
+							result += state.getBufferedMessages();
+						}
+						return result;
+					}
+				});
+
+		CloudMetricsUtils.registerGauge(servoMetricPrefix + "inFlight",
+				new Callable<Long>(){
+					@Override
+					public Long call() throws Exception {
+						long result = 0;
+						for(PartitionState state: partitionStates.values()) {
+							result += state.getInFlightMessages();
+						}
+						return result;
+					}
+				});
+
+		this.partitionWorkers = new ExecutorService[numberOfPartitionWorkers];
+		for(int i = 0; i < numberOfPartitionWorkers; i++) {
+			String threadName = "StreamConsumerRuntime-" + consumerName + "-partitionWorker-" + i;
+			partitionWorkers[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thr = new Thread(r, threadName);
+				thr.setDaemon(true);
+				return thr;
+			});
+		}
+	}
+
+	/**
+	 * Start the poll thread.
+	 */
+	public synchronized void start() {
+		if(pollThread != null) {
+			throw new IllegalStateException("Stream consumer " + consumerName + " is already started");
+		}
+
+		running = true;
+		pollThread = new Thread(this::pollLoop, "StreamConsumerRuntime-" + consumerName + "-poll");
+		pollThread.setDaemon(true);
+		pollThread.start();
+		LOG.info("Started stream consumer {}", consumerName);
+	}
+
+	/**
+	 * Stop polling, wait up to shutdownTimeoutMs for the polled messages to be processed, commit their offsets and close the consumer.
+	 */
+	@PreDestroy
+	public void stop() {
+		Thread thread;
+		synchronized(this) {
+			running = false;
+			thread = pollThread;
+		}
+
+		if(thread == null) {
+			return;
+		}
+
+		try {
+			thread.join(shutdownTimeoutMs + commitIntervalMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		for(ExecutorService worker: partitionWorkers) {
+			worker.shutdownNow();
+		}
+		LOG.info("Stopped stream consumer {}", consumerName);
+	}
+
+	private void pollLoop() {
+		long lastCommitTime = System.currentTimeMillis();
+		try {
+			while(running) {
+				try {
+					long startTime = System.currentTimeMillis();
+					List<StreamRecord> records = consumer.poll(pollBatchSize);
+					pollTimer.record(System.currentTimeMillis() - startTime, TimeUnit.MILLISECONDS);
+
+					if(!records.isEmpty()) {
+						polledCounter.increment(records.size());
+						addToPartitions(records);
+					}
+
+					applyBackPressure();
+
+					if(System.currentTimeMillis() - lastCommitTime >= commitIntervalMs) {
+						commitAcknowledged();
+						redeliverFailed();
+						lastCommitTime = System.currentTimeMillis();
+					}
+				} catch (Exception e) {
+					errorCounter.increment();
+					LOG.error("Exception in the poll loop of {}", consumerName, e);
+					sleep(Math.max(100, commitIntervalMs));
+				}
+			}
+
+			// let the processors finish the messages that were already polled
+			long deadline = System.currentTimeMillis() + shutdownTimeoutMs;
+			while(hasPendingMessages() && System.currentTimeMillis() < deadline) {
+				sleep(10);
+			}
+			commitAcknowledged();
+		} catch (Exception e) {
+			errorCounter.increment();
+			LOG.error("Exception when stopping {}", consumerName, e);
+		} finally {
+			consumer.close();
+		}
+	}
+
+	private void addToPartitions(List<StreamRecord> records) {
+		Map<Integer, List<StreamRecord>> recordsByPartition = new HashMap<>();
+		for(StreamRecord record: records) {
+			recordsByPartition.computeIfAbsent(record.getPartition(), p -> new ArrayList<>()).add(record);
+		}
+		recordsByPartition.forEach((partition, partitionRecords) ->
+			partitionStates.computeIfAbsent(partition, PartitionState::new).add(partitionRecords));
+	}
+
+	/**
+	 * Pause the partitions that have too many messages buffered or being processed, resume the ones that caught up.
+	 */
+	private void applyBackPressure() {
+		Set<Integer> toPause = new LinkedHashSet<>();
+		Set<Integer> toResume = new LinkedHashSet<>();
+		for(PartitionState state: partitionStates.values()) {
+			int pendingMessages = state.acknowledge();
+			if(!state.paused && pendingMessages >= fetchAheadCapacity) {
+				state.paused = true;
+				toPause.add(state.partition);
+			} else if(state.paused && pendingMessages <= fetchAheadCapacity / 2) {
+				state.paused = false;
+				toResume.add(state.partition);
+			}
+		}
+
+		if(!toPause.isEmpty()) {
+			LOG.debug("Pausing partitions {} of {}", toPause, consumerName);
+			pausedCounter.increment(toPause.size());
+			consumer.pause(toPause);
+		}
+		if(!toResume.isEmpty()) {
+			LOG.debug("Resuming partitions {} of {}", toResume, consumerName);
+			consumer.resume(toResume);
+		}
+	}
+
+	private void commitAcknowledged() {
+		Map<Integer, Long> nextOffsets = new HashMap<>();
+		for(PartitionState state: partitionStates.values()) {
+			state.acknowledge();
+			if(state.acknowledgedOffset > state.committedOffset) {
+				nextOffsets.put(state.partition, state.acknowledgedOffset);
+			}
+		}
+
+		if(nextOffsets.isEmpty()) {
+			return;
+		}
+
+		LOG.trace("Committing offsets {} of {}", nextOffsets, consumerName);
+		consumer.commit(nextOffsets);
+		commitCounter.increment();
+		nextOffsets.forEach((partition, offset) -> partitionStates.get(partition).committedOffset = offset);
+	}
+
+	/**
+	 * Seek the partitions that have a failed batch back to the first message of that batch.
+	 * Done once per commitIntervalMs, so a message that keeps failing is re-delivered at that rate.
+	 */
+	private void redeliverFailed() {
+		Map<Integer, Long> failedOffsets = new HashMap<>();
+		for(PartitionState state: partitionStates.values()) {
+			long failedOffset = state.getFailedOffset();
+			if(failedOffset >= 0) {
+				failedOffsets.put(state.partition, failedOffset);
+			}
+		}
+
+		if(failedOffsets.isEmpty()) {
+			return;
+		}
+
+		LOG.warn("Re-delivering partitions of {} from offsets {}", consumerName, failedOffsets);
+		//if the seek fails the failed batches stay in place, so their offsets are never committed
+		consumer.seek(failedOffsets);
+		redeliveredCounter.increment(failedOffsets.size());
+		failedOffsets.keySet().forEach(partition -> partitionStates.get(partition).discardForRedelivery());
+	}
+
+	/**
+	 * @return true if some of the partitions have messages that are buffered or being processed, not counting the partitions waiting for re-delivery
+	 */
+	private boolean hasPendingMessages() {
+		for(PartitionState state: partitionStates.values()) {
+			if(state.acknowledge() > 0 && state.getFailedOffset() < 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int getIntProperty(String name, int defaultValue) {
+		return Integer.getInteger("tip.wlan.streamConsumer." + consumerName + "." + name,
+				Integer.getInteger("tip.wlan.streamConsumer." + name, defaultValue));
+	}
+
+	private long getLongProperty(String name, long defaultValue) {
+		return Long.getLong("tip.wlan.streamConsumer." + consumerName + "." + name,
+				Long.getLong("tip.wlan.streamConsumer." + name, defaultValue));
+	}
+}
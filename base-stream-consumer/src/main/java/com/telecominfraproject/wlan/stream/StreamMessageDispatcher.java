@@ -1,8 +1,16 @@
 package com.telecominfraproject.wlan.stream;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +29,16 @@ import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
  * @author dtop
  * Component that receives messages from stream consumers, and delivers them to all registered stream processors.
  * It is safe to push messages to this component from multiple stream consumer threads. 
+ * <br>
+ * Every stream processor queues the messages it accepts in its own bounded queue; when that queue is full, push() blocks the stream consumer thread
+ * until there is room - see {@link StreamProcessor}. This way a slow processor slows down the consumption of the stream instead of losing messages.
+ * <br>
+ * Messages are delivered to the stream processors in batches of at most tip.wlan.streamDispatcher.maxBatchSize (default 100).
+ * When tip.wlan.streamDispatcher.batchLingerMs is positive, messages pushed one at a time are collected into a batch
+ * until it is full or its oldest message has waited that long. By default (0) every push is delivered immediately.
+ * <br>
+ * {@link #pushAll(List)} returns a future that completes when all the registered processors are done with the messages,
+ * see {@link StreamConsumerRuntime} for how it is used to commit the offsets of the stream.
  */
 @Component
 public class StreamMessageDispatcher {
@@ -35,6 +53,26 @@ public class StreamMessageDispatcher {
 	@Autowired(required = false)	
 	List<StreamProcessor> streamProcessors;
 	
+	private final int maxBatchSize = Math.max(1, Integer.getInteger("tip.wlan.streamDispatcher.maxBatchSize", 100));
+
+	private final long batchLingerMs = Long.getLong("tip.wlan.streamDispatcher.batchLingerMs", 0);
+
+	/**
+	 * Messages waiting for the batch to fill up, used only when batchLingerMs is positive. Guarded by batchLock.
+	 */
+	private List<QueuedStreamMessage> pendingBatch = new ArrayList<>();
+	private long pendingBatchStartTime;
+	private final Object batchLock = new Object();
+
+	/**
+	 * Held while the collected batches are delivered, so that they reach the processors in the order they were collected.
+	 * Delivery may block on a slow processor, so it is never done while holding batchLock - other threads keep adding to the next batch.
+	 * Always taken before batchLock.
+	 */
+	private final Object deliveryLock = new Object();
+
+	private ScheduledExecutorService lingerExecutor;
+
     // dtop: use anonymous constructor to ensure that the following code always
     // get executed,
     // even when somebody adds another constructor in here
@@ -49,10 +87,31 @@ public class StreamMessageDispatcher {
 		} else {
 			LOG.info("No registered stream processors ");
 		}
+
+		if(batchLingerMs > 0) {
+			lingerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thr = new Thread(r, "StreamMessageDispatcher-linger");
+					thr.setDaemon(true);
+					return thr;
+				}
+			});
+			lingerExecutor.scheduleWithFixedDelay(() -> flushPendingBatch(true), batchLingerMs, Math.max(1, batchLingerMs / 2), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	private void preDestroy() {
+		if(lingerExecutor != null) {
+			lingerExecutor.shutdownNow();
+		}
+		flushPendingBatch(false);
 	}
 	
 	/**
-	 * Iterate through all the registered stream processors and push the incoming message into each one of them
+	 * Iterate through all the registered stream processors and push the incoming message into each one of them.
+	 * May block if one of the processors cannot keep up.
 	 * @param message
 	 */
 	public void push(QueuedStreamMessage message) {
@@ -62,8 +121,90 @@ public class StreamMessageDispatcher {
 			return;
 		}
 		
+		if(batchLingerMs > 0) {
+			boolean batchIsFull;
+			synchronized(batchLock) {
+				if(pendingBatch.isEmpty()) {
+					pendingBatchStartTime = System.currentTimeMillis();
+				}
+				pendingBatch.add(message);
+				batchIsFull = pendingBatch.size() >= maxBatchSize;
+			}
+			if(batchIsFull) {
+				flushPendingBatch(false);
+			}
+			return;
+		}
+
 		LOG.trace("Pushing message to stream processors {}", message);
 		messagesProcessed.increment();
 		streamProcessors.forEach(sp -> sp.push(message));
 	}
+
+	/**
+	 * Push the incoming messages into all the registered stream processors, in batches of at most maxBatchSize.
+	 * May block if one of the processors cannot keep up.
+	 * @param messages
+	 * @return future that completes when all the registered processors have processed (or dropped) the messages
+	 */
+	public CompletableFuture<Void> pushAll(List<QueuedStreamMessage> messages) {
+
+		if(streamProcessors == null || messages == null || messages.isEmpty()) {
+			//nothing to do here
+			return CompletableFuture.completedFuture(null);
+		}
+
+		if(batchLingerMs > 0) {
+			synchronized(deliveryLock) {
+				//messages pushed earlier go first
+				flushPendingBatch(false);
+				return deliverInBatches(messages);
+			}
+		}
+
+		return deliverInBatches(messages);
+	}
+
+	private CompletableFuture<Void> deliverInBatches(List<QueuedStreamMessage> messages) {
+		List<CompletableFuture<Void>> batchFutures = new ArrayList<>();
+		for(int from = 0; from < messages.size(); from += maxBatchSize) {
+			batchFutures.add(deliver(messages.subList(from, Math.min(messages.size(), from + maxBatchSize))));
+		}
+		return CompletableFuture.allOf(batchFutures.toArray(new CompletableFuture[batchFutures.size()]));
+	}
+
+	/**
+	 * @param onlyIfExpired - flush only if the oldest pending message has waited for batchLingerMs
+	 */
+	private void flushPendingBatch(boolean onlyIfExpired) {
+		synchronized(deliveryLock) {
+			List<QueuedStreamMessage> batch;
+			synchronized(batchLock) {
+				if(pendingBatch.isEmpty() || (onlyIfExpired && System.currentTimeMillis() - pendingBatchStartTime < batchLingerMs)) {
+					return;
+				}
+
+				batch = pendingBatch;
+				pendingBatch = new ArrayList<>();
+			}
+
+			// more messages may have been added since the batch filled up
+			deliverInBatches(batch);
+		}
+	}
+
+	private CompletableFuture<Void> deliver(List<QueuedStreamMessage> batch) {
+		if(streamProcessors == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		LOG.trace("Pushing {} messages to stream processors", batch.size());
+		messagesProcessed.increment(batch.size());
+		List<QueuedStreamMessage> messages = Collections.unmodifiableList(new ArrayList<>(batch));
+		CompletableFuture<?>[] processorFutures = new CompletableFuture[streamProcessors.size()];
+		for(int i = 0; i < processorFutures.length; i++) {
+			processorFutures[i] = streamProcessors.get(i).pushAll(messages);
+		}
+		return CompletableFuture.allOf(processorFutures);
+	}
 }
@@ -1,56 +1,389 @@
 package com.telecominfraproject.wlan.stream;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
 
-import org.apache.tomcat.util.threads.ThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.netflix.servo.monitor.Counter;
+import com.netflix.servo.monitor.Timer;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasCustomerId;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasEquipmentId;
 import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
 
 /**
  * @author dtop
  * Parent Class for all Stream Processors.
- * 
+ * <br>
+ * Every stream processor has its own bounded queue and pool of worker threads, so that a slow processor does not starve the others.
+ * Queue holds batches of messages: one per {@link #push(QueuedStreamMessage)} and one per {@link #pushAll(List)} call,
+ * each batch is handed to {@link #processMessages(List)}.
+ * When the queue of a processor is full, {@link #push(QueuedStreamMessage)} blocks the calling stream consumer thread
+ * for up to tip.wlan.streamProcessors.maxBlockTimeMs, and drops the message only if there is still no room after that.
+ * <br>
+ * In the ordered mode (see {@link #isOrdered()}) messages are hashed by {@link #getOrderingKey(QueuedStreamMessage)} onto numberOfLanes serial lanes,
+ * each lane is a single thread with its own queue of laneQueueCapacity batches. Messages with the same key are processed one at a time,
+ * in the order they were pushed, and messages with different keys are processed in parallel.
+ * <br>
+ * Pool settings are read from tip.wlan.streamProcessors.[ProcessorClassSimpleName].[setting],
+ * with the fall back to tip.wlan.streamProcessors.[setting]: corePoolSize, maxPoolSize, threadKeepAliveTimeSec, execQueueCapacity, maxBlockTimeMs,
+ * ordered, numberOfLanes, laneQueueCapacity.
+ * <br>
+ * Metrics: streamProcessor-[ProcessorClassSimpleName]-queueSize, -blocked-timer, -dropped-count, -lag-timer (from the produced timestamp of the message),
+ * -processing-timer, -error-count; in the ordered mode also -lane[N]-queueSize and -laneSkew: messages pushed into the busiest lane
+ * since the previous sample, in percent of the average per lane - 100 means even spread, large values point to hot keys.
  */
 public abstract class StreamProcessor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StreamProcessor.class);
 	
-    private static final Logger LOG = LoggerFactory.getLogger(StreamProcessor.class);
+	private final String processorName = getClass().getSimpleName().isEmpty() ? getClass().getName() : getClass().getSimpleName();
+
+	private final int corePoolSize = Math.max(1, getIntProperty("corePoolSize", 2));
+
+	private final int maxPoolSize = Math.max(corePoolSize, getIntProperty("maxPoolSize", 20));
+
+	private final long threadKeepAliveTimeSec = getLongProperty("threadKeepAliveTimeSec", 300);
+
+	private final int execQueueCapacity = getIntProperty("execQueueCapacity", 500);
+
+	private final long maxBlockTimeMs = getLongProperty("maxBlockTimeMs", 60000);
 
-	private static final int corePoolSize = Integer.getInteger("tip.wlan.streamProcessors.corePoolSize", 2);
+	private final int numberOfLanes = Math.max(1, getIntProperty("numberOfLanes", Runtime.getRuntime().availableProcessors()));
 
-	private static int maxPoolSize = Integer.getInteger("tip.wlan.streamProcessors.maxPoolSize", 20);
+	private final int laneQueueCapacity = getIntProperty("laneQueueCapacity", 100);
 
-	private static long threadKeepAliveTimeSec = Long.getLong("tip.wlan.streamProcessors.threadKeepAliveTimeSec", 300);
+	private final String servoMetricPrefix = "streamProcessor-" + processorName + "-";
+	private final Timer blockedTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "blocked-timer");
+	private final Counter droppedCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "dropped-count");
+	private final Timer lagTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "lag-timer");
+	private final Timer processingTimer = CloudMetricsUtils.getTimer(servoMetricPrefix + "processing-timer");
+	private final Counter errorCounter = CloudMetricsUtils.getCounter(servoMetricPrefix + "error-count");
 
-	private static int execQueueCapacity = Integer.getInteger("tip.wlan.streamProcessors.execQueueCapacity", 500);
-    
-    private static Executor executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize , threadKeepAliveTimeSec , TimeUnit.SECONDS, new ArrayBlockingQueue<>(execQueueCapacity ), new ThreadFactory() {		
+	private final RejectedExecutionHandler backPressureHandler = new RejectedExecutionHandler() {
 		@Override
-		public Thread newThread(Runnable r) {
-			Thread thr = new Thread(r, "StreamProcessor-exec-"+System.currentTimeMillis());
-			thr.setDaemon(true);
-			return thr;
-		}
-	}); 
-    		
-    
-	public final void push(QueuedStreamMessage message) {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor exec) {
+			if(exec.isShutdown()) {
+				throw new RejectedExecutionException("Stream processor " + processorName + " is shut down");
+			}
+
+			//back-pressure: block the stream consumer thread until there is room in the queue
+			long startTime = System.currentTimeMillis();
+			try {
+				if(!exec.getQueue().offer(r, maxBlockTimeMs, TimeUnit.MILLISECONDS)) {
+					throw new RejectedExecutionException("Stream processor " + processorName + " queue is full for " + maxBlockTimeMs + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for room in stream processor " + processorName + " queue", e);
+			} finally {
+				blockedTimer.record(System.currentTimeMillis() - startTime, TimeUnit.MILLISECONDS);
+			}
+		}
+	};
+
+	private final ThreadPoolExecutor executor = newExecutor(corePoolSize, maxPoolSize, execQueueCapacity, "StreamProcessor-" + processorName + "-exec-");
+
+	/**
+	 * Serial lane of the ordered mode
+	 */
+	private static class Lane {
+		private final ThreadPoolExecutor executor;
+		private final AtomicLong messageCount = new AtomicLong();
+		private long lastSampledMessageCount;
+
+		Lane(ThreadPoolExecutor executor) {
+			this.executor = executor;
+		}
+	}
+
+	private volatile Lane[] lanes;
+	private final AtomicInteger nextUnkeyedLane = new AtomicInteger();
+
+	/**
+	 * Result of {@link #isOrdered()}, resolved on the first push - the method may be overridden, so it cannot be called from the constructor
+	 */
+	private volatile Boolean ordered;
+
+	{
+		CloudMetricsUtils.registerGauge(servoMetricPrefix + "queueSize",
+				new Callable<Long>(){
+					@Override
+					public Long call() throws Exception {
+						long queueSize = executor.getQueue().size();
+						Lane[] currentLanes = lanes;
+						if(currentLanes != null) {
+							for(Lane lane: currentLanes) {
+								queueSize += lane.executor.getQueue().size();
+							}
+						}
+						return queueSize;
+					}
+				});
+	}
+
+	/**
+	 * Queue the message for asynchronous processing. Blocks when the queue of this processor is full.
+	 * @param message
+	 */
+	public void push(QueuedStreamMessage message) {
 		try {
 			if(!acceptMessage(message)) {
 				//message was not meant for this processor, do nothing
 				return;
 			}
-					
-			executor.execute( () -> processMessage(message) );
+
+			List<QueuedStreamMessage> messages = Collections.singletonList(message);
+			if(isOrderedMode()) {
+				Lane lane = getLanes()[getLaneIndex(message)];
+				lane.messageCount.incrementAndGet();
+				submit(lane.executor, messages);
+			} else {
+				submit(executor, messages);
+			}
+		} catch (Exception e) {
+			LOG.error("Exception when pushing message {} into {}", message, this.getClass().getName(),  e);
+		}
+	}
+
+	/**
+	 * Queue the accepted messages for asynchronous processing as a single batch. Blocks when the queue of this processor is full.
+	 * @param messages
+	 * @return future that completes when all the accepted messages are processed, or completes exceptionally when some of them failed or were dropped.
+	 * Stream consumers use it to commit their offsets.
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<Void> pushAll(List<QueuedStreamMessage> messages) {
+		List<QueuedStreamMessage> acceptedMessages = new ArrayList<>(messages.size());
+		try {
+			for(QueuedStreamMessage message: messages) {
+				if(acceptMessage(message)) {
+					acceptedMessages.add(message);
+				}
+			}
+
+			if(acceptedMessages.isEmpty()) {
+				//none of the messages were meant for this processor, do nothing
+				return CompletableFuture.completedFuture(null);
+			}
+
+			if(!isOrderedMode()) {
+				return submit(executor, acceptedMessages);
+			}
+
+			//split the batch by lane, keeping the order of the messages
+			Lane[] currentLanes = getLanes();
+			List<QueuedStreamMessage>[] messagesByLane = new List[currentLanes.length];
+			for(QueuedStreamMessage message: acceptedMessages) {
+				int laneIndex = getLaneIndex(message);
+				if(messagesByLane[laneIndex] == null) {
+					messagesByLane[laneIndex] = new ArrayList<>();
+				}
+				messagesByLane[laneIndex].add(message);
+			}
+
+			List<CompletableFuture<Void>> laneFutures = new ArrayList<>(currentLanes.length);
+			for(int i = 0; i < currentLanes.length; i++) {
+				if(messagesByLane[i] != null) {
+					currentLanes[i].messageCount.addAndGet(messagesByLane[i].size());
+					laneFutures.add(submit(currentLanes[i].executor, messagesByLane[i]));
+				}
+			}
+			return CompletableFuture.allOf(laneFutures.toArray(new CompletableFuture[laneFutures.size()]));
+		} catch (Exception e) {
+			LOG.error("Exception when pushing {} messages into {}", messages.size(), this.getClass().getName(),  e);
+			CompletableFuture<Void> result = new CompletableFuture<>();
+			result.completeExceptionally(e);
+			return result;
+		}
+	}
+
+	/**
+	 * Stop accepting messages, messages that are already queued are still processed.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+		Lane[] currentLanes = lanes;
+		if(currentLanes != null) {
+			for(Lane lane: currentLanes) {
+				lane.executor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Opt-in for the ordered mode. By default it is controlled by the tip.wlan.streamProcessors.[ProcessorClassSimpleName].ordered property.
+	 * It is called once, on the first push, and the mode does not change after that.
+	 * @return true if messages with the same ordering key must be processed one at a time, in the order they were pushed
+	 */
+	protected boolean isOrdered() {
+		return Boolean.parseBoolean(System.getProperty("tip.wlan.streamProcessors." + processorName + ".ordered",
+				System.getProperty("tip.wlan.streamProcessors.ordered", "false")));
+	}
+
+	/**
+	 * Key used in the ordered mode to pick a lane for the message. Override it to order the messages by something else.
+	 * @param message
+	 * @return equipmentId for the models that have it, customerId for the models that have it, or null if the message can go into any lane
+	 */
+	protected Object getOrderingKey(QueuedStreamMessage message) {
+		BaseJsonModel model = message.getModel();
+		if(model instanceof HasEquipmentId) {
+			return ((HasEquipmentId) model).getEquipmentId();
+		}
+		if(model instanceof HasCustomerId) {
+			return ((HasCustomerId) model).getCustomerId();
+		}
+		return null;
+	}
+
+	private CompletableFuture<Void> submit(ThreadPoolExecutor exec, List<QueuedStreamMessage> messages) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		try {
+			exec.execute( () -> {
+				try {
+					runProcessMessages(messages);
+					result.complete(null);
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			droppedCounter.increment(messages.size());
+			LOG.error("Dropped {} messages in {}: {}", messages.size(), processorName, e.getMessage());
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	private boolean isOrderedMode() {
+		Boolean currentOrdered = ordered;
+		if(currentOrdered == null) {
+			currentOrdered = isOrdered();
+			ordered = currentOrdered;
+		}
+		return currentOrdered;
+	}
+
+	private int getLaneIndex(QueuedStreamMessage message) {
+		Object key = getOrderingKey(message);
+		if(key == null) {
+			return Math.floorMod(nextUnkeyedLane.getAndIncrement(), numberOfLanes);
+		}
+		int h = key.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), numberOfLanes);
+	}
+
+	private Lane[] getLanes() {
+		Lane[] currentLanes = lanes;
+		if(currentLanes == null) {
+			synchronized(this) {
+				currentLanes = lanes;
+				if(currentLanes == null) {
+					currentLanes = new Lane[numberOfLanes];
+					for(int i = 0; i < numberOfLanes; i++) {
+						final Lane lane = new Lane(newExecutor(1, 1, laneQueueCapacity, "StreamProcessor-" + processorName + "-lane-" + i + "-"));
+						currentLanes[i] = lane;
+						CloudMetricsUtils.registerGauge(servoMetricPrefix + "lane" + i + "-queueSize",
+								new Callable<Long>(){
+									@Override
+									public Long call() throws Exception {
+										return (long) lane.executor.getQueue().size();
+									}
+								});
+					}
+					final Lane[] allLanes = currentLanes;
+					CloudMetricsUtils.registerGauge(servoMetricPrefix + "laneSkew",
+							new Callable<Long>(){
+								@Override
+								public Long call() throws Exception {
+									return sampleLaneSkew(allLanes);
+								}
+							});
+					lanes = currentLanes;
+				}
+			}
+		}
+		return currentLanes;
+	}
+
+	/**
+	 * @return messages pushed into the busiest lane since the previous sample, in percent of the average per lane
+	 */
+	private static long sampleLaneSkew(Lane[] allLanes) {
+		synchronized(allLanes) {
+			long total = 0;
+			long max = 0;
+			for(Lane lane: allLanes) {
+				long currentCount = lane.messageCount.get();
+				long delta = currentCount - lane.lastSampledMessageCount;
+				lane.lastSampledMessageCount = currentCount;
+				total += delta;
+				max = Math.max(max, delta);
+			}
+			if(total == 0) {
+				return 0;
+			}
+			return max * 100 * allLanes.length / total;
+		}
+	}
+
+	private ThreadPoolExecutor newExecutor(int corePoolSize, int maxPoolSize, int queueCapacity, String threadNamePrefix) {
+		return new ThreadPoolExecutor(corePoolSize, maxPoolSize , threadKeepAliveTimeSec , TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thr = new Thread(r, threadNamePrefix + threadNumber.incrementAndGet());
+				thr.setDaemon(true);
+				return thr;
+			}
+		}, backPressureHandler);
+	}
+
+	private void runProcessMessages(List<QueuedStreamMessage> messages) {
+		long startTime = System.currentTimeMillis();
+		for(QueuedStreamMessage message: messages) {
+			lagTimer.record(Math.max(0, startTime - message.getProducedTimestampMs()), TimeUnit.MILLISECONDS);
+		}
+		try {
+			processMessages(messages);
 		} catch (Exception e) {
-		    LOG.error("Exception when pushing message {} into {}", message, this.getClass().getName(),  e);
+			errorCounter.increment();
+			LOG.error("Exception when processing {} messages in {}", messages.size(), this.getClass().getName(), e);
+			throw e;
+		} finally {
+			processingTimer.record(System.currentTimeMillis() - startTime, TimeUnit.MILLISECONDS);
 		}
 	}
 
+	private int getIntProperty(String name, int defaultValue) {
+		return Integer.getInteger("tip.wlan.streamProcessors." + processorName + "." + name,
+				Integer.getInteger("tip.wlan.streamProcessors." + name, defaultValue));
+	}
+
+	private long getLongProperty(String name, long defaultValue) {
+		return Long.getLong("tip.wlan.streamProcessors." + processorName + "." + name,
+				Long.getLong("tip.wlan.streamProcessors." + name, defaultValue));
+	}
+
 	/**
 	 * Check if this stream processor is interested in the specified message.
 	 * @param message
@@ -64,5 +397,34 @@ public abstract class StreamProcessor {
 	 * @param message
 	 */
 	protected abstract void processMessage(QueuedStreamMessage message);
+
+	/**
+	 * Process a batch of accepted messages, in the order they were pushed. This method will be executed asynchronously.
+	 * <br>
+	 * Default implementation calls {@link #processMessage(QueuedStreamMessage)} for every message, a failure of one message does not affect the others.
+	 * Override it to amortize the per-message overhead, for example with bulk writes into the data store.
+	 * <br>
+	 * An exception thrown from this method fails the whole batch, and the stream consumer re-delivers it (see {@link StreamConsumerRuntime}),
+	 * so the messages of a batch may be processed more than once.
+	 * @param messages
+	 * @throws RuntimeException - the first failure, after all the other messages of the batch are processed
+	 */
+	protected void processMessages(List<QueuedStreamMessage> messages) {
+		RuntimeException failure = null;
+		for(QueuedStreamMessage message: messages) {
+			try {
+				processMessage(message);
+			} catch (RuntimeException e) {
+				LOG.error("Exception when processing message {} in {}", message, this.getClass().getName(), e);
+				if(failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if(failure != null) {
+			throw failure;
+		}
+	}
 	
 }
@@ -0,0 +1,37 @@
+package com.telecominfraproject.wlan.stream;
+
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+/**
+ * @author dtop
+ * Message read from a partition of a stream, together with its position in that partition.
+ */
+public class StreamRecord {
+
+	private final int partition;
+	private final long offset;
+	private final QueuedStreamMessage message;
+
+	public StreamRecord(int partition, long offset, QueuedStreamMessage message) {
+		this.partition = partition;
+		this.offset = offset;
+		this.message = message;
+	}
+
+	public int getPartition() {
+		return partition;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public QueuedStreamMessage getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamRecord [partition=" + partition + ", offset=" + offset + ", message=" + message + "]";
+	}
+}
@@ -0,0 +1,172 @@
+package com.telecominfraproject.wlan.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+public class StreamConsumerRuntimeTests {
+
+    private StreamProcessor processor;
+    private StreamConsumerRuntime runtime;
+
+    @After
+    public void tearDown() {
+        if (runtime != null) {
+            runtime.stop();
+        }
+        if (processor != null) {
+            processor.shutdown();
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("tip.wlan.streamConsumer.") || name.startsWith("tip.wlan.streamProcessors.")) {
+                System.clearProperty(name);
+            }
+        }
+    }
+
+    @Test
+    public void testAllMessagesAreProcessedInOrderAndCommitted() throws Exception {
+        System.setProperty("tip.wlan.streamConsumer.testAll.pollBatchSize", "50");
+        System.setProperty("tip.wlan.streamConsumer.testAll.fetchAheadCapacity", "200");
+        System.setProperty("tip.wlan.streamConsumer.testAll.commitIntervalMs", "20");
+        System.setProperty("tip.wlan.streamProcessors.OrderCheckingProcessor.laneQueueCapacity", "2");
+
+        InMemoryStreamBroker broker = new InMemoryStreamBroker(4);
+        for (int i = 0; i < 5000; i++) {
+            broker.publish(StreamTestModel.message(i % 31, i));
+        }
+
+        OrderCheckingProcessor orderCheckingProcessor = new OrderCheckingProcessor();
+        processor = orderCheckingProcessor;
+        runtime = new StreamConsumerRuntime("testAll", broker.createConsumer(10), createDispatcher(processor));
+        runtime.start();
+
+        waitForLag(broker, 0);
+        assertEquals(5000, orderCheckingProcessor.processedCount.get());
+        assertEquals(0, orderCheckingProcessor.outOfOrderCount.get());
+        for (int partition = 0; partition < broker.getNumberOfPartitions(); partition++) {
+            assertEquals(broker.getEndOffset(partition), broker.getCommittedOffset(partition));
+        }
+    }
+
+    @Test
+    public void testFailedMessageIsNotCommittedAndIsRedelivered() throws Exception {
+        System.setProperty("tip.wlan.streamConsumer.testFailed.pollBatchSize", "10");
+        System.setProperty("tip.wlan.streamConsumer.testFailed.commitIntervalMs", "20");
+
+        InMemoryStreamBroker broker = new InMemoryStreamBroker(1);
+        for (int i = 0; i < 100; i++) {
+            broker.publish(StreamTestModel.message(1, i));
+        }
+
+        FailingProcessor failingProcessor = new FailingProcessor(55);
+        processor = failingProcessor;
+        runtime = new StreamConsumerRuntime("testFailed", broker.createConsumer(10), createDispatcher(processor));
+        runtime.start();
+
+        // the batch of the failed message is re-delivered, the messages after it are processed too
+        waitForCount(failingProcessor.getAttempts(55), 3);
+        assertTrue(failingProcessor.getAttempts(99).get() > 0);
+        // committed offset stops at the first message of the failed batch
+        assertEquals(50, broker.getCommittedOffset(0));
+        assertEquals(50, broker.getLag());
+
+        failingProcessor.failedSequence = -1;
+        waitForLag(broker, 0);
+        assertEquals(100, broker.getCommittedOffset(0));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(failingProcessor.getAttempts(i).get() > 0);
+        }
+    }
+
+    private static StreamMessageDispatcher createDispatcher(StreamProcessor streamProcessor) {
+        StreamMessageDispatcher dispatcher = new StreamMessageDispatcher();
+        dispatcher.streamProcessors = Collections.singletonList(streamProcessor);
+        return dispatcher;
+    }
+
+    private static void waitForLag(InMemoryStreamBroker broker, long expectedLag) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (broker.getLag() != expectedLag && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expectedLag, broker.getLag());
+    }
+
+    private static void waitForCount(AtomicInteger counter, int minCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (counter.get() < minCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(counter.get() >= minCount);
+    }
+
+    private static class OrderCheckingProcessor extends StreamProcessor {
+        private final Map<Long, Integer> lastSequenceByKey = new HashMap<>();
+        final AtomicInteger processedCount = new AtomicInteger();
+        final AtomicInteger outOfOrderCount = new AtomicInteger();
+
+        @Override
+        protected boolean isOrdered() {
+            return true;
+        }
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            StreamTestModel model = StreamTestModel.of(message);
+            Integer lastSequence;
+            synchronized (lastSequenceByKey) {
+                lastSequence = lastSequenceByKey.put(model.getEquipmentId(), model.getSequence());
+            }
+            if (lastSequence != null && lastSequence >= model.getSequence()) {
+                outOfOrderCount.incrementAndGet();
+            }
+            processedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Fails the message with failedSequence, counts processing attempts of every message
+     */
+    private static class FailingProcessor extends StreamProcessor {
+        private final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        volatile int failedSequence;
+
+        FailingProcessor(int failedSequence) {
+            this.failedSequence = failedSequence;
+        }
+
+        AtomicInteger getAttempts(int sequence) {
+            return attempts.computeIfAbsent(sequence, s -> new AtomicInteger());
+        }
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            int sequence = StreamTestModel.of(message).getSequence();
+            getAttempts(sequence).incrementAndGet();
+            if (sequence == failedSequence) {
+                throw new IllegalStateException("test failure");
+            }
+        }
+    }
+}
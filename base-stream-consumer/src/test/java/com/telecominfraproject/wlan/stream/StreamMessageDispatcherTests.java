@@ -0,0 +1,191 @@
+package com.telecominfraproject.wlan.stream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+public class StreamMessageDispatcherTests {
+
+    private final List<StreamProcessor> processors = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        // single worker thread, so batches are processed in the order they were delivered
+        System.setProperty("tip.wlan.streamProcessors.RecordingProcessor.corePoolSize", "1");
+        System.setProperty("tip.wlan.streamProcessors.RecordingProcessor.maxPoolSize", "1");
+    }
+
+    @After
+    public void tearDown() {
+        processors.forEach(StreamProcessor::shutdown);
+        System.clearProperty("tip.wlan.streamProcessors.RecordingProcessor.corePoolSize");
+        System.clearProperty("tip.wlan.streamProcessors.RecordingProcessor.maxPoolSize");
+        System.clearProperty("tip.wlan.streamDispatcher.maxBatchSize");
+        System.clearProperty("tip.wlan.streamDispatcher.batchLingerMs");
+    }
+
+    @Test
+    public void testPushAllDeliversInBatches() throws Exception {
+        System.setProperty("tip.wlan.streamDispatcher.maxBatchSize", "10");
+        RecordingProcessor processor = new RecordingProcessor();
+        StreamMessageDispatcher dispatcher = createDispatcher(processor);
+
+        dispatcher.pushAll(messages(0, 25)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList(10, 10, 5), processor.getBatchSizes());
+        assertEquals(range(0, 25), processor.getSequences());
+    }
+
+    @Test
+    public void testLingeringMessagesAreBatched() throws Exception {
+        System.setProperty("tip.wlan.streamDispatcher.maxBatchSize", "5");
+        System.setProperty("tip.wlan.streamDispatcher.batchLingerMs", "60000");
+        RecordingProcessor processor = new RecordingProcessor();
+        StreamMessageDispatcher dispatcher = createDispatcher(processor);
+
+        for (QueuedStreamMessage message : messages(0, 12)) {
+            dispatcher.push(message);
+        }
+        // messages pushed one at a time are delivered when the batch is full, the rest are waiting
+        StreamProcessorTests.waitForCount(processor.processedCount, 10);
+
+        // lingering messages go ahead of the ones pushed later
+        dispatcher.pushAll(messages(12, 15)).get(5, TimeUnit.SECONDS);
+        StreamProcessorTests.waitForCount(processor.processedCount, 15);
+
+        assertEquals(Arrays.asList(5, 5, 2, 3), processor.getBatchSizes());
+        assertEquals(range(0, 15), processor.getSequences());
+    }
+
+    @Test
+    public void testLingerTimeFlushesPartialBatch() throws Exception {
+        System.setProperty("tip.wlan.streamDispatcher.maxBatchSize", "100");
+        System.setProperty("tip.wlan.streamDispatcher.batchLingerMs", "50");
+        RecordingProcessor processor = new RecordingProcessor();
+        StreamMessageDispatcher dispatcher = createDispatcher(processor);
+        invokeLifecycleMethod(dispatcher, "postConstruct");
+        try {
+            for (QueuedStreamMessage message : messages(0, 3)) {
+                dispatcher.push(message);
+            }
+            // batch is not full, it is delivered once its oldest message has waited for batchLingerMs
+            StreamProcessorTests.waitForCount(processor.processedCount, 3);
+            assertEquals(Arrays.asList(3), processor.getBatchSizes());
+        } finally {
+            invokeLifecycleMethod(dispatcher, "preDestroy");
+        }
+    }
+
+    @Test
+    public void testPendingBatchIsFlushedOnShutdown() throws Exception {
+        System.setProperty("tip.wlan.streamDispatcher.batchLingerMs", "60000");
+        RecordingProcessor processor = new RecordingProcessor();
+        StreamMessageDispatcher dispatcher = createDispatcher(processor);
+
+        for (QueuedStreamMessage message : messages(0, 2)) {
+            dispatcher.push(message);
+        }
+        invokeLifecycleMethod(dispatcher, "preDestroy");
+
+        StreamProcessorTests.waitForCount(processor.processedCount, 2);
+        assertEquals(Arrays.asList(2), processor.getBatchSizes());
+    }
+
+    @Test
+    public void testFailureOfOneProcessorFailsTheBatch() throws Exception {
+        RecordingProcessor processor = new RecordingProcessor();
+        FailingProcessor failingProcessor = new FailingProcessor();
+        StreamMessageDispatcher dispatcher = createDispatcher(processor, failingProcessor);
+
+        StreamProcessorTests.getFailure(dispatcher.pushAll(messages(0, 3)));
+        // the other processors still get the messages
+        assertEquals(range(0, 3), processor.getSequences());
+    }
+
+    private StreamMessageDispatcher createDispatcher(StreamProcessor... streamProcessors) {
+        processors.addAll(Arrays.asList(streamProcessors));
+        StreamMessageDispatcher dispatcher = new StreamMessageDispatcher();
+        dispatcher.streamProcessors = Arrays.asList(streamProcessors);
+        return dispatcher;
+    }
+
+    /**
+     * Lifecycle methods are private, they are called by spring in the real deployment
+     */
+    private static void invokeLifecycleMethod(StreamMessageDispatcher dispatcher, String methodName) throws Exception {
+        Method method = StreamMessageDispatcher.class.getDeclaredMethod(methodName);
+        method.setAccessible(true);
+        method.invoke(dispatcher);
+    }
+
+    private static List<QueuedStreamMessage> messages(int from, int to) {
+        List<QueuedStreamMessage> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(StreamTestModel.message(i, i));
+        }
+        return messages;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> ret = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ret.add(i);
+        }
+        return ret;
+    }
+
+    private static class RecordingProcessor extends StreamProcessor {
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        private final List<Integer> sequences = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger processedCount = new AtomicInteger();
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessages(List<QueuedStreamMessage> messages) {
+            batchSizes.add(messages.size());
+            super.processMessages(messages);
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            sequences.add(StreamTestModel.of(message).getSequence());
+            processedCount.incrementAndGet();
+        }
+
+        List<Integer> getBatchSizes() {
+            return new ArrayList<>(batchSizes);
+        }
+
+        List<Integer> getSequences() {
+            return new ArrayList<>(sequences);
+        }
+    }
+
+    private static class FailingProcessor extends StreamProcessor {
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            throw new IllegalStateException("test failure");
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.telecominfraproject.wlan.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.netflix.servo.monitor.Gauge;
+import com.telecominfraproject.wlan.cloudmetrics.CloudMetricsUtils;
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+public class StreamProcessorTests {
+
+    private final List<StreamProcessor> processors = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        processors.forEach(StreamProcessor::shutdown);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("tip.wlan.streamProcessors.")) {
+                System.clearProperty(name);
+            }
+        }
+    }
+
+    @Test
+    public void testMessagesWithSameKeyAreProcessedInOrder() throws Exception {
+        System.setProperty("tip.wlan.streamProcessors.OrderedProcessor.numberOfLanes", "4");
+        OrderedProcessor processor = register(new OrderedProcessor());
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int sequence = 0;
+        for (int batch = 0; batch < 50; batch++) {
+            List<QueuedStreamMessage> messages = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                messages.add(StreamTestModel.message(sequence % 7, sequence));
+                sequence++;
+            }
+            futures.add(processor.pushAll(messages));
+            processor.push(StreamTestModel.message(sequence % 7, sequence));
+            sequence++;
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        waitForCount(processor.processedCount, sequence);
+
+        assertEquals(0, processor.outOfOrderCount.get());
+        // the slow messages of one key do not hold back the other keys
+        assertTrue(processor.maxConcurrency.get() > 1);
+    }
+
+    @Test
+    public void testLaneSkewShowsHotKeys() throws Exception {
+        System.setProperty("tip.wlan.streamProcessors.SkewedProcessor.numberOfLanes", "4");
+        SkewedProcessor processor = register(new SkewedProcessor());
+
+        // equipment ids 0-3 go into different lanes
+        List<QueuedStreamMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            messages.add(StreamTestModel.message(i % 4, i));
+        }
+        processor.pushAll(messages).get(5, TimeUnit.SECONDS);
+        Gauge<Long> laneSkew = getGauge("streamProcessor-SkewedProcessor-laneSkew");
+        assertEquals(100L, laneSkew.getValue().longValue());
+
+        // all the messages of one key end up in one lane
+        messages.clear();
+        for (int i = 0; i < 40; i++) {
+            messages.add(StreamTestModel.message(1, 40 + i));
+        }
+        processor.pushAll(messages).get(5, TimeUnit.SECONDS);
+        assertEquals(400L, laneSkew.getValue().longValue());
+
+        // nothing was pushed since the previous sample
+        assertEquals(0L, laneSkew.getValue().longValue());
+    }
+
+    @Test
+    public void testHotKeyDoesNotHoldBackOtherKeys() throws Exception {
+        System.setProperty("tip.wlan.streamProcessors.HotKeyProcessor.numberOfLanes", "2");
+        HotKeyProcessor processor = register(new HotKeyProcessor());
+
+        CompletableFuture<Void> future = processor.pushAll(Arrays.asList(StreamTestModel.message(0, 0), StreamTestModel.message(1, 1),
+                StreamTestModel.message(0, 2), StreamTestModel.message(1, 3), StreamTestModel.message(1, 4)));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+
+        // lane of equipment 0 is stuck, the other lane keeps going
+        waitForCount(processor.processedCount, 3);
+        assertEquals(Arrays.asList(1, 3, 4), processor.getSequences());
+        assertFalse(future.isDone());
+
+        processor.release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(5, processor.processedCount.get());
+        List<Integer> sequences = processor.getSequences();
+        assertTrue(sequences.indexOf(0) < sequences.indexOf(2));
+    }
+
+    @Test
+    public void testFailedBatchCompletesExceptionally() throws Exception {
+        FailingProcessor processor = register(new FailingProcessor());
+
+        CompletableFuture<Void> failed = processor.pushAll(Arrays.asList(StreamTestModel.message(1, 1), StreamTestModel.message(1, -1),
+                StreamTestModel.message(1, 2)));
+        assertTrue(getFailure(failed) instanceof IllegalStateException);
+        // a failure of one message does not affect the others
+        assertEquals(2, processor.processedCount.get());
+
+        processor.pushAll(Arrays.asList(StreamTestModel.message(1, 3))).get(5, TimeUnit.SECONDS);
+        assertEquals(3, processor.processedCount.get());
+    }
+
+    @Test
+    public void testDroppedBatchCompletesExceptionally() throws Exception {
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.corePoolSize", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.maxPoolSize", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.execQueueCapacity", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.maxBlockTimeMs", "50");
+        BlockingProcessor processor = register(new BlockingProcessor());
+        long droppedBefore = getDroppedCount(processor);
+
+        CompletableFuture<Void> running = processor.pushAll(Collections.singletonList(StreamTestModel.message(1, 1)));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> queued = processor.pushAll(Collections.singletonList(StreamTestModel.message(1, 2)));
+        // no room in the queue after maxBlockTimeMs
+        CompletableFuture<Void> dropped = processor.pushAll(Arrays.asList(StreamTestModel.message(1, 3), StreamTestModel.message(1, 4)));
+        assertTrue(getFailure(dropped) instanceof RejectedExecutionException);
+        assertEquals(droppedBefore + 2, getDroppedCount(processor));
+
+        processor.release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(2, processor.processedCount.get());
+    }
+
+    @Test
+    public void testFullQueueBlocksThePushInsteadOfDropping() throws Exception {
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.corePoolSize", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.maxPoolSize", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.execQueueCapacity", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.maxBlockTimeMs", "10000");
+        BlockingProcessor processor = register(new BlockingProcessor());
+        long droppedBefore = getDroppedCount(processor);
+
+        CompletableFuture<Void> running = processor.pushAll(Collections.singletonList(StreamTestModel.message(1, 1)));
+        assertTrue(processor.started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> queued = processor.pushAll(Collections.singletonList(StreamTestModel.message(1, 2)));
+        // no room in the queue - the pushing thread waits for it
+        CompletableFuture<CompletableFuture<Void>> blockedPush = CompletableFuture
+                .supplyAsync(() -> processor.pushAll(Collections.singletonList(StreamTestModel.message(1, 3))));
+        Thread.sleep(200);
+        assertFalse(blockedPush.isDone());
+
+        processor.release.countDown();
+        blockedPush.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        running.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+        assertEquals(3, processor.processedCount.get());
+        assertEquals(droppedBefore, getDroppedCount(processor));
+    }
+
+    @Test
+    public void testSlowProcessorDoesNotHoldBackOthers() throws Exception {
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.corePoolSize", "1");
+        System.setProperty("tip.wlan.streamProcessors.BlockingProcessor.maxPoolSize", "1");
+        BlockingProcessor slowProcessor = register(new BlockingProcessor());
+        FailingProcessor otherProcessor = register(new FailingProcessor());
+
+        slowProcessor.pushAll(Collections.singletonList(StreamTestModel.message(1, 1)));
+        assertTrue(slowProcessor.started.await(5, TimeUnit.SECONDS));
+        // every processor has its own workers
+        otherProcessor.pushAll(Arrays.asList(StreamTestModel.message(1, 2), StreamTestModel.message(1, 3))).get(5, TimeUnit.SECONDS);
+        assertEquals(2, otherProcessor.processedCount.get());
+
+        slowProcessor.release.countDown();
+    }
+
+    private <T extends StreamProcessor> T register(T processor) {
+        processors.add(processor);
+        return processor;
+    }
+
+    private static long getDroppedCount(StreamProcessor processor) {
+        return CloudMetricsUtils.getCounter("streamProcessor-" + processor.getClass().getSimpleName() + "-dropped-count").getValue().longValue();
+    }
+
+    /**
+     * registerGauge returns the gauge that is already registered under that name
+     */
+    private static Gauge<Long> getGauge(String name) {
+        return CloudMetricsUtils.registerGauge(name, () -> {
+            throw new IllegalStateException("gauge " + name + " is not registered");
+        });
+    }
+
+    static void waitForCount(AtomicInteger counter, int expectedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (counter.get() < expectedCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expectedCount, counter.get());
+    }
+
+    static Throwable getFailure(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("future did not fail");
+        return null;
+    }
+
+    private static class OrderedProcessor extends StreamProcessor {
+        private final Map<Long, Integer> lastSequenceByKey = new HashMap<>();
+        final AtomicInteger processedCount = new AtomicInteger();
+        final AtomicInteger outOfOrderCount = new AtomicInteger();
+        private final AtomicInteger concurrency = new AtomicInteger();
+        final AtomicInteger maxConcurrency = new AtomicInteger();
+
+        @Override
+        protected boolean isOrdered() {
+            return true;
+        }
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            maxConcurrency.accumulateAndGet(concurrency.incrementAndGet(), Math::max);
+            StreamTestModel model = StreamTestModel.of(message);
+            Integer lastSequence;
+            synchronized (lastSequenceByKey) {
+                lastSequence = lastSequenceByKey.put(model.getEquipmentId(), model.getSequence());
+            }
+            if (lastSequence != null && lastSequence >= model.getSequence()) {
+                outOfOrderCount.incrementAndGet();
+            }
+            if (model.getSequence() % 10 == 0) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            concurrency.decrementAndGet();
+            processedCount.incrementAndGet();
+        }
+    }
+
+    private static class SkewedProcessor extends StreamProcessor {
+        @Override
+        protected boolean isOrdered() {
+            return true;
+        }
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+        }
+    }
+
+    /**
+     * Holds the lane of equipment 0 until released
+     */
+    private static class HotKeyProcessor extends StreamProcessor {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final List<Integer> sequences = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger processedCount = new AtomicInteger();
+
+        @Override
+        protected boolean isOrdered() {
+            return true;
+        }
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            StreamTestModel model = StreamTestModel.of(message);
+            if (model.getEquipmentId() == 0) {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sequences.add(model.getSequence());
+            processedCount.incrementAndGet();
+        }
+
+        List<Integer> getSequences() {
+            return new ArrayList<>(sequences);
+        }
+    }
+
+    /**
+     * Fails the messages with negative sequence
+     */
+    private static class FailingProcessor extends StreamProcessor {
+        final AtomicInteger processedCount = new AtomicInteger();
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            if (StreamTestModel.of(message).getSequence() < 0) {
+                throw new IllegalStateException("test failure");
+            }
+            processedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Holds its workers until released
+     */
+    private static class BlockingProcessor extends StreamProcessor {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger processedCount = new AtomicInteger();
+
+        @Override
+        protected boolean acceptMessage(QueuedStreamMessage message) {
+            return true;
+        }
+
+        @Override
+        protected void processMessage(QueuedStreamMessage message) {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processedCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.telecominfraproject.wlan.stream;
+
+import com.telecominfraproject.wlan.core.model.json.BaseJsonModel;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasEquipmentId;
+import com.telecominfraproject.wlan.core.model.json.interfaces.HasProducedTimestamp;
+import com.telecominfraproject.wlan.core.model.streams.QueuedStreamMessage;
+
+public class StreamTestModel extends BaseJsonModel implements HasEquipmentId, HasProducedTimestamp {
+
+    private static final long serialVersionUID = -2203711356125408611L;
+
+    private long equipmentId;
+    private int sequence;
+    private long producedTimestampMs;
+
+    public StreamTestModel() {
+        // for serialization
+    }
+
+    public StreamTestModel(long equipmentId, int sequence) {
+        this.equipmentId = equipmentId;
+        this.sequence = sequence;
+        this.producedTimestampMs = System.currentTimeMillis();
+    }
+
+    public static QueuedStreamMessage message(long equipmentId, int sequence) {
+        return new QueuedStreamMessage("test", new StreamTestModel(equipmentId, sequence));
+    }
+
+    public static StreamTestModel of(QueuedStreamMessage message) {
+        return (StreamTestModel) message.getModel();
+    }
+
+    @Override
+    public long getEquipmentId() {
+        return equipmentId;
+    }
+
+    public void setEquipmentId(long equipmentId) {
+        this.equipmentId = equipmentId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    @Override
+    public long getProducedTimestampMs() {
+        return producedTimestampMs;
+    }
+
+    public void setProducedTimestampMs(long producedTimestampMs) {
+        this.producedTimestampMs = producedTimestampMs;
+    }
+
+    @Override
+    public StreamTestModel clone() {
+        return (StreamTestModel) super.clone();
+    }
+}
@@ -13,8 +13,17 @@ public interface StreamInterface<T> {
 
     default void publish(List<T> records) {
     	if(records!=null) {
-    		records.forEach(r -> publish(r));
+    		publishBatch(records);
     	}
     }
 
+    /**
+     * Publish the records as a single batch. Default implementation publishes them one by one,
+     * implementations should override it when the underlying stream supports bulk sends.
+     * @param records
+     */
+    default void publishBatch(List<T> records) {
+    	records.forEach(r -> publish(r));
+    }
+
 }
@@ -0,0 +1,54 @@
+package com.telecominfraproject.wlan.hazelcast.common;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.hazelcast.map.AbstractEntryProcessor;
+
+/**
+ * This class appends items to the Set&lt;String&gt; values of several entries of a hazelcast map in one call.
+ * Each key gets its own items. Entries that do not exist are not created, for those the processor returns false.
+ * Usage pattern:
+ * <pre>
+ * IMap&lt;String, Set&lt;String>> dirListMap = hazelcastClient.getMap(dirListMapName);
+ * Map&lt;String, Object> appended = dirListMap.executeOnKeys(stringsToAppend.keySet(), new AppendStringsToSetEntryProcessor(stringsToAppend));
+ * </pre>
+ * <b>Very important</b>: this class must implement Serializable interface because it is submitted to Hazelcast Cluster
+ * @author dtop
+ */
+public class AppendStringsToSetEntryProcessor extends AbstractEntryProcessor<String, Set<String>> implements Serializable {
+    private static final long serialVersionUID = 3411546402137398757L;
+
+    private HashMap<String, Set<String>> stringsToAppend;
+
+    public AppendStringsToSetEntryProcessor() {
+        // for serialization
+    }
+
+    /**
+     * @param stringsToAppend - items to append, per key
+     */
+    public AppendStringsToSetEntryProcessor(Map<String, Set<String>> stringsToAppend) {
+        this.stringsToAppend = new HashMap<>(stringsToAppend);
+    }
+
+    @Override
+    public Object process(Entry<String, Set<String>> entry) {
+        Set<String> value = entry.getValue();
+        Set<String> items = stringsToAppend.get(entry.getKey());
+
+        if(value==null || items==null){
+            return false;
+        }
+
+        // process and modify value
+        value.addAll(items);
+
+        entry.setValue(value);
+
+        return true;
+    }
+}